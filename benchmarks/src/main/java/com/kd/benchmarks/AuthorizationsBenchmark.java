@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.kd.spi.impl.security.ACLFileParser;
+import com.kd.spi.impl.subscriptions.Topic;
+import com.kd.spi.security.IAuthorizator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the write authorization check done on every PUBLISH, with an ACL file made of global rules, a pattern
+ * rule per device and a section for each user.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthorizationsBenchmark {
+
+    private static final int TOPICS_POOL_SIZE = 4096;
+
+    @Param({"10", "1000"})
+    public int users;
+
+    @Param({"5"})
+    public int rulesPerUser;
+
+    private IAuthorizator authorizator;
+    private Topic[] publishTopics;
+    private String[] userNames;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws ParseException {
+        IoTTopics topics = new IoTTopics(42, 100_000);
+        StringBuilder acl = new StringBuilder();
+        acl.append("topic read broadcast/#\n");
+        acl.append("topic read tenant/+/site/+/device/+/status\n");
+        acl.append("pattern write tenant/+/site/+/device/%c/#\n");
+        userNames = new String[users];
+        for (int u = 0; u < users; u++) {
+            userNames[u] = "user-" + u;
+            acl.append("user ").append(userNames[u]).append('\n');
+            for (int r = 0; r < rulesPerUser; r++) {
+                acl.append("topic write ").append(topics.subscriptionFilter(50)).append('\n');
+            }
+        }
+        authorizator = ACLFileParser.parse(new StringReader(acl.toString()));
+
+        publishTopics = new Topic[TOPICS_POOL_SIZE];
+        for (int i = 0; i < TOPICS_POOL_SIZE; i++) {
+            publishTopics[i] = new Topic(topics.publishTopic());
+            publishTopics[i].getTokens();
+        }
+    }
+
+    @Benchmark
+    public boolean canWrite() {
+        next = (next + 1) & (TOPICS_POOL_SIZE - 1);
+        return authorizator.canWrite(publishTopics[next], userNames[next % users], "client-" + next);
+    }
+}
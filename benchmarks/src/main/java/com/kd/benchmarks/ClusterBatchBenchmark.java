@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.nio.serialization.DefaultSerializationServiceBuilder;
+import com.hazelcast.nio.serialization.SerializationService;
+import com.kd.cluster.ClusterBatch;
+import com.kd.interception.HazelcastMsg;
+import com.kd.interception.messages.InterceptPublishMessage;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the serialization, by the Hazelcast serialization service, of the publishes forwarded to a member: a
+ * {@link HazelcastMsg} each in Java serialization, against a {@link ClusterBatch} of them. An operation encodes and
+ * decodes the publishes, the serialized bytes per publish are reported as the bytesPerPublish secondary result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClusterBatchBenchmark {
+
+    /**
+     * The serialized bytes per publish of the last operation, the same for all of them.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class SerializedSize {
+
+        public long bytesPerPublish;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesPerPublish = 0;
+        }
+    }
+
+    @Param({"1", "64"})
+    public int publishes;
+
+    private SerializationService serializationService;
+    private List<InterceptPublishMessage> batch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        serializationService = new DefaultSerializationServiceBuilder()
+            .addDataSerializableFactory(ClusterBatch.FACTORY_ID, ClusterBatch.FACTORY)
+            .build();
+        batch = new ArrayList<>(publishes);
+        for (int i = 0; i < publishes; i++) {
+            batch.add(new InterceptPublishMessage(MqttMessageBuilders.publish()
+                .topicName("factory/line-" + (i % 4) + "/sensor-" + (i % 8) + "/temperature")
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .retained(false)
+                .payload(Unpooled.wrappedBuffer(new byte[64]))
+                .build(), "gateway-" + (i % 4), "user"));
+        }
+    }
+
+    @Benchmark
+    public void javaSerialization(SerializedSize size, Blackhole blackhole) {
+        long bytes = 0;
+        for (InterceptPublishMessage msg : batch) {
+            final Data data = serializationService.toData(new HazelcastMsg(msg));
+            bytes += data.totalSize();
+            blackhole.consume(serializationService.<HazelcastMsg>toObject(data));
+        }
+        size.bytesPerPublish = bytes / publishes;
+    }
+
+    @Benchmark
+    public List<HazelcastMsg> clusterBatch(SerializedSize size) {
+        final Data data = serializationService.toData(new ClusterBatch(batch));
+        size.bytesPerPublish = data.totalSize() / publishes;
+        return serializationService.<ClusterBatch>toObject(data).messages();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.kd.BrokerConstants;
+import com.kd.persistence.JournaledStorageService;
+import com.kd.server.config.IConfig;
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.ISessionsStore;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes acknowledged once durable with the journal group commit, across batch windows: every thread is a
+ * publisher that queues a message for a persistent session and waits for its acknowledge before the next one, like
+ * a client with a single QoS 1 message inflight.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class GroupCommitBenchmark {
+
+    @Param({"0", "500", "2000", "10000"})
+    public long windowMicros;
+
+    // 1 for a sync per publish
+    @Param({"1024"})
+    public int maxBatch;
+
+    private File directory;
+    private JournaledStorageService storage;
+    private final AtomicInteger publishers = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Publisher {
+
+        Queue<StoredMessage> queue;
+        StoredMessage message;
+
+        @Setup(Level.Trial)
+        public void setup(GroupCommitBenchmark benchmark) {
+            final String clientID = "subscriber-" + benchmark.publishers.incrementAndGet();
+            final ISessionsStore sessionsStore = benchmark.storage.sessionsStore();
+            sessionsStore.createNewDurableSession(clientID);
+            queue = sessionsStore.queue(clientID);
+            message = new StoredMessage(new byte[64], MqttQoS.AT_LEAST_ONCE, "devices/1/state");
+            message.setClientID("device-1");
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = SessionsJournalBenchmark.storeDirectory();
+        final IConfig config = SessionsJournalBenchmark.journalConfig(directory, 64 * 1024 * 1024, 0);
+        config.setProperty(BrokerConstants.GROUP_COMMIT_PROPERTY_NAME, "true");
+        config.setProperty(BrokerConstants.GROUP_COMMIT_WINDOW_MICROS_PROPERTY_NAME, String.valueOf(windowMicros));
+        config.setProperty(BrokerConstants.GROUP_COMMIT_MAX_BATCH_PROPERTY_NAME, String.valueOf(maxBatch));
+        storage = new JournaledStorageService(config, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storage.close();
+        SessionsJournalBenchmark.delete(directory);
+    }
+
+    @Benchmark
+    public Boolean publishAcknowledged(Publisher publisher) {
+        // polled to keep the queue from filling up, still journaled
+        publisher.queue.poll();
+        publisher.queue.offer(publisher.message);
+        final CompletableFuture<Boolean> acknowledged = new CompletableFuture<>();
+        storage.sessionsStore().onDurable(() -> acknowledged.complete(Boolean.TRUE),
+            () -> acknowledged.complete(Boolean.FALSE));
+        return acknowledged.join();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.kd.spi.IMessagesStore;
+import com.kd.spi.InflightTable;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the inflight bookkeeping of a message, with a window of messages already in flight, done with the boxed
+ * maps of the sessions store (packet id after the greatest inflight, message moved to the second phase map) against
+ * the inflight table. Run with <code>-prof gc</code> for the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InflightTableBenchmark {
+
+    // the packet ids in flight are seldom small enough to be cached Integers
+    private static final int FIRST_PACKET_ID = 1000;
+
+    @Param({"16", "256"})
+    public int window;
+
+    private Map<Integer, IMessagesStore.StoredMessage> outboundFlightMessages;
+    private Map<Integer, IMessagesStore.StoredMessage> secondPhaseStore;
+    private InflightTable inflight;
+    private IMessagesStore.StoredMessage message;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        message = new IMessagesStore.StoredMessage("{\"on\":true}".getBytes(StandardCharsets.UTF_8),
+            MqttQoS.AT_LEAST_ONCE, "devices/42/state");
+        outboundFlightMessages = Collections.synchronizedMap(new HashMap<>(4));
+        secondPhaseStore = new ConcurrentHashMap<>(4);
+        inflight = new InflightTable();
+        for (int i = 0; i < window; i++) {
+            outboundFlightMessages.put(FIRST_PACKET_ID + i, message);
+            inflight.put(FIRST_PACKET_ID + i, InflightTable.WAITING_ACK, message);
+        }
+    }
+
+    private int nextPacketID() {
+        int maxId = outboundFlightMessages.keySet().isEmpty() ? 0 : Collections.max(outboundFlightMessages.keySet());
+        int nextPacketId = (maxId + 1) % 0xFFFF;
+        outboundFlightMessages.put(nextPacketId, null);
+        return nextPacketId;
+    }
+
+    @Benchmark
+    public IMessagesStore.StoredMessage qos1BoxedMaps() {
+        final int packetID = nextPacketID();
+        outboundFlightMessages.put(packetID, message);
+        return outboundFlightMessages.remove(packetID);
+    }
+
+    @Benchmark
+    public IMessagesStore.StoredMessage qos1InflightTable() {
+        final int packetID = inflight.reserve();
+        inflight.put(packetID, InflightTable.WAITING_ACK, message);
+        return inflight.remove(packetID, InflightTable.WAITING_ACK);
+    }
+
+    @Benchmark
+    public IMessagesStore.StoredMessage qos2BoxedMaps() {
+        final int packetID = nextPacketID();
+        outboundFlightMessages.put(packetID, message);
+        final IMessagesStore.StoredMessage received = outboundFlightMessages.remove(packetID);
+        secondPhaseStore.put(packetID, received);
+        outboundFlightMessages.put(packetID, received);
+        outboundFlightMessages.remove(packetID);
+        return secondPhaseStore.remove(packetID);
+    }
+
+    @Benchmark
+    public IMessagesStore.StoredMessage qos2InflightTable() {
+        final int packetID = inflight.reserve();
+        inflight.put(packetID, InflightTable.WAITING_ACK, message);
+        final IMessagesStore.StoredMessage received = inflight.remove(packetID, InflightTable.WAITING_ACK);
+        inflight.put(packetID, InflightTable.WAITING_COMPLETE, received);
+        return inflight.remove(packetID, InflightTable.WAITING_COMPLETE);
+    }
+}
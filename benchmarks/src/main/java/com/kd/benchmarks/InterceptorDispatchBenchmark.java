@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.kd.interception.AbstractBatchInterceptHandler;
+import com.kd.interception.AbstractInterceptHandler;
+import com.kd.interception.InterceptHandler;
+import com.kd.interception.messages.InterceptPublishMessage;
+import com.kd.spi.impl.BrokerInterceptor;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the dispatch of a burst of publishes to the intercept handlers, before and after the lanes: a task per
+ * publish submitted to the unbounded queue of a fixed thread pool, as the broker interceptor did, against the ring
+ * of each handler, and the ring of batch handlers notified of the publishes in batches. An operation ends when every
+ * handler counted every publish of the burst.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterceptorDispatchBenchmark {
+
+    private static final int BURST = 1024;
+
+    static final class CountingHandler extends AbstractInterceptHandler {
+
+        private final String id;
+        final AtomicLong published = new AtomicLong();
+
+        CountingHandler(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getID() {
+            return id;
+        }
+
+        @Override
+        public void onPublish(InterceptPublishMessage msg) {
+            published.lazySet(published.get() + 1);
+        }
+    }
+
+    static final class BatchCountingHandler extends AbstractBatchInterceptHandler {
+
+        private final String id;
+        final AtomicLong published = new AtomicLong();
+
+        BatchCountingHandler(String id) {
+            // flushed as soon as the ring is empty, the burst is waited for anyway
+            super(DEFAULT_MAX_BATCH_SIZE, 0);
+            this.id = id;
+        }
+
+        @Override
+        public String getID() {
+            return id;
+        }
+
+        @Override
+        public void onPublishBatch(List<InterceptPublishMessage> batch) {
+            published.lazySet(published.get() + batch.size());
+        }
+    }
+
+    @Param({"1", "4"})
+    public int handlers;
+
+    private List<CountingHandler> counters;
+    private ExecutorService executor;
+    private BrokerInterceptor interceptor;
+    private List<BatchCountingHandler> batchCounters;
+    private BrokerInterceptor batchInterceptor;
+    private MqttPublishMessage message;
+    private long expected;
+    private long batchExpected;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        counters = new ArrayList<>(handlers);
+        for (int i = 0; i < handlers; i++) {
+            counters.add(new CountingHandler("counter-" + i));
+        }
+        executor = Executors.newFixedThreadPool(1);
+        interceptor = new BrokerInterceptor(new ArrayList<InterceptHandler>(counters));
+        batchCounters = new ArrayList<>(handlers);
+        for (int i = 0; i < handlers; i++) {
+            batchCounters.add(new BatchCountingHandler("batch-counter-" + i));
+        }
+        batchInterceptor = new BrokerInterceptor(new ArrayList<InterceptHandler>(batchCounters));
+        message = MqttMessageBuilders.publish()
+            .topicName("devices/42/state")
+            .qos(MqttQoS.AT_MOST_ONCE)
+            .retained(false)
+            .payload(Unpooled.wrappedBuffer("{\"on\":true}".getBytes(StandardCharsets.UTF_8)))
+            .build();
+        expected = 0;
+        batchExpected = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        interceptor.stop();
+        batchInterceptor.stop();
+        message.release();
+    }
+
+    private void awaitDispatched() {
+        expected += BURST;
+        for (CountingHandler counter : counters) {
+            while (counter.published.get() < expected) {
+                LockSupport.parkNanos(1000);
+            }
+        }
+    }
+
+    @Benchmark
+    public void executorTasks() {
+        for (int i = 0; i < BURST; i++) {
+            message.retain();
+            executor.execute(() -> {
+                try {
+                    for (CountingHandler handler : counters) {
+                        handler.onPublish(new InterceptPublishMessage(message, "publisher", "user"));
+                    }
+                } finally {
+                    ReferenceCountUtil.release(message);
+                }
+            });
+        }
+        awaitDispatched();
+    }
+
+    @Benchmark
+    public void lanes() {
+        for (int i = 0; i < BURST; i++) {
+            interceptor.notifyTopicPublished(message, "publisher", "user", null);
+        }
+        awaitDispatched();
+    }
+
+    @Benchmark
+    public void batchLanes() {
+        for (int i = 0; i < BURST; i++) {
+            batchInterceptor.notifyTopicPublished(message, "publisher", "user", null);
+        }
+        batchExpected += BURST;
+        for (BatchCountingHandler counter : batchCounters) {
+            while (counter.published.get() < batchExpected) {
+                LockSupport.parkNanos(1000);
+            }
+        }
+    }
+}
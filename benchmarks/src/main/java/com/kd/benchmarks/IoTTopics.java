@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Generates topic names and topic filters shaped like an IoT deployment:
+ * <pre>tenant/{t}/site/{s}/device/{d}/{sensor}</pre>
+ * Devices subscribe to their own command topics, applications subscribe to sites and tenants with <code>+</code>
+ * and <code>#</code>, and a few hot filters (broadcast, alarms) are subscribed by most clients.
+ *
+ * The generation is seeded, so two runs with the same sizes produce the same distribution.
+ */
+final class IoTTopics {
+
+    private static final String[] SENSORS = {"temperature", "humidity", "pressure", "battery", "status", "gps"};
+
+    private final Random random;
+    private final int tenants;
+    private final int sitesPerTenant;
+    private final int devicesPerSite;
+
+    /**
+     * @param seed the random seed.
+     * @param devices the total number of devices, spread over tenants and sites.
+     */
+    IoTTopics(long seed, int devices) {
+        this.random = new Random(seed);
+        this.tenants = Math.max(1, (int) Math.cbrt(devices) / 2);
+        this.sitesPerTenant = Math.max(1, (int) Math.cbrt(devices));
+        this.devicesPerSite = Math.max(1, devices / (tenants * sitesPerTenant));
+    }
+
+    /**
+     * @return a topic a device publishes to, with no wildcards.
+     */
+    String publishTopic() {
+        return String.format("tenant/%d/site/%d/device/%d/%s", random.nextInt(tenants),
+            random.nextInt(sitesPerTenant), random.nextInt(devicesPerSite), SENSORS[random.nextInt(SENSORS.length)]);
+    }
+
+    /**
+     * @param wildcardPercent the percentage of the returned filters containing + or #.
+     * @return a topic filter to subscribe to.
+     */
+    String subscriptionFilter(int wildcardPercent) {
+        final int tenant = random.nextInt(tenants);
+        final int site = random.nextInt(sitesPerTenant);
+        if (random.nextInt(100) >= wildcardPercent) {
+            return String.format("tenant/%d/site/%d/device/%d/cmd", tenant, site, random.nextInt(devicesPerSite));
+        }
+        switch (random.nextInt(6)) {
+            case 0:
+                return String.format("tenant/%d/site/%d/#", tenant, site);
+            case 1:
+                return String.format("tenant/%d/site/+/device/+/%s", tenant, SENSORS[random.nextInt(SENSORS.length)]);
+            case 2:
+                return String.format("tenant/%d/#", tenant);
+            case 3:
+                return String.format("tenant/+/site/%d/device/+/+", site);
+            case 4:
+                return String.format("tenant/%d/site/%d/device/%d/+", tenant, site, random.nextInt(devicesPerSite));
+            default:
+                return hotFilter();
+        }
+    }
+
+    /**
+     * @return one of the few filters subscribed by a large share of the clients.
+     */
+    String hotFilter() {
+        switch (random.nextInt(3)) {
+            case 0:
+                return "tenant/+/site/+/device/+/status";
+            case 1:
+                return "broadcast/#";
+            default:
+                return "#";
+        }
+    }
+
+    String clientId(int index) {
+        return "client-" + index;
+    }
+
+    Random random() {
+        return random;
+    }
+}
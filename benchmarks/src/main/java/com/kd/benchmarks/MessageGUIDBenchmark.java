@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.kd.spi.DuplicateFilter;
+import com.kd.spi.MessageGUID;
+import com.kd.spi.MessageGUIDGenerator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the guids of the messages: generated at the ingress, against a random UUID, and the guid of a client
+ * publish hashed from its 64 bytes payload, then the duplicate filter adding a new guid, rotating its tables as they
+ * fill, and looking up one seen. The contended variants share the generator and the filter between 4 threads, as
+ * the event loops of the broker do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageGUIDBenchmark {
+
+    private static final int SEEN = 1 << 16;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int next;
+    }
+
+    private MessageGUIDGenerator generator;
+    private DuplicateFilter filter;
+    private MessageGUID[] seen;
+    private ByteBuf payload;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        generator = new MessageGUIDGenerator();
+        // the defaults of the broker
+        filter = new DuplicateFilter(10_000, 262_144);
+        seen = new MessageGUID[SEEN];
+        for (int i = 0; i < SEEN; i++) {
+            seen[i] = generator.next();
+            filter.add(seen[i]);
+        }
+        payload = Unpooled.wrappedBuffer(new byte[64]);
+    }
+
+    @Benchmark
+    public UUID randomUUID() {
+        return UUID.randomUUID();
+    }
+
+    @Benchmark
+    public MessageGUID generate() {
+        return generator.next();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public MessageGUID generateContended() {
+        return generator.next();
+    }
+
+    @Benchmark
+    public MessageGUID clientPublish(Cursor cursor) {
+        return MessageGUID.ofClientPublish("sensor-42", (cursor.next++ & 0xFFFF) + 1, "sensors/42/temperature",
+            payload);
+    }
+
+    @Benchmark
+    public boolean dedupNew() {
+        return filter.add(generator.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean dedupNewContended() {
+        return filter.add(generator.next());
+    }
+
+    @Benchmark
+    public boolean dedupSeen(Cursor cursor) {
+        return filter.contains(seen[cursor.next++ & (SEEN - 1)]);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.kd.persistence.MemoryStorageService;
+import com.kd.spi.IMessagesStore;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lookup of the retained messages matching a new subscription done scanning all of them against the
+ * topic tree index, with device state topics like <code>devices/{id}/{sensor}</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetainedSearchBenchmark {
+
+    private static final String[] SENSORS = {"state", "temperature", "battery", "firmware"};
+
+    @Param({"100000", "1000000"})
+    public int retained;
+
+    @Param({"devices/+/state", "devices/4242/#", "devices/4242/state"})
+    public String filter;
+
+    private IMessagesStore messagesStore;
+    private Topic topicFilter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        messagesStore = new MemoryStorageService(null, null).messagesStore();
+        final byte[] payload = "{\"on\":true}".getBytes(StandardCharsets.UTF_8);
+        final int devices = retained / SENSORS.length;
+        for (int i = 0; i < retained; i++) {
+            final String topic = "devices/" + (i % devices) + "/" + SENSORS[i / devices];
+            IMessagesStore.StoredMessage message = new IMessagesStore.StoredMessage(payload, MqttQoS.AT_LEAST_ONCE,
+                topic);
+            message.setClientID("device-" + (i % devices));
+            messagesStore.storeRetained(new Topic(topic), message);
+        }
+        topicFilter = new Topic(filter);
+        topicFilter.getTokens();
+    }
+
+    @Benchmark
+    public Collection<IMessagesStore.StoredMessage> scan() {
+        return messagesStore.searchMatching(key -> key.match(topicFilter));
+    }
+
+    @Benchmark
+    public Collection<IMessagesStore.StoredMessage> topicTree() {
+        return messagesStore.searchMatching(topicFilter);
+    }
+}
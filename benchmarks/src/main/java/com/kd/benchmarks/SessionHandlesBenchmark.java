@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.kd.persistence.MemoryStorageService;
+import com.kd.server.ConnectionDescriptor;
+import com.kd.server.ConnectionDescriptorStore;
+import com.kd.spi.ClientSession;
+import com.kd.spi.ISessionsStore;
+import com.kd.spi.impl.SessionHandle;
+import com.kd.spi.impl.SessionsRepository;
+import com.kd.spi.impl.subscriptions.Subscription;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the resolution of the subscribers of a publish, before and after the session handles: by client id, as
+ * a lookup of the session, two of the connection and one of the offline queue in the store per subscriber, against
+ * the handle referenced by the subscription. The handles are bound as a CONNECT does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionHandlesBenchmark {
+
+    @Param({"1000", "100000"})
+    public int subscribers;
+
+    private ISessionsStore sessionsStore;
+    private SessionsRepository sessionsRepository;
+    private ConnectionDescriptorStore connectionDescriptors;
+    private List<Subscription> subscriptions;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sessionsStore = new MemoryStorageService(null, null).sessionsStore();
+        sessionsRepository = new SessionsRepository(sessionsStore, null);
+        connectionDescriptors = new ConnectionDescriptorStore();
+        subscriptions = new ArrayList<>(subscribers);
+        final Topic topic = new Topic("devices/+/state");
+        for (int i = 0; i < subscribers; i++) {
+            final String clientID = "device-" + i;
+            final ConnectionDescriptor descriptor = new ConnectionDescriptor(clientID, new EmbeddedChannel(), false);
+            connectionDescriptors.addConnection(descriptor);
+            final SessionHandle handle = sessionsRepository.createOrLoadClientSession(clientID, false, descriptor);
+            final Subscription subscription = new Subscription(clientID, topic, MqttQoS.AT_LEAST_ONCE);
+            subscription.setHandle(handle);
+            subscriptions.add(subscription);
+        }
+    }
+
+    @Benchmark
+    public void clientIdLookups(Blackhole blackhole) {
+        for (Subscription subscription : subscriptions) {
+            final String clientID = subscription.getClientId();
+            final ClientSession session = sessionsRepository.sessionForClient(clientID);
+            if (connectionDescriptors.isConnected(clientID)) {
+                blackhole.consume(connectionDescriptors.lookupDescriptor(clientID).orElse(null));
+            }
+            blackhole.consume(session);
+            blackhole.consume(sessionsStore.queue(clientID).size());
+        }
+    }
+
+    @Benchmark
+    public void sessionHandles(Blackhole blackhole) {
+        for (Subscription subscription : subscriptions) {
+            final SessionHandle handle = sessionsRepository.handleFor(subscription);
+            final ClientSession session = handle.session();
+            final ConnectionDescriptor connection = handle.connection();
+            if (connection != null) {
+                blackhole.consume(connection);
+            }
+            blackhole.consume(session);
+            blackhole.consume(session.getPendingPublishMessagesNo());
+        }
+    }
+}
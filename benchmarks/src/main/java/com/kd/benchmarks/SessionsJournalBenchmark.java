@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.kd.BrokerConstants;
+import com.kd.persistence.JournaledStorageService;
+import com.kd.persistence.MemoryStorageService;
+import com.kd.server.config.IConfig;
+import com.kd.server.config.MemoryConfig;
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.ISessionsStore;
+import com.kd.spi.IStore;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write throughput of the sessions journal against the memory store, for the changes done per message delivered to
+ * a persistent session: the offline queue and the inflight zone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionsJournalBenchmark {
+
+    private static final String CLIENT_ID = "device-1";
+
+    @Param({"memory", "journal"})
+    public String store;
+
+    @Param({"64", "1024"})
+    public int payloadBytes;
+
+    private File directory;
+    private ScheduledExecutorService scheduler;
+    private IStore storage;
+    private ISessionsStore sessionsStore;
+    private Queue<StoredMessage> queue;
+    private StoredMessage message;
+
+    static File storeDirectory() throws IOException {
+        return Files.createTempDirectory("moquette-journal-bench").toFile();
+    }
+
+    static IConfig journalConfig(File directory, int segmentBytes, int autosaveInterval) {
+        final Properties properties = new Properties();
+        properties.setProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME,
+            new File(directory, "sessions").getPath());
+        properties.setProperty(BrokerConstants.RETAINED_STORE_DIR_PROPERTY_NAME,
+            new File(directory, "retained").getPath());
+        properties.setProperty(BrokerConstants.SESSIONS_JOURNAL_SEGMENT_BYTES_PROPERTY_NAME,
+            String.valueOf(segmentBytes));
+        properties.setProperty(BrokerConstants.RETAINED_STORE_SEGMENT_BYTES_PROPERTY_NAME,
+            String.valueOf(1024 * 1024));
+        properties.setProperty(BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME, String.valueOf(autosaveInterval));
+        return new MemoryConfig(properties);
+    }
+
+    static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        if ("journal".equals(store)) {
+            directory = storeDirectory();
+            // the snapshot every second bounds the journal on disk
+            storage = new JournaledStorageService(journalConfig(directory, 64 * 1024 * 1024, 1), scheduler);
+        } else {
+            storage = new MemoryStorageService(null, scheduler);
+        }
+        storage.initStore();
+        sessionsStore = storage.sessionsStore();
+        sessionsStore.createNewDurableSession(CLIENT_ID);
+        queue = sessionsStore.queue(CLIENT_ID);
+        message = new StoredMessage(new byte[payloadBytes], MqttQoS.AT_LEAST_ONCE, "devices/1/state");
+        message.setClientID("device-2");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storage.close();
+        scheduler.shutdown();
+        if (directory != null) {
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    public StoredMessage enqueueAndPoll() {
+        queue.offer(message);
+        return queue.poll();
+    }
+
+    @Benchmark
+    public StoredMessage inflightAndAck() {
+        final int packetID = sessionsStore.nextPacketID(CLIENT_ID);
+        sessionsStore.inFlight(CLIENT_ID, packetID, message);
+        return sessionsStore.inFlightAck(CLIENT_ID, packetID);
+    }
+}
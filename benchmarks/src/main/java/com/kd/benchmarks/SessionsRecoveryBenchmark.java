@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.kd.persistence.JournaledStorageService;
+import com.kd.server.config.IConfig;
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.ISessionsStore;
+import com.kd.spi.impl.subscriptions.Subscription;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restart time of the sessions journal, recovering from the snapshot or replaying the whole journal. Every session
+ * has a subscription, ten queued messages and one inflight message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SessionsRecoveryBenchmark {
+
+    // big enough to keep the whole journal in one segment, never deleted by the snapshots
+    private static final int SEGMENT_BYTES = 1024 * 1024 * 1024;
+    private static final int QUEUED_PER_SESSION = 10;
+
+    @Param({"10000", "100000"})
+    public int sessions;
+
+    @Param({"snapshot", "journal"})
+    public String recovery;
+
+    private File directory;
+    private IConfig config;
+    private JournaledStorageService recovered;
+
+    @Setup(Level.Trial)
+    public void fill() throws IOException {
+        directory = SessionsJournalBenchmark.storeDirectory();
+        config = SessionsJournalBenchmark.journalConfig(directory, SEGMENT_BYTES, 0);
+        final JournaledStorageService storage = new JournaledStorageService(config, null);
+        final ISessionsStore sessionsStore = storage.sessionsStore();
+        final byte[] payload = new byte[64];
+        for (int i = 0; i < sessions; i++) {
+            final String clientID = "device-" + i;
+            sessionsStore.createNewDurableSession(clientID);
+            sessionsStore.subscriptionStore().addNewSubscription(new Subscription(clientID,
+                new Topic("devices/" + i + "/commands/#"), MqttQoS.AT_LEAST_ONCE));
+            final Queue<StoredMessage> queue = sessionsStore.queue(clientID);
+            for (int m = 0; m < QUEUED_PER_SESSION; m++) {
+                queue.offer(new StoredMessage(payload, MqttQoS.AT_LEAST_ONCE, "devices/" + i + "/commands/reboot"));
+            }
+            sessionsStore.inFlight(clientID, sessionsStore.nextPacketID(clientID), queue.poll());
+        }
+        storage.close();
+        resetRecovery();
+    }
+
+    private void resetRecovery() {
+        if ("journal".equals(recovery)) {
+            new File(new File(directory, "sessions"), "sessions.snapshot").delete();
+        }
+    }
+
+    @Benchmark
+    public JournaledStorageService restart() {
+        recovered = new JournaledStorageService(config, null);
+        return recovered;
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeRecovered() {
+        recovered.close();
+        resetRecovery();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteStore() {
+        SessionsJournalBenchmark.delete(directory);
+    }
+}
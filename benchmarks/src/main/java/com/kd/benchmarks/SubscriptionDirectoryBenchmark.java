@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.kd.persistence.MemoryStorageService;
+import com.kd.spi.ClientSession;
+import com.kd.spi.impl.SessionsRepository;
+import com.kd.spi.impl.subscriptions.CTrieSubscriptionDirectory;
+import com.kd.spi.impl.subscriptions.ISubscriptionsDirectory;
+import com.kd.spi.impl.subscriptions.SnapshotSubscriptionDirectory;
+import com.kd.spi.impl.subscriptions.Subscription;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures add, remove and match on the subscriptions directories filled with IoT shaped subscriptions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubscriptionDirectoryBenchmark {
+
+    private static final int TOPICS_POOL_SIZE = 4096;
+
+    @Param({"10000", "100000"})
+    public int subscriptions;
+
+    @Param({"20"})
+    public int wildcardPercent;
+
+    @Param({"ctrie", "snapshot"})
+    public String directoryType;
+
+    private ScheduledExecutorService scheduler;
+    private ISubscriptionsDirectory directory;
+    private Topic[] publishTopics;
+    private Subscription[] churnSubscriptions;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        SessionsRepository sessionsRepository = new SessionsRepository(
+            new MemoryStorageService(null, scheduler).sessionsStore(), scheduler);
+        IoTTopics topics = new IoTTopics(42, subscriptions);
+        // around 5 subscriptions per client, stored in the sessions so the directory loads them at init
+        ClientSession session = null;
+        for (int i = 0; i < subscriptions; i++) {
+            if (i % 5 == 0) {
+                session = sessionsRepository.createNewSession(topics.clientId(i / 5), false);
+            }
+            session.subscribe(new Subscription(session.clientID, new Topic(topics.subscriptionFilter(wildcardPercent)),
+                MqttQoS.valueOf(i % 3)));
+        }
+        directory = "snapshot".equals(directoryType)
+            ? new SnapshotSubscriptionDirectory() : new CTrieSubscriptionDirectory();
+        directory.init(sessionsRepository);
+
+        publishTopics = new Topic[TOPICS_POOL_SIZE];
+        churnSubscriptions = new Subscription[TOPICS_POOL_SIZE];
+        for (int i = 0; i < TOPICS_POOL_SIZE; i++) {
+            publishTopics[i] = new Topic(topics.publishTopic());
+            // the parsed tokens are cached, parsing is measured apart by TopicBenchmark
+            publishTopics[i].getTokens();
+            churnSubscriptions[i] = new Subscription("churn-" + i,
+                new Topic(topics.subscriptionFilter(wildcardPercent)), MqttQoS.AT_LEAST_ONCE);
+            churnSubscriptions[i].getTopicFilter().getTokens();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (TOPICS_POOL_SIZE - 1);
+        return next;
+    }
+
+    @Benchmark
+    public List<Subscription> matches() {
+        return directory.matches(publishTopics[nextIndex()]);
+    }
+
+    /**
+     * Subscribes and unsubscribes a client, so the size of the tree stays the same across the iterations.
+     */
+    @Benchmark
+    public void addAndRemove() {
+        final Subscription subscription = churnSubscriptions[nextIndex()];
+        directory.add(subscription);
+        directory.removeSubscription(subscription.getTopicFilter(), subscription.getClientId());
+    }
+}
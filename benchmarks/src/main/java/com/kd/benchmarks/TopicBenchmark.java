@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.benchmarks;
+
+import com.kd.spi.impl.subscriptions.Token;
+import com.kd.spi.impl.subscriptions.Topic;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parsing of topic names and the matching of a topic name against a topic filter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicBenchmark {
+
+    private static final int TOPICS_POOL_SIZE = 4096;
+
+    @Param({"20", "80"})
+    public int wildcardPercent;
+
+    private String[] publishTopicNames;
+    private Topic[] publishTopics;
+    private Topic[] filters;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        IoTTopics topics = new IoTTopics(42, 100_000);
+        publishTopicNames = new String[TOPICS_POOL_SIZE];
+        publishTopics = new Topic[TOPICS_POOL_SIZE];
+        filters = new Topic[TOPICS_POOL_SIZE];
+        for (int i = 0; i < TOPICS_POOL_SIZE; i++) {
+            publishTopicNames[i] = topics.publishTopic();
+            publishTopics[i] = new Topic(publishTopicNames[i]);
+            publishTopics[i].getTokens();
+            filters[i] = new Topic(topics.subscriptionFilter(wildcardPercent));
+            filters[i].getTokens();
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (TOPICS_POOL_SIZE - 1);
+        return next;
+    }
+
+    @Benchmark
+    public List<Token> parse() {
+        return new Topic(publishTopicNames[nextIndex()]).getTokens();
+    }
+
+    @Benchmark
+    public boolean match() {
+        final int i = nextIndex();
+        return publishTopics[i].match(filters[i]);
+    }
+}
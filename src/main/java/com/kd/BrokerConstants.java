@@ -16,6 +16,10 @@
 
 package com.kd;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
 import java.io.File;
 
 public final class BrokerConstants {
@@ -45,6 +49,16 @@ public final class BrokerConstants {
     public static final String DB_AUTHENTICATOR_URL = "authenticator.db.url";
     public static final String DB_AUTHENTICATOR_QUERY = "authenticator.db.query";
     public static final String DB_AUTHENTICATOR_DIGEST = "authenticator.db.digest";
+    public static final String DB_AUTHENTICATOR_CACHE_TTL = "authenticator.db.cache.ttl_ms";
+    public static final long DEFAULT_DB_AUTHENTICATOR_CACHE_TTL_MILLIS = 60000;
+    public static final String DB_AUTHENTICATOR_NEGATIVE_CACHE_TTL = "authenticator.db.cache.negative_ttl_ms";
+    public static final long DEFAULT_DB_AUTHENTICATOR_NEGATIVE_CACHE_TTL_MILLIS = 5000;
+    public static final String DB_AUTHENTICATOR_CACHE_MAX_ENTRIES = "authenticator.db.cache.max_entries";
+    public static final int DEFAULT_DB_AUTHENTICATOR_CACHE_MAX_ENTRIES = 100000;
+    public static final String DB_AUTHENTICATOR_THREADS = "authenticator.db.threads";
+    public static final int DEFAULT_DB_AUTHENTICATOR_THREADS = 4;
+    public static final String DB_AUTHENTICATOR_QUEUE_SIZE = "authenticator.db.queue_size";
+    public static final int DEFAULT_DB_AUTHENTICATOR_QUEUE_SIZE = 1024;
     public static final int PORT = 1883;
     public static final int WEBSOCKET_PORT = 8080;
     public static final String DISABLED_PORT_BIND = "disabled";
@@ -63,12 +77,97 @@ public final class BrokerConstants {
     public static final String METRICS_LIBRATO_EMAIL_PROPERTY_NAME = "metrics.librato.email";
     public static final String METRICS_LIBRATO_TOKEN_PROPERTY_NAME = "metrics.librato.token";
     public static final String METRICS_LIBRATO_SOURCE_PROPERTY_NAME = "metrics.librato.source";
+    public static final String METRICS_REGISTRY_NAME = "moquette";
 
     public static final String BUGSNAG_ENABLE_PROPERTY_NAME = "use_bugsnag";
     public static final String BUGSNAG_TOKEN_PROPERTY_NAME = "bugsnag.token";
 
     public static final String STORAGE_CLASS_NAME = "storage_class";
 
+    public static final String SUBSCRIPTIONS_DIRECTORY_CLASS_NAME = "subscriptions_directory_class";
+    public static final String SUBSCRIPTIONS_COMPACTION_INTERVAL_PROPERTY_NAME =
+        "subscriptions.compaction_interval.seconds";
+    public static final long DEFAULT_SUBSCRIPTIONS_COMPACTION_INTERVAL_SECONDS = 600;
+
+    public static final String RETAINED_MAX_BYTES_PROPERTY_NAME = "retained.max_bytes";
+    public static final String RETAINED_EVICTION_POLICY_PROPERTY_NAME = "retained.eviction_policy";
+    public static final String DEFAULT_RETAINED_EVICTION_POLICY = "lru";
+    public static final String RETAINED_DELIVERY_MAX_INFLIGHT_PROPERTY_NAME = "retained.delivery.max_inflight";
+    public static final int DEFAULT_RETAINED_DELIVERY_MAX_INFLIGHT = 64;
+    public static final String RETAINED_STORE_DIR_PROPERTY_NAME = "retained.store.dir";
+    public static final String DEFAULT_RETAINED_STORE_DIR = System.getProperty("user.dir") + File.separator
+            + "moquette_retained";
+    public static final String RETAINED_STORE_SEGMENT_BYTES_PROPERTY_NAME = "retained.store.segment_bytes";
+    public static final int DEFAULT_RETAINED_STORE_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final String DEFAULT_SESSIONS_JOURNAL_DIR = System.getProperty("user.dir") + File.separator
+            + "moquette_sessions";
+    public static final String SESSIONS_JOURNAL_SEGMENT_BYTES_PROPERTY_NAME = "sessions.journal.segment_bytes";
+    public static final int DEFAULT_SESSIONS_JOURNAL_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_AUTOSAVE_INTERVAL = 30;
+    public static final String GROUP_COMMIT_PROPERTY_NAME = "journal.group_commit";
+    public static final String GROUP_COMMIT_WINDOW_MICROS_PROPERTY_NAME = "journal.group_commit.window_micros";
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 2000;
+    public static final String GROUP_COMMIT_MAX_BATCH_PROPERTY_NAME = "journal.group_commit.max_batch";
+    public static final int DEFAULT_GROUP_COMMIT_MAX_BATCH = 1024;
+    public static final String AUTOSAVE_FULL_EVERY_PROPERTY_NAME = "autosave.full_every";
+    public static final int DEFAULT_AUTOSAVE_FULL_EVERY = 10;
+    public static final String SESSION_EXPIRY_TTL_PROPERTY_NAME = "session.expiry.ttl_seconds";
+    public static final long DEFAULT_SESSION_EXPIRY_TTL_SECONDS = 6 * 24 * 3600;
+    public static final String SESSION_EXPIRY_TTL_BY_PREFIX_PROPERTY_NAME = "session.expiry.ttl_by_prefix";
+    public static final String SESSION_EXPIRY_PURGE_INTERVAL_PROPERTY_NAME = "session.expiry.purge_interval_seconds";
+    public static final long DEFAULT_SESSION_EXPIRY_PURGE_INTERVAL_SECONDS = 60;
+    public static final String SESSION_EXPIRY_PURGE_BATCH_PROPERTY_NAME = "session.expiry.purge_batch";
+    public static final int DEFAULT_SESSION_EXPIRY_PURGE_BATCH = 1000;
+    public static final String INTERCEPT_RING_SIZE_PROPERTY_NAME = "intercept.ring.size";
+    public static final int DEFAULT_INTERCEPT_RING_SIZE = 8192;
+    public static final String INTERCEPT_OVERLOAD_POLICY_PROPERTY_NAME = "intercept.overload.policy";
+    public static final String DEFAULT_INTERCEPT_OVERLOAD_POLICY = "block";
+    public static final String INTERCEPT_OVERLOAD_SAMPLE_RATE_PROPERTY_NAME = "intercept.overload.sample_rate";
+    public static final int DEFAULT_INTERCEPT_OVERLOAD_SAMPLE_RATE = 10;
+    public static final String CLUSTER_ROUTING_PROPERTY_NAME = "cluster.routing";
+    public static final String CLUSTER_ROUTING_BY_SUBSCRIPTIONS = "subscriptions";
+    public static final String CLUSTER_ROUTING_BROADCAST = "broadcast";
+    public static final String DEFAULT_CLUSTER_ROUTING = CLUSTER_ROUTING_BY_SUBSCRIPTIONS;
+    public static final String CLUSTER_DIGEST_REFRESH_PROPERTY_NAME = "cluster.digest.refresh_ms";
+    public static final long DEFAULT_CLUSTER_DIGEST_REFRESH_MILLIS = 1000;
+    public static final String CLUSTER_BATCH_MAX_SIZE_PROPERTY_NAME = "cluster.batch.max_size";
+    public static final int DEFAULT_CLUSTER_BATCH_MAX_SIZE = 256;
+    public static final String CLUSTER_BATCH_LINGER_PROPERTY_NAME = "cluster.batch.linger_ms";
+    public static final long DEFAULT_CLUSTER_BATCH_LINGER_MILLIS = 2;
+    public static final String CLUSTER_TRANSPORT_PROPERTY_NAME = "cluster.transport";
+    public static final String CLUSTER_TRANSPORT_HAZELCAST = "hazelcast";
+    public static final String CLUSTER_TRANSPORT_NETTY = "netty";
+    public static final String DEFAULT_CLUSTER_TRANSPORT = CLUSTER_TRANSPORT_HAZELCAST;
+    public static final String CLUSTER_HOST_PROPERTY_NAME = "cluster.host";
+    public static final String DEFAULT_CLUSTER_HOST = "0.0.0.0";
+    public static final String CLUSTER_PORT_PROPERTY_NAME = "cluster.port";
+    public static final int DEFAULT_CLUSTER_PORT = 7883;
+    public static final String CLUSTER_NODE_ID_PROPERTY_NAME = "cluster.node_id";
+    public static final String CLUSTER_PEERS_PROPERTY_NAME = "cluster.peers";
+    public static final String CLUSTER_PEERS_FILE_PROPERTY_NAME = "cluster.peers_file";
+    public static final String CLUSTER_BUFFER_MAX_BYTES_PROPERTY_NAME = "cluster.buffer.max_bytes";
+    public static final long DEFAULT_CLUSTER_BUFFER_MAX_BYTES = 8 * 1024 * 1024;
+    public static final String CLUSTER_SESSION_TAKEOVER_TIMEOUT_PROPERTY_NAME = "cluster.session_takeover.timeout_ms";
+    public static final long DEFAULT_CLUSTER_SESSION_TAKEOVER_TIMEOUT_MILLIS = 3000;
+    public static final String CLUSTER_RETAINED_FLUSH_PROPERTY_NAME = "cluster.retained.flush_ms";
+    public static final long DEFAULT_CLUSTER_RETAINED_FLUSH_MILLIS = 10;
+    public static final String CLUSTER_RETAINED_TOMBSTONE_PROPERTY_NAME = "cluster.retained.tombstone_ms";
+    public static final long DEFAULT_CLUSTER_RETAINED_TOMBSTONE_MILLIS = 24 * 60 * 60 * 1000;
+    public static final String CLUSTER_DEDUP_WINDOW_PROPERTY_NAME = "cluster.dedup.window_ms";
+    public static final long DEFAULT_CLUSTER_DEDUP_WINDOW_MILLIS = 10000;
+    public static final String CLUSTER_DEDUP_CAPACITY_PROPERTY_NAME = "cluster.dedup.capacity";
+    public static final int DEFAULT_CLUSTER_DEDUP_CAPACITY = 262144;
+
+    /**
+     * Registers the gauge in the shared registry, replacing the one of the same name: the last component created
+     * wins, as when a broker is restarted in the same JVM.
+     */
+    public static <T> void registerGauge(String name, Gauge<T> gauge) {
+        final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
+        metrics.remove(name);
+        metrics.register(name, gauge);
+    }
+
     private BrokerConstants() {
     }
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.cluster;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializableFactory;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+import com.kd.interception.HazelcastMsg;
+import com.kd.interception.messages.InterceptPublishMessage;
+import com.kd.spi.MessageGUID;
+import io.netty.buffer.ByteBuf;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes forwarded to a cluster member in a single Hazelcast message, in a binary format of their own instead of
+ * the Java serialization of a {@link HazelcastMsg} each.
+ * <p>
+ * A batch starts with a version byte and the count of publishes. Each publish is the reference to its topic, to its
+ * client id, its QoS byte, a flags byte, the guid if the flag 1 is set, the packet id and the length prefixed payload.
+ * The flag 2 marks a publish the client retransmitted. The topics and the client ids are compressed by a
+ * dictionary scoped to the batch: the first occurrence of a string is written as a 0 reference followed by the string,
+ * the next ones as its index plus one. The counts, references and lengths are unsigned variable length ints.
+ * <p>
+ * The sending side holds the publishes, their payloads are read when the batch is written: by Hazelcast during the
+ * publish on the topic, or in the frame of the peer to peer transport. The receiving side gets the decoded messages.
+ */
+public final class ClusterBatch implements IdentifiedDataSerializable {
+
+    public static final int FACTORY_ID = 0x4B44;
+    public static final int CLASS_ID = 1;
+    /**
+     * To register in the serialization config of the Hazelcast instance, creates the messages between the nodes.
+     */
+    public static final DataSerializableFactory FACTORY = typeId -> {
+        switch (typeId) {
+            case CLASS_ID:
+                return new ClusterBatch();
+            case SessionRequest.CLASS_ID:
+                return new SessionRequest();
+            case SessionTransfer.CLASS_ID:
+                return new SessionTransfer();
+            case RetainedBatch.CLASS_ID:
+                return new RetainedBatch();
+            case SubscribedFilter.CLASS_ID:
+                return new SubscribedFilter();
+            default:
+                return null;
+        }
+    };
+
+    private static final byte VERSION = 2;
+    private static final int FLAG_GUID = 1;
+    private static final int FLAG_DUP = 2;
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1024]);
+
+    private List<InterceptPublishMessage> publishes = Collections.emptyList();
+    private List<HazelcastMsg> messages = Collections.emptyList();
+
+    public ClusterBatch() {
+    }
+
+    /**
+     * @param publishes retained until the batch is published.
+     */
+    public ClusterBatch(List<InterceptPublishMessage> publishes) {
+        this.publishes = publishes;
+    }
+
+    /**
+     * @return the messages of a batch received.
+     */
+    public List<HazelcastMsg> messages() {
+        return messages;
+    }
+
+    @Override
+    public int getFactoryId() {
+        return FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return CLASS_ID;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        writeTo(out);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        readFrom(in);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(VERSION);
+        writeVarInt(out, publishes.size());
+        final Map<String, Integer> dictionary = new HashMap<>();
+        for (InterceptPublishMessage publish : publishes) {
+            writeString(out, publish.getTopicName(), dictionary);
+            writeString(out, publish.getClientID(), dictionary);
+            out.writeByte(publish.getQos().value());
+            final MessageGUID guid = publish.getGuid();
+            out.writeByte((guid != null ? FLAG_GUID : 0) | (publish.isDupFlag() ? FLAG_DUP : 0));
+            if (guid != null) {
+                out.writeLong(guid.getHigh());
+                out.writeLong(guid.getLow());
+            }
+            writeVarInt(out, publish.getPacketId());
+            final ByteBuf payload = publish.getPayload();
+            final int length = payload.readableBytes();
+            writeVarInt(out, length);
+            if (payload.hasArray()) {
+                out.write(payload.array(), payload.arrayOffset() + payload.readerIndex(), length);
+            } else {
+                byte[] scratch = SCRATCH.get();
+                if (scratch.length < length) {
+                    scratch = new byte[Integer.highestOneBit(length) << 1];
+                    SCRATCH.set(scratch);
+                }
+                payload.getBytes(payload.readerIndex(), scratch, 0, length);
+                out.write(scratch, 0, length);
+            }
+        }
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        final byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported cluster batch version: " + version);
+        }
+        final int count = readVarInt(in);
+        final List<String> dictionary = new ArrayList<>();
+        final List<HazelcastMsg> received = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String topic = readString(in, dictionary);
+            final String clientID = readString(in, dictionary);
+            final int qos = in.readByte();
+            final int flags = in.readByte();
+            final MessageGUID guid = (flags & FLAG_GUID) != 0 ? new MessageGUID(in.readLong(), in.readLong()) : null;
+            final int packetId = readVarInt(in);
+            final byte[] payload = new byte[readVarInt(in)];
+            in.readFully(payload);
+            received.add(new HazelcastMsg(clientID, topic, qos, payload, guid, packetId, (flags & FLAG_DUP) != 0));
+        }
+        this.messages = received;
+    }
+
+    private static void writeString(DataOutput out, String value, Map<String, Integer> dictionary)
+            throws IOException {
+        final Integer index = dictionary.get(value);
+        if (index != null) {
+            writeVarInt(out, index + 1);
+            return;
+        }
+        dictionary.put(value, dictionary.size());
+        writeVarInt(out, 0);
+        out.writeUTF(value);
+    }
+
+    private static String readString(DataInput in, List<String> dictionary) throws IOException {
+        final int reference = readVarInt(in);
+        if (reference == 0) {
+            final String value = in.readUTF();
+            dictionary.add(value);
+            return value;
+        }
+        if (reference > dictionary.size()) {
+            throw new IOException("Reference to an unknown string: " + reference);
+        }
+        return dictionary.get(reference - 1);
+    }
+
+    static void writeGuid(DataOutput out, MessageGUID guid) throws IOException {
+        out.writeBoolean(guid != null);
+        if (guid != null) {
+            out.writeLong(guid.getHigh());
+            out.writeLong(guid.getLow());
+        }
+    }
+
+    static MessageGUID readGuid(DataInput in) throws IOException {
+        return in.readBoolean() ? new MessageGUID(in.readLong(), in.readLong()) : null;
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length int");
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.cluster;
+
+import com.kd.interception.HazelcastMsg;
+import com.kd.interception.messages.InterceptPublishMessage;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Carries the publishes, the subscription digests, the sessions taken over and the retained messages between the
+ * nodes of the cluster. A node is known to the others by its id, stable while it runs.
+ * <p>
+ * The publishes handed to the transport are retained by the caller only during the call: they are encoded before it
+ * returns, the transport may send them later.
+ */
+public interface ClusterTransport {
+
+    /**
+     * Receives what the other nodes send, on the threads of the transport.
+     */
+    interface Listener {
+
+        void onPublishes(String peer, List<HazelcastMsg> messages);
+
+        void onDigest(String peer, SubscriptionDigest digest);
+
+        /**
+         * The peer subscribed to a filter, to add to its digest unless the digest already summarizes it.
+         */
+        void onSubscribed(String peer, SubscribedFilter subscribed);
+
+        /**
+         * The peer left the cluster or its connection was lost, its digest no longer holds.
+         */
+        void onPeerDown(String peer);
+
+        /**
+         * The peer asks for a persistent session, to answer with {@link #transferSession(String, SessionTransfer)}.
+         */
+        void onSessionRequest(String peer, SessionRequest request);
+
+        void onSessionTransfer(String peer, SessionTransfer transfer);
+
+        /**
+         * The peer installed the session the node transferred for the request, the node can drop its copy.
+         */
+        void onSessionConfirmed(String peer, SessionRequest request);
+
+        /**
+         * The node can send to the peer, joining the cluster or reconnected, to exchange the state replicated with.
+         */
+        void onPeerUp(String peer);
+
+        void onRetained(String peer, RetainedBatch batch);
+    }
+
+    String localId();
+
+    /**
+     * @return the ids of the other nodes the publishes can be forwarded to.
+     */
+    Collection<String> peers();
+
+    void forward(String peer, List<InterceptPublishMessage> publishes);
+
+    /**
+     * Sends the publishes to every other node, in the format understood by the nodes not routing them.
+     */
+    void broadcast(List<InterceptPublishMessage> publishes);
+
+    /**
+     * Shares the digest of the subscriptions of the node with the others, it isn't modified afterwards.
+     */
+    void shareDigest(SubscriptionDigest digest);
+
+    /**
+     * Sends a filter subscribed on the node to the others, until the next digest shared summarizes it. Unlike the
+     * digest, it isn't sent to the nodes joining later.
+     */
+    void shareSubscribed(SubscribedFilter subscribed);
+
+    /**
+     * Asks the peers reachable for the session, each of them answers.
+     *
+     * @return the ids of the peers asked.
+     */
+    Collection<String> requestSession(SessionRequest request);
+
+    /**
+     * Sends the answer to a session request of the peer.
+     *
+     * @return false if the peer can't be reached, the session is kept.
+     */
+    boolean transferSession(String peer, SessionTransfer transfer);
+
+    /**
+     * Tells the peer which transferred a session for the request that it's installed.
+     */
+    void confirmSession(String peer, SessionRequest request);
+
+    /**
+     * Sends the changes of the retained messages to every other node.
+     */
+    void replicateRetained(RetainedBatch batch);
+
+    void sendRetained(String peer, RetainedBatch batch);
+
+    void start(Listener listener);
+
+    void stop();
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.cluster;
+
+import com.hazelcast.core.EntryAdapter;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.ITopic;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.MembershipAdapter;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.ReplicatedMap;
+import com.kd.interception.HazelcastMsg;
+import com.kd.interception.messages.InterceptPublishMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport over an embedded Hazelcast instance, the node id is the uuid of its member.
+ * <p>
+ * The publishes forwarded to a member are {@link ClusterBatch}es on a topic of its own, the broadcasts a
+ * {@link HazelcastMsg} each on the "moquette" topic, as the nodes of the previous versions expect. The digests are
+ * shared in a replicated map, by member uuid, the filters subscribed since on a topic read by every member: they may
+ * arrive before the digest they follow. The session requests are published on a topic read by every member,
+ * the transfers on a topic of the requesting member, the confirmations on a topic of the member which transferred
+ * the session. The retained messages alike: the changes on a topic read by every member, the state exchanged with a
+ * member on its own topic. A member joining is up for the others when it starts, it exchanges its state with each of
+ * them.
+ */
+public final class HazelcastClusterTransport implements ClusterTransport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HazelcastClusterTransport.class);
+    private static final String BROADCAST_TOPIC_NAME = "moquette";
+    private static final String DIGESTS_MAP_NAME = "moquette-subscription-digests";
+    private static final String SUBSCRIBED_TOPIC_NAME = "moquette-subscribed";
+    private static final String MEMBER_TOPIC_PREFIX = "moquette-";
+    private static final String SESSION_REQUESTS_TOPIC_NAME = "moquette-session-requests";
+    private static final String SESSION_TRANSFERS_TOPIC_PREFIX = "moquette-sessions-";
+    private static final String SESSION_CONFIRMS_TOPIC_PREFIX = "moquette-session-confirms-";
+    private static final String RETAINED_TOPIC_NAME = "moquette-retained";
+    private static final String RETAINED_MEMBER_TOPIC_PREFIX = "moquette-retained-";
+
+    private final HazelcastInstance hz;
+    private final String localUuid;
+    private final ReplicatedMap<String, SubscriptionDigest> digests;
+    private final ITopic<SubscribedFilter> subscribedFilters;
+    private final ITopic<HazelcastMsg> broadcastTopic;
+    private final ITopic<ClusterBatch> localTopic;
+    private final ITopic<SessionRequest> sessionRequests;
+    private final ITopic<SessionTransfer> sessionTransfers;
+    private final ITopic<SessionRequest> sessionConfirms;
+    private final ITopic<RetainedBatch> retainedChanges;
+    private final ITopic<RetainedBatch> retainedStates;
+    private String broadcastListenerId;
+    private String batchListenerId;
+    private String entryListenerId;
+    private String subscribedListenerId;
+    private String membershipListenerId;
+    private String sessionRequestsListenerId;
+    private String sessionTransfersListenerId;
+    private String sessionConfirmsListenerId;
+    private String retainedChangesListenerId;
+    private String retainedStatesListenerId;
+
+    public HazelcastClusterTransport(HazelcastInstance hz) {
+        this.hz = hz;
+        this.localUuid = hz.getCluster().getLocalMember().getUuid();
+        this.digests = hz.getReplicatedMap(DIGESTS_MAP_NAME);
+        this.subscribedFilters = hz.getTopic(SUBSCRIBED_TOPIC_NAME);
+        this.broadcastTopic = hz.getTopic(BROADCAST_TOPIC_NAME);
+        this.localTopic = hz.getTopic(MEMBER_TOPIC_PREFIX + localUuid);
+        this.sessionRequests = hz.getTopic(SESSION_REQUESTS_TOPIC_NAME);
+        this.sessionTransfers = hz.getTopic(SESSION_TRANSFERS_TOPIC_PREFIX + localUuid);
+        this.sessionConfirms = hz.getTopic(SESSION_CONFIRMS_TOPIC_PREFIX + localUuid);
+        this.retainedChanges = hz.getTopic(RETAINED_TOPIC_NAME);
+        this.retainedStates = hz.getTopic(RETAINED_MEMBER_TOPIC_PREFIX + localUuid);
+    }
+
+    @Override
+    public String localId() {
+        return localUuid;
+    }
+
+    @Override
+    public Collection<String> peers() {
+        final List<String> peers = new ArrayList<>();
+        for (Member member : hz.getCluster().getMembers()) {
+            if (!member.localMember()) {
+                peers.add(member.getUuid());
+            }
+        }
+        return peers;
+    }
+
+    @Override
+    public void forward(String peer, List<InterceptPublishMessage> publishes) {
+        // serialized during the publish, while the payloads are still retained
+        hz.<ClusterBatch>getTopic(MEMBER_TOPIC_PREFIX + peer).publish(new ClusterBatch(publishes));
+    }
+
+    @Override
+    public void broadcast(List<InterceptPublishMessage> publishes) {
+        for (InterceptPublishMessage msg : publishes) {
+            broadcastTopic.publish(new HazelcastMsg(msg));
+        }
+    }
+
+    @Override
+    public void shareDigest(SubscriptionDigest digest) {
+        digests.put(localUuid, digest);
+    }
+
+    @Override
+    public void shareSubscribed(SubscribedFilter subscribed) {
+        subscribedFilters.publish(subscribed);
+    }
+
+    @Override
+    public Collection<String> requestSession(SessionRequest request) {
+        final Collection<String> peers = peers();
+        if (!peers.isEmpty()) {
+            sessionRequests.publish(request);
+        }
+        return peers;
+    }
+
+    @Override
+    public boolean transferSession(String peer, SessionTransfer transfer) {
+        hz.<SessionTransfer>getTopic(SESSION_TRANSFERS_TOPIC_PREFIX + peer).publish(transfer);
+        return true;
+    }
+
+    @Override
+    public void confirmSession(String peer, SessionRequest request) {
+        hz.<SessionRequest>getTopic(SESSION_CONFIRMS_TOPIC_PREFIX + peer).publish(request);
+    }
+
+    @Override
+    public void replicateRetained(RetainedBatch batch) {
+        retainedChanges.publish(batch);
+    }
+
+    @Override
+    public void sendRetained(String peer, RetainedBatch batch) {
+        hz.<RetainedBatch>getTopic(RETAINED_MEMBER_TOPIC_PREFIX + peer).publish(batch);
+    }
+
+    @Override
+    public void start(Listener listener) {
+        LOG.info("Subscribing to Hazelcast topic. TopicName={}", BROADCAST_TOPIC_NAME);
+        broadcastListenerId = broadcastTopic.addMessageListener(msg -> {
+            if (!msg.getPublishingMember().localMember()) {
+                final HazelcastMsg hzMsg = msg.getMessageObject();
+                LOG.debug("{} received from hazelcast for topic {}", hzMsg.getClientId(), hzMsg.getTopic());
+                listener.onPublishes(msg.getPublishingMember().getUuid(), Collections.singletonList(hzMsg));
+            }
+        });
+        LOG.info("Subscribing to Hazelcast topic. TopicName={}", localTopic.getName());
+        batchListenerId = localTopic.addMessageListener(msg -> {
+            final List<HazelcastMsg> messages = msg.getMessageObject().messages();
+            LOG.debug("Received a batch of {} publishes from member {}", messages.size(), msg.getPublishingMember());
+            listener.onPublishes(msg.getPublishingMember().getUuid(), messages);
+        });
+        sessionRequestsListenerId = sessionRequests.addMessageListener(msg -> {
+            if (!msg.getPublishingMember().localMember()) {
+                listener.onSessionRequest(msg.getPublishingMember().getUuid(), msg.getMessageObject());
+            }
+        });
+        sessionTransfersListenerId = sessionTransfers.addMessageListener(msg ->
+            listener.onSessionTransfer(msg.getPublishingMember().getUuid(), msg.getMessageObject()));
+        sessionConfirmsListenerId = sessionConfirms.addMessageListener(msg ->
+            listener.onSessionConfirmed(msg.getPublishingMember().getUuid(), msg.getMessageObject()));
+        retainedChangesListenerId = retainedChanges.addMessageListener(msg -> {
+            if (!msg.getPublishingMember().localMember()) {
+                listener.onRetained(msg.getPublishingMember().getUuid(), msg.getMessageObject());
+            }
+        });
+        retainedStatesListenerId = retainedStates.addMessageListener(msg ->
+            listener.onRetained(msg.getPublishingMember().getUuid(), msg.getMessageObject()));
+        subscribedListenerId = subscribedFilters.addMessageListener(msg -> {
+            if (!msg.getPublishingMember().localMember()) {
+                listener.onSubscribed(msg.getPublishingMember().getUuid(), msg.getMessageObject());
+            }
+        });
+        entryListenerId = digests.addEntryListener(new EntryAdapter<String, SubscriptionDigest>() {
+
+            @Override
+            public void entryAdded(EntryEvent<String, SubscriptionDigest> event) {
+                mirror(event.getKey(), event.getValue());
+            }
+
+            @Override
+            public void entryUpdated(EntryEvent<String, SubscriptionDigest> event) {
+                mirror(event.getKey(), event.getValue());
+            }
+
+            @Override
+            public void entryRemoved(EntryEvent<String, SubscriptionDigest> event) {
+                listener.onPeerDown(event.getKey());
+            }
+
+            private void mirror(String uuid, SubscriptionDigest digest) {
+                if (!localUuid.equals(uuid) && digest != null) {
+                    listener.onDigest(uuid, digest);
+                }
+            }
+        });
+        for (Map.Entry<String, SubscriptionDigest> entry : digests.entrySet()) {
+            if (!localUuid.equals(entry.getKey()) && entry.getValue() != null) {
+                listener.onDigest(entry.getKey(), entry.getValue());
+            }
+        }
+        // the members already there may have been listening before this one, it asks them
+        for (String peer : peers()) {
+            listener.onPeerUp(peer);
+        }
+        membershipListenerId = hz.getCluster().addMembershipListener(new MembershipAdapter() {
+
+            @Override
+            public void memberRemoved(MembershipEvent event) {
+                final String uuid = event.getMember().getUuid();
+                listener.onPeerDown(uuid);
+                digests.remove(uuid);
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        try {
+            broadcastTopic.removeMessageListener(broadcastListenerId);
+            localTopic.removeMessageListener(batchListenerId);
+            sessionRequests.removeMessageListener(sessionRequestsListenerId);
+            sessionTransfers.removeMessageListener(sessionTransfersListenerId);
+            sessionConfirms.removeMessageListener(sessionConfirmsListenerId);
+            retainedChanges.removeMessageListener(retainedChangesListenerId);
+            retainedStates.removeMessageListener(retainedStatesListenerId);
+            subscribedFilters.removeMessageListener(subscribedListenerId);
+            digests.removeEntryListener(entryListenerId);
+            hz.getCluster().removeMembershipListener(membershipListenerId);
+            digests.remove(localUuid);
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to withdraw the node from the Hazelcast cluster", e);
+        }
+    }
+}
@@ -0,0 +1,820 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.cluster;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.kd.interception.messages.InterceptPublishMessage;
+import com.kd.server.config.IConfig;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.kd.BrokerConstants.*;
+
+/**
+ * Transport over direct TCP connections between the nodes, served by Netty event loops: those of the MQTT acceptor
+ * when given, so that no thread is added for the cluster.
+ * <p>
+ * Each node listens on its cluster port and connects to every peer listed in the configuration or in the peers file,
+ * re-read when it changes. A node is known by the address the others list it with, its own id must be in the list,
+ * and is skipped. Its id is the host and port it binds to, or is given when it binds a wildcard address. The frames
+ * are sent on the connection opened by the sender, a 4 bytes length followed by a type byte: the id of the node once
+ * connected, the publishes in the {@link ClusterBatch} format, the digest of the node, a filter subscribed since, a
+ * session request, a session transfer, a session confirmation or retained messages. A peer is up once the connection
+ * to it is open. The frames are written without waiting for the previous ones to be sent. The session requests go
+ * only to the peers connected, which answer on their own connection to the requester. A connection whose id isn't
+ * one of the peers, or which doesn't come from an address of the host the peer is listed with, is dropped.
+ * <p>
+ * While a peer is unreachable, or its connection isn't writable, the frames are buffered up to a size in bytes, the
+ * oldest are dropped beyond it. The connection is retried with an exponential backoff and the buffer sent once it's
+ * back. The frames already handed to a connection when it breaks are lost.
+ */
+public final class NettyClusterTransport implements ClusterTransport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NettyClusterTransport.class);
+    private static final byte HELLO = 1;
+    private static final byte PUBLISHES = 2;
+    private static final byte DIGEST = 3;
+    private static final byte SESSION_REQUEST = 4;
+    private static final byte SESSION_TRANSFER = 5;
+    private static final byte RETAINED = 6;
+    private static final byte SESSION_CONFIRM = 7;
+    private static final byte SUBSCRIBED = 8;
+    private static final int MAX_FRAME_BYTES = 256 * 1024 * 1024;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final long PEERS_FILE_CHECK_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final String localId;
+    private final long maxBufferedBytes;
+    private final List<String> configuredPeers;
+    private final File peersFile;
+    private long peersFileModified;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    // the inbound connection of each peer, by id once it said hello
+    private final Map<String, Channel> inbound = new ConcurrentHashMap<>();
+    private final Set<Channel> inboundChannels = ConcurrentHashMap.newKeySet();
+    private final Meter dropped;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private boolean ownEventLoops;
+    private Bootstrap bootstrap;
+    private Channel serverChannel;
+    private ScheduledFuture<?> peersFileCheck;
+    private volatile Listener listener;
+    private volatile SubscriptionDigest digest;
+    private volatile boolean running;
+
+    public NettyClusterTransport(IConfig config) throws IOException {
+        this.host = config.getProperty(CLUSTER_HOST_PROPERTY_NAME, DEFAULT_CLUSTER_HOST);
+        this.port = Integer.parseInt(config.getProperty(CLUSTER_PORT_PROPERTY_NAME,
+            String.valueOf(DEFAULT_CLUSTER_PORT)));
+        final String nodeID = config.getProperty(CLUSTER_NODE_ID_PROPERTY_NAME);
+        if (nodeID != null && !nodeID.isEmpty()) {
+            this.localId = nodeID;
+        } else if (InetAddress.getByName(host).isAnyLocalAddress()) {
+            // the address of the local host seldom is the one the peers list the node with
+            throw new IllegalArgumentException("The cluster host " + host + " is a wildcard address, "
+                + CLUSTER_NODE_ID_PROPERTY_NAME + " must be set to the host:port the peers list the node with");
+        } else {
+            this.localId = host + ":" + port;
+        }
+        this.maxBufferedBytes = Long.parseLong(config.getProperty(CLUSTER_BUFFER_MAX_BYTES_PROPERTY_NAME,
+            String.valueOf(DEFAULT_CLUSTER_BUFFER_MAX_BYTES)));
+        this.configuredPeers = new ArrayList<>();
+        for (String peer : config.getProperty(CLUSTER_PEERS_PROPERTY_NAME, "").split(",")) {
+            if (!peer.trim().isEmpty()) {
+                configuredPeers.add(peer.trim());
+            }
+        }
+        final String peersFilePath = config.getProperty(CLUSTER_PEERS_FILE_PROPERTY_NAME);
+        this.peersFile = peersFilePath == null || peersFilePath.isEmpty() ? null : new File(peersFilePath);
+        final Set<String> nodes = readNodes();
+        if (!nodes.isEmpty() && !nodes.contains(localId)) {
+            // the peers would address the node by another id, dropping its session transfers and digest
+            throw new IllegalArgumentException("The cluster node id " + localId + " is not one of the peers "
+                + nodes);
+        }
+        final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
+        this.dropped = metrics.meter("cluster.buffer.dropped");
+        registerGauge("cluster.buffer.bytes", this::bufferedBytes);
+    }
+
+    /**
+     * Serves the cluster connections with the event loops given instead of event loops of its own. To call before
+     * {@link #start(Listener)}, the groups are left running on stop.
+     */
+    public void useEventLoops(EventLoopGroup bossGroup, EventLoopGroup workerGroup) {
+        this.bossGroup = bossGroup;
+        this.workerGroup = workerGroup;
+    }
+
+    @Override
+    public String localId() {
+        return localId;
+    }
+
+    @Override
+    public Collection<String> peers() {
+        return peers.keySet();
+    }
+
+    @Override
+    public void forward(String peerID, List<InterceptPublishMessage> publishes) {
+        final Peer peer = peers.get(peerID);
+        if (peer == null) {
+            if (!running) {
+                // the last batches of the interceptor, once stopped
+                return;
+            }
+            LOG.warn("Unable to forward {} publishes to {}, not a cluster peer", publishes.size(), peerID);
+            return;
+        }
+        peer.send(publishesFrame(publishes));
+    }
+
+    @Override
+    public void broadcast(List<InterceptPublishMessage> publishes) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        final ByteBuf frame = publishesFrame(publishes);
+        try {
+            for (Peer peer : peers.values()) {
+                peer.send(frame.retainedDuplicate());
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void shareDigest(SubscriptionDigest digest) {
+        this.digest = digest;
+        final ByteBuf frame = digestFrame(digest);
+        try {
+            for (Peer peer : peers.values()) {
+                // a peer not connected gets the last digest once it is
+                peer.sendIfConnected(frame.retainedDuplicate());
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void shareSubscribed(SubscribedFilter subscribed) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        final ByteBuf frame = newFrame(SUBSCRIBED);
+        try {
+            subscribed.writeTo(new ByteBufOutputStream(frame));
+            sealed(frame);
+            for (Peer peer : peers.values()) {
+                // a peer not connected gets it with the next digest
+                peer.sendIfConnected(frame.retainedDuplicate());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public Collection<String> requestSession(SessionRequest request) {
+        final List<String> asked = new ArrayList<>(peers.size());
+        final ByteBuf frame = newFrame(SESSION_REQUEST);
+        try {
+            request.writeTo(new ByteBufOutputStream(frame));
+            sealed(frame);
+            for (Peer peer : peers.values()) {
+                if (peer.sendIfConnected(frame.retainedDuplicate())) {
+                    asked.add(peer.id);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            frame.release();
+        }
+        return asked;
+    }
+
+    @Override
+    public boolean transferSession(String peerID, SessionTransfer transfer) {
+        final Peer peer = peers.get(peerID);
+        if (peer == null) {
+            LOG.warn("Unable to transfer the session of {} to {}, not a cluster peer", transfer.clientID(), peerID);
+            return false;
+        }
+        final ByteBuf frame = newFrame(SESSION_TRANSFER);
+        try {
+            transfer.writeTo(new ByteBufOutputStream(frame));
+        } catch (IOException e) {
+            frame.release();
+            throw new UncheckedIOException(e);
+        }
+        // buffered if the connection is down, lost with the buffer
+        peer.send(sealed(frame));
+        return true;
+    }
+
+    @Override
+    public void confirmSession(String peerID, SessionRequest request) {
+        final Peer peer = peers.get(peerID);
+        if (peer == null) {
+            LOG.warn("Unable to confirm the session of {} to {}, not a cluster peer", request.clientID(), peerID);
+            return;
+        }
+        final ByteBuf frame = newFrame(SESSION_CONFIRM);
+        try {
+            request.writeTo(new ByteBufOutputStream(frame));
+        } catch (IOException e) {
+            frame.release();
+            throw new UncheckedIOException(e);
+        }
+        peer.send(sealed(frame));
+    }
+
+    @Override
+    public void replicateRetained(RetainedBatch batch) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        final ByteBuf frame = retainedFrame(batch);
+        try {
+            for (Peer peer : peers.values()) {
+                peer.send(frame.retainedDuplicate());
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void sendRetained(String peerID, RetainedBatch batch) {
+        final Peer peer = peers.get(peerID);
+        if (peer != null) {
+            peer.send(retainedFrame(batch));
+        }
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        if (workerGroup == null) {
+            bossGroup = new NioEventLoopGroup(1);
+            workerGroup = new NioEventLoopGroup();
+            ownEventLoops = true;
+        }
+        final boolean epoll = workerGroup instanceof EpollEventLoopGroup;
+        bootstrap = new Bootstrap()
+            .group(workerGroup)
+            .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .option(ChannelOption.SO_KEEPALIVE, true)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) MAX_BACKOFF_MILLIS);
+        running = true;
+        serverChannel = new ServerBootstrap()
+            .group(bossGroup, workerGroup)
+            .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ch.pipeline()
+                        .addLast("frameDecoder", new LengthFieldBasedFrameDecoder(MAX_FRAME_BYTES, 0, 4, 0, 4))
+                        .addLast("clusterInbound", new InboundHandler());
+                }
+            })
+            .option(ChannelOption.SO_REUSEADDR, true)
+            .childOption(ChannelOption.TCP_NODELAY, true)
+            .childOption(ChannelOption.SO_KEEPALIVE, true)
+            .bind(host, port)
+            .syncUninterruptibly()
+            .channel();
+        LOG.info("Cluster transport bound to host={}, port={}, node id {}", host, port, localId);
+        updatePeers(readPeers());
+        if (peersFile != null) {
+            peersFileCheck = workerGroup.scheduleWithFixedDelay(this::checkPeersFile, PEERS_FILE_CHECK_MILLIS,
+                PEERS_FILE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (peersFileCheck != null) {
+            peersFileCheck.cancel(false);
+        }
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+        peers.clear();
+        for (Channel channel : inboundChannels) {
+            channel.close();
+        }
+        if (serverChannel != null) {
+            serverChannel.close().awaitUninterruptibly();
+        }
+        if (ownEventLoops) {
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+        }
+        LOG.info("Cluster transport stopped");
+    }
+
+    private long bufferedBytes() {
+        long bytes = 0;
+        for (Peer peer : peers.values()) {
+            bytes += peer.pendingBytes();
+        }
+        return bytes;
+    }
+
+    private Set<String> readPeers() {
+        final Set<String> addresses = readNodes();
+        if (!addresses.remove(localId) && !addresses.isEmpty()) {
+            LOG.warn("The cluster node id {} is not one of the peers {}", localId, addresses);
+        }
+        return addresses;
+    }
+
+    /**
+     * @return the nodes of the configuration and the peers file, the local one included.
+     */
+    private Set<String> readNodes() {
+        final Set<String> addresses = new LinkedHashSet<>(configuredPeers);
+        if (peersFile != null) {
+            try {
+                peersFileModified = peersFile.lastModified();
+                for (String line : Files.readAllLines(peersFile.toPath(), StandardCharsets.UTF_8)) {
+                    final String peer = line.trim();
+                    if (!peer.isEmpty() && !peer.startsWith("#")) {
+                        addresses.add(peer);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Unable to read the cluster peers file {}", peersFile, e);
+            }
+        }
+        return addresses;
+    }
+
+    private void checkPeersFile() {
+        if (peersFile.lastModified() != peersFileModified) {
+            LOG.info("The cluster peers file {} changed, reloading it", peersFile);
+            updatePeers(readPeers());
+        }
+    }
+
+    private synchronized void updatePeers(Set<String> addresses) {
+        if (!running) {
+            return;
+        }
+        for (Iterator<Peer> it = peers.values().iterator(); it.hasNext(); ) {
+            final Peer peer = it.next();
+            if (!addresses.contains(peer.id)) {
+                LOG.info("Removing cluster peer {}", peer.id);
+                it.remove();
+                peer.close();
+                final Channel connection = inbound.get(peer.id);
+                if (connection != null) {
+                    // no longer let in, it's down once closed
+                    connection.close();
+                } else {
+                    listener.onPeerDown(peer.id);
+                }
+            }
+        }
+        for (String address : addresses) {
+            if (!peers.containsKey(address)) {
+                final int colon = address.lastIndexOf(':');
+                if (colon <= 0 || colon == address.length() - 1) {
+                    LOG.error("Malformed cluster peer {}, expected host:port", address);
+                    continue;
+                }
+                final Peer peer = new Peer(address, address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1)));
+                LOG.info("Adding cluster peer {}", peer.id);
+                peers.put(address, peer);
+                peer.connect();
+            }
+        }
+    }
+
+    private static ByteBuf newFrame(byte type) {
+        final ByteBuf frame = PooledByteBufAllocator.DEFAULT.buffer();
+        // the length is set once the frame is complete
+        frame.writeInt(0);
+        frame.writeByte(type);
+        return frame;
+    }
+
+    private static ByteBuf sealed(ByteBuf frame) {
+        frame.setInt(0, frame.readableBytes() - 4);
+        return frame;
+    }
+
+    private static ByteBuf publishesFrame(List<InterceptPublishMessage> publishes) {
+        final ByteBuf frame = newFrame(PUBLISHES);
+        try {
+            new ClusterBatch(publishes).writeTo(new ByteBufOutputStream(frame));
+        } catch (IOException e) {
+            frame.release();
+            throw new UncheckedIOException(e);
+        }
+        return sealed(frame);
+    }
+
+    private static ByteBuf digestFrame(SubscriptionDigest digest) {
+        final ByteBuf frame = newFrame(DIGEST);
+        try {
+            digest.writeTo(new ByteBufOutputStream(frame));
+        } catch (IOException e) {
+            frame.release();
+            throw new UncheckedIOException(e);
+        }
+        return sealed(frame);
+    }
+
+    private static ByteBuf retainedFrame(RetainedBatch batch) {
+        final ByteBuf frame = newFrame(RETAINED);
+        try {
+            batch.writeTo(new ByteBufOutputStream(frame));
+        } catch (IOException e) {
+            frame.release();
+            throw new UncheckedIOException(e);
+        }
+        return sealed(frame);
+    }
+
+    private ByteBuf helloFrame() {
+        final ByteBuf frame = newFrame(HELLO);
+        try {
+            new ByteBufOutputStream(frame).writeUTF(localId);
+        } catch (IOException e) {
+            frame.release();
+            throw new UncheckedIOException(e);
+        }
+        return sealed(frame);
+    }
+
+    /**
+     * The outbound connection to a peer, and the frames waiting for it.
+     */
+    private final class Peer {
+
+        final String id;
+        private final String host;
+        private final int port;
+        // guarded by this
+        private Channel channel;
+        private final ArrayDeque<ByteBuf> pending = new ArrayDeque<>();
+        private long pendingBytes;
+        private long backoffMillis = MIN_BACKOFF_MILLIS;
+        private boolean closed;
+
+        Peer(String id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        synchronized long pendingBytes() {
+            return pendingBytes;
+        }
+
+        /**
+         * @return true if the address is one of the host the peer is listed with.
+         */
+        boolean isAt(SocketAddress remote) {
+            if (!(remote instanceof InetSocketAddress)) {
+                return false;
+            }
+            final InetAddress address = ((InetSocketAddress) remote).getAddress();
+            try {
+                // cached by the JVM for the addresses resolved already, as the one the node connected to
+                for (InetAddress listed : InetAddress.getAllByName(host)) {
+                    if (listed.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                LOG.warn("Unable to resolve the host of cluster peer {}: {}", id, e.toString());
+            }
+            return false;
+        }
+
+        void connect() {
+            if (closed || !running) {
+                return;
+            }
+            bootstrap.clone()
+                .handler(new OutboundHandler(this))
+                .connect(host, port)
+                .addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        LOG.debug("Unable to connect to cluster peer {}: {}", id, future.cause().toString());
+                        reconnectLater();
+                        return;
+                    }
+                    connected(future.channel());
+                });
+        }
+
+        private void connected(Channel ch) {
+            synchronized (this) {
+                if (closed) {
+                    ch.close();
+                    return;
+                }
+                backoffMillis = MIN_BACKOFF_MILLIS;
+                ch.write(helloFrame(), ch.voidPromise());
+                final SubscriptionDigest current = digest;
+                if (current != null) {
+                    ch.write(digestFrame(current), ch.voidPromise());
+                }
+                channel = ch;
+                drain();
+            }
+            ch.closeFuture().addListener(future -> disconnected(ch));
+            LOG.info("Connected to cluster peer {}", id);
+            listener.onPeerUp(id);
+        }
+
+        private void disconnected(Channel ch) {
+            synchronized (this) {
+                if (channel != ch) {
+                    return;
+                }
+                channel = null;
+            }
+            if (running && !closed) {
+                LOG.warn("Lost the connection to cluster peer {}, reconnecting", id);
+                reconnectLater();
+            }
+        }
+
+        private void reconnectLater() {
+            final long delay;
+            synchronized (this) {
+                if (closed || !running) {
+                    return;
+                }
+                delay = backoffMillis;
+                backoffMillis = Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+            }
+            workerGroup.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void send(ByteBuf frame) {
+            if (channel != null && pending.isEmpty() && channel.isWritable()) {
+                channel.writeAndFlush(frame, channel.voidPromise());
+                return;
+            }
+            if (closed) {
+                frame.release();
+                return;
+            }
+            pending.add(frame);
+            pendingBytes += frame.readableBytes();
+            while (pendingBytes > maxBufferedBytes && !pending.isEmpty()) {
+                final ByteBuf oldest = pending.poll();
+                pendingBytes -= oldest.readableBytes();
+                oldest.release();
+                dropped.mark();
+            }
+        }
+
+        /**
+         * @return false if not connected, the frame is released.
+         */
+        synchronized boolean sendIfConnected(ByteBuf frame) {
+            if (channel == null) {
+                frame.release();
+                return false;
+            }
+            channel.writeAndFlush(frame, channel.voidPromise());
+            return true;
+        }
+
+        /**
+         * Hands the frames buffered to the connection while it's writable. Run by its event loop, after the frames
+         * written before from other threads.
+         */
+        synchronized void drain() {
+            if (channel == null) {
+                return;
+            }
+            boolean written = false;
+            while (!pending.isEmpty() && channel.isWritable()) {
+                final ByteBuf frame = pending.poll();
+                pendingBytes -= frame.readableBytes();
+                channel.write(frame, channel.voidPromise());
+                written = true;
+            }
+            if (written) {
+                channel.flush();
+            }
+        }
+
+        void close() {
+            final Channel ch;
+            synchronized (this) {
+                closed = true;
+                for (ByteBuf frame : pending) {
+                    frame.release();
+                }
+                pending.clear();
+                pendingBytes = 0;
+                ch = channel;
+                channel = null;
+            }
+            if (ch != null) {
+                ch.close();
+            }
+        }
+    }
+
+    /**
+     * Handler of an outbound connection, nothing is read from it.
+     */
+    private final class OutboundHandler extends ChannelInboundHandlerAdapter {
+
+        private final Peer peer;
+
+        OutboundHandler(Peer peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (ctx.channel().isWritable()) {
+                // queued behind the writes submitted meanwhile, keeping the order of the frames
+                ctx.channel().eventLoop().execute(peer::drain);
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOG.warn("Closing the connection to cluster peer {}: {}", peer.id, cause.toString());
+            ctx.close();
+        }
+    }
+
+    /**
+     * Handler of a connection opened by a peer, decoding its frames.
+     */
+    private final class InboundHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+        private String peer;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            inboundChannels.add(ctx.channel());
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) throws Exception {
+            final byte type = frame.readByte();
+            final ByteBufInputStream in = new ByteBufInputStream(frame);
+            if (type == HELLO) {
+                if (peer != null) {
+                    throw new IOException("Second id " + in.readUTF() + " of cluster peer " + peer);
+                }
+                final String id = in.readUTF();
+                final SocketAddress remote = ctx.channel().remoteAddress();
+                final Peer listed = peers.get(id);
+                if (listed == null) {
+                    LOG.warn("Dropping the cluster connection from {}, {} is not a cluster peer", remote, id);
+                    ctx.close();
+                    return;
+                }
+                if (!listed.isAt(remote)) {
+                    LOG.warn("Dropping the cluster connection from {}, not an address of cluster peer {}", remote,
+                        id);
+                    ctx.close();
+                    return;
+                }
+                peer = id;
+                inbound.put(peer, ctx.channel());
+                LOG.info("Cluster peer {} connected from {}", peer, remote);
+                return;
+            }
+            if (peer == null) {
+                throw new IOException("Cluster frame of type " + type + " before the id of the peer");
+            }
+            switch (type) {
+                case PUBLISHES:
+                    final ClusterBatch batch = new ClusterBatch();
+                    batch.readFrom(in);
+                    LOG.debug("Received a batch of {} publishes from cluster peer {}", batch.messages().size(), peer);
+                    listener.onPublishes(peer, batch.messages());
+                    break;
+                case DIGEST:
+                    listener.onDigest(peer, SubscriptionDigest.readFrom(in));
+                    break;
+                case SUBSCRIBED:
+                    final SubscribedFilter subscribed = new SubscribedFilter();
+                    subscribed.readFrom(in);
+                    listener.onSubscribed(peer, subscribed);
+                    break;
+                case SESSION_REQUEST:
+                    final SessionRequest request = new SessionRequest();
+                    request.readFrom(in);
+                    listener.onSessionRequest(peer, request);
+                    break;
+                case SESSION_TRANSFER:
+                    final SessionTransfer transfer = new SessionTransfer();
+                    transfer.readFrom(in);
+                    listener.onSessionTransfer(peer, transfer);
+                    break;
+                case SESSION_CONFIRM:
+                    final SessionRequest confirmed = new SessionRequest();
+                    confirmed.readFrom(in);
+                    listener.onSessionConfirmed(peer, confirmed);
+                    break;
+                case RETAINED:
+                    final RetainedBatch retained = new RetainedBatch();
+                    retained.readFrom(in);
+                    listener.onRetained(peer, retained);
+                    break;
+                default:
+                    throw new IOException("Unknown cluster frame type " + type);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            inboundChannels.remove(ctx.channel());
+            // unless the peer already connected again
+            if (peer != null && inbound.remove(peer, ctx.channel())) {
+                LOG.info("Cluster peer {} disconnected", peer);
+                listener.onPeerDown(peer);
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOG.warn("Closing the connection of cluster peer {}: {}", peer, cause.toString());
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.cluster;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.kd.spi.IMatchingCondition;
+import com.kd.spi.IMessagesStore;
+import com.kd.spi.impl.subscriptions.Topic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.kd.BrokerConstants.METRICS_REGISTRY_NAME;
+import static com.kd.BrokerConstants.registerGauge;
+
+/**
+ * Replicates the retained messages of the node to the other nodes of the cluster, over the messages store of the
+ * node: the reads are those of the local store, the subscriptions get the retained messages set on any node.
+ * <p>
+ * Each topic has the version of its last write, the timestamp of a hybrid clock (the milliseconds of the wall clock,
+ * never behind the versions seen) and the id of the node: the last writer wins, on every node. A removal is a write
+ * too, its version is kept as a tombstone so an older message can't come back, for a grace window: a peer unreachable
+ * for longer may bring back a message removed meanwhile. The writes of the node are shipped every flush interval, only
+ * the last one per topic, and the writes of the peers applied if newer, on the scheduler: the threads of the transport
+ * don't wait for the local store.
+ * <p>
+ * When a peer is up, joining or reconnected, the node sends it the version of all its topics with the messages and
+ * the peer answers with its own: both end with the newest of each topic. The messages stored before the node started
+ * have the oldest timestamp and the id of the node, the nodes which had different ones for a topic all keep that of
+ * the highest id.
+ */
+public final class ReplicatedMessagesStore implements IMessagesStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicatedMessagesStore.class);
+    private static final int MAX_BATCH_ENTRIES = 256;
+
+    /**
+     * The version of the last write of a topic.
+     */
+    private static final class Version {
+
+        final long timestamp;
+        final String origin;
+        final boolean removed;
+
+        Version(long timestamp, String origin, boolean removed) {
+            this.timestamp = timestamp;
+            this.origin = origin;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * The removal of a topic, purged from the versions after the grace window.
+     */
+    private static final class Tombstone {
+
+        final String topic;
+        final Version version;
+        final long createdMillis = System.currentTimeMillis();
+
+        Tombstone(String topic, Version version) {
+            this.topic = topic;
+            this.version = version;
+        }
+    }
+
+    private final IMessagesStore local;
+    private final ClusterTransport transport;
+    private final String localId;
+    private final ConcurrentMap<String, Version> versions = new ConcurrentHashMap<>();
+    // the last write of each topic not shipped yet
+    private final ConcurrentMap<String, RetainedBatch.Entry> changes = new ConcurrentHashMap<>();
+    // in creation order, some may be overwritten already
+    private final Queue<Tombstone> tombstones = new ConcurrentLinkedQueue<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final Meter replicated;
+    private final Meter applied;
+    private final Meter stale;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> flushTask;
+    private long tombstoneMillis;
+
+    public ReplicatedMessagesStore(IMessagesStore local, ClusterTransport transport) {
+        this.local = local;
+        this.transport = transport;
+        this.localId = transport.localId();
+        for (StoredMessage message : local.searchMatching(key -> true)) {
+            versions.put(message.getTopic(), new Version(0, localId, false));
+        }
+        final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
+        this.replicated = metrics.meter("cluster.retained.replicated");
+        this.applied = metrics.meter("cluster.retained.applied");
+        this.stale = metrics.meter("cluster.retained.stale");
+        registerGauge("cluster.retained.versions", versions::size);
+    }
+
+    /**
+     * @param scheduler ships the writes and applies those of the peers, in order with a single thread.
+     * @param tombstoneMillis how long the removals are kept, 0 keeps them.
+     */
+    public void start(ScheduledExecutorService scheduler, long flushMillis, long tombstoneMillis) {
+        this.scheduler = scheduler;
+        this.tombstoneMillis = tombstoneMillis;
+        flushTask = scheduler.scheduleWithFixedDelay(() -> {
+            flush();
+            purgeTombstones();
+        }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        LOG.info("Replicating the retained messages to the cluster every {} ms, topics={}, tombstones kept {} ms",
+            flushMillis, versions.size(), tombstoneMillis);
+    }
+
+    /**
+     * Ships the last writes, to call before the transport stops.
+     */
+    public void stop() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        flush();
+    }
+
+    /**
+     * @return the topics with a version, the tombstones included.
+     */
+    int versions() {
+        return versions.size();
+    }
+
+    private long tick() {
+        return clock.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+    }
+
+    @Override
+    public void initStore() {
+        local.initStore();
+    }
+
+    @Override
+    public Collection<StoredMessage> searchMatching(IMatchingCondition condition) {
+        return local.searchMatching(condition);
+    }
+
+    @Override
+    public Collection<StoredMessage> searchMatching(Topic topicFilter) {
+        return local.searchMatching(topicFilter);
+    }
+
+    @Override
+    public Iterator<StoredMessage> iterateMatching(Topic topicFilter) {
+        return local.iterateMatching(topicFilter);
+    }
+
+    @Override
+    public void storeRetained(Topic topic, StoredMessage storedMessage) {
+        write(topic, storedMessage);
+    }
+
+    @Override
+    public void cleanRetained(Topic topic) {
+        write(topic, null);
+    }
+
+    private void write(Topic topic, StoredMessage message) {
+        final String key = topic.toString();
+        final long timestamp = tick();
+        // ordered with the writes of the peers on the topic
+        versions.compute(key, (k, current) -> {
+            if (message == null) {
+                local.cleanRetained(topic);
+            } else {
+                local.storeRetained(topic, message);
+            }
+            return version(key, timestamp, localId, message == null);
+        });
+        changes.put(key, new RetainedBatch.Entry(key, timestamp, localId, message));
+    }
+
+    private void flush() {
+        try {
+            List<RetainedBatch.Entry> batch = new ArrayList<>();
+            for (Map.Entry<String, RetainedBatch.Entry> change : changes.entrySet()) {
+                if (!changes.remove(change.getKey(), change.getValue())) {
+                    // written again meanwhile, shipped at the next flush
+                    continue;
+                }
+                batch.add(change.getValue());
+                if (batch.size() == MAX_BATCH_ENTRIES) {
+                    replicate(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                replicate(batch);
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the next runs
+            LOG.error("Unable to replicate the retained messages", e);
+        }
+    }
+
+    private void replicate(List<RetainedBatch.Entry> batch) {
+        transport.replicateRetained(new RetainedBatch(batch, false));
+        replicated.mark(batch.size());
+    }
+
+    /**
+     * Applies the writes of the peer newer than those of the node, and sends back the state of the node if asked.
+     */
+    public void onRetained(String peer, RetainedBatch batch) {
+        try {
+            // the local store may write to disk, not on the threads of the transport
+            scheduler.execute(() -> applyBatch(peer, batch));
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Scheduler stopped, the retained messages of {} aren't applied", peer);
+        }
+    }
+
+    private void applyBatch(String peer, RetainedBatch batch) {
+        try {
+            for (RetainedBatch.Entry entry : batch.entries()) {
+                apply(entry);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Unable to apply the retained messages of {}", peer, e);
+        }
+        if (batch.isExchange()) {
+            sendState(peer, false);
+        }
+    }
+
+    private void apply(RetainedBatch.Entry entry) {
+        clock.accumulateAndGet(entry.timestamp, Math::max);
+        versions.compute(entry.topic, (k, current) -> {
+            if (current != null && !entry.isNewerThan(current.timestamp, current.origin)) {
+                stale.mark();
+                return current;
+            }
+            final Topic topic = new Topic(entry.topic);
+            if (entry.message == null) {
+                local.cleanRetained(topic);
+            } else {
+                local.storeRetained(topic, entry.message);
+            }
+            applied.mark();
+            return version(entry.topic, entry.timestamp, entry.origin, entry.message == null);
+        });
+    }
+
+    private Version version(String topic, long timestamp, String origin, boolean removed) {
+        final Version version = new Version(timestamp, origin, removed);
+        if (removed) {
+            tombstones.add(new Tombstone(topic, version));
+        }
+        return version;
+    }
+
+    private void purgeTombstones() {
+        if (tombstoneMillis <= 0) {
+            tombstones.clear();
+            return;
+        }
+        try {
+            final long expired = System.currentTimeMillis() - tombstoneMillis;
+            Tombstone oldest;
+            while ((oldest = tombstones.peek()) != null && oldest.createdMillis <= expired) {
+                tombstones.poll();
+                // unless the topic was written again since
+                versions.remove(oldest.topic, oldest.version);
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the next runs
+            LOG.error("Unable to purge the tombstones of the retained messages", e);
+        }
+    }
+
+    /**
+     * Exchanges the state of the node with the peer.
+     */
+    public void onPeerUp(String peer) {
+        sendStateLater(peer, true);
+    }
+
+    private void sendStateLater(String peer, boolean exchange) {
+        try {
+            // the whole store is read, not on the threads of the transport
+            scheduler.execute(() -> sendState(peer, exchange));
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Scheduler stopped, the retained messages aren't sent to {}", peer);
+        }
+    }
+
+    private void sendState(String peer, boolean exchange) {
+        try {
+            int sent = 0;
+            List<RetainedBatch.Entry> batch = new ArrayList<>();
+            for (StoredMessage message : local.searchMatching(key -> true)) {
+                final Version version = versions.get(message.getTopic());
+                batch.add(version == null
+                    ? new RetainedBatch.Entry(message.getTopic(), 0, localId, message)
+                    : new RetainedBatch.Entry(message.getTopic(), version.timestamp, version.origin, message));
+                if (batch.size() == MAX_BATCH_ENTRIES) {
+                    sent += batch.size();
+                    transport.sendRetained(peer, new RetainedBatch(batch, false));
+                    batch = new ArrayList<>();
+                }
+            }
+            for (Map.Entry<String, Version> version : versions.entrySet()) {
+                final Version tombstone = version.getValue();
+                if (!tombstone.removed) {
+                    continue;
+                }
+                batch.add(new RetainedBatch.Entry(version.getKey(), tombstone.timestamp, tombstone.origin, null));
+                if (batch.size() == MAX_BATCH_ENTRIES) {
+                    sent += batch.size();
+                    transport.sendRetained(peer, new RetainedBatch(batch, false));
+                    batch = new ArrayList<>();
+                }
+            }
+            // the last batch asks for the state of the peer, even if empty
+            sent += batch.size();
+            transport.sendRetained(peer, new RetainedBatch(batch, exchange));
+            LOG.info("Sent the retained messages of the node to {}, entries={}, exchange={}", peer, sent, exchange);
+        } catch (RuntimeException e) {
+            LOG.error("Unable to send the retained messages of the node to {}", peer, e);
+        }
+    }
+}
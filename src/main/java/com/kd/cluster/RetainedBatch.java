@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.cluster;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.MessageGUID;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.kd.cluster.ClusterBatch.readGuid;
+import static com.kd.cluster.ClusterBatch.readVarInt;
+import static com.kd.cluster.ClusterBatch.writeGuid;
+import static com.kd.cluster.ClusterBatch.writeVarInt;
+
+/**
+ * Retained messages replicated between the nodes, each with the version it was written with: the changes of a node
+ * since the last batch, or a part of its whole state when exchanged with a peer coming up.
+ * <p>
+ * A batch starts with a version byte, whether the sender asks for the state of the receiver in return, and the count
+ * of entries. An entry is the topic, the timestamp and the id of the node of its version, and whether it's a removal:
+ * otherwise the QoS byte, the publisher client id and the guid if any and the length prefixed payload follow. The counts and
+ * lengths are unsigned variable length ints.
+ */
+public final class RetainedBatch implements IdentifiedDataSerializable {
+
+    public static final int CLASS_ID = 4;
+
+    private static final byte VERSION = 2;
+
+    /**
+     * The retained message of a topic at a version, or its removal when the message is null.
+     */
+    public static final class Entry {
+
+        public final String topic;
+        public final long timestamp;
+        public final String origin;
+        public final StoredMessage message;
+
+        public Entry(String topic, long timestamp, String origin, StoredMessage message) {
+            this.topic = topic;
+            this.timestamp = timestamp;
+            this.origin = origin;
+            this.message = message;
+        }
+
+        /**
+         * @return true if the version of the entry wins over the other one, the last writer wins.
+         */
+        public boolean isNewerThan(long otherTimestamp, String otherOrigin) {
+            if (timestamp != otherTimestamp) {
+                return timestamp > otherTimestamp;
+            }
+            // the writes of the same millisecond are ordered by node
+            return origin.compareTo(otherOrigin) > 0;
+        }
+    }
+
+    private boolean exchange;
+    private List<Entry> entries = Collections.emptyList();
+
+    public RetainedBatch() {
+    }
+
+    /**
+     * @param exchange true if the receiver is asked to send its state back.
+     */
+    public RetainedBatch(List<Entry> entries, boolean exchange) {
+        this.entries = entries;
+        this.exchange = exchange;
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    public boolean isExchange() {
+        return exchange;
+    }
+
+    @Override
+    public int getFactoryId() {
+        return ClusterBatch.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return CLASS_ID;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        writeTo(out);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        readFrom(in);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeBoolean(exchange);
+        writeVarInt(out, entries.size());
+        for (Entry entry : entries) {
+            out.writeUTF(entry.topic);
+            out.writeLong(entry.timestamp);
+            out.writeUTF(entry.origin);
+            out.writeBoolean(entry.message == null);
+            if (entry.message == null) {
+                continue;
+            }
+            out.writeByte(entry.message.getQos().value());
+            final String publisher = entry.message.getClientID();
+            out.writeBoolean(publisher != null);
+            if (publisher != null) {
+                out.writeUTF(publisher);
+            }
+            writeGuid(out, entry.message.getGuid());
+            final ByteBuf payload = entry.message.getPayload();
+            try {
+                final int length = payload.readableBytes();
+                writeVarInt(out, length);
+                final byte[] bytes = new byte[length];
+                payload.getBytes(payload.readerIndex(), bytes);
+                out.write(bytes);
+            } finally {
+                payload.release();
+            }
+        }
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        final byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported retained batch version: " + version);
+        }
+        this.exchange = in.readBoolean();
+        final int count = readVarInt(in);
+        final List<Entry> received = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String topic = in.readUTF();
+            final long timestamp = in.readLong();
+            final String origin = in.readUTF();
+            if (in.readBoolean()) {
+                received.add(new Entry(topic, timestamp, origin, null));
+                continue;
+            }
+            final MqttQoS qos = MqttQoS.valueOf(in.readByte());
+            final String publisher = in.readBoolean() ? in.readUTF() : null;
+            final MessageGUID guid = readGuid(in);
+            final byte[] payload = new byte[readVarInt(in)];
+            in.readFully(payload);
+            final StoredMessage message = new StoredMessage(payload, qos, topic);
+            message.setClientID(publisher);
+            message.setRetained(true);
+            message.setGuid(guid);
+            received.add(new Entry(topic, timestamp, origin, message));
+        }
+        this.entries = received;
+    }
+}
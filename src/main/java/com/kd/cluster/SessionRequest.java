@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.cluster;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Asks the other nodes for the persistent session of a client connecting to the node, answered by a
+ * {@link SessionTransfer} of the same request id from each of them.
+ */
+public final class SessionRequest implements IdentifiedDataSerializable {
+
+    public static final int CLASS_ID = 2;
+
+    private long requestID;
+    private String clientID;
+
+    public SessionRequest() {
+    }
+
+    public SessionRequest(long requestID, String clientID) {
+        this.requestID = requestID;
+        this.clientID = clientID;
+    }
+
+    public long requestID() {
+        return requestID;
+    }
+
+    public String clientID() {
+        return clientID;
+    }
+
+    @Override
+    public int getFactoryId() {
+        return ClusterBatch.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return CLASS_ID;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        writeTo(out);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        readFrom(in);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(requestID);
+        out.writeUTF(clientID);
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        this.requestID = in.readLong();
+        this.clientID = in.readUTF();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.cluster;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.MessageGUID;
+import com.kd.spi.impl.subscriptions.Subscription;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.kd.cluster.ClusterBatch.readGuid;
+import static com.kd.cluster.ClusterBatch.readVarInt;
+import static com.kd.cluster.ClusterBatch.writeGuid;
+import static com.kd.cluster.ClusterBatch.writeVarInt;
+
+/**
+ * The answer of a node to a {@link SessionRequest}: the state of the persistent session of the client, handed over
+ * by the node, or nothing when the node doesn't have it. Once the requester confirmed the session, a follow-up
+ * transfer carries the messages published to the client meanwhile, without subscriptions.
+ * <p>
+ * The state is the subscriptions of the session and the messages to deliver, in order: the messages sent and not
+ * acknowledged first, by packet id, then the queued ones. It starts with a version byte, the request id, the client
+ * id and whether the session was found, then whether the transfer is a follow-up, the counts and the entries. A subscription is its filter and
+ * its QoS byte, a message its topic, QoS byte, publisher client id and guid if any and the length prefixed payload. The
+ * counts and lengths are unsigned variable length ints.
+ */
+public final class SessionTransfer implements IdentifiedDataSerializable {
+
+    public static final int CLASS_ID = 3;
+
+    private static final byte VERSION = 3;
+
+    private long requestID;
+    private String clientID;
+    private boolean found;
+    private boolean followUp;
+    private List<Subscription> subscriptions = Collections.emptyList();
+    private List<StoredMessage> messages = Collections.emptyList();
+
+    public SessionTransfer() {
+    }
+
+    /**
+     * @return the answer of a node without the session.
+     */
+    public static SessionTransfer notFound(long requestID, String clientID) {
+        final SessionTransfer transfer = new SessionTransfer();
+        transfer.requestID = requestID;
+        transfer.clientID = clientID;
+        return transfer;
+    }
+
+    /**
+     * @return the messages published to the client while the session was handed over for the request.
+     */
+    public static SessionTransfer followUp(long requestID, String clientID, List<StoredMessage> messages) {
+        final SessionTransfer transfer = new SessionTransfer(requestID, clientID, Collections.emptyList(),
+            messages);
+        transfer.followUp = true;
+        return transfer;
+    }
+
+    public SessionTransfer(long requestID, String clientID, List<Subscription> subscriptions,
+                           List<StoredMessage> messages) {
+        this.requestID = requestID;
+        this.clientID = clientID;
+        this.found = true;
+        this.subscriptions = subscriptions;
+        this.messages = messages;
+    }
+
+    public long requestID() {
+        return requestID;
+    }
+
+    public String clientID() {
+        return clientID;
+    }
+
+    public boolean isFound() {
+        return found;
+    }
+
+    public boolean isFollowUp() {
+        return followUp;
+    }
+
+    public List<Subscription> subscriptions() {
+        return subscriptions;
+    }
+
+    public List<StoredMessage> messages() {
+        return messages;
+    }
+
+    @Override
+    public int getFactoryId() {
+        return ClusterBatch.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return CLASS_ID;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        writeTo(out);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        readFrom(in);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeLong(requestID);
+        out.writeUTF(clientID);
+        out.writeBoolean(found);
+        if (!found) {
+            return;
+        }
+        out.writeBoolean(followUp);
+        writeVarInt(out, subscriptions.size());
+        for (Subscription subscription : subscriptions) {
+            out.writeUTF(subscription.getTopicFilter().toString());
+            out.writeByte(subscription.getRequestedQos().value());
+        }
+        writeVarInt(out, messages.size());
+        for (StoredMessage message : messages) {
+            out.writeUTF(message.getTopic());
+            out.writeByte(message.getQos().value());
+            final String publisher = message.getClientID();
+            out.writeBoolean(publisher != null);
+            if (publisher != null) {
+                out.writeUTF(publisher);
+            }
+            writeGuid(out, message.getGuid());
+            final ByteBuf payload = message.getPayload();
+            try {
+                final int length = payload.readableBytes();
+                writeVarInt(out, length);
+                final byte[] bytes = new byte[length];
+                payload.getBytes(payload.readerIndex(), bytes);
+                out.write(bytes);
+            } finally {
+                payload.release();
+            }
+        }
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        final byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported session transfer version: " + version);
+        }
+        this.requestID = in.readLong();
+        this.clientID = in.readUTF();
+        this.found = in.readBoolean();
+        if (!found) {
+            return;
+        }
+        this.followUp = in.readBoolean();
+        final int subscriptionCount = readVarInt(in);
+        final List<Subscription> readSubscriptions = new ArrayList<>(subscriptionCount);
+        for (int i = 0; i < subscriptionCount; i++) {
+            final Topic topicFilter = new Topic(in.readUTF());
+            readSubscriptions.add(new Subscription(clientID, topicFilter, MqttQoS.valueOf(in.readByte())));
+        }
+        final int messageCount = readVarInt(in);
+        final List<StoredMessage> readMessages = new ArrayList<>(messageCount);
+        for (int i = 0; i < messageCount; i++) {
+            final String topic = in.readUTF();
+            final MqttQoS qos = MqttQoS.valueOf(in.readByte());
+            final String publisher = in.readBoolean() ? in.readUTF() : null;
+            final MessageGUID guid = readGuid(in);
+            final byte[] payload = new byte[readVarInt(in)];
+            in.readFully(payload);
+            final StoredMessage message = new StoredMessage(payload, qos, topic);
+            message.setClientID(publisher);
+            message.setGuid(guid);
+            readMessages.add(message);
+        }
+        this.subscriptions = readSubscriptions;
+        this.messages = readMessages;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.cluster;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A filter subscribed on a node, shared with the other nodes until the next {@link SubscriptionDigest} of the node
+ * summarizes it. Numbered by the node, so that a peer tells the ones the digest it has already summarizes.
+ */
+public final class SubscribedFilter implements IdentifiedDataSerializable {
+
+    public static final int CLASS_ID = 5;
+
+    private String topicFilter;
+    private long sequence;
+
+    public SubscribedFilter() {
+    }
+
+    public SubscribedFilter(String topicFilter, long sequence) {
+        this.topicFilter = topicFilter;
+        this.sequence = sequence;
+    }
+
+    public String topicFilter() {
+        return topicFilter;
+    }
+
+    public long sequence() {
+        return sequence;
+    }
+
+    @Override
+    public int getFactoryId() {
+        return ClusterBatch.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return CLASS_ID;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        writeTo(out);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        readFrom(in);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(topicFilter);
+        out.writeLong(sequence);
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        this.topicFilter = in.readUTF();
+        this.sequence = in.readLong();
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.cluster;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compact summary of the subscription filters of a node, shared with the other nodes of the cluster so they forward
+ * a publish only to the nodes which may have a matching subscriber.
+ * <p>
+ * A filter is summarized by its first {@link #DEPTH} levels: a deeper filter becomes its prefix followed by a "more
+ * levels" marker, unless its only extra level is a '#'. The keys are kept in a Bloom filter. A topic is probed with
+ * every key which could summarize a filter matching it, each level either literal or '+', so a digest may answer a
+ * false positive, forwarding a publish for nothing, but never a false negative.
+ * <p>
+ * The filters can be added but not removed, the owner rebuilds the digest after some are unsubscribed. Not thread
+ * safe.
+ */
+public final class SubscriptionDigest implements Serializable {
+
+    private static final long serialVersionUID = 4203785932645839157L;
+
+    /**
+     * Levels of a filter kept in its key.
+     */
+    public static final int DEPTH = 3;
+    /**
+     * Most keys probed for a topic: a '#' after each prefix, then the exact or the truncated prefixes.
+     */
+    public static final int MAX_PROBES = 1 + 2 + 4 + 8 + 8;
+
+    private static final int HASHES = 7;
+    // about 1% of false positives with 7 hashes
+    private static final int BITS_PER_KEY = 10;
+    private static final int MIN_BITS = 1024;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] bits;
+    private final int capacity;
+    private int keys;
+    // the last of the filters the owner shared one by one, summarized by the digest
+    private long sequence;
+
+    /**
+     * @param expectedKeys the filters the bits are sized for, the false positives grow beyond.
+     */
+    public SubscriptionDigest(int expectedKeys) {
+        this.capacity = Math.max(MIN_BITS / BITS_PER_KEY, expectedKeys);
+        this.bits = new long[(capacity * BITS_PER_KEY + 63) / 64];
+    }
+
+    private SubscriptionDigest(SubscriptionDigest other) {
+        this.capacity = other.capacity;
+        this.bits = Arrays.copyOf(other.bits, other.bits.length);
+        this.keys = other.keys;
+        this.sequence = other.sequence;
+    }
+
+    private SubscriptionDigest(int capacity, int keys, long sequence, long[] bits) {
+        this.capacity = capacity;
+        this.keys = keys;
+        this.sequence = sequence;
+        this.bits = bits;
+    }
+
+    public static SubscriptionDigest of(Collection<String> filters) {
+        final SubscriptionDigest digest = new SubscriptionDigest(filters.size() * 2);
+        for (String filter : filters) {
+            digest.add(filter);
+        }
+        return digest;
+    }
+
+    public SubscriptionDigest copy() {
+        return new SubscriptionDigest(this);
+    }
+
+    /**
+     * @return true if the digest changed, false if it already summarized the filter.
+     */
+    public boolean add(String filter) {
+        final long hash = keyHash(filter);
+        final int nbits = bits.length * 64;
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+        boolean changed = false;
+        for (int i = 0; i < HASHES; i++) {
+            final int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % nbits;
+            final long mask = 1L << bit;
+            if ((bits[bit >>> 6] & mask) == 0) {
+                bits[bit >>> 6] |= mask;
+                changed = true;
+            }
+        }
+        if (changed) {
+            keys++;
+        }
+        return changed;
+    }
+
+    /**
+     * @param probes the keys of a topic, computed by {@link #probe(String, long[])}.
+     * @return false if no filter summarized matches the topic.
+     */
+    public boolean mayMatch(long[] probes, int count) {
+        final int nbits = bits.length * 64;
+        for (int p = 0; p < count; p++) {
+            final int h1 = (int) probes[p];
+            final int h2 = (int) (probes[p] >>> 32) | 1;
+            int i = 0;
+            while (i < HASHES) {
+                final int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % nbits;
+                if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                    break;
+                }
+                i++;
+            }
+            if (i == HASHES) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true when more filters were added than the bits were sized for.
+     */
+    public boolean isOverloaded() {
+        return keys > capacity;
+    }
+
+    /**
+     * @return the sequence number of the last filter the owner shared alone which the digest summarizes, the later
+     * ones are still to add to it.
+     */
+    public long sequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public int sizeInBytes() {
+        return bits.length * 8;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(capacity);
+        out.writeInt(keys);
+        out.writeLong(sequence);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    public static SubscriptionDigest readFrom(DataInput in) throws IOException {
+        final int capacity = in.readInt();
+        final int keys = in.readInt();
+        final long sequence = in.readLong();
+        final int words = in.readInt();
+        if (capacity < MIN_BITS / BITS_PER_KEY || words != (capacity * BITS_PER_KEY + 63) / 64) {
+            throw new IOException("Malformed subscription digest, capacity " + capacity + " in " + words + " words");
+        }
+        final long[] bits = new long[words];
+        for (int i = 0; i < words; i++) {
+            bits[i] = in.readLong();
+        }
+        return new SubscriptionDigest(capacity, keys, sequence, bits);
+    }
+
+    /**
+     * Computes the keys of the filters which could match the topic.
+     *
+     * @param probes receives the keys, at least {@link #MAX_PROBES} long.
+     * @return the number of keys.
+     */
+    public static int probe(String topic, long[] probes) {
+        // the bounds of the first levels, one more than the depth to tell a deeper topic
+        final int length = tokenizedLength(topic);
+        final int[] ends = new int[DEPTH + 1];
+        int levels = 0;
+        int start = 0;
+        while (levels <= DEPTH) {
+            final int end = topic.indexOf('/', start);
+            final boolean last = end < 0 || end >= length;
+            ends[levels++] = last ? length : end;
+            if (last) {
+                break;
+            }
+            start = end + 1;
+        }
+        return probe(topic, ends, levels, 0, FNV_OFFSET, probes, 0);
+    }
+
+    private static int probe(String topic, int[] ends, int levels, int level, long state, long[] probes, int count) {
+        // a '#' after the prefix matches the topic whatever its next levels, and its parent
+        probes[count++] = finish(level == 0 ? feed(state, '#') : feed(feed(state, '/'), '#'));
+        if (level == levels) {
+            probes[count++] = finish(state);
+            return count;
+        }
+        if (level == DEPTH) {
+            probes[count++] = finish(feed(feed(state, '/'), '>'));
+            return count;
+        }
+        final long base = level == 0 ? state : feed(state, '/');
+        long literal = base;
+        for (int i = level == 0 ? 0 : ends[level - 1] + 1; i < ends[level]; i++) {
+            literal = feed(literal, topic.charAt(i));
+        }
+        count = probe(topic, ends, levels, level + 1, literal, probes, count);
+        return probe(topic, ends, levels, level + 1, feed(base, '+'), probes, count);
+    }
+
+    static long keyHash(String filter) {
+        final int length = tokenizedLength(filter);
+        long state = FNV_OFFSET;
+        int level = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = filter.charAt(i);
+            if (c == '/' && ++level == DEPTH) {
+                // the filter continues beyond the depth, kept as is if it's only a '#'
+                if (length == i + 2 && filter.charAt(i + 1) == '#') {
+                    return finish(feed(feed(state, '/'), '#'));
+                }
+                return finish(feed(feed(state, '/'), '>'));
+            }
+            state = feed(state, c);
+        }
+        return finish(state);
+    }
+
+    /**
+     * @return the length of the topic or filter without the trailing separators but one, as the {@code Topic} tokens
+     * of the subscriptions directory count them.
+     */
+    private static int tokenizedLength(String topic) {
+        int length = topic.length();
+        while (length > 1 && topic.charAt(length - 1) == '/' && topic.charAt(length - 2) == '/') {
+            length--;
+        }
+        return length;
+    }
+
+    private static long feed(long state, char c) {
+        return (state ^ c) * FNV_PRIME;
+    }
+
+    private static long finish(long state) {
+        // the FNV bits are poorly mixed for the Bloom positions
+        state ^= state >>> 33;
+        state *= 0xff51afd7ed558ccdL;
+        state ^= state >>> 33;
+        state *= 0xc4ceb9fe1a85ec53L;
+        return state ^ (state >>> 33);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.cluster;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.kd.spi.impl.subscriptions.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.kd.BrokerConstants.METRICS_REGISTRY_NAME;
+
+/**
+ * Routes the publishes of the node to the cluster nodes which may have a matching subscriber, instead of
+ * broadcasting them. Each node shares the {@link SubscriptionDigest} of its subscriptions through the
+ * {@link ClusterTransport}, the digests of the peers are kept locally.
+ * <p>
+ * A filter subscribed is added to the digest of the node and shared alone at once, numbered, the peers add it to the
+ * digest they have until one summarizing it comes. The digest itself is shared at the refresh: rebuilt from the
+ * subscriptions once some were unsubscribed, they only leave false positives meanwhile, or as is once the filters
+ * shared alone since outweigh it, or a peer joined. A peer whose digest isn't known yet gets every publish.
+ */
+public final class SubscriptionRouter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubscriptionRouter.class);
+
+    private final ClusterTransport transport;
+    private final Supplier<List<Subscription>> subscriptions;
+    private final Map<String, PeerDigest> peerDigests = new ConcurrentHashMap<>();
+    private final ThreadLocal<long[]> probes = ThreadLocal.withInitial(() -> new long[SubscriptionDigest.MAX_PROBES]);
+    private final Meter forwarded;
+    private final Meter skipped;
+    // guarded by this, shared by copy
+    private SubscriptionDigest localDigest;
+    // guarded by this, of the filters shared alone
+    private long sequence;
+    private long bytesSinceDigest;
+    private volatile boolean stale = true;
+    private volatile boolean peerJoined;
+    private ScheduledFuture<?> refreshTask;
+
+    public SubscriptionRouter(ClusterTransport transport, Supplier<List<Subscription>> subscriptions) {
+        this.transport = transport;
+        this.subscriptions = subscriptions;
+        this.localDigest = new SubscriptionDigest(0);
+        final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
+        this.forwarded = metrics.meter("cluster.forwarded");
+        this.skipped = metrics.meter("cluster.skipped");
+    }
+
+    public void start(ScheduledExecutorService scheduler, long refreshMillis) {
+        refreshTask = scheduler.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis,
+            TimeUnit.MILLISECONDS);
+        LOG.info("Routing the publishes by the subscriptions of the nodes, refreshed every {} ms", refreshMillis);
+    }
+
+    public void stop() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+        }
+    }
+
+    public void onDigest(String peer, SubscriptionDigest digest) {
+        peerDigests.compute(peer, (id, known) -> new PeerDigest(digest, known));
+    }
+
+    /**
+     * Adds a filter the peer shared alone to its digest, unless the digest already summarizes it.
+     */
+    public void onSubscribed(String peer, SubscribedFilter subscribed) {
+        // the filters shared before the first digest are kept for it, the peer gets every publish meanwhile
+        peerDigests.compute(peer, (id, known) -> {
+            final PeerDigest updated = known != null ? known : new PeerDigest(null, null);
+            updated.add(subscribed.topicFilter(), subscribed.sequence());
+            return updated;
+        });
+    }
+
+    public void onPeerUp(String peer) {
+        // the filters shared alone before it joined reach it with the digest
+        peerJoined = true;
+    }
+
+    public void onPeerDown(String peer) {
+        peerDigests.remove(peer);
+    }
+
+    /**
+     * Adds a filter the peer subscribed to its digest, until the peer shares one with it.
+     */
+    public void peerSubscribed(String peer, String topicFilter) {
+        peerDigests.computeIfPresent(peer, (id, known) -> {
+            // dropped with the next digest
+            known.added.put(SubscriptionDigest.keyHash(topicFilter), Long.MIN_VALUE);
+            return known;
+        });
+    }
+
+    /**
+     * @return the ids of the other nodes which may have a subscriber of the topic.
+     */
+    public List<String> targetsOf(String topic) {
+        final long[] keys = probes.get();
+        final int count = SubscriptionDigest.probe(topic, keys);
+        List<String> targets = Collections.emptyList();
+        for (String peer : transport.peers()) {
+            final PeerDigest known = peerDigests.get(peer);
+            if (known != null && !known.mayMatch(keys, count)) {
+                skipped.mark();
+                continue;
+            }
+            if (targets.isEmpty()) {
+                targets = new ArrayList<>(2);
+            }
+            targets.add(peer);
+            forwarded.mark();
+        }
+        return targets;
+    }
+
+    /**
+     * Adds the filter subscribed on the node to its digest and shares it alone, if the digest changed.
+     */
+    public synchronized void subscribed(String topicFilter) {
+        if (localDigest.add(topicFilter)) {
+            transport.shareSubscribed(new SubscribedFilter(topicFilter, ++sequence));
+            bytesSinceDigest += topicFilter.length() + Long.BYTES;
+        }
+    }
+
+    /**
+     * Marks the digest of the node to be rebuilt, it still summarizes the filter meanwhile.
+     */
+    public void unsubscribed(String topicFilter) {
+        stale = true;
+    }
+
+    private synchronized void refresh() {
+        try {
+            if (!stale && !localDigest.isOverloaded()) {
+                if (peerJoined || bytesSinceDigest > localDigest.sizeInBytes()) {
+                    share();
+                }
+                return;
+            }
+            // before reading, an unsubscription meanwhile marks it again
+            stale = false;
+            final List<Subscription> current = subscriptions.get();
+            if (current == null) {
+                // the broker isn't started yet
+                stale = true;
+                return;
+            }
+            final List<String> filters = new ArrayList<>(current.size());
+            for (Subscription subscription : current) {
+                filters.add(subscription.getTopicFilter().toString());
+            }
+            localDigest = SubscriptionDigest.of(filters);
+            share();
+            LOG.debug("Shared the subscription digest of the node. Filters={}, bytes={}", filters.size(),
+                localDigest.sizeInBytes());
+        } catch (RuntimeException e) {
+            LOG.error("Unable to refresh the subscription digest of the node", e);
+        }
+    }
+
+    private void share() {
+        // the filters subscribed are in the directory before being shared alone, and summarized
+        localDigest.setSequence(sequence);
+        bytesSinceDigest = 0;
+        peerJoined = false;
+        // a copy, the transport may keep the instance
+        transport.shareDigest(localDigest.copy());
+    }
+
+    /**
+     * The digest received from a peer, and the keys of the filters it shared alone since.
+     */
+    private static final class PeerDigest {
+
+        // null until the peer shares one
+        private final SubscriptionDigest digest;
+        // by key, the sequence number of the filter
+        private final Map<Long, Long> added = new ConcurrentHashMap<>();
+
+        PeerDigest(SubscriptionDigest digest, PeerDigest previous) {
+            this.digest = digest;
+            if (previous != null) {
+                // the filters shared alone may arrive before the digest they follow
+                for (Map.Entry<Long, Long> entry : previous.added.entrySet()) {
+                    if (entry.getValue() > digest.sequence()) {
+                        added.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+
+        void add(String topicFilter, long sequence) {
+            if (digest == null || sequence > digest.sequence()) {
+                added.put(SubscriptionDigest.keyHash(topicFilter), sequence);
+            }
+        }
+
+        boolean mayMatch(long[] keys, int count) {
+            if (digest == null || digest.mayMatch(keys, count)) {
+                return true;
+            }
+            if (added.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (added.containsKey(keys[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
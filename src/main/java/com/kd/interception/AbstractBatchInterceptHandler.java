@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.interception;
+
+import com.kd.interception.messages.InterceptPublishMessage;
+
+import java.util.Collections;
+
+/**
+ * Basic abstract class for the batch handlers, with the batch size and the linger given at construction.
+ */
+public abstract class AbstractBatchInterceptHandler extends AbstractInterceptHandler implements BatchInterceptHandler {
+
+    private final int maxBatchSize;
+    private final long maxLingerMillis;
+
+    protected AbstractBatchInterceptHandler() {
+        this(DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LINGER_MILLIS);
+    }
+
+    protected AbstractBatchInterceptHandler(int maxBatchSize, long maxLingerMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("The max batch size must be positive: " + maxBatchSize);
+        }
+        if (maxLingerMillis < 0) {
+            throw new IllegalArgumentException("The max linger can't be negative: " + maxLingerMillis);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerMillis = maxLingerMillis;
+    }
+
+    /**
+     * Not called by the broker, which notifies the batches. Delivers the message as a batch of one to the callers.
+     */
+    @Override
+    public void onPublish(InterceptPublishMessage msg) {
+        onPublishBatch(Collections.singletonList(msg));
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @Override
+    public long getMaxLingerMillis() {
+        return maxLingerMillis;
+    }
+}
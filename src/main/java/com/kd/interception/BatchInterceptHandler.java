@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.interception;
+
+import com.kd.interception.messages.InterceptPublishMessage;
+
+import java.util.List;
+
+/**
+ * An {@link InterceptHandler} receiving the publishes in batches, for the handlers forwarding them to a system where
+ * a call per message costs more than the message, a Kafka producer or a remote topic.
+ * <p>
+ * The broker accumulates the publishes of the handler until the batch reaches {@link #getMaxBatchSize()} messages,
+ * or until its oldest message waited {@link #getMaxLingerMillis()}, or until another kind of event comes, so the
+ * events keep their order. The other events are still notified one by one, and {@link #onPublish} isn't called.
+ */
+public interface BatchInterceptHandler extends InterceptHandler {
+
+    int DEFAULT_MAX_BATCH_SIZE = 256;
+    long DEFAULT_MAX_LINGER_MILLIS = 5;
+
+    /**
+     * Receives a batch of publishes. The payloads are released and the list is reused after the call, the messages
+     * to keep must be copied.
+     *
+     * @param batch the publishes, in the order they were received.
+     */
+    void onPublishBatch(List<InterceptPublishMessage> batch);
+
+    default int getMaxBatchSize() {
+        return DEFAULT_MAX_BATCH_SIZE;
+    }
+
+    /**
+     * @return the milliseconds a publish waits at most for its batch to fill, 0 to flush as soon as no publish is
+     * queued.
+     */
+    default long getMaxLingerMillis() {
+        return DEFAULT_MAX_LINGER_MILLIS;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.interception;
+
+import com.kd.cluster.ClusterTransport;
+import com.kd.cluster.SubscriptionRouter;
+import com.kd.interception.messages.InterceptPublishMessage;
+import com.kd.interception.messages.InterceptSubscribeMessage;
+import com.kd.interception.messages.InterceptUnsubscribeMessage;
+import com.kd.server.Server;
+import com.kd.server.config.IConfig;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.kd.BrokerConstants.*;
+
+/**
+ * Forwards the publishes of the node to the cluster, over the transport configured: in batches to the nodes which
+ * may have a subscriber, or to all the nodes when the publishes are broadcast.
+ */
+public class ClusterInterceptHandler extends AbstractBatchInterceptHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterInterceptHandler.class);
+    private final ClusterTransport transport;
+    // null when the publishes are broadcast
+    private final SubscriptionRouter router;
+
+    public ClusterInterceptHandler(Server server) {
+        super(Integer.parseInt(property(server, CLUSTER_BATCH_MAX_SIZE_PROPERTY_NAME, DEFAULT_CLUSTER_BATCH_MAX_SIZE)),
+            Long.parseLong(property(server, CLUSTER_BATCH_LINGER_PROPERTY_NAME, DEFAULT_CLUSTER_BATCH_LINGER_MILLIS)));
+        this.transport = server.getClusterTransport();
+        if (transport == null) {
+            throw new IllegalStateException("The server has no cluster transport, check the intercept.handler");
+        }
+        this.router = server.getSubscriptionRouter();
+    }
+
+    private static String property(Server server, String name, Object defaultValue) {
+        final IConfig config = server.getConfig();
+        return config == null ? String.valueOf(defaultValue) : config.getProperty(name, String.valueOf(defaultValue));
+    }
+
+    @Override
+    public String getID() {
+        return getClass().getName() + "@" + transport.localId();
+    }
+
+    @Override
+    public void onPublishBatch(List<InterceptPublishMessage> batch) {
+        LOG.debug("Forwarding {} publishes to the cluster", batch.size());
+        if (router == null) {
+            transport.broadcast(batch);
+            return;
+        }
+        final Map<String, List<InterceptPublishMessage>> batches = new HashMap<>();
+        for (InterceptPublishMessage msg : batch) {
+            for (String peer : router.targetsOf(msg.getTopicName())) {
+                batches.computeIfAbsent(peer, p -> new ArrayList<>(batch.size())).add(msg);
+            }
+        }
+        for (Map.Entry<String, List<InterceptPublishMessage>> peerBatch : batches.entrySet()) {
+            try {
+                transport.forward(peerBatch.getKey(), peerBatch.getValue());
+            } catch (RuntimeException e) {
+                // the other nodes still get their batch
+                LOG.error("Unable to forward {} publishes to node {}", peerBatch.getValue().size(),
+                    peerBatch.getKey(), e);
+            }
+        }
+    }
+
+    @Override
+    public void onSubscribe(InterceptSubscribeMessage msg) {
+        if (router != null) {
+            router.subscribed(msg.getTopicFilter());
+        }
+    }
+
+    @Override
+    public void onUnsubscribe(InterceptUnsubscribeMessage msg) {
+        if (router != null) {
+            router.unsubscribed(msg.getTopicFilter());
+        }
+    }
+}
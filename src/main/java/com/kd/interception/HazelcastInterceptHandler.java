@@ -16,43 +16,15 @@
 
 package com.kd.interception;
 
-import com.hazelcast.core.HazelcastInstance;
-import com.hazelcast.core.ITopic;
-import com.kd.interception.messages.InterceptPublishMessage;
 import com.kd.server.Server;
 
-import io.netty.buffer.ByteBuf;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import static com.kd.spi.impl.Utils.readBytesAndRewind;
-import static java.nio.charset.StandardCharsets.UTF_8;
-
-public class HazelcastInterceptHandler extends AbstractInterceptHandler {
-
-    private static final Logger LOG = LoggerFactory.getLogger(HazelcastInterceptHandler.class);
-    private final HazelcastInstance hz;
+/**
+ * The cluster intercept handler under its former name, the configurations naming it start the Hazelcast transport
+ * unless another one is set.
+ */
+public class HazelcastInterceptHandler extends ClusterInterceptHandler {
 
     public HazelcastInterceptHandler(Server server) {
-        this.hz = server.getHazelcastInstance();
-    }
-
-    @Override
-    public String getID() {
-        return HazelcastInterceptHandler.class.getName() + "@" + hz.getName();
+        super(server);
     }
-
-    @Override
-    public void onPublish(InterceptPublishMessage msg) {
-        // TODO ugly, too much array copy
-        ByteBuf payload = msg.getPayload();
-        byte[] payloadContent = readBytesAndRewind(payload);
-
-        LOG.info("{} publish on {} message: {}", msg.getClientID(), msg.getTopicName(),
-                 new String(payloadContent, UTF_8));
-        ITopic<HazelcastMsg> topic = hz.getTopic("moquette");
-        HazelcastMsg hazelcastMsg = new HazelcastMsg(msg);
-        topic.publish(hazelcastMsg);
-    }
-
 }
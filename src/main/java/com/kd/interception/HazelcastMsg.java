@@ -21,6 +21,7 @@ import static com.kd.spi.impl.Utils.readBytesAndRewind;
 import java.io.Serializable;
 
 import com.kd.interception.messages.InterceptPublishMessage;
+import com.kd.spi.MessageGUID;
 
 public class HazelcastMsg implements Serializable {
 
@@ -29,12 +30,34 @@ public class HazelcastMsg implements Serializable {
     private final int qos;
     private final byte[] payload;
     private final String topic;
+    // absent from the messages of the previous versions
+    private final MessageGUID guid;
+    private final int packetId;
+    private final boolean dup;
 
     public HazelcastMsg(InterceptPublishMessage msg) {
         this.clientId = msg.getClientID();
         this.topic = msg.getTopicName();
         this.qos = msg.getQos().value();
         this.payload = readBytesAndRewind(msg.getPayload());
+        this.guid = msg.getGuid();
+        this.packetId = msg.getPacketId();
+        this.dup = msg.isDupFlag();
+    }
+
+    public HazelcastMsg(String clientId, String topic, int qos, byte[] payload) {
+        this(clientId, topic, qos, payload, null, 0, false);
+    }
+
+    public HazelcastMsg(String clientId, String topic, int qos, byte[] payload, MessageGUID guid, int packetId,
+                        boolean dup) {
+        this.clientId = clientId;
+        this.topic = topic;
+        this.qos = qos;
+        this.payload = payload;
+        this.guid = guid;
+        this.packetId = packetId;
+        this.dup = dup;
     }
 
     public String getClientId() {
@@ -52,4 +75,25 @@ public class HazelcastMsg implements Serializable {
     public String getTopic() {
         return topic;
     }
+
+    /**
+     * @return the guid assigned by the node the publish entered, null if none.
+     */
+    public MessageGUID getGuid() {
+        return guid;
+    }
+
+    /**
+     * @return the packet id of the publish on the connection of its client, 0 for a QoS 0 one.
+     */
+    public int getPacketId() {
+        return packetId;
+    }
+
+    /**
+     * @return true if the client retransmitted the publish.
+     */
+    public boolean isDup() {
+        return dup;
+    }
 }
@@ -17,6 +17,7 @@
 package com.kd.interception;
 
 import com.kd.interception.messages.InterceptAcknowledgedMessage;
+import com.kd.spi.MessageGUID;
 import com.kd.spi.impl.subscriptions.Subscription;
 
 import io.netty.handler.codec.mqtt.MqttConnectMessage;
@@ -40,7 +41,10 @@ public interface Interceptor {
 
     void notifyClientConnectionLost(String clientID, String username);
 
-    void notifyTopicPublished(MqttPublishMessage msg, String clientID, String username);
+    /**
+     * @param guid the guid assigned to the publish entering the broker, null if none.
+     */
+    void notifyTopicPublished(MqttPublishMessage msg, String clientID, String username, MessageGUID guid);
 
     void notifyTopicSubscribed(Subscription sub, String username);
 
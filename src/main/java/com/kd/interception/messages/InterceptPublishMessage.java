@@ -16,6 +16,7 @@
 
 package com.kd.interception.messages;
 
+import com.kd.spi.MessageGUID;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 
@@ -24,12 +25,18 @@ public class InterceptPublishMessage extends InterceptAbstractMessage {
     private final MqttPublishMessage msg;
     private final String clientID;
     private final String username;
+    private final MessageGUID guid;
 
     public InterceptPublishMessage(MqttPublishMessage msg, String clientID, String username) {
+        this(msg, clientID, username, null);
+    }
+
+    public InterceptPublishMessage(MqttPublishMessage msg, String clientID, String username, MessageGUID guid) {
         super(msg);
         this.msg = msg;
         this.clientID = clientID;
         this.username = username;
+        this.guid = guid;
     }
 
     public String getTopicName() {
@@ -47,4 +54,18 @@ public class InterceptPublishMessage extends InterceptAbstractMessage {
     public String getUsername() {
         return username;
     }
+
+    /**
+     * @return the packet id of the publish, 0 for a QoS 0 one.
+     */
+    public int getPacketId() {
+        return msg.variableHeader().packetId();
+    }
+
+    /**
+     * @return the guid assigned to the publish entering the broker, null if none.
+     */
+    public MessageGUID getGuid() {
+        return guid;
+    }
 }
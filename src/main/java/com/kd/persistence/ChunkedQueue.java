@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.persistence;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * Bounded queue growing by chunks of {@value #CHUNK_SLOTS} slots, linked from head to tail. An empty queue holds no
+ * chunk, so it costs a few fields instead of the whole array of an ArrayDeque: the offline queues of the sessions are
+ * empty most of the time.
+ *
+ * Guarded by its own monitor. The iterator works on a copy of the queue, its remove goes through
+ * {@link #remove(Object)}.
+ */
+class ChunkedQueue<E> extends AbstractQueue<E> {
+
+    static final int CHUNK_SLOTS = 16;
+
+    private static final class Chunk {
+
+        final Object[] items = new Object[CHUNK_SLOTS];
+        Chunk next;
+    }
+
+    private final int capacity;
+    // all guarded by this, head and tail are null when the queue is empty
+    private Chunk head;
+    private Chunk tail;
+    private int headIndex;
+    private int tailIndex;
+    private int count;
+
+    ChunkedQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive, was " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    private void enqueue(E element) {
+        if (tail == null) {
+            head = tail = new Chunk();
+            headIndex = tailIndex = 0;
+        } else if (tailIndex == CHUNK_SLOTS) {
+            tail.next = new Chunk();
+            tail = tail.next;
+            tailIndex = 0;
+        }
+        tail.items[tailIndex++] = element;
+        count++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E dequeue() {
+        final E element = (E) head.items[headIndex];
+        head.items[headIndex++] = null;
+        count--;
+        if (count == 0) {
+            // the chunks are released, an idle queue takes no slots
+            head = tail = null;
+        } else if (headIndex == CHUNK_SLOTS) {
+            head = head.next;
+            headIndex = 0;
+        }
+        return element;
+    }
+
+    @Override
+    public synchronized boolean offer(E element) {
+        Objects.requireNonNull(element);
+        if (count == capacity) {
+            return false;
+        }
+        enqueue(element);
+        return true;
+    }
+
+    @Override
+    public synchronized E poll() {
+        return count == 0 ? null : dequeue();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized E peek() {
+        return count == 0 ? null : (E) head.items[headIndex];
+    }
+
+    @Override
+    public synchronized int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized void clear() {
+        head = tail = null;
+        count = 0;
+    }
+
+    @Override
+    public synchronized Object[] toArray() {
+        final Object[] elements = new Object[count];
+        Chunk chunk = head;
+        int index = headIndex;
+        for (int i = 0; i < count; i++) {
+            if (index == CHUNK_SLOTS) {
+                chunk = chunk.next;
+                index = 0;
+            }
+            elements[i] = chunk.items[index++];
+        }
+        return elements;
+    }
+
+    /**
+     * @return the index from the head of the first element equal to the object, -1 if none is.
+     */
+    synchronized int indexOf(Object object) {
+        final Object[] elements = toArray();
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i].equals(object)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the element at the index from the head, rebuilding the chunks: it's not on the path of the messages.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void removeAt(int index) {
+        final Object[] elements = toArray();
+        if (index < 0 || index >= elements.length) {
+            throw new IndexOutOfBoundsException("Index " + index + " of a queue of " + elements.length);
+        }
+        head = tail = null;
+        count = 0;
+        for (int j = 0; j < elements.length; j++) {
+            if (j != index) {
+                enqueue((E) elements[j]);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean remove(Object object) {
+        final int index = indexOf(object);
+        if (index < 0) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        final Object[] elements = toArray();
+        return new Iterator<E>() {
+
+            private int next;
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return next < elements.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (next >= elements.length) {
+                    throw new NoSuchElementException();
+                }
+                last = next++;
+                return (E) elements[last];
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                ChunkedQueue.this.remove(elements[last]);
+                last = -1;
+            }
+        };
+    }
+}
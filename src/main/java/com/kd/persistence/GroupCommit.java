@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.persistence;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.kd.BrokerConstants.METRICS_REGISTRY_NAME;
+
+/**
+ * Group commit of the journals: the actions waiting for the durability of the changes done before them, like the
+ * acknowledges of the QoS 1 and 2 publishes, are collected in a batch closed after a time window or when it reaches a
+ * maximum size. Then one sync of the journals makes all the batch durable, and its actions run in the order they
+ * were added, so the acknowledges of a channel are sent in order. When the sync fails the failure actions of the
+ * batch run instead, as the changes may not be on the disk.
+ *
+ * While a sync runs the next batch is collected, so with a window of 0 the batches are as big as the changes done
+ * during a sync.
+ */
+final class GroupCommit {
+
+    private static final class Action {
+
+        final Runnable durable;
+        final Runnable failure;
+
+        Action(Runnable durable, Runnable failure) {
+            this.durable = durable;
+            this.failure = failure;
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(GroupCommit.class);
+
+    private final Runnable[] syncs;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchReady = lock.newCondition();
+    // guarded by lock
+    private List<Action> pending = new ArrayList<>();
+    private long firstPendingAt;
+    private boolean closed;
+    private final Thread committer;
+    private final Histogram batchSizes;
+    private final Timer syncTimes;
+
+    /**
+     * @param syncs the syncs of the journals, run for every batch.
+     */
+    GroupCommit(long windowMicros, int maxBatch, Runnable... syncs) {
+        this.syncs = syncs;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+        final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
+        this.batchSizes = metrics.histogram("journal.group_commit.batch_size");
+        this.syncTimes = metrics.timer("journal.group_commit.sync");
+        this.committer = new Thread(this::commitLoop, "moquette-group-commit");
+        this.committer.setDaemon(true);
+        this.committer.start();
+        LOG.info("Started journals group commit, window={} us, max batch={}", windowMicros, maxBatch);
+    }
+
+    /**
+     * Runs the action, on the committer thread, once the journal changes done before this call are synced, or the
+     * failure action if the sync fails.
+     */
+    void add(Runnable action, Runnable failure) {
+        lock.lock();
+        try {
+            if (closed) {
+                // the journals are synced by their close
+                action.run();
+                return;
+            }
+            if (pending.isEmpty()) {
+                firstPendingAt = System.nanoTime();
+                batchReady.signal();
+            }
+            pending.add(new Action(action, failure));
+            if (pending.size() == maxBatch) {
+                batchReady.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Action> nextBatch() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed) {
+                if (pending.isEmpty()) {
+                    batchReady.await();
+                    continue;
+                }
+                final long lingering = windowNanos - (System.nanoTime() - firstPendingAt);
+                if (lingering <= 0 || pending.size() >= maxBatch) {
+                    break;
+                }
+                batchReady.awaitNanos(lingering);
+            }
+            if (pending.size() <= maxBatch) {
+                final List<Action> batch = pending;
+                pending = new ArrayList<>(Math.min(batch.size() * 2, maxBatch));
+                return batch;
+            }
+            // the rest waited already, it's the next batch
+            final List<Action> head = pending.subList(0, maxBatch);
+            final List<Action> batch = new ArrayList<>(head);
+            head.clear();
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commitLoop() {
+        try {
+            while (true) {
+                final List<Action> batch = nextBatch();
+                if (batch.isEmpty()) {
+                    // closed
+                    return;
+                }
+                final boolean synced = sync();
+                if (!synced) {
+                    LOG.error("Journals sync failed, running the failure actions of {} acknowledges", batch.size());
+                }
+                batchSizes.update(batch.size());
+                for (Action action : batch) {
+                    try {
+                        if (synced) {
+                            action.durable.run();
+                        } else {
+                            action.failure.run();
+                        }
+                    } catch (RuntimeException e) {
+                        LOG.error("Group commit action failed", e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean sync() {
+        final Timer.Context timing = syncTimes.time();
+        try {
+            for (Runnable sync : syncs) {
+                sync.run();
+            }
+            return true;
+        } catch (RuntimeException e) {
+            LOG.error("Can't sync the journals", e);
+            return false;
+        } finally {
+            timing.stop();
+        }
+    }
+
+    /**
+     * Commits the pending batch and stops the committer. To be called before closing the journals.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            batchReady.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,639 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.persistence;
+
+import com.kd.server.Constants;
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.impl.subscriptions.Subscription;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+import static com.kd.persistence.SessionsCodec.*;
+
+/**
+ * Sessions store that survives the restarts: the sessions are kept in memory like {@link MemorySessionStore}, and
+ * every change is appended to a write ahead journal of memory mapped segments, replayed at the start.
+ *
+ * The journal is bounded by the checkpoints: the whole state is written in a snapshot together with the journal
+ * position it covers, then the segments before that position are deleted. The recovery loads the last snapshot and
+ * replays only the records after it. The changes go on while a snapshot is written: each session is copied with the
+ * position it was copied at, and the replay skips the records of a session before that position.
+ *
+ * Every change and its record are done under one lock, so the journal order is the order the changes were applied.
+ */
+public class JournaledSessionStore extends MemorySessionStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournaledSessionStore.class);
+
+    static final String LOG_PREFIX = "sessions";
+    static final String SNAPSHOT_FILE_NAME = "sessions.snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x4d534e50;
+    private static final int SNAPSHOT_VERSION = 2;
+
+    private static final byte CREATE_SESSION = 1;
+    private static final byte REMOVE_SESSION = 2;
+    private static final byte CLEAN_STATUS = 3;
+    private static final byte SUBSCRIBE = 4;
+    private static final byte UNSUBSCRIBE = 5;
+    private static final byte WIPE_SUBSCRIPTIONS = 6;
+    private static final byte ENQUEUE = 7;
+    private static final byte DEQUEUE = 8;
+    private static final byte CLEAR_QUEUE = 9;
+    private static final byte DROP_QUEUE = 10;
+    private static final byte INFLIGHT = 11;
+    private static final byte INFLIGHT_ACK = 12;
+    private static final byte SECOND_PHASE = 13;
+    private static final byte RELEASED = 14;
+    private static final byte REMOVE_QOS2 = 15;
+    private static final byte SESSION_CLOSED = 16;
+    private static final byte SESSION_CLOSE_UNTRACKED = 17;
+    private static final byte REMOVE_MESSAGE = 18;
+
+    private interface RecordBody {
+
+        void write(DataOutput out) throws IOException;
+    }
+
+    /**
+     * Offline queue journaling the messages added, polled and removed. A remove is journaled by the index of the
+     * message from the head, the queue being the same when the records are replayed.
+     */
+    private final class JournaledQueue extends ChunkedQueue<StoredMessage> {
+
+        private final String clientID;
+
+        JournaledQueue(String clientID) {
+            super(Constants.MAX_MESSAGE_QUEUE);
+            this.clientID = clientID;
+        }
+
+        // false for the queue of a session removed or replaced, its changes don't go to the journal
+        private boolean isCurrent() {
+            final Session session = sessions.get(clientID);
+            return session != null && session.queue == this;
+        }
+
+        @Override
+        public boolean offer(StoredMessage message) {
+            synchronized (journalLock) {
+                if (!super.offer(message)) {
+                    return false;
+                }
+                if (isCurrent()) {
+                    journal(ENQUEUE, clientID, out -> writeMessage(out, message));
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public StoredMessage poll() {
+            synchronized (journalLock) {
+                final StoredMessage message = super.poll();
+                if (message != null && isCurrent()) {
+                    journal(DEQUEUE, clientID, out -> out.writeInt(1));
+                }
+                return message;
+            }
+        }
+
+        @Override
+        public void clear() {
+            synchronized (journalLock) {
+                super.clear();
+                if (isCurrent()) {
+                    journal(CLEAR_QUEUE, clientID, null);
+                }
+            }
+        }
+
+        @Override
+        public boolean remove(Object message) {
+            synchronized (journalLock) {
+                final int index = indexOf(message);
+                if (index < 0) {
+                    return false;
+                }
+                removeAt(index);
+                if (isCurrent()) {
+                    journal(REMOVE_MESSAGE, clientID, out -> out.writeInt(index));
+                }
+                return true;
+            }
+        }
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final Object journalLock = new Object();
+    private final Object checkpointLock = new Object();
+    // guarded by journalLock
+    private final ByteBuf record = Unpooled.buffer(256);
+    private final ByteBufOutputStream recordOut = new ByteBufOutputStream(record);
+    private boolean replaying;
+    private long checkpointTail = -1;
+    // while recovering, the positions the sessions and the closing times of the snapshot were copied at
+    private final Map<String, Long> copiedAt = new HashMap<>();
+    private long closingTimesCopiedAt = -1;
+    private MappedSegmentLog log;
+    private GroupCommit groupCommit;
+
+    JournaledSessionStore(File directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Holds the {@link #onDurable(Runnable, Runnable)} actions until the group commit syncs the journal, instead of running
+     * them immediately.
+     */
+    void setGroupCommit(GroupCommit groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    @Override
+    public void onDurable(Runnable action, Runnable failure) {
+        if (groupCommit == null) {
+            action.run();
+        } else {
+            groupCommit.add(action, failure);
+        }
+    }
+
+    @Override
+    ChunkedQueue<StoredMessage> newQueue(String clientID) {
+        return new JournaledQueue(clientID);
+    }
+
+    @Override
+    public void initStore() {
+        final long start = System.currentTimeMillis();
+        try {
+            log = new MappedSegmentLog(directory, LOG_PREFIX, segmentBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't open the sessions journal in " + directory, e);
+        }
+        synchronized (journalLock) {
+            replaying = true;
+            try {
+                final File snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+                long from = MappedSegmentLog.position(log.segments().get(0), 0);
+                if (snapshotFile.exists()) {
+                    final long tail = loadSnapshot(snapshotFile);
+                    if (tail >= 0) {
+                        from = tail;
+                        checkpointTail = tail;
+                    }
+                }
+                if (checkpointTail < 0 && log.segments().get(0) != 0) {
+                    LOG.error("No valid sessions snapshot and the journal starts at segment {}, the changes before "
+                        + "it are lost", log.segments().get(0));
+                }
+                final int[] replayed = new int[1];
+                log.scan(from, (position, body) -> {
+                    apply(position, body);
+                    replayed[0]++;
+                });
+                copiedAt.clear();
+                LOG.info("Recovered {} sessions in {} ms, from snapshot: {}, records replayed: {}", sessions.size(),
+                    System.currentTimeMillis() - start, checkpointTail >= 0, replayed[0]);
+            } finally {
+                replaying = false;
+            }
+        }
+        checkpoint();
+    }
+
+    private void journal(byte type, String clientID, RecordBody body) {
+        if (replaying) {
+            return;
+        }
+        record.clear();
+        try {
+            recordOut.writeByte(type);
+            recordOut.writeUTF(clientID);
+            if (body != null) {
+                body.write(recordOut);
+            }
+            log.append(record.nioBuffer());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't journal the change of the session of client " + clientID, e);
+        }
+    }
+
+    private void apply(long position, ByteBuffer body) {
+        final DataInput in = new ByteBufInputStream(Unpooled.wrappedBuffer(body));
+        try {
+            final byte type = in.readByte();
+            final String clientID = in.readUTF();
+            final long copied;
+            if (type == SESSION_CLOSED || type == SESSION_CLOSE_UNTRACKED) {
+                copied = closingTimesCopiedAt;
+            } else {
+                copied = copiedAt.getOrDefault(clientID, -1L);
+            }
+            if (position < copied) {
+                // already in the snapshot
+                return;
+            }
+            if (type != CREATE_SESSION && !contains(clientID)) {
+                // a change done while the session was being removed
+                return;
+            }
+            switch (type) {
+                case CREATE_SESSION:
+                    createNewDurableSession(clientID);
+                    break;
+                case REMOVE_SESSION:
+                    removeDurableSession(clientID);
+                    break;
+                case CLEAN_STATUS:
+                    updateCleanStatus(clientID, in.readBoolean());
+                    break;
+                case SUBSCRIBE:
+                    final Topic topic = new Topic(in.readUTF());
+                    final byte qos = in.readByte();
+                    addNewSubscription(qos < 0 ? new Subscription(clientID, topic)
+                        : new Subscription(clientID, topic, MqttQoS.valueOf(qos)));
+                    break;
+                case UNSUBSCRIBE:
+                    removeSubscription(new Topic(in.readUTF()), clientID);
+                    break;
+                case WIPE_SUBSCRIPTIONS:
+                    wipeSubscriptions(clientID);
+                    break;
+                case ENQUEUE:
+                    queue(clientID).offer(readMessage(in));
+                    break;
+                case DEQUEUE:
+                    final Queue<StoredMessage> queue = queue(clientID);
+                    for (int i = in.readInt(); i > 0; i--) {
+                        queue.poll();
+                    }
+                    break;
+                case REMOVE_MESSAGE:
+                    sessions.get(clientID).queue.removeAt(in.readInt());
+                    break;
+                case CLEAR_QUEUE:
+                    queue(clientID).clear();
+                    break;
+                case DROP_QUEUE:
+                    dropQueue(clientID);
+                    break;
+                case INFLIGHT:
+                    final int inflightID = in.readInt();
+                    inFlight(clientID, inflightID, readMessage(in));
+                    break;
+                case INFLIGHT_ACK:
+                    inFlightAck(clientID, in.readInt());
+                    break;
+                case SECOND_PHASE:
+                    final int secondPhaseID = in.readInt();
+                    moveInFlightToSecondPhaseAckWaiting(clientID, secondPhaseID, readMessage(in));
+                    break;
+                case RELEASED:
+                    completeReleasedPublish(clientID, in.readInt());
+                    break;
+                case REMOVE_QOS2:
+                    removeTemporaryQoS2(clientID);
+                    break;
+                case SESSION_CLOSED:
+                    trackSessionClose(LocalDateTime.parse(in.readUTF()), clientID);
+                    break;
+                case SESSION_CLOSE_UNTRACKED:
+                    untrackSessionClose(LocalDateTime.parse(in.readUTF()), clientID);
+                    break;
+                default:
+                    LOG.warn("Unknown sessions journal record type {}, skipped", type);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Can't replay a sessions journal record, skipped", e);
+        }
+    }
+
+    /**
+     * @return the journal position covered by the snapshot, or -1 if it's not valid.
+     */
+    private long loadSnapshot(File snapshotFile) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile),
+            1 << 20))) {
+            final int version;
+            if (in.readInt() != SNAPSHOT_MAGIC || ((version = in.readInt()) != 1 && version != SNAPSHOT_VERSION)) {
+                LOG.warn("Unknown sessions snapshot format, replaying the whole journal");
+                return -1;
+            }
+            final long tail = in.readLong();
+            if (tail > log.tail()) {
+                LOG.warn("The sessions snapshot is ahead of the journal, replaying the whole journal");
+                return -1;
+            }
+            if (version == 1) {
+                // written under the journal lock, all at the tail
+                for (int sessionsCount = in.readInt(); sessionsCount > 0; sessionsCount--) {
+                    final Session session = readSession(in, this);
+                    sessions.put(session.clientID, session);
+                }
+            } else {
+                while (in.readBoolean()) {
+                    final long copied = in.readLong();
+                    final Session session = readSession(in, this);
+                    sessions.put(session.clientID, session);
+                    copiedAt.put(session.clientID, copied);
+                }
+                closingTimesCopiedAt = in.readLong();
+            }
+            readClosingTimes(in, sessionsClosingTimes);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Truncated snapshot");
+            }
+            return tail;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Can't load the sessions snapshot {}, replaying the whole journal", snapshotFile, e);
+            sessions.clear();
+            sessionsClosingTimes.clear();
+            copiedAt.clear();
+            closingTimesCopiedAt = -1;
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the state of all the sessions in a snapshot and deletes the journal segments it makes useless.
+     *
+     * The journal lock is held only to copy a session at a time, with the journal position it's copied at, and then
+     * to move the checkpoint: the changes aren't stopped while the snapshot is written and synced.
+     */
+    void checkpoint() {
+        synchronized (checkpointLock) {
+            final long tail;
+            synchronized (journalLock) {
+                tail = log.tail();
+                if (tail == checkpointTail) {
+                    return;
+                }
+            }
+            final long start = System.currentTimeMillis();
+            final File snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+            final File tmpFile = new File(directory, SNAPSHOT_FILE_NAME + ".tmp");
+            final ByteBuf copy = Unpooled.buffer(4096);
+            final ByteBufOutputStream copyOut = new ByteBufOutputStream(copy);
+            int written = 0;
+            try {
+                try (FileOutputStream file = new FileOutputStream(tmpFile);
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 20))) {
+                    out.writeInt(SNAPSHOT_MAGIC);
+                    out.writeInt(SNAPSHOT_VERSION);
+                    out.writeLong(tail);
+                    // a session created after the tail and not seen by the iteration is replayed from its creation
+                    for (String clientID : sessions.keySet()) {
+                        copy.clear();
+                        synchronized (journalLock) {
+                            final Session session = sessions.get(clientID);
+                            if (session == null) {
+                                continue;
+                            }
+                            copyOut.writeLong(log.tail());
+                            writeSession(copyOut, session);
+                        }
+                        out.writeBoolean(true);
+                        copy.readBytes(out, copy.readableBytes());
+                        written++;
+                    }
+                    out.writeBoolean(false);
+                    copy.clear();
+                    synchronized (journalLock) {
+                        copyOut.writeLong(log.tail());
+                        writeClosingTimes(copyOut, sessionsClosingTimes);
+                    }
+                    copy.readBytes(out, copy.readableBytes());
+                    out.writeInt(SNAPSHOT_MAGIC);
+                    out.flush();
+                    file.getFD().sync();
+                }
+                Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                LOG.error("Can't write the sessions snapshot, the journal is kept", e);
+                tmpFile.delete();
+                return;
+            }
+            int deleted = 0;
+            synchronized (journalLock) {
+                checkpointTail = tail;
+                for (int segment : log.segments()) {
+                    if (segment >= MappedSegmentLog.segment(tail)) {
+                        break;
+                    }
+                    try {
+                        log.delete(segment);
+                        deleted++;
+                    } catch (IOException e) {
+                        LOG.error("Can't delete the sessions journal segment {}", segment, e);
+                    }
+                }
+            }
+            LOG.info("Written sessions snapshot in {} ms, sessions={}, journal segments deleted={}",
+                System.currentTimeMillis() - start, written, deleted);
+        }
+    }
+
+    /**
+     * Writes the journal changes to the disk.
+     */
+    void flush() {
+        log.force();
+    }
+
+    /**
+     * Writes a last snapshot and closes the journal.
+     */
+    void close() {
+        checkpoint();
+        synchronized (journalLock) {
+            log.close();
+        }
+    }
+
+    @Override
+    public void createNewDurableSession(String clientID) {
+        synchronized (journalLock) {
+            super.createNewDurableSession(clientID);
+            journal(CREATE_SESSION, clientID, null);
+        }
+    }
+
+    @Override
+    public void removeDurableSession(String clientId) {
+        synchronized (journalLock) {
+            super.removeDurableSession(clientId);
+            journal(REMOVE_SESSION, clientId, null);
+        }
+    }
+
+    @Override
+    public void updateCleanStatus(String clientId, boolean newCleanStatus) {
+        synchronized (journalLock) {
+            super.updateCleanStatus(clientId, newCleanStatus);
+            journal(CLEAN_STATUS, clientId, out -> out.writeBoolean(newCleanStatus));
+        }
+    }
+
+    @Override
+    public void addNewSubscription(Subscription newSubscription) {
+        final String clientID = newSubscription.getClientId();
+        synchronized (journalLock) {
+            final boolean existing = contains(clientID);
+            super.addNewSubscription(newSubscription);
+            if (!existing) {
+                return;
+            }
+            final MqttQoS qos = newSubscription.getRequestedQos();
+            journal(SUBSCRIBE, clientID, out -> {
+                out.writeUTF(newSubscription.getTopicFilter().toString());
+                out.writeByte(qos == null ? -1 : qos.value());
+            });
+        }
+    }
+
+    @Override
+    public void removeSubscription(Topic topic, String clientID) {
+        synchronized (journalLock) {
+            super.removeSubscription(topic, clientID);
+            journal(UNSUBSCRIBE, clientID, out -> out.writeUTF(topic.toString()));
+        }
+    }
+
+    @Override
+    public void wipeSubscriptions(String clientID) {
+        synchronized (journalLock) {
+            final boolean existing = contains(clientID);
+            super.wipeSubscriptions(clientID);
+            if (existing) {
+                journal(WIPE_SUBSCRIPTIONS, clientID, null);
+            }
+        }
+    }
+
+    @Override
+    public StoredMessage inFlightAck(String clientID, int messageID) {
+        synchronized (journalLock) {
+            final StoredMessage acked = super.inFlightAck(clientID, messageID);
+            journal(INFLIGHT_ACK, clientID, out -> out.writeInt(messageID));
+            return acked;
+        }
+    }
+
+    @Override
+    public void inFlight(String clientID, int messageID, StoredMessage msg) {
+        synchronized (journalLock) {
+            final boolean existing = contains(clientID);
+            super.inFlight(clientID, messageID, msg);
+            if (!existing) {
+                return;
+            }
+            journal(INFLIGHT, clientID, out -> {
+                out.writeInt(messageID);
+                writeMessage(out, msg);
+            });
+        }
+    }
+
+    @Override
+    public void dropQueue(String clientID) {
+        synchronized (journalLock) {
+            super.dropQueue(clientID);
+            journal(DROP_QUEUE, clientID, null);
+        }
+    }
+
+    @Override
+    public void moveInFlightToSecondPhaseAckWaiting(String clientID, int messageID, StoredMessage msg) {
+        synchronized (journalLock) {
+            final boolean existing = contains(clientID);
+            super.moveInFlightToSecondPhaseAckWaiting(clientID, messageID, msg);
+            if (!existing) {
+                return;
+            }
+            journal(SECOND_PHASE, clientID, out -> {
+                out.writeInt(messageID);
+                writeMessage(out, msg);
+            });
+        }
+    }
+
+    @Override
+    public StoredMessage completeReleasedPublish(String clientID, int messageID) {
+        synchronized (journalLock) {
+            final StoredMessage released = super.completeReleasedPublish(clientID, messageID);
+            journal(RELEASED, clientID, out -> out.writeInt(messageID));
+            return released;
+        }
+    }
+
+    @Override
+    public void removeTemporaryQoS2(String clientID) {
+        synchronized (journalLock) {
+            final boolean existing = contains(clientID);
+            super.removeTemporaryQoS2(clientID);
+            if (!existing) {
+                return;
+            }
+            journal(REMOVE_QOS2, clientID, null);
+        }
+    }
+
+    @Override
+    public void trackSessionClose(LocalDateTime when, String clientID) {
+        synchronized (journalLock) {
+            super.trackSessionClose(when, clientID);
+            journal(SESSION_CLOSED, clientID, out -> out.writeUTF(when.toString()));
+        }
+    }
+
+    @Override
+    public void untrackSessionClose(LocalDateTime when, String clientID) {
+        synchronized (journalLock) {
+            super.untrackSessionClose(when, clientID);
+            journal(SESSION_CLOSE_UNTRACKED, clientID, out -> out.writeUTF(when.toString()));
+        }
+    }
+}
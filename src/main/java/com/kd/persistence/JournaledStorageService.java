@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.persistence;
+
+import java.io.File;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.kd.server.config.IConfig;
+import com.kd.spi.IMessagesStore;
+import com.kd.spi.ISessionsStore;
+import com.kd.spi.IStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.kd.BrokerConstants.*;
+
+/**
+ * Store keeping the sessions, their subscriptions, queues and inflight messages in a journal in the
+ * <code>persistent_store</code> directory, and the retained messages like {@link MappedStorageService}, so everything
+ * survives a restart. The sessions snapshot is written every <code>autosave_interval</code> seconds. Enabled with
+ * <code>storage_class com.kd.persistence.JournaledStorageService</code>.
+ *
+ * The journals are synced every second, unless the group commit is enabled with <code>journal.group_commit</code>:
+ * then the publishes are acknowledged only after the sync of the batch of changes containing them.
+ */
+public class JournaledStorageService implements IStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournaledStorageService.class);
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long COMPACTION_INTERVAL_SECONDS = 60;
+
+    private final JournaledSessionStore m_sessionsStore;
+    private final MappedMessagesStore m_messagesStore;
+    private final ScheduledExecutorService m_scheduler;
+    private final long m_autosaveInterval;
+    private ScheduledFuture<?> m_flushTask;
+    private ScheduledFuture<?> m_compactionTask;
+    private ScheduledFuture<?> m_checkpointTask;
+    private GroupCommit m_groupCommit;
+
+    // NB these params must be here "by contract" used in introspection instantiation used in
+    // ProtocolProcessorBootstrapper.instantiateConfiguredStore
+    public JournaledStorageService(IConfig props, ScheduledExecutorService scheduler) {
+        final File sessionsDirectory = new File(props.getProperty(PERSISTENT_STORE_PROPERTY_NAME,
+            DEFAULT_SESSIONS_JOURNAL_DIR));
+        final int sessionsSegmentBytes = Integer.parseInt(props.getProperty(
+            SESSIONS_JOURNAL_SEGMENT_BYTES_PROPERTY_NAME, String.valueOf(DEFAULT_SESSIONS_JOURNAL_SEGMENT_BYTES)));
+        final File retainedDirectory = new File(props.getProperty(RETAINED_STORE_DIR_PROPERTY_NAME,
+            DEFAULT_RETAINED_STORE_DIR));
+        final int retainedSegmentBytes = Integer.parseInt(props.getProperty(RETAINED_STORE_SEGMENT_BYTES_PROPERTY_NAME,
+            String.valueOf(DEFAULT_RETAINED_STORE_SEGMENT_BYTES)));
+        m_autosaveInterval = Long.parseLong(props.getProperty(AUTOSAVE_INTERVAL_PROPERTY_NAME,
+            String.valueOf(DEFAULT_AUTOSAVE_INTERVAL)));
+        m_scheduler = scheduler;
+        m_messagesStore = new MappedMessagesStore(retainedDirectory, retainedSegmentBytes);
+        m_sessionsStore = new JournaledSessionStore(sessionsDirectory, sessionsSegmentBytes);
+        m_messagesStore.initStore();
+        m_sessionsStore.initStore();
+        if (Boolean.parseBoolean(props.getProperty(GROUP_COMMIT_PROPERTY_NAME, "false"))) {
+            final long window = Long.parseLong(props.getProperty(GROUP_COMMIT_WINDOW_MICROS_PROPERTY_NAME,
+                String.valueOf(DEFAULT_GROUP_COMMIT_WINDOW_MICROS)));
+            final int maxBatch = Integer.parseInt(props.getProperty(GROUP_COMMIT_MAX_BATCH_PROPERTY_NAME,
+                String.valueOf(DEFAULT_GROUP_COMMIT_MAX_BATCH)));
+            m_groupCommit = new GroupCommit(window, maxBatch, m_sessionsStore::flush, m_messagesStore::flush);
+            m_sessionsStore.setGroupCommit(m_groupCommit);
+        }
+    }
+
+    @Override
+    public IMessagesStore messagesStore() {
+        return m_messagesStore;
+    }
+
+    @Override
+    public ISessionsStore sessionsStore() {
+        return m_sessionsStore;
+    }
+
+    @Override
+    public void initStore() {
+        if (m_scheduler == null) {
+            return;
+        }
+        m_flushTask = schedule("flush", () -> {
+            m_sessionsStore.flush();
+            m_messagesStore.flush();
+        }, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        m_compactionTask = schedule("retained messages compaction", m_messagesStore::compact,
+            COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        if (m_autosaveInterval > 0) {
+            m_checkpointTask = schedule("sessions checkpoint", m_sessionsStore::checkpoint, m_autosaveInterval,
+                TimeUnit.SECONDS);
+        }
+    }
+
+    private ScheduledFuture<?> schedule(String name, Runnable task, long interval, TimeUnit unit) {
+        return m_scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (Throwable th) {
+                // keeps the task scheduled, the scheduler drops a task once it throws
+                LOG.error("The {} of the journaled store failed", name, th);
+            }
+        }, interval, interval, unit);
+    }
+
+    @Override
+    public void close() {
+        if (m_flushTask != null) {
+            m_flushTask.cancel(false);
+            m_compactionTask.cancel(false);
+        }
+        if (m_checkpointTask != null) {
+            m_checkpointTask.cancel(false);
+        }
+        if (m_groupCommit != null) {
+            m_groupCommit.close();
+        }
+        m_sessionsStore.close();
+        m_messagesStore.close();
+    }
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.persistence;
+
+import com.kd.spi.IMatchingCondition;
+import com.kd.spi.IMessagesStore;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Retained messages store persisted in a {@link MappedSegmentLog}: every store and clean appends a record, an in
+ * memory topic tree maps each topic to the position of its last record, and the payloads are read from the mapped
+ * segments when searched.
+ *
+ * At startup the index is loaded from the snapshot written at the last clean close, followed by the records appended
+ * after it, or rebuilt scanning all the segments when there's no valid snapshot. The snapshot is deleted once
+ * loaded, so a crash falls back to the scan.
+ *
+ * The records superseded by newer stores or cleans are reclaimed by {@link #compact()}, that copies the live
+ * records of the mostly dead segments at the tail of the log and deletes those segments.
+ */
+public class MappedMessagesStore implements IMessagesStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedMessagesStore.class);
+
+    static final String LOG_PREFIX = "retained";
+    static final String INDEX_FILE_NAME = "retained.index";
+    private static final int INDEX_MAGIC = 0x4d524958;
+    private static final int INDEX_VERSION = 1;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // segments with less live bytes than this ratio are compacted
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+    // records moved by a compaction for each hold of appendLock
+    private static final int MOVE_BATCH = 1024;
+
+    /**
+     * Where the last record of a topic is, updated in place by the stores and the compactions.
+     */
+    private static final class Slot {
+
+        volatile long position;
+        int bytes;
+
+        Slot(long position, int bytes) {
+            this.position = position;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A record found live by a compaction, with the slot of its topic unless it's a delete.
+     */
+    private static final class LiveRecord {
+
+        final Topic topic;
+        final Slot slot;
+        final long position;
+        final ByteBuffer body;
+
+        LiveRecord(Topic topic, Slot slot, long position, ByteBuffer body) {
+            this.topic = topic;
+            this.slot = slot;
+            this.position = position;
+            this.body = body;
+        }
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private volatile TopicTree<Slot> index = new TopicTree<>();
+    private MappedSegmentLog log;
+    // serializes the appends with the updates of the index and the live bytes
+    private final Object appendLock = new Object();
+    // read locked to read a record, write locked to delete a segment
+    private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+    // live bytes per segment id, guarded by appendLock
+    private long[] liveBytes = new long[16];
+    // set holding the segments write lock, the compaction stops
+    private volatile boolean closed;
+
+    MappedMessagesStore(File directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    @Override
+    public void initStore() {
+        final long start = System.currentTimeMillis();
+        try {
+            log = new MappedSegmentLog(directory, LOG_PREFIX, segmentBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't open the retained messages log in " + directory, e);
+        }
+        synchronized (appendLock) {
+            final File indexFile = new File(directory, INDEX_FILE_NAME);
+            long from = MappedSegmentLog.position(log.segments().get(0), 0);
+            boolean fromSnapshot = false;
+            if (indexFile.exists()) {
+                final long tail = loadSnapshot(indexFile);
+                if (tail >= 0) {
+                    from = tail;
+                    fromSnapshot = true;
+                }
+                if (!indexFile.delete()) {
+                    LOG.warn("Can't delete the retained messages index snapshot {}", indexFile);
+                }
+            }
+            final int[] replayed = new int[1];
+            log.scan(from, (position, body) -> {
+                apply(position, body);
+                replayed[0]++;
+            });
+            LOG.info("Loaded {} retained messages in {} ms, from snapshot: {}, records replayed: {}", index.size(),
+                System.currentTimeMillis() - start, fromSnapshot, replayed[0]);
+        }
+    }
+
+    /**
+     * @return the log tail at the time of the snapshot, or -1 if it's not valid.
+     */
+    private long loadSnapshot(File indexFile) {
+        final TopicTree<Slot> loaded = new TopicTree<>();
+        final long[][] live = {new long[liveBytes.length]};
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile), 1 << 20))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                LOG.warn("Unknown format of the retained messages index snapshot {}, ignored", indexFile);
+                return -1;
+            }
+            final long tail = in.readLong();
+            if (tail > log.tail()) {
+                LOG.warn("Retained messages index snapshot ahead of the log, ignored");
+                return -1;
+            }
+            loaded.readFrom(in, input -> {
+                final Slot slot = new Slot(input.readLong(), input.readInt());
+                live[0] = addLiveBytes(live[0], MappedSegmentLog.segment(slot.position), slot.bytes);
+                return slot;
+            });
+            if (in.readInt() != INDEX_MAGIC) {
+                LOG.warn("Truncated retained messages index snapshot {}, ignored", indexFile);
+                return -1;
+            }
+            index = loaded;
+            liveBytes = live[0];
+            return tail;
+        } catch (IOException e) {
+            LOG.warn("Can't read the retained messages index snapshot {}, ignored", indexFile, e);
+            return -1;
+        }
+    }
+
+    private static long[] addLiveBytes(long[] live, int segment, long bytes) {
+        final long[] grown = segment < live.length
+            ? live : Arrays.copyOf(live, Math.max(segment + 1, live.length * 2));
+        grown[segment] += bytes;
+        return grown;
+    }
+
+    private void live(long position, int bytes) {
+        liveBytes = addLiveBytes(liveBytes, MappedSegmentLog.segment(position), bytes);
+    }
+
+    private void dead(Slot slot) {
+        liveBytes = addLiveBytes(liveBytes, MappedSegmentLog.segment(slot.position), -slot.bytes);
+    }
+
+    /**
+     * Applies a record found scanning the log to the index.
+     */
+    private void apply(long position, ByteBuffer body) {
+        final byte type = body.get();
+        final Topic topic = new Topic(readString(body));
+        if (type == PUT) {
+            upsert(topic, position, MappedSegmentLog.HEADER_BYTES + body.limit());
+        } else {
+            final Slot slot = index.remove(topic);
+            if (slot != null) {
+                dead(slot);
+                slot.position = -1;
+            }
+        }
+    }
+
+    private void upsert(Topic topic, long position, int bytes) {
+        final Slot slot = index.get(topic);
+        if (slot == null) {
+            index.put(topic, new Slot(position, bytes));
+        } else {
+            dead(slot);
+            slot.bytes = bytes;
+            slot.position = position;
+        }
+        live(position, bytes);
+    }
+
+    @Override
+    public void storeRetained(Topic topic, StoredMessage storedMessage) {
+        LOG.debug("Store retained message for topic={}, CId={}", topic, storedMessage.getClientID());
+        if (storedMessage.getClientID() == null) {
+            throw new IllegalArgumentException("Message to be persisted must have a not null client ID");
+        }
+        final ByteBuffer record = encodePut(topic.toString(), storedMessage);
+        final int bytes = MappedSegmentLog.HEADER_BYTES + record.remaining();
+        synchronized (appendLock) {
+            upsert(topic, append(record), bytes);
+        }
+    }
+
+    @Override
+    public void cleanRetained(Topic topic) {
+        synchronized (appendLock) {
+            final Slot slot = index.remove(topic);
+            if (slot == null) {
+                return;
+            }
+            append(encodeDelete(topic.toString()));
+            dead(slot);
+            // the searches iterating the index meanwhile skip it
+            slot.position = -1;
+        }
+    }
+
+    private long append(ByteBuffer record) {
+        try {
+            return log.append(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't append to the retained messages log", e);
+        }
+    }
+
+    private static ByteBuffer encodePut(String topic, StoredMessage message) {
+        final byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        final byte[] clientIDBytes = message.getClientID().getBytes(StandardCharsets.UTF_8);
+        final ByteBuf payload = message.getPayload();
+        try {
+            final ByteBuffer record = ByteBuffer.allocate(1 + 2 + topicBytes.length + 1 + 2 + clientIDBytes.length
+                + 4 + payload.readableBytes());
+            record.put(PUT);
+            record.putShort((short) topicBytes.length).put(topicBytes);
+            record.put((byte) message.getQos().value());
+            record.putShort((short) clientIDBytes.length).put(clientIDBytes);
+            record.putInt(payload.readableBytes());
+            payload.readBytes(record);
+            record.flip();
+            return record;
+        } finally {
+            payload.release();
+        }
+    }
+
+    private static ByteBuffer encodeDelete(String topic) {
+        final byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer record = ByteBuffer.allocate(1 + 2 + topicBytes.length);
+        record.put(DELETE);
+        record.putShort((short) topicBytes.length).put(topicBytes);
+        record.flip();
+        return record;
+    }
+
+    private static String readString(ByteBuffer body) {
+        final byte[] bytes = new byte[body.getShort() & 0xFFFF];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static StoredMessage decodePut(ByteBuffer body) {
+        body.get();
+        final String topic = readString(body);
+        final MqttQoS qos = MqttQoS.valueOf(body.get());
+        final String clientID = readString(body);
+        final byte[] payload = new byte[body.getInt()];
+        body.get(payload);
+        final StoredMessage message = new StoredMessage(payload, qos, topic);
+        message.setClientID(clientID);
+        message.setRetained(true);
+        return message;
+    }
+
+    /**
+     * @return the message of the slot, or null if it was cleaned.
+     */
+    private StoredMessage read(Slot slot) {
+        segmentsLock.readLock().lock();
+        try {
+            final long position = slot.position;
+            return position < 0 ? null : decodePut(log.read(position));
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<StoredMessage> searchMatching(IMatchingCondition condition) {
+        LOG.debug("searchMatching scanning all retained messages, presents are {}", index.size());
+        final List<StoredMessage> results = new ArrayList<>();
+        index.forEach(slot -> {
+            final StoredMessage message = read(slot);
+            if (message != null && condition.match(new Topic(message.getTopic()))) {
+                results.add(message);
+            }
+        });
+        return results;
+    }
+
+    @Override
+    public Collection<StoredMessage> searchMatching(Topic topicFilter) {
+        final List<StoredMessage> results = new ArrayList<>();
+        final Iterator<StoredMessage> messages = iterateMatching(topicFilter);
+        while (messages.hasNext()) {
+            results.add(messages.next());
+        }
+        return results;
+    }
+
+    @Override
+    public Iterator<StoredMessage> iterateMatching(Topic topicFilter) {
+        final Iterator<Slot> slots = index.iterator(topicFilter);
+        return new Iterator<StoredMessage>() {
+
+            private StoredMessage next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && slots.hasNext()) {
+                    next = read(slots.next());
+                }
+                return next != null;
+            }
+
+            @Override
+            public StoredMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final StoredMessage message = next;
+                next = null;
+                return message;
+            }
+        };
+    }
+
+    /**
+     * Moves the live records of the sealed segments mostly made of superseded records at the tail of the log, then
+     * deletes those segments. A segment is scanned without blocking the stores, which wait only while the records
+     * still live are appended, a batch at a time.
+     */
+    void compact() {
+        final List<Integer> compacted = new ArrayList<>();
+        synchronized (appendLock) {
+            final int active = log.activeSegment();
+            for (int segment : log.segments()) {
+                if (segment == active) {
+                    break;
+                }
+                final long live = segment < liveBytes.length ? liveBytes[segment] : 0;
+                if (live < segmentBytes * COMPACTION_LIVE_RATIO) {
+                    compacted.add(segment);
+                }
+            }
+        }
+        for (int segment : compacted) {
+            compactSegment(segment);
+        }
+    }
+
+    private void compactSegment(int segment) {
+        int moved = 0;
+        segmentsLock.readLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            final boolean oldest = segment == log.segments().get(0);
+            final List<LiveRecord> records = new ArrayList<>();
+            // a sealed segment doesn't change, the records found live may be superseded by the time they're moved
+            log.scanSegment(segment, 0, (position, body) -> {
+                final byte type = body.get(0);
+                final ByteBuffer cursor = body.duplicate();
+                cursor.get();
+                final Topic topic = new Topic(readString(cursor));
+                final Slot slot = index.get(topic);
+                if (type == PUT && slot != null && slot.position == position) {
+                    records.add(new LiveRecord(topic, slot, position, body));
+                } else if (type == DELETE && slot == null && !oldest) {
+                    // still needed to hide the older records of the topic
+                    records.add(new LiveRecord(topic, null, position, body));
+                }
+            });
+            for (int from = 0; from < records.size(); from += MOVE_BATCH) {
+                synchronized (appendLock) {
+                    for (LiveRecord record : records.subList(from, Math.min(records.size(), from + MOVE_BATCH))) {
+                        if (move(record)) {
+                            moved++;
+                        }
+                    }
+                }
+            }
+        } finally {
+            segmentsLock.readLock().unlock();
+        }
+        segmentsLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            synchronized (appendLock) {
+                log.delete(segment);
+                liveBytes[segment] = 0;
+            }
+        } catch (IOException e) {
+            LOG.error("Can't delete the compacted retained messages segment {}", segment, e);
+            return;
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+        LOG.info("Compacted retained messages segment {}, records moved={}", segment, moved);
+    }
+
+    /**
+     * Appends a copy of the record unless it was superseded meanwhile, called holding appendLock: a copy appended
+     * after a newer record of the topic would win over it when the log is scanned.
+     *
+     * @return true if the record was moved.
+     */
+    private boolean move(LiveRecord record) {
+        if (record.slot == null) {
+            if (index.get(record.topic) != null) {
+                return false;
+            }
+            append(record.body.duplicate());
+            return true;
+        }
+        // -1 once cleaned
+        if (record.slot.position != record.position) {
+            return false;
+        }
+        final long newPosition = append(record.body.duplicate());
+        dead(record.slot);
+        record.slot.position = newPosition;
+        live(newPosition, record.slot.bytes);
+        return true;
+    }
+
+    /**
+     * Writes the changes of the log to the disk.
+     */
+    void flush() {
+        log.force();
+    }
+
+    /**
+     * Writes the index snapshot and closes the log.
+     */
+    void close() {
+        // after a compaction in progress, and the searches reading the segments
+        segmentsLock.writeLock().lock();
+        try {
+            closeLog();
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+    }
+
+    private void closeLog() {
+        synchronized (appendLock) {
+            closed = true;
+            log.force();
+            final File indexFile = new File(directory, INDEX_FILE_NAME);
+            final File tmpFile = new File(directory, INDEX_FILE_NAME + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(tmpFile);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 20))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeLong(log.tail());
+                index.writeTo(out, (output, slot) -> {
+                    output.writeLong(slot.position);
+                    output.writeInt(slot.bytes);
+                });
+                out.writeInt(INDEX_MAGIC);
+                out.flush();
+                file.getFD().sync();
+            } catch (IOException e) {
+                LOG.error("Can't write the retained messages index snapshot, the next start will scan the log", e);
+                tmpFile.delete();
+            }
+            try {
+                if (tmpFile.exists()) {
+                    Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                LOG.error("Can't write the retained messages index snapshot, the next start will scan the log", e);
+            }
+            log.close();
+            LOG.info("Closed the retained messages store, {} messages", index.size());
+        }
+    }
+}
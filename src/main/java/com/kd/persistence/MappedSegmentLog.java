@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.persistence;
+
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of records over memory mapped segment files of a fixed size, named
+ * <code>{prefix}-{id}.log</code> with increasing ids. A record is framed by its length and the CRC32 of its body; a
+ * zero length marks the end of the data of a segment, a bad CRC a write torn by a crash, where the recovery stops.
+ *
+ * A record is addressed by its position: the segment id in the high half and the offset in the segment in the low
+ * half, so positions grow with the appends.
+ *
+ * Appends are serialized by the log, reads don't lock and can run together with the appends. Deleting a segment
+ * while reading it is up to the caller to prevent.
+ */
+final class MappedSegmentLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedSegmentLog.class);
+
+    static final int HEADER_BYTES = 8;
+    private static final String SUFFIX = ".log";
+
+    interface RecordVisitor {
+
+        /**
+         * @param body the body of the record, positioned at its start and limited at its end.
+         */
+        void visit(long position, ByteBuffer body);
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentBytes;
+    private final ConcurrentNavigableMap<Integer, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+    // guarded by this
+    private int activeSegment;
+    private int activeOffset;
+    private final CRC32 crc = new CRC32();
+    // held to unmap a segment, so a force doesn't touch an unmapped buffer. Doesn't block the appends
+    private final Object mappingLock = new Object();
+    // the segments before it are sealed and already forced, guarded by mappingLock
+    private int forcedSegment;
+
+    MappedSegmentLog(File directory, String prefix, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentBytes = segmentBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create the log directory " + directory);
+        }
+        final File[] files = directory.listFiles(
+            (dir, name) -> name.startsWith(prefix + "-") && name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                final int id = Integer.parseInt(name.substring(prefix.length() + 1, name.length() - SUFFIX.length()));
+                segments.put(id, map(file));
+            }
+        }
+        if (segments.isEmpty()) {
+            activeSegment = 0;
+            segments.put(0, map(segmentFile(0)));
+            activeOffset = 0;
+        } else {
+            activeSegment = segments.lastKey();
+            activeOffset = validBytes(segments.get(activeSegment));
+        }
+        LOG.info("Opened log {} in {}, segments={}, tail={}", prefix, directory, segments.size(), tail());
+    }
+
+    static long position(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    static int segment(long position) {
+        return (int) (position >>> 32);
+    }
+
+    static int offset(long position) {
+        return (int) position;
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, String.format("%s-%010d%s", prefix, id, SUFFIX));
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            if (raf.length() < segmentBytes) {
+                raf.setLength(segmentBytes);
+            }
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    /**
+     * @return the bytes of the segment up to the first missing or torn record.
+     */
+    private static int validBytes(ByteBuffer segment) {
+        final ByteBuffer buffer = segment.duplicate();
+        final CRC32 checksum = new CRC32();
+        int offset = 0;
+        while (offset + HEADER_BYTES <= buffer.capacity()) {
+            final int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > buffer.capacity()) {
+                break;
+            }
+            buffer.limit(offset + HEADER_BYTES + length).position(offset + HEADER_BYTES);
+            checksum.reset();
+            checksum.update(buffer);
+            buffer.clear();
+            if ((int) checksum.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    /**
+     * Appends the remaining bytes of the body, rolling a new segment when the active one is full.
+     *
+     * @return the position of the record.
+     */
+    synchronized long append(ByteBuffer body) throws IOException {
+        final int length = body.remaining();
+        if (HEADER_BYTES + length > segmentBytes) {
+            throw new IllegalArgumentException("Record of " + length + " bytes bigger than a segment");
+        }
+        if (activeOffset + HEADER_BYTES + length > segmentBytes) {
+            roll();
+        }
+        final ByteBuffer segment = segments.get(activeSegment).duplicate();
+        crc.reset();
+        crc.update(body.duplicate());
+        segment.position(activeOffset + HEADER_BYTES);
+        segment.put(body);
+        // the length last, so a reader never sees a record whose body isn't written
+        segment.putInt(activeOffset + 4, (int) crc.getValue());
+        segment.putInt(activeOffset, length);
+        final long position = position(activeSegment, activeOffset);
+        activeOffset += HEADER_BYTES + length;
+        return position;
+    }
+
+    private void roll() throws IOException {
+        if (activeOffset + HEADER_BYTES <= segmentBytes) {
+            segments.get(activeSegment).putInt(activeOffset, 0);
+        }
+        activeSegment++;
+        segments.put(activeSegment, map(segmentFile(activeSegment)));
+        activeOffset = 0;
+        LOG.debug("Rolled log {} to segment {}", prefix, activeSegment);
+    }
+
+    /**
+     * @return the body of the record at the position, positioned at its start and limited at its end.
+     */
+    ByteBuffer read(long position) {
+        final MappedByteBuffer segment = segments.get(segment(position));
+        if (segment == null) {
+            throw new IllegalArgumentException("Segment of position " + Long.toHexString(position) + " deleted");
+        }
+        final ByteBuffer buffer = segment.duplicate();
+        final int offset = offset(position);
+        final int length = buffer.getInt(offset);
+        buffer.limit(offset + HEADER_BYTES + length).position(offset + HEADER_BYTES);
+        return buffer;
+    }
+
+    /**
+     * @return the length of the record at the position, header included.
+     */
+    int recordBytes(long position) {
+        return HEADER_BYTES + segments.get(segment(position)).getInt(offset(position));
+    }
+
+    /**
+     * Visits in order the records from the position to the tail, stopping at the end of each segment's data.
+     */
+    void scan(long from, RecordVisitor visitor) {
+        for (int id : segments.tailMap(segment(from), true).keySet()) {
+            scanSegment(id, id == segment(from) ? offset(from) : 0, visitor);
+        }
+    }
+
+    /**
+     * Visits in order the records of a segment from the offset.
+     */
+    void scanSegment(int id, int from, RecordVisitor visitor) {
+        final MappedByteBuffer segment = segments.get(id);
+        if (segment == null) {
+            return;
+        }
+        final CRC32 checksum = new CRC32();
+        final ByteBuffer buffer = segment.duplicate();
+        int offset = from;
+        while (offset + HEADER_BYTES <= buffer.capacity()) {
+            final int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > buffer.capacity()) {
+                return;
+            }
+            buffer.limit(offset + HEADER_BYTES + length).position(offset + HEADER_BYTES);
+            checksum.reset();
+            checksum.update(buffer.duplicate());
+            if ((int) checksum.getValue() != buffer.getInt(offset + 4)) {
+                LOG.warn("Torn record in log {} at segment {} offset {}, skipping the rest of the segment", prefix,
+                    id, offset);
+                return;
+            }
+            visitor.visit(position(id, offset), buffer.slice());
+            buffer.clear();
+            offset += HEADER_BYTES + length;
+        }
+    }
+
+    /**
+     * @return the position the next record will be appended at, unless the active segment is full.
+     */
+    synchronized long tail() {
+        return position(activeSegment, activeOffset);
+    }
+
+    synchronized int activeSegment() {
+        return activeSegment;
+    }
+
+    /**
+     * @return the ids of the segments, oldest first.
+     */
+    List<Integer> segments() {
+        return new ArrayList<>(segments.keySet());
+    }
+
+    int segmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * Unmaps and deletes a segment other than the active one.
+     */
+    synchronized void delete(int id) throws IOException {
+        if (id == activeSegment) {
+            throw new IllegalArgumentException("Can't delete the active segment " + id);
+        }
+        final MappedByteBuffer segment = segments.remove(id);
+        if (segment == null) {
+            return;
+        }
+        synchronized (mappingLock) {
+            PlatformDependent.freeDirectBuffer(segment);
+        }
+        final File file = segmentFile(id);
+        if (!file.delete()) {
+            throw new IOException("Can't delete the log segment " + file);
+        }
+    }
+
+    /**
+     * Writes the changes of the mapped segments to the disk. Only the segments written since the last force are
+     * synced, the sealed ones don't change anymore.
+     */
+    void force() {
+        final int active = activeSegment();
+        synchronized (mappingLock) {
+            for (MappedByteBuffer segment : segments.tailMap(forcedSegment, true).values()) {
+                segment.force();
+            }
+            forcedSegment = active;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        synchronized (mappingLock) {
+            for (MappedByteBuffer segment : segments.values()) {
+                segment.force();
+                PlatformDependent.freeDirectBuffer(segment);
+            }
+            segments.clear();
+        }
+    }
+}
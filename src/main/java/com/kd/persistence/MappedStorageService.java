@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.persistence;
+
+import java.io.File;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.kd.server.config.IConfig;
+import com.kd.spi.IMessagesStore;
+import com.kd.spi.ISessionsStore;
+import com.kd.spi.IStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.kd.BrokerConstants.*;
+
+/**
+ * Store keeping the retained messages in memory mapped files, so they survive a restart. The sessions are kept in
+ * memory. Enabled with <code>storage_class com.kd.persistence.MappedStorageService</code>.
+ */
+public class MappedStorageService implements IStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedStorageService.class);
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long COMPACTION_INTERVAL_SECONDS = 60;
+
+    private final MemorySessionStore m_sessionsStore;
+    private final MappedMessagesStore m_messagesStore;
+    private final ScheduledExecutorService m_scheduler;
+    private ScheduledFuture<?> m_flushTask;
+    private ScheduledFuture<?> m_compactionTask;
+
+    // NB these params must be here "by contract" used in introspection instantiation used in
+    // ProtocolProcessorBootstrapper.instantiateConfiguredStore
+    public MappedStorageService(IConfig props, ScheduledExecutorService scheduler) {
+        final File directory = new File(props.getProperty(RETAINED_STORE_DIR_PROPERTY_NAME,
+            DEFAULT_RETAINED_STORE_DIR));
+        final int segmentBytes = Integer.parseInt(props.getProperty(RETAINED_STORE_SEGMENT_BYTES_PROPERTY_NAME,
+            String.valueOf(DEFAULT_RETAINED_STORE_SEGMENT_BYTES)));
+        m_scheduler = scheduler;
+        m_messagesStore = new MappedMessagesStore(directory, segmentBytes);
+        m_sessionsStore = new MemorySessionStore();
+        m_messagesStore.initStore();
+        m_sessionsStore.initStore();
+    }
+
+    @Override
+    public IMessagesStore messagesStore() {
+        return m_messagesStore;
+    }
+
+    @Override
+    public ISessionsStore sessionsStore() {
+        return m_sessionsStore;
+    }
+
+    @Override
+    public void initStore() {
+        if (m_scheduler == null) {
+            return;
+        }
+        m_flushTask = schedule("flush", m_messagesStore::flush, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        m_compactionTask = schedule("compaction", m_messagesStore::compact, COMPACTION_INTERVAL_SECONDS,
+            TimeUnit.SECONDS);
+    }
+
+    private ScheduledFuture<?> schedule(String name, Runnable task, long interval, TimeUnit unit) {
+        return m_scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (Throwable th) {
+                // a task which throws isn't run again, the next run may succeed
+                LOG.error("The {} of the retained messages store failed", name, th);
+            }
+        }, interval, interval, unit);
+    }
+
+    @Override
+    public void close() {
+        if (m_flushTask != null) {
+            m_flushTask.cancel(false);
+            m_compactionTask.cancel(false);
+        }
+        m_messagesStore.close();
+    }
+}
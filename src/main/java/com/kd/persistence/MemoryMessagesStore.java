@@ -19,19 +19,41 @@ package com.kd.persistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.kd.server.config.IConfig;
 import com.kd.spi.IMatchingCondition;
 import com.kd.spi.IMessagesStore;
 import com.kd.spi.impl.subscriptions.Topic;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static com.kd.BrokerConstants.*;
 
 public class MemoryMessagesStore implements IMessagesStore {
 
     private static final Logger LOG = LoggerFactory.getLogger(MemoryMessagesStore.class);
 
-    private Map<Topic, StoredMessage> m_retainedStore = new HashMap<>();
+    private final RetainedMessagesArena m_retainedStore;
+    // the topics whose retained message changed since they were last saved, null when the changes aren't tracked
+    private volatile Set<String> changedTopics;
 
-    MemoryMessagesStore() {
+    /**
+     * @param props the broker configuration, could be null to use the defaults.
+     */
+    MemoryMessagesStore(IConfig props) {
+        final long maxBytes = props == null ? 0
+            : Long.parseLong(props.getProperty(RETAINED_MAX_BYTES_PROPERTY_NAME, "0"));
+        final String policy = props == null ? DEFAULT_RETAINED_EVICTION_POLICY
+            : props.getProperty(RETAINED_EVICTION_POLICY_PROPERTY_NAME, DEFAULT_RETAINED_EVICTION_POLICY);
+        m_retainedStore = new RetainedMessagesArena(maxBytes,
+            RetainedMessagesArena.EvictionPolicy.valueOf(policy.trim().toUpperCase(Locale.ROOT)));
+        LOG.info("Retained messages stored off heap, cap={} bytes, eviction policy={}",
+            maxBytes > 0 ? maxBytes : "none", policy);
+        registerGauge("retained.messages", m_retainedStore::size);
+        registerGauge("retained.offheap_bytes", m_retainedStore::bytes);
+        registerGauge("retained.offheap_reserved_bytes", m_retainedStore::reservedBytes);
+        registerGauge("retained.evictions", m_retainedStore::evictions);
     }
 
     @Override
@@ -45,6 +67,7 @@ public class MemoryMessagesStore implements IMessagesStore {
             throw new IllegalArgumentException("Message to be persisted must have a not null client ID");
         }
         m_retainedStore.put(topic, storedMessage);
+        changed(topic.toString());
     }
 
     @Override
@@ -52,19 +75,75 @@ public class MemoryMessagesStore implements IMessagesStore {
         LOG.debug("searchMatching scanning all retained messages, presents are {}", m_retainedStore.size());
 
         List<StoredMessage> results = new ArrayList<>();
-
-        for (Map.Entry<Topic, StoredMessage> entry : m_retainedStore.entrySet()) {
-            StoredMessage storedMsg = entry.getValue();
-            if (condition.match(entry.getKey())) {
+        m_retainedStore.forEach(storedMsg -> {
+            if (condition.match(new Topic(storedMsg.getTopic()))) {
                 results.add(storedMsg);
             }
-        }
+        });
+        return results;
+    }
 
+    @Override
+    public Collection<StoredMessage> searchMatching(Topic topicFilter) {
+        List<StoredMessage> results = new ArrayList<>();
+        m_retainedStore.match(topicFilter, results::add);
+        LOG.debug("searchMatching found {} retained messages over {} for filter {}", results.size(),
+            m_retainedStore.size(), topicFilter);
         return results;
     }
 
+    @Override
+    public Iterator<StoredMessage> iterateMatching(Topic topicFilter) {
+        return m_retainedStore.iterator(topicFilter);
+    }
+
     @Override
     public void cleanRetained(Topic topic) {
         m_retainedStore.remove(topic);
+        changed(topic.toString());
+    }
+
+    /**
+     * Starts tracking the changed retained messages, evictions included, for the incremental snapshots.
+     */
+    void trackChanges() {
+        changedTopics = ConcurrentHashMap.newKeySet();
+        m_retainedStore.onEviction(this::changed);
+    }
+
+    /**
+     * @return the topics whose retained message changed since they were removed from this set, marked after the
+     * change is done. Null if the changes aren't tracked.
+     */
+    Set<String> changedTopics() {
+        return changedTopics;
+    }
+
+    private void changed(String topic) {
+        final Set<String> changes = changedTopics;
+        if (changes != null) {
+            changes.add(topic);
+        }
+    }
+
+    /**
+     * @return the retained message of the topic, or null, leaving the eviction order unchanged.
+     */
+    StoredMessage peekRetained(Topic topic) {
+        return m_retainedStore.peek(topic);
+    }
+
+    /**
+     * Visits all the retained messages, leaving the eviction order unchanged.
+     */
+    void forEachRetained(Consumer<StoredMessage> visitor) {
+        m_retainedStore.forEachUntouched(visitor);
+    }
+
+    /**
+     * Releases the off heap payloads of the retained messages.
+     */
+    void close() {
+        m_retainedStore.close();
     }
 }
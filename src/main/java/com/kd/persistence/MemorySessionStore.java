@@ -20,6 +20,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.kd.server.Constants;
+import com.kd.spi.InflightTable;
 import com.kd.spi.ISessionsStore;
 import com.kd.spi.ISubscriptionsStore;
 import com.kd.spi.IMessagesStore.StoredMessage;
@@ -38,24 +39,129 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
         final String clientID;
         final Map<Topic, Subscription> subscriptions = new ConcurrentHashMap<>();
         boolean cleanSession;
-        final BlockingQueue<StoredMessage> queue = new ArrayBlockingQueue<>(Constants.MAX_MESSAGE_QUEUE);
-        final Map<Integer, StoredMessage> secondPhaseStore = new ConcurrentHashMap<>();
-        final Map<Integer, StoredMessage> outboundFlightMessages =
-                Collections.synchronizedMap(new HashMap<Integer, StoredMessage>());
-        final Map<Integer, StoredMessage> inboundFlightMessages = new ConcurrentHashMap<>();
+        final ChunkedQueue<StoredMessage> queue;
+        // created with the first packet id taken, most of the sessions never have one inflight
+        private volatile InflightTable inflight;
 
-        Session(String clientID, boolean cleanSession) {
+        Session(String clientID, boolean cleanSession, ChunkedQueue<StoredMessage> queue) {
             this.clientID = clientID;
             this.cleanSession = cleanSession;
+            this.queue = queue;
+        }
+
+        /**
+         * @return the messages sent and not yet completely acknowledged, by packet id, null until the first packet
+         * id is taken.
+         */
+        InflightTable inflight() {
+            return inflight;
+        }
+
+        InflightTable inflightForUpdate() {
+            InflightTable table = inflight;
+            if (table == null) {
+                synchronized (this) {
+                    table = inflight;
+                    if (table == null) {
+                        table = new InflightTable();
+                        inflight = table;
+                    }
+                }
+            }
+            return table;
         }
     }
 
-    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
-    private ConcurrentNavigableMap<LocalDateTime, Set<String>> sessionsClosingTimes = new ConcurrentSkipListMap<>();
+    /**
+     * Offline queue marking its session as changed.
+     */
+    private final class TrackedQueue extends ChunkedQueue<StoredMessage> {
+
+        private final String clientID;
+
+        TrackedQueue(String clientID) {
+            super(Constants.MAX_MESSAGE_QUEUE);
+            this.clientID = clientID;
+        }
+
+        @Override
+        public boolean offer(StoredMessage message) {
+            final boolean added = super.offer(message);
+            changed(clientID);
+            return added;
+        }
+
+        @Override
+        public StoredMessage poll() {
+            final StoredMessage message = super.poll();
+            changed(clientID);
+            return message;
+        }
+
+        @Override
+        public boolean remove(Object message) {
+            final boolean removed = super.remove(message);
+            changed(clientID);
+            return removed;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            changed(clientID);
+        }
+    }
+
+    final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    final ConcurrentNavigableMap<LocalDateTime, Set<String>> sessionsClosingTimes = new ConcurrentSkipListMap<>();
+    // the clients whose session changed since they were last saved, null when the changes aren't tracked
+    private volatile Set<String> changedSessions;
+    // guarded by this, the closing times tracked (true) and untracked (false) since they were last saved
+    private Map<Map.Entry<LocalDateTime, String>, Boolean> closingTimeChanges;
 
     MemorySessionStore() {
     }
 
+    /**
+     * @return the queue of the offline messages of a new session.
+     */
+    ChunkedQueue<StoredMessage> newQueue(String clientID) {
+        return new TrackedQueue(clientID);
+    }
+
+    /**
+     * Starts tracking the changed sessions, for the incremental snapshots.
+     */
+    synchronized void trackChanges() {
+        changedSessions = ConcurrentHashMap.newKeySet();
+        closingTimeChanges = new LinkedHashMap<>();
+    }
+
+    /**
+     * @return the clients whose session changed since they were removed from this set, marked after the change is
+     * done. Null if the changes aren't tracked.
+     */
+    Set<String> changedSessions() {
+        return changedSessions;
+    }
+
+    /**
+     * @return the closing times tracked (true) and untracked (false) since the last call, a closing time tracked and
+     * then untracked is left out. Call it synchronized on the store.
+     */
+    Map<Map.Entry<LocalDateTime, String>, Boolean> drainClosingTimeChanges() {
+        final Map<Map.Entry<LocalDateTime, String>, Boolean> drained = closingTimeChanges;
+        closingTimeChanges = new LinkedHashMap<>();
+        return drained;
+    }
+
+    private void changed(String clientID) {
+        final Set<String> changes = changedSessions;
+        if (changes != null) {
+            changes.add(clientID);
+        }
+    }
+
     private Session getSession(String clientID) {
         Session session = sessions.get(clientID);
         if (session == null) {
@@ -69,6 +175,7 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
     public void removeSubscription(Topic topic, String clientID) {
         LOG.debug("removeSubscription topic filter: {} for clientID: {}", topic, clientID);
         getSession(clientID).subscriptions.remove(topic);
+        changed(clientID);
     }
 
     @Override
@@ -90,6 +197,7 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
         }
 
         session.subscriptions.put(newSubscription.getTopicFilter(), newSubscription);
+        changed(clientID);
     }
 
     @Override
@@ -100,6 +208,7 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
         }
 
         sessions.get(clientID).subscriptions.clear();
+        changed(clientID);
     }
 
     @Override
@@ -109,19 +218,22 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
 
     @Override
     public void createNewDurableSession(String clientID) {
-        Session innerSession = new Session(clientID, false);
+        Session innerSession = new Session(clientID, false, newQueue(clientID));
         sessions.put(clientID, innerSession);
+        changed(clientID);
     }
 
     @Override
     public void removeDurableSession(String clientId) {
         this.sessions.remove(clientId);
         this.wipeSubscriptions(clientId);
+        changed(clientId);
     }
 
     @Override
     public void updateCleanStatus(String clientId, boolean newCleanStatus) {
         sessions.get(clientId).cleanSession = newCleanStatus;
+        changed(clientId);
     }
 
     @Override
@@ -173,7 +285,11 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
 
     @Override
     public StoredMessage inFlightAck(String clientID, int messageID) {
-        return getSession(clientID).outboundFlightMessages.remove(messageID);
+        final InflightTable inflight = getSession(clientID).inflight();
+        // the QoS 2 messages waiting for the PUBCOMP stay
+        final StoredMessage acked = inflight == null ? null : inflight.remove(messageID, InflightTable.WAITING_ACK);
+        changed(clientID);
+        return acked;
     }
 
     @Override
@@ -184,7 +300,8 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
             return;
         }
 
-        session.outboundFlightMessages.put(messageID, msg);
+        session.inflightForUpdate().put(messageID, InflightTable.WAITING_ACK, msg);
+        changed(clientID);
     }
 
     /**
@@ -197,15 +314,15 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
             return -1;
         }
 
-        Map<Integer, StoredMessage> m = sessions.get(clientID).outboundFlightMessages;
-        int maxId = m.keySet().isEmpty() ? 0 : Collections.max(m.keySet());
-        int nextPacketId = (maxId + 1) % 0xFFFF;
-        m.put(nextPacketId, null);
+        final int nextPacketId = sessions.get(clientID).inflightForUpdate().reserve();
+        if (nextPacketId < 0) {
+            LOG.error("All the packet ids of client <{}> are in flight", clientID);
+        }
         return nextPacketId;
     }
 
     @Override
-    public BlockingQueue<StoredMessage> queue(String clientID) {
+    public Queue<StoredMessage> queue(String clientID) {
         if (!sessions.containsKey(clientID)) {
             LOG.error("Can't find the session for client <{}>", clientID);
             return null;
@@ -218,8 +335,13 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
     public void dropQueue(String clientID) {
         final Session session = sessions.get(clientID);
         session.queue.clear();
-        session.outboundFlightMessages.clear();
-        session.inboundFlightMessages.clear();
+        final InflightTable inflight = session.inflight();
+        if (inflight != null) {
+            // the QoS 2 messages waiting for the PUBCOMP stay until completed
+            inflight.removeAll(InflightTable.RESERVED);
+            inflight.removeAll(InflightTable.WAITING_ACK);
+        }
+        changed(clientID);
     }
 
     @Override
@@ -231,14 +353,18 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
             return;
         }
 
-        session.secondPhaseStore.put(messageID, msg);
-        session.outboundFlightMessages.put(messageID, msg);
+        session.inflightForUpdate().put(messageID, InflightTable.WAITING_COMPLETE, msg);
+        changed(clientID);
     }
 
     @Override
     public StoredMessage completeReleasedPublish(String clientID, int messageID) {
         LOG.info("Acknowledged message in second phase, clientID <{}> messageID {}", clientID, messageID);
-        return getSession(clientID).secondPhaseStore.remove(messageID);
+        final InflightTable inflight = getSession(clientID).inflight();
+        final StoredMessage released = inflight == null ? null
+            : inflight.remove(messageID, InflightTable.WAITING_COMPLETE);
+        changed(clientID);
+        return released;
     }
 
     @Override
@@ -249,9 +375,17 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
             return 0;
         }
 
-        return session.inboundFlightMessages.size() +
-//            countPubReleaseWaitingPubComplete(clientID) +
-            session.outboundFlightMessages.size();
+        final InflightTable inflight = session.inflight();
+        return inflight == null ? 0 : inflight.size();
+    }
+
+    @Override
+    public void forEachInflight(String clientID, InflightTable.Visitor visitor) {
+        final Session session = sessions.get(clientID);
+        final InflightTable inflight = session == null ? null : session.inflight();
+        if (inflight != null) {
+            inflight.forEach(visitor);
+        }
     }
 
     @Override
@@ -261,7 +395,8 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
             return 0;
         }
 
-        return sessions.get(clientID).secondPhaseStore.size();
+        final InflightTable inflight = sessions.get(clientID).inflight();
+        return inflight == null ? 0 : inflight.count(InflightTable.WAITING_COMPLETE);
     }
 
     @Override
@@ -275,7 +410,11 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
         }
 
         LOG.info("Removing stored messages with QoS 2. ClientId={}", clientID);
-        session.secondPhaseStore.clear();
+        final InflightTable inflight = session.inflight();
+        if (inflight != null) {
+            inflight.removeAll(InflightTable.WAITING_COMPLETE);
+        }
+        changed(clientID);
 
         // TODO this missing last step breaks the junit test
         //sessions.remove(clientID);
@@ -284,20 +423,57 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
     @Override
     public synchronized void trackSessionClose(LocalDateTime when, String clientID) {
         this.sessionsClosingTimes.putIfAbsent(when, new HashSet<>());
+        final boolean[] added = new boolean[1];
         this.sessionsClosingTimes.computeIfPresent(when, (key, oldSet) -> {
-            oldSet.add(clientID);
+            added[0] = oldSet.add(clientID);
             return oldSet;
         });
+        if (added[0]) {
+            closingTimeChanged(when, clientID, true);
+        }
     }
 
     @Override
-    public Set<String> sessionOlderThan(LocalDateTime queryPin) {
+    public synchronized void untrackSessionClose(LocalDateTime when, String clientID) {
+        final boolean[] removed = new boolean[1];
+        this.sessionsClosingTimes.computeIfPresent(when, (key, clientIDs) -> {
+            removed[0] = clientIDs.remove(clientID);
+            return clientIDs.isEmpty() ? null : clientIDs;
+        });
+        if (removed[0]) {
+            closingTimeChanged(when, clientID, false);
+        }
+    }
+
+    // a change undoing the pending one cancels it, so the pending closing times tracked and untracked are disjoint
+    private void closingTimeChanged(LocalDateTime when, String clientID, boolean tracked) {
+        if (closingTimeChanges == null) {
+            return;
+        }
+        final Map.Entry<LocalDateTime, String> closingTime = new AbstractMap.SimpleImmutableEntry<>(when, clientID);
+        if (closingTimeChanges.remove(closingTime) == null) {
+            closingTimeChanges.put(closingTime, tracked);
+        }
+    }
+
+    @Override
+    public synchronized Set<String> sessionOlderThan(LocalDateTime queryPin) {
         final Set<String> results = new HashSet<>();
-        LocalDateTime keyBefore = this.sessionsClosingTimes.lowerKey(queryPin);
-        while (keyBefore != null) {
-            results.addAll(this.sessionsClosingTimes.get(keyBefore));
-            keyBefore = this.sessionsClosingTimes.lowerKey(keyBefore);
+        for (Set<String> clientIDs : this.sessionsClosingTimes.headMap(queryPin, false).values()) {
+            results.addAll(clientIDs);
         }
         return results;
     }
+
+    @Override
+    public synchronized Map<String, LocalDateTime> closedSessions() {
+        final Map<String, LocalDateTime> lastClosingTimes = new HashMap<>();
+        for (Map.Entry<LocalDateTime, Set<String>> entry : this.sessionsClosingTimes.entrySet()) {
+            for (String clientID : entry.getValue()) {
+                // ascending times, the last wins
+                lastClosingTimes.put(clientID, entry.getKey());
+            }
+        }
+        return lastClosingTimes;
+    }
 }
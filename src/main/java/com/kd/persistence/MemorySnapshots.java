@@ -0,0 +1,520 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.persistence;
+
+import com.kd.persistence.MemorySessionStore.Session;
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.impl.subscriptions.Topic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import static com.kd.persistence.SessionsCodec.*;
+
+/**
+ * Snapshots of the memory stores: the sessions with their subscriptions, queues and inflight messages, the closing
+ * times and the retained messages. A generation starts with a full snapshot, followed by deltas holding only the
+ * sessions and retained messages changed since the previous file, tracked by the stores. The files are named
+ * <code>memory-{generation}-{sequence}.snapshot</code>, the full snapshot having sequence 0.
+ *
+ * The stores are iterated while the broker changes them, without locking: a change racing with the snapshot is marked
+ * after it's done, so it's saved again by the next delta.
+ *
+ * A file is a header, chunks of at most {@value #CHUNK_RECORDS} records framed by their length, a zero length and the
+ * magic as trailer. It's written to a temporary file, synced and then renamed, so a crash leaves the previous files.
+ * At start the chunks are decoded in parallel, only the files are applied in order.
+ */
+final class MemorySnapshots {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemorySnapshots.class);
+
+    private static final int MAGIC = 0x4d4d534e;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+    private static final int CHUNK_RECORDS = 4096;
+    private static final byte SESSIONS = 1;
+    private static final byte RETAINED = 2;
+    private static final byte CLOSING_TIMES = 3;
+    private static final byte UNTRACKED_CLOSING_TIMES = 4;
+    private static final String PREFIX = "memory-";
+    private static final String SUFFIX = ".snapshot";
+
+    /**
+     * Groups the records in chunks, each one decoded by a single task at load.
+     */
+    private static final class ChunkWriter {
+
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(1 << 16);
+        final DataOutputStream records = new DataOutputStream(chunk);
+        private byte type;
+        private int count;
+
+        ChunkWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void start(byte type) throws IOException {
+            end();
+            this.type = type;
+        }
+
+        /**
+         * Marks the end of a record written to {@link #records}.
+         */
+        void next() throws IOException {
+            if (++count == CHUNK_RECORDS) {
+                end();
+            }
+        }
+
+        void end() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            out.writeInt(1 + 4 + chunk.size());
+            out.writeByte(type);
+            out.writeInt(count);
+            chunk.writeTo(out);
+            chunk.reset();
+            count = 0;
+        }
+    }
+
+    private final File directory;
+    private final MemorySessionStore sessionsStore;
+    private final MemoryMessagesStore messagesStore;
+    private final int fullEvery;
+    // guarded by this, the generation of the last full snapshot, 0 if none, and the deltas written after it
+    private long generation;
+    private int deltas;
+
+    /**
+     * @param fullEvery the deltas written before the next full snapshot.
+     */
+    MemorySnapshots(File directory, MemorySessionStore sessionsStore, MemoryMessagesStore messagesStore,
+                    int fullEvery) {
+        this.directory = directory;
+        this.sessionsStore = sessionsStore;
+        this.messagesStore = messagesStore;
+        this.fullEvery = fullEvery;
+    }
+
+    private File file(long generation, int sequence) {
+        return new File(directory, String.format("%s%010d-%06d%s", PREFIX, generation, sequence, SUFFIX));
+    }
+
+    /**
+     * @return the sequences of the snapshot files, by generation.
+     */
+    private NavigableMap<Long, TreeSet<Integer>> listFiles() {
+        final NavigableMap<Long, TreeSet<Integer>> files = new TreeMap<>();
+        final File[] found = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (found == null) {
+            return files;
+        }
+        for (File file : found) {
+            final String[] parts = file.getName()
+                .substring(PREFIX.length(), file.getName().length() - SUFFIX.length()).split("-");
+            try {
+                files.computeIfAbsent(Long.parseLong(parts[0]), generation -> new TreeSet<>())
+                    .add(Integer.parseInt(parts[1]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                LOG.warn("Ignoring the unknown file {} in the snapshots directory", file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Loads the last full snapshot and its deltas, then starts tracking the changes of the stores. To be called before
+     * the stores are used.
+     */
+    synchronized void load() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create the snapshots directory " + directory);
+        }
+        final long start = System.currentTimeMillis();
+        final NavigableMap<Long, TreeSet<Integer>> files = listFiles();
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService decoders = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "moquette-snapshot-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (long candidate : files.descendingKeySet()) {
+                if (!files.get(candidate).contains(0) || !isComplete(file(candidate, 0), candidate, 0)) {
+                    continue;
+                }
+                try {
+                    apply(file(candidate, 0), decoders, threads);
+                } catch (IOException e) {
+                    LOG.warn("Can't load the snapshot {}, trying the previous one", file(candidate, 0), e);
+                    clearStores();
+                    continue;
+                }
+                generation = candidate;
+                break;
+            }
+            if (generation > 0) {
+                for (int sequence = 1; files.get(generation).contains(sequence); sequence++) {
+                    if (!isComplete(file(generation, sequence), generation, sequence)) {
+                        LOG.warn("Incomplete snapshot delta {}, the changes after it are lost",
+                            file(generation, sequence));
+                        break;
+                    }
+                    try {
+                        apply(file(generation, sequence), decoders, threads);
+                    } catch (IOException e) {
+                        LOG.error("Can't load the snapshot delta {}, the changes after it are lost",
+                            file(generation, sequence), e);
+                        break;
+                    }
+                    deltas = sequence;
+                }
+            }
+        } finally {
+            decoders.shutdown();
+        }
+        // the files not loaded would be applied after the next deltas
+        for (Map.Entry<Long, TreeSet<Integer>> entry : files.entrySet()) {
+            for (int sequence : entry.getValue()) {
+                if (entry.getKey() != generation || sequence > deltas) {
+                    Files.deleteIfExists(file(entry.getKey(), sequence).toPath());
+                }
+            }
+        }
+        sessionsStore.trackChanges();
+        messagesStore.trackChanges();
+        LOG.info("Loaded memory snapshots in {} ms, generation={}, deltas={}, sessions={}",
+            System.currentTimeMillis() - start, generation, deltas, sessionsStore.sessions.size());
+    }
+
+    /**
+     * @return true if the file has the expected header and the trailer, so it was completely written.
+     */
+    private static boolean isComplete(File file, long generation, int sequence) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < HEADER_BYTES + 8) {
+                return false;
+            }
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION || raf.readLong() != generation
+                || raf.readInt() != sequence) {
+                return false;
+            }
+            raf.seek(raf.length() - 8);
+            return raf.readInt() == 0 && raf.readInt() == MAGIC;
+        } catch (IOException e) {
+            LOG.warn("Can't read the snapshot {}", file, e);
+            return false;
+        }
+    }
+
+    private void clearStores() {
+        sessionsStore.sessions.clear();
+        sessionsStore.sessionsClosingTimes.clear();
+        final List<String> topics = new ArrayList<>();
+        messagesStore.forEachRetained(message -> topics.add(message.getTopic()));
+        for (String topic : topics) {
+            messagesStore.cleanRetained(new Topic(topic));
+        }
+    }
+
+    /**
+     * Reads the chunks of the file in order, decoding them in parallel. A file has each session and topic at most
+     * once, so the order of the chunks doesn't matter.
+     */
+    private void apply(File file, ExecutorService decoders, int threads) throws IOException {
+        // bounds the chunks read and not yet decoded
+        final Semaphore decoding = new Semaphore(threads * 2);
+        final List<Future<?>> decoded = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20))) {
+            in.skipBytes(HEADER_BYTES);
+            for (int length = in.readInt(); length > 0; length = in.readInt()) {
+                final byte[] chunk = new byte[length];
+                in.readFully(chunk);
+                decoding.acquireUninterruptibly();
+                decoded.add(decoders.submit(() -> {
+                    try {
+                        applyChunk(new DataInputStream(new ByteArrayInputStream(chunk)));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        decoding.release();
+                    }
+                }));
+            }
+        } finally {
+            for (Future<?> chunk : decoded) {
+                try {
+                    chunk.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted loading " + file, e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Corrupted snapshot " + file, e.getCause());
+                }
+            }
+        }
+    }
+
+    private void applyChunk(DataInputStream in) throws IOException {
+        final byte type = in.readByte();
+        final int count = in.readInt();
+        switch (type) {
+            case SESSIONS:
+                for (int i = 0; i < count; i++) {
+                    if (in.readBoolean()) {
+                        final Session session = readSession(in, sessionsStore);
+                        sessionsStore.sessions.put(session.clientID, session);
+                    } else {
+                        sessionsStore.sessions.remove(in.readUTF());
+                    }
+                }
+                break;
+            case RETAINED:
+                for (int i = 0; i < count; i++) {
+                    if (in.readBoolean()) {
+                        final StoredMessage message = readMessage(in);
+                        messagesStore.storeRetained(new Topic(message.getTopic()), message);
+                    } else {
+                        messagesStore.cleanRetained(new Topic(in.readUTF()));
+                    }
+                }
+                break;
+            case CLOSING_TIMES:
+            case UNTRACKED_CLOSING_TIMES:
+                final List<Map.Entry<LocalDateTime, String>> closes = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    closes.add(new AbstractMap.SimpleImmutableEntry<>(LocalDateTime.parse(in.readUTF()),
+                        in.readUTF()));
+                }
+                // a delta doesn't track and untrack the same closing time, so the chunks apply in any order
+                synchronized (sessionsStore) {
+                    for (Map.Entry<LocalDateTime, String> close : closes) {
+                        if (type == CLOSING_TIMES) {
+                            sessionsStore.sessionsClosingTimes.computeIfAbsent(close.getKey(), when -> new HashSet<>())
+                                .add(close.getValue());
+                        } else {
+                            sessionsStore.untrackSessionClose(close.getKey(), close.getValue());
+                        }
+                    }
+                }
+                break;
+            default:
+                throw new IOException("Unknown chunk type " + type);
+        }
+    }
+
+    /**
+     * Writes a delta with the changes since the previous file, or a full snapshot every <code>fullEvery</code>
+     * deltas. The broker isn't paused, only the snapshots are serialized.
+     */
+    synchronized void save() {
+        final boolean full = generation == 0 || deltas >= fullEvery;
+        final long fileGeneration = full ? generation + 1 : generation;
+        final int sequence = full ? 0 : deltas + 1;
+        final Set<String> changedSessions = sessionsStore.changedSessions();
+        final Set<String> changedTopics = messagesStore.changedTopics();
+        final List<Map.Entry<LocalDateTime, String>> closes = new ArrayList<>();
+        final List<Map.Entry<LocalDateTime, String>> untracked = new ArrayList<>();
+        if (full) {
+            // cleared before reading the stores, the changes racing with the snapshot go in the next delta
+            changedSessions.clear();
+            changedTopics.clear();
+            synchronized (sessionsStore) {
+                sessionsStore.drainClosingTimeChanges();
+                for (Map.Entry<LocalDateTime, Set<String>> entry : sessionsStore.sessionsClosingTimes.entrySet()) {
+                    for (String clientID : entry.getValue()) {
+                        closes.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), clientID));
+                    }
+                }
+            }
+        } else {
+            synchronized (sessionsStore) {
+                sessionsStore.drainClosingTimeChanges().forEach((closingTime, tracked) ->
+                    (tracked ? closes : untracked).add(closingTime));
+            }
+            if (changedSessions.isEmpty() && changedTopics.isEmpty() && closes.isEmpty() && untracked.isEmpty()) {
+                return;
+            }
+        }
+        final long start = System.currentTimeMillis();
+        final File target = file(fileGeneration, sequence);
+        final File tmpFile = new File(directory, target.getName() + ".tmp");
+        final int[] written = new int[2];
+        try {
+            try (FileOutputStream file = new FileOutputStream(tmpFile);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 20))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(fileGeneration);
+                out.writeInt(sequence);
+                final ChunkWriter chunks = new ChunkWriter(out);
+                written[0] = full ? writeSessions(chunks) : writeSessions(chunks, changedSessions);
+                written[1] = full ? writeRetained(chunks) : writeRetained(chunks, changedTopics);
+                writeClosingTimes(chunks, CLOSING_TIMES, closes);
+                writeClosingTimes(chunks, UNTRACKED_CLOSING_TIMES, untracked);
+                chunks.end();
+                out.writeInt(0);
+                out.writeInt(MAGIC);
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UncheckedIOException e) {
+            LOG.error("Can't write the snapshot {}", target, e);
+            tmpFile.delete();
+            if (!full) {
+                // the changes drained are lost for the deltas, the next snapshot is a full one
+                deltas = fullEvery;
+            }
+            return;
+        }
+        if (full) {
+            deleteGenerationsBefore(fileGeneration);
+            generation = fileGeneration;
+            deltas = 0;
+        } else {
+            deltas = sequence;
+        }
+        LOG.info("Written {} snapshot {} in {} ms, sessions={}, retained messages={}, bytes={}",
+            full ? "full" : "delta", target.getName(), System.currentTimeMillis() - start, written[0], written[1],
+            target.length());
+    }
+
+    private int writeSessions(ChunkWriter chunks) throws IOException {
+        chunks.start(SESSIONS);
+        int count = 0;
+        for (Session session : sessionsStore.sessions.values()) {
+            chunks.records.writeBoolean(true);
+            writeSession(chunks.records, session);
+            chunks.next();
+            count++;
+        }
+        return count;
+    }
+
+    private int writeSessions(ChunkWriter chunks, Set<String> changed) throws IOException {
+        chunks.start(SESSIONS);
+        int count = 0;
+        for (Iterator<String> clientIDs = changed.iterator(); clientIDs.hasNext(); ) {
+            final String clientID = clientIDs.next();
+            // removed before reading the session, a change after the read is marked again
+            clientIDs.remove();
+            final Session session = sessionsStore.sessions.get(clientID);
+            chunks.records.writeBoolean(session != null);
+            if (session != null) {
+                writeSession(chunks.records, session);
+            } else {
+                chunks.records.writeUTF(clientID);
+            }
+            chunks.next();
+            count++;
+        }
+        return count;
+    }
+
+    private int writeRetained(ChunkWriter chunks) throws IOException {
+        chunks.start(RETAINED);
+        final int[] count = new int[1];
+        messagesStore.forEachRetained(message -> {
+            try {
+                chunks.records.writeBoolean(true);
+                writeMessage(chunks.records, message);
+                chunks.next();
+                count[0]++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return count[0];
+    }
+
+    private int writeRetained(ChunkWriter chunks, Set<String> changed) throws IOException {
+        chunks.start(RETAINED);
+        int count = 0;
+        for (Iterator<String> topics = changed.iterator(); topics.hasNext(); ) {
+            final String topic = topics.next();
+            topics.remove();
+            final StoredMessage message = messagesStore.peekRetained(new Topic(topic));
+            chunks.records.writeBoolean(message != null);
+            if (message != null) {
+                writeMessage(chunks.records, message);
+            } else {
+                chunks.records.writeUTF(topic);
+            }
+            chunks.next();
+            count++;
+        }
+        return count;
+    }
+
+    private static void writeClosingTimes(ChunkWriter chunks, byte type, List<Map.Entry<LocalDateTime, String>> closes)
+        throws IOException {
+        chunks.start(type);
+        for (Map.Entry<LocalDateTime, String> close : closes) {
+            chunks.records.writeUTF(close.getKey().toString());
+            chunks.records.writeUTF(close.getValue());
+            chunks.next();
+        }
+    }
+
+    private void deleteGenerationsBefore(long kept) {
+        for (Map.Entry<Long, TreeSet<Integer>> entry : listFiles().headMap(kept, false).entrySet()) {
+            for (int sequence : entry.getValue()) {
+                try {
+                    Files.deleteIfExists(file(entry.getKey(), sequence).toPath());
+                } catch (IOException e) {
+                    LOG.warn("Can't delete the old snapshot {}", file(entry.getKey(), sequence), e);
+                }
+            }
+        }
+    }
+}
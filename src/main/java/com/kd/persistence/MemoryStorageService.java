@@ -16,25 +16,59 @@
 
 package com.kd.persistence;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.kd.server.config.IConfig;
 import com.kd.spi.IMessagesStore;
 import com.kd.spi.ISessionsStore;
 import com.kd.spi.IStore;
 
+import static com.kd.BrokerConstants.*;
+
+/**
+ * Store keeping everything in memory. When <code>persistent_store</code> is set, the sessions and the retained
+ * messages are snapshotted in that directory every <code>autosave_interval</code> seconds, a full snapshot every
+ * <code>autosave.full_every</code> deltas, and loaded at start. The changes after the last snapshot are lost.
+ */
 public class MemoryStorageService implements IStore {
 
     private MemorySessionStore m_sessionsStore;
     private MemoryMessagesStore m_messagesStore;
+    private final ScheduledExecutorService m_scheduler;
+    private MemorySnapshots m_snapshots;
+    private long m_autosaveInterval;
+    private ScheduledFuture<?> m_snapshotTask;
 
     // NB these params must be here "by contract" used in introspection instantiation used in
     // ProtocolProcessorBootstrapper.instantiateConfiguredStore
     public MemoryStorageService(IConfig props, ScheduledExecutorService scheduler) {
-        m_messagesStore = new MemoryMessagesStore();
+        m_scheduler = scheduler;
+        m_messagesStore = new MemoryMessagesStore(props);
         m_sessionsStore = new MemorySessionStore();
         m_messagesStore.initStore();
         m_sessionsStore.initStore();
+        final String snapshotsDirectory = props == null ? null : props.getProperty(PERSISTENT_STORE_PROPERTY_NAME);
+        if (snapshotsDirectory == null || snapshotsDirectory.isEmpty()) {
+            return;
+        }
+        m_autosaveInterval = Long.parseLong(props.getProperty(AUTOSAVE_INTERVAL_PROPERTY_NAME,
+            String.valueOf(DEFAULT_AUTOSAVE_INTERVAL)));
+        if (m_autosaveInterval <= 0) {
+            return;
+        }
+        final int fullEvery = Integer.parseInt(props.getProperty(AUTOSAVE_FULL_EVERY_PROPERTY_NAME,
+            String.valueOf(DEFAULT_AUTOSAVE_FULL_EVERY)));
+        m_snapshots = new MemorySnapshots(new File(snapshotsDirectory), m_sessionsStore, m_messagesStore, fullEvery);
+        try {
+            m_snapshots.load();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't load the snapshots from " + snapshotsDirectory, e);
+        }
     }
 
     @Override
@@ -49,9 +83,21 @@ public class MemoryStorageService implements IStore {
 
     @Override
     public void initStore() {
+        if (m_snapshots == null || m_scheduler == null) {
+            return;
+        }
+        m_snapshotTask = m_scheduler.scheduleWithFixedDelay(m_snapshots::save, m_autosaveInterval,
+            m_autosaveInterval, TimeUnit.SECONDS);
     }
 
     @Override
     public void close() {
+        if (m_snapshotTask != null) {
+            m_snapshotTask.cancel(false);
+        }
+        if (m_snapshots != null) {
+            m_snapshots.save();
+        }
+        m_messagesStore.close();
     }
 }
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.persistence;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off heap memory for payloads, carved out of direct slabs of {@link #SLAB_BYTES} bytes, like the memcached slab
+ * allocator: every slab serves a single size class, the classes grow by 25% so a payload wastes at most a fifth of its
+ * slot, and freed slots go to a free list of their slab to be reused. A slab is released as soon as its last slot is
+ * freed, so the reserved bytes shrink back with the payloads. Payloads bigger than a slab get a dedicated slab.
+ *
+ * A payload is addressed by a long: the slab index in the high half and the offset in the low half. The caller owns
+ * the addresses it got and must not read a slot after freeing it.
+ *
+ * Thread safe: allocations and frees lock the size class, reads and writes of distinct slots don't lock.
+ */
+final class PayloadArena {
+
+    static final int SLAB_BYTES = 256 * 1024;
+    private static final int MIN_SLOT_BYTES = 32;
+
+    /**
+     * The slots of a slab of a size class: how many are in use and the offsets of the freed ones.
+     */
+    private static final class SlabSlots {
+
+        final int slab;
+        int live;
+        int[] free = new int[16];
+        int freeCount;
+
+        SlabSlots(int slab) {
+            this.slab = slab;
+        }
+
+        void push(int offset) {
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount++] = offset;
+        }
+    }
+
+    private final class SizeClass {
+
+        final int slotBytes;
+        // guarded by this
+        final Map<Integer, SlabSlots> slabs = new HashMap<>();
+        // the slabs with freed slots, filled lowest index first so that the others get a chance to empty out
+        final TreeMap<Integer, SlabSlots> partial = new TreeMap<>();
+        SlabSlots current;
+        int nextOffset = SLAB_BYTES;
+
+        SizeClass(int slotBytes) {
+            this.slotBytes = slotBytes;
+        }
+
+        synchronized long allocate() {
+            final Map.Entry<Integer, SlabSlots> first = partial.firstEntry();
+            final SlabSlots slots;
+            final int offset;
+            if (first != null) {
+                slots = first.getValue();
+                offset = slots.free[--slots.freeCount];
+                if (slots.freeCount == 0) {
+                    partial.remove(slots.slab);
+                }
+            } else {
+                if (current == null || nextOffset + slotBytes > SLAB_BYTES) {
+                    current = new SlabSlots(newSlab(SLAB_BYTES));
+                    slabs.put(current.slab, current);
+                    nextOffset = 0;
+                }
+                slots = current;
+                offset = nextOffset;
+                nextOffset += slotBytes;
+            }
+            slots.live++;
+            return address(slots.slab, offset);
+        }
+
+        synchronized void free(long address) {
+            final SlabSlots slots = slabs.get(slab(address));
+            if (--slots.live == 0) {
+                // its free slots go with it
+                slabs.remove(slots.slab);
+                partial.remove(slots.slab);
+                if (slots == current) {
+                    current = null;
+                }
+                releaseSlab(slots.slab);
+                return;
+            }
+            slots.push(offset(address));
+            if (slots.freeCount == 1) {
+                partial.put(slots.slab, slots);
+            }
+        }
+    }
+
+    private final SizeClass[] classes;
+    private final int[] classSlotBytes;
+    private final Object slabsLock = new Object();
+    // copy on write, readers index it without locking
+    private volatile ByteBuf[] slabs = new ByteBuf[16];
+    // guarded by slabsLock
+    private int slabsCount;
+    private int[] releasedSlabs = new int[4];
+    private int releasedCount;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    PayloadArena() {
+        int[] sizes = new int[64];
+        int count = 0;
+        for (int size = MIN_SLOT_BYTES; size < SLAB_BYTES; size = Math.max(size + 8, size * 5 / 4 & ~7)) {
+            if (count == sizes.length) {
+                sizes = Arrays.copyOf(sizes, count * 2);
+            }
+            sizes[count++] = size;
+        }
+        classSlotBytes = Arrays.copyOf(sizes, count);
+        classes = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new SizeClass(classSlotBytes[i]);
+        }
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slab(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private int newSlab(int capacity) {
+        final ByteBuf slab = Unpooled.directBuffer(capacity, capacity);
+        synchronized (slabsLock) {
+            final int index;
+            if (releasedCount > 0) {
+                index = releasedSlabs[--releasedCount];
+            } else {
+                if (slabsCount == slabs.length) {
+                    slabs = Arrays.copyOf(slabs, slabsCount * 2);
+                }
+                index = slabsCount++;
+            }
+            final ByteBuf[] copy = slabs.clone();
+            copy[index] = slab;
+            slabs = copy;
+            reservedBytes.addAndGet(capacity);
+            return index;
+        }
+    }
+
+    private void releaseSlab(int index) {
+        synchronized (slabsLock) {
+            final ByteBuf[] copy = slabs.clone();
+            final ByteBuf slab = copy[index];
+            copy[index] = null;
+            slabs = copy;
+            if (releasedCount == releasedSlabs.length) {
+                releasedSlabs = Arrays.copyOf(releasedSlabs, releasedCount * 2);
+            }
+            releasedSlabs[releasedCount++] = index;
+            reservedBytes.addAndGet(-slab.capacity());
+            slab.release();
+        }
+    }
+
+    /**
+     * @return the index of the size class of the payload, or -1 if it needs a dedicated slab.
+     */
+    private int sizeClass(int size) {
+        final int index = Arrays.binarySearch(classSlotBytes, Math.max(size, 1));
+        if (index >= 0) {
+            return index;
+        }
+        final int insertion = -index - 1;
+        return insertion < classSlotBytes.length ? insertion : -1;
+    }
+
+    /**
+     * @return the bytes taken in the arena by a payload of the given size.
+     */
+    int slotBytes(int size) {
+        final int sizeClass = sizeClass(size);
+        return sizeClass < 0 ? size : classSlotBytes[sizeClass];
+    }
+
+    /**
+     * @return the bytes of the slab a payload of the given size may have to reserve.
+     */
+    int slabBytes(int size) {
+        return sizeClass(size) < 0 ? size : SLAB_BYTES;
+    }
+
+    /**
+     * Copies the readable bytes of the buffer in a new slot.
+     *
+     * @return the address of the slot.
+     */
+    long store(ByteBuf payload) {
+        final int size = payload.readableBytes();
+        final int sizeClass = sizeClass(size);
+        final long address = sizeClass < 0 ? address(newSlab(size), 0) : classes[sizeClass].allocate();
+        slabs[slab(address)].setBytes(offset(address), payload, payload.readerIndex(), size);
+        usedBytes.addAndGet(slotBytes(size));
+        return address;
+    }
+
+    void read(long address, byte[] destination) {
+        slabs[slab(address)].getBytes(offset(address), destination);
+    }
+
+    void free(long address, int size) {
+        final int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            releaseSlab(slab(address));
+        } else {
+            classes[sizeClass].free(address);
+        }
+        usedBytes.addAndGet(-slotBytes(size));
+    }
+
+    /**
+     * @return the bytes of the slots in use.
+     */
+    long usedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return the bytes of the slabs allocated from the off heap memory.
+     */
+    long reservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Releases all the slabs, the arena can't be used afterwards.
+     */
+    void close() {
+        synchronized (slabsLock) {
+            for (ByteBuf slab : slabs) {
+                if (slab != null) {
+                    slab.release();
+                }
+            }
+            slabs = new ByteBuf[0];
+            reservedBytes.set(0);
+            usedBytes.set(0);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.persistence;
+
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.MessageGUID;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Retained messages indexed by topic, with the payloads kept in a {@link PayloadArena} out of the heap. On the heap
+ * remain only the topic tree and a small record per message.
+ *
+ * The off heap bytes reserved by the arena are bounded by a cap: when a store exceeds it the messages are evicted,
+ * least recently read first ({@link EvictionPolicy#LRU}) or oldest stored first ({@link EvictionPolicy#OLDEST}),
+ * until enough slabs are emptied and released. A message whose slab doesn't fit in the cap is not stored at all.
+ *
+ * Thread safe, the searches run while other threads store and clean. Every record guards its slot with its own
+ * monitor, so a search never reads a slot freed by a concurrent replace or eviction, it skips the record.
+ */
+class RetainedMessagesArena {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetainedMessagesArena.class);
+
+    // like memcached, a record read again within this interval is not moved in the LRU list
+    private static final long LRU_BUMP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    enum EvictionPolicy {
+        LRU, OLDEST
+    }
+
+    private static final class Record {
+
+        final String topic;
+        final MqttQoS qos;
+        final String clientID;
+        final MessageGUID guid;
+        final long address;
+        final int size;
+        // guarded by this
+        boolean released;
+        // guarded by the eviction list
+        Record previous;
+        Record next;
+        boolean linked;
+        long bumpedAt;
+
+        Record(String topic, MqttQoS qos, String clientID, MessageGUID guid, long address, int size) {
+            this.topic = topic;
+            this.qos = qos;
+            this.clientID = clientID;
+            this.guid = guid;
+            this.address = address;
+            this.size = size;
+        }
+    }
+
+    private final TopicTree<Record> tree = new TopicTree<>();
+    private final PayloadArena arena = new PayloadArena();
+    // eviction order, the head is the next to evict. The sentinel makes the list circular
+    private final Record evictionList = new Record(null, null, null, null, 0, 0);
+    private final AtomicLong evictions = new AtomicLong();
+    private final long maxBytes;
+    private final EvictionPolicy policy;
+    // told the topic of every evicted message
+    private volatile Consumer<String> evictionListener = topic -> { };
+
+    /**
+     * @param maxBytes the cap of the off heap bytes reserved by the arena, 0 or less for no cap.
+     */
+    RetainedMessagesArena(long maxBytes, EvictionPolicy policy) {
+        this.maxBytes = maxBytes <= 0 ? Long.MAX_VALUE : maxBytes;
+        this.policy = policy;
+        evictionList.previous = evictionList;
+        evictionList.next = evictionList;
+    }
+
+    void onEviction(Consumer<String> listener) {
+        this.evictionListener = listener;
+    }
+
+    void put(Topic topic, StoredMessage message) {
+        final ByteBuf heapPayload = message.getPayload();
+        final Record record;
+        try {
+            final int size = heapPayload.readableBytes();
+            if (arena.slabBytes(size) > maxBytes) {
+                LOG.warn("Retained message of {} bytes needs a slab bigger than the cap of {} bytes, not stored. " +
+                    "Topic={}", size, maxBytes, topic);
+                remove(topic);
+                return;
+            }
+            record = new Record(topic.toString(), message.getQos(), message.getClientID(), message.getGuid(),
+                arena.store(heapPayload), size);
+        } finally {
+            heapPayload.release();
+        }
+        final Record previous = tree.put(topic, record);
+        if (previous != null) {
+            release(previous);
+        }
+        // queued for eviction only once reachable from the tree
+        link(record);
+        evict();
+    }
+
+    private void link(Record record) {
+        synchronized (evictionList) {
+            synchronized (record) {
+                if (record.released) {
+                    return;
+                }
+            }
+            linkLast(record, System.nanoTime());
+        }
+    }
+
+    private void linkLast(Record record, long now) {
+        record.previous = evictionList.previous;
+        record.next = evictionList;
+        evictionList.previous.next = record;
+        evictionList.previous = record;
+        record.linked = true;
+        record.bumpedAt = now;
+    }
+
+    private static void unlinkLocked(Record record) {
+        if (!record.linked) {
+            return;
+        }
+        record.previous.next = record.next;
+        record.next.previous = record.previous;
+        record.previous = null;
+        record.next = null;
+        record.linked = false;
+    }
+
+    private void bump(Record record) {
+        final long now = System.nanoTime();
+        synchronized (evictionList) {
+            if (!record.linked || now - record.bumpedAt < LRU_BUMP_INTERVAL_NANOS) {
+                return;
+            }
+            unlinkLocked(record);
+            linkLast(record, now);
+        }
+    }
+
+    private void evict() {
+        while (arena.reservedBytes() > maxBytes) {
+            final Record eldest;
+            synchronized (evictionList) {
+                eldest = evictionList.next;
+                if (eldest == evictionList) {
+                    return;
+                }
+                unlinkLocked(eldest);
+            }
+            tree.remove(new Topic(eldest.topic), eldest);
+            if (free(eldest)) {
+                evictions.incrementAndGet();
+                evictionListener.accept(eldest.topic);
+                LOG.debug("Evicted retained message for topic={}, {} bytes", eldest.topic, eldest.size);
+            }
+        }
+    }
+
+    private void release(Record record) {
+        synchronized (evictionList) {
+            unlinkLocked(record);
+        }
+        free(record);
+    }
+
+    /**
+     * @return true if this call freed the slot, false if it was already freed.
+     */
+    private boolean free(Record record) {
+        synchronized (record) {
+            if (record.released) {
+                return false;
+            }
+            record.released = true;
+            arena.free(record.address, record.size);
+            return true;
+        }
+    }
+
+    private StoredMessage read(Record record) {
+        return read(record, true);
+    }
+
+    /**
+     * @param touch false to leave the eviction order unchanged.
+     */
+    private StoredMessage read(Record record, boolean touch) {
+        final byte[] payload = new byte[record.size];
+        synchronized (record) {
+            if (record.released) {
+                return null;
+            }
+            arena.read(record.address, payload);
+        }
+        if (touch && policy == EvictionPolicy.LRU) {
+            bump(record);
+        }
+        final StoredMessage message = new StoredMessage(payload, record.qos, record.topic);
+        message.setClientID(record.clientID);
+        message.setRetained(true);
+        message.setGuid(record.guid);
+        return message;
+    }
+
+    void remove(Topic topic) {
+        final Record removed = tree.remove(topic);
+        if (removed != null) {
+            release(removed);
+        }
+    }
+
+    void match(Topic filter, Consumer<StoredMessage> visitor) {
+        tree.match(filter, record -> accept(record, visitor));
+    }
+
+    /**
+     * @return the messages matching the filter, read from the arena one at a time while iterating.
+     */
+    Iterator<StoredMessage> iterator(Topic filter) {
+        final Iterator<Record> records = tree.iterator(filter);
+        return new Iterator<StoredMessage>() {
+
+            private StoredMessage next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && records.hasNext()) {
+                    // null when evicted or replaced after the tree returned it
+                    next = read(records.next());
+                }
+                return next != null;
+            }
+
+            @Override
+            public StoredMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final StoredMessage message = next;
+                next = null;
+                return message;
+            }
+        };
+    }
+
+    void forEach(Consumer<StoredMessage> visitor) {
+        tree.forEach(record -> accept(record, visitor));
+    }
+
+    /**
+     * @return the message of the topic, or null. Unlike the searches it doesn't change the eviction order.
+     */
+    StoredMessage peek(Topic topic) {
+        final Record record = tree.get(topic);
+        return record == null ? null : read(record, false);
+    }
+
+    /**
+     * Visits all the messages without changing the eviction order, as a snapshot does.
+     */
+    void forEachUntouched(Consumer<StoredMessage> visitor) {
+        tree.forEach(record -> {
+            final StoredMessage message = read(record, false);
+            if (message != null) {
+                visitor.accept(message);
+            }
+        });
+    }
+
+    private void accept(Record record, Consumer<StoredMessage> visitor) {
+        final StoredMessage message = read(record);
+        if (message != null) {
+            visitor.accept(message);
+        }
+    }
+
+    int size() {
+        return tree.size();
+    }
+
+    /**
+     * @return the arena bytes taken by the payloads.
+     */
+    long bytes() {
+        return arena.usedBytes();
+    }
+
+    /**
+     * @return the off heap bytes allocated by the arena, including the free slots, what the cap is compared to.
+     */
+    long reservedBytes() {
+        return arena.reservedBytes();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Releases the arena, the store can't be used afterwards.
+     */
+    void close() {
+        tree.forEach(record -> {
+            synchronized (record) {
+                record.released = true;
+            }
+        });
+        arena.close();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.persistence;
+
+import com.kd.persistence.MemorySessionStore.Session;
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.InflightTable;
+import com.kd.spi.MessageGUID;
+import com.kd.spi.impl.subscriptions.Subscription;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary encoding of the sessions and messages, shared by the sessions journal and the snapshots.
+ */
+final class SessionsCodec {
+
+    private SessionsCodec() {
+    }
+
+    static void writeMessage(DataOutput out, StoredMessage message) throws IOException {
+        out.writeBoolean(message != null);
+        if (message == null) {
+            return;
+        }
+        out.writeByte(message.getQos().value());
+        out.writeUTF(message.getTopic());
+        out.writeBoolean(message.isRetained());
+        writeNullable(out, message.getClientID());
+        writeNullable(out, message.getGuid() == null ? null : message.getGuid().getGuid());
+        final ByteBuf payload = message.getPayload();
+        try {
+            out.writeInt(payload.readableBytes());
+            out.write(ByteBufUtil.getBytes(payload, payload.readerIndex(), payload.readableBytes(), false));
+        } finally {
+            payload.release();
+        }
+    }
+
+    static StoredMessage readMessage(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        final MqttQoS qos = MqttQoS.valueOf(in.readByte());
+        final String topic = in.readUTF();
+        final boolean retained = in.readBoolean();
+        final String clientID = readNullable(in);
+        final String guid = readNullable(in);
+        final byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        final StoredMessage message = new StoredMessage(payload, qos, topic);
+        message.setRetained(retained);
+        message.setClientID(clientID);
+        if (guid != null) {
+            message.setGuid(new MessageGUID(guid));
+        }
+        return message;
+    }
+
+    private static void writeNullable(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Writes the session with its subscriptions, queued messages and inflight messages, the QoS 2 ones waiting for
+     * the PUBCOMP apart.
+     */
+    static void writeSession(DataOutput out, Session session) throws IOException {
+        out.writeUTF(session.clientID);
+        out.writeBoolean(session.cleanSession);
+        final List<Subscription> subscriptions = new ArrayList<>(session.subscriptions.values());
+        out.writeInt(subscriptions.size());
+        for (Subscription subscription : subscriptions) {
+            out.writeUTF(subscription.getTopicFilter().toString());
+            out.writeByte(subscription.getRequestedQos() == null ? -1 : subscription.getRequestedQos().value());
+        }
+        final Object[] queued = session.queue.toArray();
+        out.writeInt(queued.length);
+        for (Object message : queued) {
+            writeMessage(out, (StoredMessage) message);
+        }
+        final Map<Integer, StoredMessage> inflight = new HashMap<>();
+        final Map<Integer, StoredMessage> secondPhase = new HashMap<>();
+        final InflightTable table = session.inflight();
+        if (table != null) {
+            table.forEach((packetID, state, message) -> {
+                // the packet ids only reserved have no message yet
+                if (state == InflightTable.WAITING_ACK && message != null) {
+                    inflight.put(packetID, message);
+                } else if (state == InflightTable.WAITING_COMPLETE) {
+                    secondPhase.put(packetID, message);
+                }
+            });
+        }
+        writeMessages(out, inflight);
+        writeMessages(out, secondPhase);
+    }
+
+    private static void writeMessages(DataOutput out, Map<Integer, StoredMessage> messages) throws IOException {
+        out.writeInt(messages.size());
+        for (Map.Entry<Integer, StoredMessage> entry : messages.entrySet()) {
+            out.writeInt(entry.getKey());
+            writeMessage(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads a session written by {@link #writeSession(DataOutput, Session)}, with the queue of the store.
+     */
+    static Session readSession(DataInput in, MemorySessionStore store) throws IOException {
+        final String clientID = in.readUTF();
+        final Session session = new Session(clientID, in.readBoolean(), store.newQueue(clientID));
+        for (int count = in.readInt(); count > 0; count--) {
+            final Topic topic = new Topic(in.readUTF());
+            final byte qos = in.readByte();
+            session.subscriptions.put(topic, qos < 0 ? new Subscription(clientID, topic)
+                : new Subscription(clientID, topic, MqttQoS.valueOf(qos)));
+        }
+        for (int count = in.readInt(); count > 0; count--) {
+            session.queue.offer(readMessage(in));
+        }
+        for (int count = in.readInt(); count > 0; count--) {
+            final int messageID = in.readInt();
+            session.inflightForUpdate().put(messageID, InflightTable.WAITING_ACK, readMessage(in));
+        }
+        for (int count = in.readInt(); count > 0; count--) {
+            final int messageID = in.readInt();
+            // replaces the entry written among the inflight ones by the former versions
+            session.inflightForUpdate().put(messageID, InflightTable.WAITING_COMPLETE, readMessage(in));
+        }
+        return session;
+    }
+
+    /**
+     * Writes the closing times of the sessions, the caller prevents their changes while writing.
+     */
+    static void writeClosingTimes(DataOutput out, Map<LocalDateTime, Set<String>> closingTimes) throws IOException {
+        out.writeInt(closingTimes.size());
+        for (Map.Entry<LocalDateTime, Set<String>> entry : closingTimes.entrySet()) {
+            out.writeUTF(entry.getKey().toString());
+            out.writeInt(entry.getValue().size());
+            for (String clientID : entry.getValue()) {
+                out.writeUTF(clientID);
+            }
+        }
+    }
+
+    static void readClosingTimes(DataInput in, Map<LocalDateTime, Set<String>> closingTimes) throws IOException {
+        for (int times = in.readInt(); times > 0; times--) {
+            final LocalDateTime when = LocalDateTime.parse(in.readUTF());
+            final Set<String> clientIDs = new HashSet<>();
+            for (int count = in.readInt(); count > 0; count--) {
+                clientIDs.add(in.readUTF());
+            }
+            closingTimes.merge(when, clientIDs, (existing, added) -> {
+                existing.addAll(added);
+                return existing;
+            });
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.persistence;
+
+import com.kd.spi.impl.subscriptions.Token;
+import com.kd.spi.impl.subscriptions.Topic;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Map from topic names to values, organized as a tree with a level per topic token, so that the values matching a
+ * topic filter are found visiting only the subtrees the filter can match, instead of scanning all the entries.
+ *
+ * Matching follows {@link Topic#match(Topic)}: <code>+</code> matches exactly one level, <code>#</code> matches the
+ * parent level and all the levels below.
+ *
+ * Thread safe. Readers don't lock and see a weakly consistent view, like the iterators of the concurrent collections.
+ * Writers lock one node at a time, top-down: a child is created holding the lock of its parent and an empty node is
+ * detached holding the locks of the parent and of the node, so a value is never put in a detached node.
+ */
+class TopicTree<V> {
+
+    private static final String SINGLE = "+";
+    private static final String MULTI = "#";
+
+    private static final class Node<V> {
+
+        // created with the first child, leaves don't pay for a map
+        volatile ConcurrentMap<String, Node<V>> children;
+        volatile V value;
+        // guarded by this
+        boolean detached;
+
+        Node<V> child(String token) {
+            final ConcurrentMap<String, Node<V>> map = children;
+            return map == null ? null : map.get(token);
+        }
+
+        boolean isEmpty() {
+            final ConcurrentMap<String, Node<V>> map = children;
+            return value == null && (map == null || map.isEmpty());
+        }
+    }
+
+    interface ValueWriter<V> {
+
+        void write(DataOutput out, V value) throws IOException;
+    }
+
+    interface ValueReader<V> {
+
+        V read(DataInput in) throws IOException;
+    }
+
+    private final Node<V> root = new Node<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @return the previous value for the topic, or null.
+     */
+    V put(Topic topic, V value) {
+        final List<Token> tokens = topic.getTokens();
+        while (true) {
+            final Node<V> node = createPath(tokens);
+            if (node == null) {
+                // raced with a removal of the path, retry
+                continue;
+            }
+            synchronized (node) {
+                if (node.detached) {
+                    continue;
+                }
+                final V previous = node.value;
+                node.value = value;
+                if (previous == null) {
+                    size.incrementAndGet();
+                }
+                return previous;
+            }
+        }
+    }
+
+    private Node<V> createPath(List<Token> tokens) {
+        Node<V> node = root;
+        for (Token token : tokens) {
+            final String name = token.toString();
+            Node<V> child = node.child(name);
+            if (child == null) {
+                synchronized (node) {
+                    if (node.detached) {
+                        return null;
+                    }
+                    if (node.children == null) {
+                        node.children = new ConcurrentHashMap<>(4);
+                    }
+                    child = node.children.computeIfAbsent(name, k -> new Node<>());
+                }
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    V get(Topic topic) {
+        final Node<V> node = find(topic.getTokens());
+        if (node == null) {
+            return null;
+        }
+        return node.value;
+    }
+
+    private Node<V> find(List<Token> tokens) {
+        Node<V> node = root;
+        for (Token token : tokens) {
+            node = node.child(token.toString());
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Removes the value of the topic and the nodes left empty.
+     *
+     * @return the removed value, or null.
+     */
+    V remove(Topic topic) {
+        return remove(topic, null);
+    }
+
+    /**
+     * Removes the value of the topic only if it's the expected one (compared by identity), the nodes left empty are
+     * detached.
+     *
+     * @param expected the value to remove, null to remove any.
+     * @return the removed value, or null.
+     */
+    V remove(Topic topic, V expected) {
+        final List<Token> tokens = topic.getTokens();
+        final Node<V> node = find(tokens);
+        if (node == null) {
+            return null;
+        }
+        final V removed;
+        synchronized (node) {
+            removed = node.value;
+            if (removed == null || (expected != null && removed != expected)) {
+                return null;
+            }
+            node.value = null;
+        }
+        size.decrementAndGet();
+        prune(tokens);
+        return removed;
+    }
+
+    /**
+     * Detaches the empty nodes along the path, bottom-up.
+     */
+    private void prune(List<Token> tokens) {
+        for (int depth = tokens.size(); depth > 0; depth--) {
+            final Node<V> parent = find(tokens.subList(0, depth - 1));
+            if (parent == null) {
+                return;
+            }
+            final String name = tokens.get(depth - 1).toString();
+            synchronized (parent) {
+                final Node<V> child = parent.child(name);
+                if (child == null) {
+                    continue;
+                }
+                synchronized (child) {
+                    if (!child.isEmpty()) {
+                        return;
+                    }
+                    child.detached = true;
+                    parent.children.remove(name, child);
+                }
+            }
+        }
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Visits the values whose topic matches the filter. The topics are not kept, the values should carry them if
+     * needed, so the parsed tokens of the stored topics can be collected.
+     */
+    void match(Topic filter, Consumer<V> visitor) {
+        match(root, filter.getTokens(), 0, visitor);
+    }
+
+    private void match(Node<V> node, List<Token> filter, int position, Consumer<V> visitor) {
+        if (position == filter.size()) {
+            visit(node, visitor);
+            return;
+        }
+        final String token = filter.get(position).toString();
+        if (MULTI.equals(token)) {
+            forEach(node, visitor);
+            return;
+        }
+        if (SINGLE.equals(token)) {
+            final ConcurrentMap<String, Node<V>> children = node.children;
+            if (children != null) {
+                for (Node<V> child : children.values()) {
+                    match(child, filter, position + 1, visitor);
+                }
+            }
+        } else {
+            final Node<V> child = node.child(token);
+            if (child != null) {
+                match(child, filter, position + 1, visitor);
+            }
+        }
+    }
+
+    /**
+     * Iterates lazily the values whose topic matches the filter, holding only the path being visited, so a wide
+     * filter can be consumed a bit at a time. Weakly consistent like {@link #match(Topic, Consumer)}.
+     */
+    Iterator<V> iterator(Topic filter) {
+        return new MatchIterator(filter.getTokens());
+    }
+
+    private static final class Frame<V> {
+
+        final Iterator<Node<V>> nodes;
+        // the filter position the nodes are matched against, or SUBTREE when under a #
+        final int position;
+
+        Frame(Iterator<Node<V>> nodes, int position) {
+            this.nodes = nodes;
+            this.position = position;
+        }
+    }
+
+    private final class MatchIterator implements Iterator<V> {
+
+        private static final int SUBTREE = -1;
+
+        private final List<Token> filter;
+        private final Deque<Frame<V>> stack = new ArrayDeque<>();
+        private V next;
+
+        MatchIterator(List<Token> filter) {
+            this.filter = filter;
+            stack.push(new Frame<>(Collections.singleton(root).iterator(), 0));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !stack.isEmpty()) {
+                final Frame<V> frame = stack.peek();
+                if (frame.nodes.hasNext()) {
+                    visit(frame.nodes.next(), frame.position);
+                } else {
+                    stack.pop();
+                }
+            }
+            return next != null;
+        }
+
+        private void visit(Node<V> node, int position) {
+            if (position == SUBTREE || position == filter.size()) {
+                next = node.value;
+                if (position == SUBTREE) {
+                    pushChildren(node, SUBTREE);
+                }
+                return;
+            }
+            final String token = filter.get(position).toString();
+            if (MULTI.equals(token)) {
+                next = node.value;
+                pushChildren(node, SUBTREE);
+            } else if (SINGLE.equals(token)) {
+                pushChildren(node, position + 1);
+            } else {
+                final Node<V> child = node.child(token);
+                if (child != null) {
+                    stack.push(new Frame<>(Collections.singleton(child).iterator(), position + 1));
+                }
+            }
+        }
+
+        private void pushChildren(Node<V> node, int position) {
+            final ConcurrentMap<String, Node<V>> children = node.children;
+            if (children != null && !children.isEmpty()) {
+                stack.push(new Frame<>(children.values().iterator(), position));
+            }
+        }
+
+        @Override
+        public V next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final V value = next;
+            next = null;
+            return value;
+        }
+    }
+
+    /**
+     * Visits all the values.
+     */
+    void forEach(Consumer<V> visitor) {
+        forEach(root, visitor);
+    }
+
+    private void forEach(Node<V> node, Consumer<V> visitor) {
+        visit(node, visitor);
+        final ConcurrentMap<String, Node<V>> children = node.children;
+        if (children != null) {
+            for (Node<V> child : children.values()) {
+                forEach(child, visitor);
+            }
+        }
+    }
+
+    private void visit(Node<V> node, Consumer<V> visitor) {
+        final V value = node.value;
+        if (value != null) {
+            visitor.accept(value);
+        }
+    }
+
+    /**
+     * Writes the tree shape, one token per node and not the full topics, so it can be read back without parsing
+     * and walking the topics again. Consistent only if the tree isn't changed meanwhile.
+     */
+    void writeTo(DataOutput out, ValueWriter<V> writer) throws IOException {
+        write(root, out, writer);
+    }
+
+    private void write(Node<V> node, DataOutput out, ValueWriter<V> writer) throws IOException {
+        final V value = node.value;
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writer.write(out, value);
+        }
+        final ConcurrentMap<String, Node<V>> children = node.children;
+        final List<Map.Entry<String, Node<V>>> entries = children == null
+            ? Collections.<Map.Entry<String, Node<V>>>emptyList() : new ArrayList<>(children.entrySet());
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Node<V>> entry : entries) {
+            out.writeUTF(entry.getKey());
+            write(entry.getValue(), out, writer);
+        }
+    }
+
+    /**
+     * Reads in this tree, that must be empty, a tree written by {@link #writeTo(DataOutput, ValueWriter)}.
+     */
+    void readFrom(DataInput in, ValueReader<V> reader) throws IOException {
+        if (!root.isEmpty()) {
+            throw new IllegalStateException("The tree must be empty");
+        }
+        read(root, in, reader);
+    }
+
+    private void read(Node<V> node, DataInput in, ValueReader<V> reader) throws IOException {
+        if (in.readBoolean()) {
+            node.value = reader.read(in);
+            size.incrementAndGet();
+        }
+        final int childrenCount = in.readInt();
+        if (childrenCount == 0) {
+            return;
+        }
+        final ConcurrentMap<String, Node<V>> children = new ConcurrentHashMap<>(childrenCount);
+        for (int i = 0; i < childrenCount; i++) {
+            final String token = in.readUTF();
+            final Node<V> child = new Node<>();
+            read(child, in, reader);
+            children.put(token, child);
+        }
+        node.children = children;
+    }
+}
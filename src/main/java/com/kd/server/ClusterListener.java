@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.server;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.kd.BrokerConstants;
+import com.kd.cluster.ClusterTransport;
+import com.kd.cluster.ReplicatedMessagesStore;
+import com.kd.cluster.RetainedBatch;
+import com.kd.cluster.SessionRequest;
+import com.kd.cluster.SessionTransfer;
+import com.kd.cluster.SubscribedFilter;
+import com.kd.cluster.SubscriptionDigest;
+import com.kd.cluster.SubscriptionRouter;
+import com.kd.interception.HazelcastMsg;
+import com.kd.spi.DuplicateFilter;
+import com.kd.spi.MessageGUID;
+import com.kd.spi.impl.SessionTakeover;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Publishes the messages forwarded by the other nodes to the subscribers of the node, once: the messages already
+ * received and the retransmissions of the publishes already received are dropped. Keeps the digests of the
+ * peers for the router, hands the session requests and transfers to the takeover and the retained messages to the
+ * replicated store.
+ */
+class ClusterListener implements ClusterTransport.Listener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterListener.class);
+
+    private final Server server;
+    // null when the publishes are broadcast
+    private final SubscriptionRouter router;
+    // null when the sessions stay on their node
+    private final SessionTakeover sessionTakeover;
+    private final ReplicatedMessagesStore retainedStore;
+    // null when the duplicates aren't dropped
+    private final DuplicateFilter duplicates;
+    private final Meter dropped = SharedMetricRegistries.getOrCreate(BrokerConstants.METRICS_REGISTRY_NAME)
+        .meter("cluster.duplicates");
+
+    ClusterListener(Server server, SubscriptionRouter router, SessionTakeover sessionTakeover,
+                    ReplicatedMessagesStore retainedStore, DuplicateFilter duplicates) {
+        this.server = server;
+        this.router = router;
+        this.sessionTakeover = sessionTakeover;
+        this.retainedStore = retainedStore;
+        this.duplicates = duplicates;
+    }
+
+    @Override
+    public void onPublishes(String peer, List<HazelcastMsg> messages) {
+        for (HazelcastMsg msg : messages) {
+            if (duplicates != null && isDuplicate(msg)) {
+                LOG.debug("Dropping a duplicate of the message of {} on topic {} received from node {}",
+                    msg.getClientId(), msg.getTopic(), peer);
+                dropped.mark();
+                continue;
+            }
+            try {
+                publish(msg);
+            } catch (Exception ex) {
+                LOG.error("Unable to publish the message of {} on topic {} received from node {}", msg.getClientId(),
+                    msg.getTopic(), peer, ex);
+            }
+        }
+    }
+
+    private boolean isDuplicate(HazelcastMsg msg) {
+        final MessageGUID guid = msg.getGuid();
+        if (guid != null && !duplicates.add(guid)) {
+            return true;
+        }
+        if (msg.getQos() != MqttQoS.AT_LEAST_ONCE.value() || msg.getPacketId() == 0 || msg.getClientId() == null) {
+            return false;
+        }
+        // the client retransmitted to another node a publish already received from the first one
+        final MessageGUID publish = MessageGUID.ofClientPublish(msg.getClientId(), msg.getPacketId(),
+            msg.getTopic(), msg.getPayload());
+        return !duplicates.add(publish) && msg.isDup();
+    }
+
+    private void publish(HazelcastMsg msg) {
+        ByteBuf payload = null;
+        try {
+            // TODO pass forward this information in somehow publishMessage.setLocal(false);
+            MqttQoS qos = MqttQoS.valueOf(msg.getQos());
+            MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0);
+            MqttPublishVariableHeader varHeader = new MqttPublishVariableHeader(msg.getTopic(), 0);
+            payload = Unpooled.wrappedBuffer(msg.getPayload());
+            MqttPublishMessage publishMessage = new MqttPublishMessage(fixedHeader, varHeader, payload);
+            server.internalPublish(publishMessage, msg.getClientId(), msg.getGuid());
+        } finally {
+            ReferenceCountUtil.release(payload);
+        }
+    }
+
+    @Override
+    public void onDigest(String peer, SubscriptionDigest digest) {
+        if (router != null) {
+            router.onDigest(peer, digest);
+        }
+    }
+
+    @Override
+    public void onSubscribed(String peer, SubscribedFilter subscribed) {
+        if (router != null) {
+            router.onSubscribed(peer, subscribed);
+        }
+    }
+
+    @Override
+    public void onPeerDown(String peer) {
+        if (router != null) {
+            router.onPeerDown(peer);
+        }
+    }
+
+    @Override
+    public void onSessionRequest(String peer, SessionRequest request) {
+        if (sessionTakeover != null) {
+            sessionTakeover.onSessionRequest(peer, request);
+        } else {
+            // the peer doesn't wait for the timeout
+            server.getClusterTransport().transferSession(peer, SessionTransfer.notFound(request.requestID(),
+                request.clientID()));
+        }
+    }
+
+    @Override
+    public void onSessionTransfer(String peer, SessionTransfer transfer) {
+        if (sessionTakeover != null) {
+            sessionTakeover.onSessionTransfer(peer, transfer);
+        }
+    }
+
+    @Override
+    public void onSessionConfirmed(String peer, SessionRequest request) {
+        if (sessionTakeover != null) {
+            sessionTakeover.onSessionConfirmed(peer, request);
+        }
+    }
+
+    @Override
+    public void onPeerUp(String peer) {
+        if (router != null) {
+            router.onPeerUp(peer);
+        }
+        retainedStore.onPeerUp(peer);
+    }
+
+    @Override
+    public void onRetained(String peer, RetainedBatch batch) {
+        retainedStore.onRetained(peer, batch);
+    }
+}
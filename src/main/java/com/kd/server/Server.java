@@ -19,7 +19,6 @@ package com.kd.server;
 import static com.kd.logging.LoggingUtils.getInterceptorIds;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
@@ -33,14 +32,20 @@ import org.slf4j.LoggerFactory;
 import com.hazelcast.config.ClasspathXmlConfig;
 import com.hazelcast.config.Config;
 import com.hazelcast.config.FileSystemXmlConfig;
+import com.hazelcast.config.XmlConfigBuilder;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.HazelcastInstanceNotActiveException;
-import com.hazelcast.core.ITopic;
 import com.kd.BrokerConstants;
+import com.kd.cluster.ClusterBatch;
+import com.kd.cluster.ClusterTransport;
+import com.kd.cluster.HazelcastClusterTransport;
+import com.kd.cluster.NettyClusterTransport;
+import com.kd.cluster.ReplicatedMessagesStore;
+import com.kd.cluster.SubscriptionRouter;
 import com.kd.connections.IConnectionsManager;
+import com.kd.interception.ClusterInterceptHandler;
 import com.kd.interception.HazelcastInterceptHandler;
-import com.kd.interception.HazelcastMsg;
 import com.kd.interception.InterceptHandler;
 import com.kd.server.config.FileResourceLoader;
 import com.kd.server.config.IConfig;
@@ -48,8 +53,11 @@ import com.kd.server.config.IResourceLoader;
 import com.kd.server.config.MemoryConfig;
 import com.kd.server.config.ResourceLoaderConfig;
 import com.kd.server.netty.NettyAcceptor;
+import com.kd.spi.DuplicateFilter;
+import com.kd.spi.MessageGUID;
 import com.kd.spi.impl.ProtocolProcessor;
 import com.kd.spi.impl.ProtocolProcessorBootstrapper;
+import com.kd.spi.impl.SessionTakeover;
 import com.kd.spi.impl.subscriptions.Subscription;
 import com.kd.spi.security.IAuthenticator;
 import com.kd.spi.security.IAuthorizator;
@@ -66,6 +74,8 @@ public class Server {
 
     private static final String HZ_INTERCEPT_HANDLER = HazelcastInterceptHandler.class.getCanonicalName();
 
+    private static final String CLUSTER_INTERCEPT_HANDLER = ClusterInterceptHandler.class.getCanonicalName();
+
     private ServerAcceptor m_acceptor;
 
     private volatile boolean m_initialized;
@@ -74,10 +84,17 @@ public class Server {
 
     private HazelcastInstance hazelcastInstance;
 
+    private ClusterTransport clusterTransport;
+
+    // null when the publishes are broadcast to the cluster
+    private SubscriptionRouter subscriptionRouter;
+
     private ProtocolProcessorBootstrapper m_processorBootstrapper;
 
     private ScheduledExecutorService scheduler;
 
+    private IConfig config;
+
     public static void main(String[] args) throws IOException {
         final Server server = new Server();
         server.startServer();
@@ -166,6 +183,7 @@ public class Server {
             handlers = Collections.emptyList();
         }
         LOG.trace("Starting Moquette Server. MQTT message interceptors={}", getInterceptorIds(handlers));
+        this.config = config;
 
         scheduler = Executors.newScheduledThreadPool(1);
 
@@ -185,51 +203,134 @@ public class Server {
             sslCtxCreator = new DefaultMoquetteSslContextCreator(config);
         }
 
-        m_acceptor = new NettyAcceptor();
-        m_acceptor.initialize(processor, config, sslCtxCreator);
+        final NettyAcceptor acceptor = new NettyAcceptor();
+        acceptor.initialize(processor, config, sslCtxCreator);
+        m_acceptor = acceptor;
         m_processor = processor;
         
         //启动一webSocket
 //        WebSocketServer.start(m_processor);
 
+        m_initialized = true;
+        startCluster(config, acceptor);
+
         final long startTime = System.currentTimeMillis() - start;
         LOG.info("Moquette server has been started successfully in {} ms", startTime);
-        m_initialized = true;
     }
 
-    private void configureCluster(IConfig config) throws FileNotFoundException {
-        LOG.info("Configuring embedded Hazelcast instance");
+    private void configureCluster(IConfig config) throws IOException {
+        LOG.info("Configuring the cluster transport");
         String interceptHandlerClassname = config.getProperty(BrokerConstants.INTERCEPT_HANDLER_PROPERTY_NAME);
-        if (interceptHandlerClassname == null || !HZ_INTERCEPT_HANDLER.equals(interceptHandlerClassname)) {
-            LOG.info("There are no Hazelcast intercept handlers. The server won't start a Hazelcast instance.");
+        if (!HZ_INTERCEPT_HANDLER.equals(interceptHandlerClassname)
+                && !CLUSTER_INTERCEPT_HANDLER.equals(interceptHandlerClassname)) {
+            LOG.info("There are no cluster intercept handlers. The server won't join a cluster.");
             return;
         }
+        final String transport = config.getProperty(BrokerConstants.CLUSTER_TRANSPORT_PROPERTY_NAME,
+            BrokerConstants.DEFAULT_CLUSTER_TRANSPORT);
+        if (BrokerConstants.CLUSTER_TRANSPORT_NETTY.equals(transport)) {
+            LOG.info("Using the Netty cluster transport");
+            // started with the event loops of the acceptor
+            clusterTransport = new NettyClusterTransport(config);
+        } else if (BrokerConstants.CLUSTER_TRANSPORT_HAZELCAST.equals(transport)) {
+            startHazelcast(config);
+            clusterTransport = new HazelcastClusterTransport(hazelcastInstance);
+        } else {
+            throw new IllegalArgumentException("Unknown cluster transport: " + transport);
+        }
+        final String routing = config.getProperty(BrokerConstants.CLUSTER_ROUTING_PROPERTY_NAME,
+            BrokerConstants.DEFAULT_CLUSTER_ROUTING);
+        if (BrokerConstants.CLUSTER_ROUTING_BY_SUBSCRIPTIONS.equals(routing)) {
+            subscriptionRouter = new SubscriptionRouter(clusterTransport, this::getSubscriptions);
+        } else {
+            LOG.info("Broadcasting the publishes to the cluster. Routing={}", routing);
+        }
+    }
+
+    private void startHazelcast(IConfig config) throws IOException {
+        LOG.info("Configuring embedded Hazelcast instance");
         String hzConfigPath = config.getProperty(BrokerConstants.HAZELCAST_CONFIGURATION);
+        Config hzconfig;
         if (hzConfigPath != null) {
             boolean isHzConfigOnClasspath = this.getClass().getClassLoader().getResource(hzConfigPath) != null;
-            Config hzconfig = isHzConfigOnClasspath
+            hzconfig = isHzConfigOnClasspath
                 ? new ClasspathXmlConfig(hzConfigPath)
                 : new FileSystemXmlConfig(hzConfigPath);
             LOG.info("Starting Hazelcast instance. ConfigurationFile={}", hzconfig);
-            hazelcastInstance = Hazelcast.newHazelcastInstance(hzconfig);
         } else {
             LOG.info("Starting Hazelcast instance with default configuration");
-            hazelcastInstance = Hazelcast.newHazelcastInstance();
+            hzconfig = new XmlConfigBuilder().build();
         }
-        listenOnHazelCastMsg();
+        hzconfig.getSerializationConfig().addDataSerializableFactory(ClusterBatch.FACTORY_ID, ClusterBatch.FACTORY);
+        hazelcastInstance = Hazelcast.newHazelcastInstance(hzconfig);
     }
 
-    private void listenOnHazelCastMsg() {
-        LOG.info("Subscribing to Hazelcast topic. TopicName={}", "moquette");
-        HazelcastInstance hz = getHazelcastInstance();
-        ITopic<HazelcastMsg> topic = hz.getTopic("moquette");
-        topic.addMessageListener(new HazelcastListener(this));
+    private void startCluster(IConfig config, NettyAcceptor acceptor) {
+        if (clusterTransport == null) {
+            return;
+        }
+        if (clusterTransport instanceof NettyClusterTransport) {
+            ((NettyClusterTransport) clusterTransport).useEventLoops(acceptor.getBossGroup(),
+                acceptor.getWorkerGroup());
+        }
+        final long takeoverTimeout = Long.parseLong(config.getProperty(
+            BrokerConstants.CLUSTER_SESSION_TAKEOVER_TIMEOUT_PROPERTY_NAME,
+            String.valueOf(BrokerConstants.DEFAULT_CLUSTER_SESSION_TAKEOVER_TIMEOUT_MILLIS)));
+        final SessionTakeover sessionTakeover = takeoverTimeout > 0
+            ? m_processor.enableSessionTakeover(clusterTransport, takeoverTimeout,
+                subscriptionRouter, scheduler) : null;
+        final ReplicatedMessagesStore retainedStore = m_processorBootstrapper.getReplicatedMessagesStore();
+        // before the transport, the peers up are sent the retained messages
+        retainedStore.start(scheduler, Long.parseLong(config.getProperty(
+            BrokerConstants.CLUSTER_RETAINED_FLUSH_PROPERTY_NAME,
+            String.valueOf(BrokerConstants.DEFAULT_CLUSTER_RETAINED_FLUSH_MILLIS))),
+            Long.parseLong(config.getProperty(BrokerConstants.CLUSTER_RETAINED_TOMBSTONE_PROPERTY_NAME,
+                String.valueOf(BrokerConstants.DEFAULT_CLUSTER_RETAINED_TOMBSTONE_MILLIS))));
+        final long dedupWindow = Long.parseLong(config.getProperty(
+            BrokerConstants.CLUSTER_DEDUP_WINDOW_PROPERTY_NAME,
+            String.valueOf(BrokerConstants.DEFAULT_CLUSTER_DEDUP_WINDOW_MILLIS)));
+        final DuplicateFilter duplicates = dedupWindow > 0
+            ? m_processor.enableDuplicateFilter(dedupWindow, Integer.parseInt(config.getProperty(
+                BrokerConstants.CLUSTER_DEDUP_CAPACITY_PROPERTY_NAME,
+                String.valueOf(BrokerConstants.DEFAULT_CLUSTER_DEDUP_CAPACITY))))
+            : null;
+        clusterTransport.start(new ClusterListener(this, subscriptionRouter, sessionTakeover, retainedStore,
+            duplicates));
+        if (subscriptionRouter != null) {
+            subscriptionRouter.start(scheduler, Long.parseLong(config.getProperty(
+                BrokerConstants.CLUSTER_DIGEST_REFRESH_PROPERTY_NAME,
+                String.valueOf(BrokerConstants.DEFAULT_CLUSTER_DIGEST_REFRESH_MILLIS))));
+        }
     }
 
+    /**
+     * @return the embedded Hazelcast instance, null unless it's the cluster transport.
+     */
     public HazelcastInstance getHazelcastInstance() {
         return hazelcastInstance;
     }
 
+    /**
+     * @return the configuration the server was started with, null before.
+     */
+    public IConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the transport between the nodes of the cluster, null when the server isn't part of one.
+     */
+    public ClusterTransport getClusterTransport() {
+        return clusterTransport;
+    }
+
+    /**
+     * @return the router of the publishes to the cluster nodes, null if they are broadcast.
+     */
+    public SubscriptionRouter getSubscriptionRouter() {
+        return subscriptionRouter;
+    }
+
     /**
      * Use the broker to publish a message. It's intended for embedding applications. It can be used
      * only after the server is correctly started with startServer.
@@ -239,6 +340,13 @@ public class Server {
      * @throws IllegalStateException if the server is not yet started
      */
     public void internalPublish(MqttPublishMessage msg, final String clientId) {
+        internalPublish(msg, clientId, null);
+    }
+
+    /**
+     * Publishes a message received from another node of the cluster, with the guid assigned by the node it entered.
+     */
+    void internalPublish(MqttPublishMessage msg, final String clientId, MessageGUID guid) {
         final int messageID = msg.variableHeader().messageId();
         if (!m_initialized) {
             LOG.error("Moquette is not started, internal message cannot be published. CId={}, messageId={}", clientId,
@@ -246,10 +354,18 @@ public class Server {
             throw new IllegalStateException("Can't publish on a server is not yet started");
         }
         LOG.debug("Publishing message. CId={}, messageId={}", clientId, messageID);
-        m_processor.internalPublish(msg, clientId);
+        m_processor.internalPublish(msg, clientId, guid);
     }
 
     public void stopServer() {
+        if (subscriptionRouter != null) {
+            subscriptionRouter.stop();
+        }
+        if (clusterTransport != null) {
+            m_processorBootstrapper.getReplicatedMessagesStore().stop();
+            // before the event loops it may share are shut down
+            clusterTransport.stop();
+        }
         LOG.info("Unbinding server from the configured ports");
         m_acceptor.close();
         LOG.trace("Stopping MQTT protocol processor");
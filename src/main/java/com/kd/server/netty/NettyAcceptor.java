@@ -172,6 +172,20 @@ public class NettyAcceptor implements ServerAcceptor {
         }
     }
 
+    /**
+     * @return the event loops accepting the connections, null before the acceptor is initialized.
+     */
+    public EventLoopGroup getBossGroup() {
+        return m_bossGroup;
+    }
+
+    /**
+     * @return the event loops serving the connections, null before the acceptor is initialized.
+     */
+    public EventLoopGroup getWorkerGroup() {
+        return m_workerGroup;
+    }
+
     private void initFactory(String host, int port, String protocol, final PipelineInitializer pipeliner) {
         LOG.debug("Initializing server. Protocol={}", protocol);
         ServerBootstrap b = new ServerBootstrap();
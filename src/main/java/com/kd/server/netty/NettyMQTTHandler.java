@@ -19,6 +19,8 @@ package com.kd.server.netty;
 import static io.netty.channel.ChannelFutureListener.CLOSE_ON_FAILURE;
 import static io.netty.handler.codec.mqtt.MqttQoS.AT_MOST_ONCE;
 
+import java.util.Queue;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,6 +54,13 @@ public class NettyMQTTHandler extends ChannelInboundHandlerAdapter {
 //        System.out.println("连接数量："+m_processor.getConnectionDescriptors().countActiveConnections());
 //        System.out.println("连接客户端ID："+m_processor.getConnectionDescriptors().getConnectedClientIds());
         MqttMessage msg = (MqttMessage) message;
+        final Queue<MqttMessage> deferred = NettyUtils.deferredMessages(ctx.channel());
+        if (deferred != null) {
+            // decoded along with a CONNECT not accepted yet, processed after its CONNACK
+            LOG.debug("Deferring MQTT message, type: {}", msg.fixedHeader().messageType());
+            deferred.add(msg);
+            return;
+        }
         MqttMessageType messageType = msg.fixedHeader().messageType();
         LOG.debug("Processing MQTT message, type: {}", messageType);
         try {
@@ -104,9 +113,29 @@ public class NettyMQTTHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt != NettyUtils.CONNECT_COMPLETED) {
+            ctx.fireUserEventTriggered(evt);
+            return;
+        }
+        final Queue<MqttMessage> deferred = NettyUtils.stopDeferring(ctx.channel());
+        if (deferred == null) {
+            return;
+        }
+        MqttMessage msg;
+        while ((msg = deferred.poll()) != null) {
+            channelRead(ctx, msg);
+        }
+    }
 
 	@Override
     public void channelInactive(ChannelHandlerContext ctx) {
+        final Queue<MqttMessage> deferred = NettyUtils.stopDeferring(ctx.channel());
+        if (deferred != null) {
+            // the CONNECT was refused or the client left before its CONNACK
+            deferred.forEach(ReferenceCountUtil::release);
+        }
         String clientID = NettyUtils.clientID(ctx.channel());
         if (clientID != null && !clientID.isEmpty()) {
             LOG.info("Notifying connection lost event. MqttClientId = {}", clientID);
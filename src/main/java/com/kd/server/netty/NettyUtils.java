@@ -17,9 +17,14 @@
 package com.kd.server.netty;
 
 import com.kd.server.Constants;
+import com.kd.spi.impl.SessionHandle;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
 
@@ -32,10 +37,17 @@ public final class NettyUtils {
     public static final String ATTR_SESSION_STOLEN = "sessionStolen";
     public static final String ATTR_CHANNEL_STATUS = "channelStatus";
 
+    /**
+     * User event fired on the pipeline once a client whose messages were deferred is connected.
+     */
+    public static final Object CONNECT_COMPLETED = "connectCompleted";
+
     private static final AttributeKey<Object> ATTR_KEY_KEEPALIVE = AttributeKey.valueOf(Constants.KEEP_ALIVE);
     private static final AttributeKey<Object> ATTR_KEY_CLEANSESSION = AttributeKey.valueOf(Constants.CLEAN_SESSION);
     private static final AttributeKey<Object> ATTR_KEY_CLIENTID = AttributeKey.valueOf(Constants.ATTR_CLIENTID);
     private static final AttributeKey<Object> ATTR_KEY_USERNAME = AttributeKey.valueOf(ATTR_USERNAME);
+    private static final AttributeKey<SessionHandle> ATTR_KEY_SESSION_HANDLE = AttributeKey.valueOf("sessionHandle");
+    private static final AttributeKey<Queue<MqttMessage>> ATTR_KEY_DEFERRED = AttributeKey.valueOf("deferred");
 
     public static Object getAttribute(ChannelHandlerContext ctx, AttributeKey<Object> key) {
         Attribute<Object> attr = ctx.channel().attr(key);
@@ -70,6 +82,38 @@ public final class NettyUtils {
         return (String) channel.attr(NettyUtils.ATTR_KEY_USERNAME).get();
     }
 
+    public static void sessionHandle(Channel channel, SessionHandle handle) {
+        channel.attr(NettyUtils.ATTR_KEY_SESSION_HANDLE).set(handle);
+    }
+
+    /**
+     * @return the handle bound at CONNECT, null before.
+     */
+    public static SessionHandle sessionHandle(Channel channel) {
+        return channel.attr(NettyUtils.ATTR_KEY_SESSION_HANDLE).get();
+    }
+
+    /**
+     * Defers the messages read from the client until {@link #CONNECT_COMPLETED}, its CONNECT is being processed.
+     */
+    public static void deferMessages(Channel channel) {
+        channel.attr(NettyUtils.ATTR_KEY_DEFERRED).setIfAbsent(new ArrayDeque<>());
+    }
+
+    /**
+     * @return the messages deferred so far, null if the messages of the client aren't deferred.
+     */
+    public static Queue<MqttMessage> deferredMessages(Channel channel) {
+        return channel.attr(NettyUtils.ATTR_KEY_DEFERRED).get();
+    }
+
+    /**
+     * @return the messages deferred, to process or release, null if they weren't.
+     */
+    public static Queue<MqttMessage> stopDeferring(Channel channel) {
+        return channel.attr(NettyUtils.ATTR_KEY_DEFERRED).getAndSet(null);
+    }
+
     private NettyUtils() {
     }
 }
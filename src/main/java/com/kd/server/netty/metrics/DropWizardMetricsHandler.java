@@ -18,6 +18,7 @@ package com.kd.server.netty.metrics;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 import com.kd.server.config.IConfig;
 import com.kd.server.netty.NettyUtils;
 import com.librato.metrics.reporter.Librato;
@@ -43,7 +44,9 @@ public final class DropWizardMetricsHandler extends ChannelInboundHandlerAdapter
     private Counter connectedClientsMetrics;
 
     public void init(IConfig props) {
-        this.metrics = new MetricRegistry();
+        // shared with the stores, that register their own gauges
+        this.metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
+        JvmMemoryMetrics.register();
         this.publishesMetrics = metrics.meter("publish.requests");
         this.subscribeMetrics = metrics.meter("subscribe.requests");
         this.connectedClientsMetrics = metrics.counter("connect.num_clients");
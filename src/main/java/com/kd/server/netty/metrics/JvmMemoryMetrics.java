@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.server.netty.metrics;
+
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import static com.kd.BrokerConstants.registerGauge;
+
+/**
+ * Heap, off heap and garbage collector gauges, to follow how much of the broker state lives out of the heap (the
+ * retained messages payloads, the Netty pooled buffers) and the GC work it saves.
+ */
+final class JvmMemoryMetrics {
+
+    static void register() {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        registerGauge("jvm.heap.used", () -> memory.getHeapMemoryUsage().getUsed());
+        registerGauge("jvm.heap.committed", () -> memory.getHeapMemoryUsage().getCommitted());
+        registerGauge("jvm.non_heap.used", () -> memory.getNonHeapMemoryUsage().getUsed());
+        registerGauge("netty.pooled.direct.used", () -> PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory());
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            final String name = "jvm.buffers." + pool.getName().replace(' ', '_');
+            registerGauge(name + ".used", pool::getMemoryUsed);
+            registerGauge(name + ".count", pool::getCount);
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            final String name = "jvm.gc." + gc.getName().replace(' ', '_');
+            registerGauge(name + ".count", gc::getCollectionCount);
+            registerGauge(name + ".time_ms", gc::getCollectionTime);
+        }
+    }
+
+    private JvmMemoryMetrics() {
+    }
+}
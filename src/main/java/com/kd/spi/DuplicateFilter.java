@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.spi;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.kd.BrokerConstants.METRICS_REGISTRY_NAME;
+
+/**
+ * The guids of the messages seen in a time window, to drop the duplicates: those a node receives twice from the
+ * cluster, and the retransmissions of a client reaching another node.
+ * <p>
+ * A guid is kept as a 64 bit fingerprint, in an open addressing table written with CAS: the threads adding a guid
+ * don't lock, a fingerprint is never removed. The filter has two tables, the guids are added to the current one and
+ * looked up in both: when the window elapses, or the current table is 3/4 full, it becomes the previous one and the
+ * oldest is dropped. A guid is remembered between one and two windows, less when the rate overflows the capacity.
+ * Two distinct guids have the same fingerprint with a probability of 2^-64.
+ */
+public final class DuplicateFilter {
+
+    private static final class Table {
+
+        final AtomicLongArray slots;
+        final int mask;
+        final int limit;
+        final AtomicInteger size = new AtomicInteger();
+        final long startNanos;
+
+        Table(int capacity) {
+            this.slots = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            this.limit = capacity / 4 * 3;
+            this.startNanos = System.nanoTime();
+        }
+
+        boolean contains(long fingerprint) {
+            for (int index = (int) fingerprint & mask; ; index = (index + 1) & mask) {
+                final long slot = slots.get(index);
+                if (slot == fingerprint) {
+                    return true;
+                }
+                if (slot == 0) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * @return false if the fingerprint was already in the table.
+         */
+        boolean add(long fingerprint) {
+            int index = (int) fingerprint & mask;
+            while (true) {
+                final long slot = slots.get(index);
+                if (slot == fingerprint) {
+                    return false;
+                }
+                if (slot != 0) {
+                    index = (index + 1) & mask;
+                } else if (slots.compareAndSet(index, 0, fingerprint)) {
+                    size.incrementAndGet();
+                    return true;
+                }
+                // else taken meanwhile, read again
+            }
+        }
+    }
+
+    private static final class Tables {
+
+        final Table current;
+        // null during the first window
+        final Table previous;
+
+        Tables(Table current, Table previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+
+    private final long windowNanos;
+    private final int capacity;
+    private final AtomicReference<Tables> tables;
+    private final Meter overflows;
+
+    /**
+     * @param capacity the slots of a table, rounded up to a power of two. Holds 3/4 as many guids per window.
+     */
+    public DuplicateFilter(long windowMillis, int capacity) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.capacity = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+        this.tables = new AtomicReference<>(new Tables(new Table(this.capacity), null));
+        final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
+        this.overflows = metrics.meter("dedup.overflows");
+    }
+
+    private static long fingerprint(MessageGUID guid) {
+        final long fingerprint = MessageGUID.mix(guid.getHigh() ^ MessageGUID.mix(guid.getLow()));
+        // 0 is a free slot
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private Tables tables() {
+        Tables current = tables.get();
+        final Table table = current.current;
+        final boolean expired = System.nanoTime() - table.startNanos >= windowNanos;
+        if (!expired && table.size.get() < table.limit) {
+            return current;
+        }
+        // the threads losing the race use the tables of the winner
+        if (tables.compareAndSet(current, new Tables(new Table(capacity), table)) && !expired) {
+            overflows.mark();
+        }
+        return tables.get();
+    }
+
+    /**
+     * Adds the guid, unless seen in the window.
+     *
+     * @return true the first time the guid is seen, false for a duplicate.
+     */
+    public boolean add(MessageGUID guid) {
+        final long fingerprint = fingerprint(guid);
+        final Tables current = tables();
+        return (current.previous == null || !current.previous.contains(fingerprint))
+            && current.current.add(fingerprint);
+    }
+
+    /**
+     * @return true if the guid was seen in the window, a duplicate.
+     */
+    public boolean contains(MessageGUID guid) {
+        final long fingerprint = fingerprint(guid);
+        final Tables current = tables();
+        return current.current.contains(fingerprint)
+            || (current.previous != null && current.previous.contains(fingerprint));
+    }
+}
@@ -23,6 +23,7 @@ import com.kd.spi.impl.subscriptions.Topic;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Queue;
 import java.util.Set;
 
 public class DurableSession extends ClientSession {
@@ -57,6 +58,8 @@ public class DurableSession extends ClientSession {
 
     private final OutboundFlightZone outboundFlightZone;
     private final InboundFlightZone inboundFlightZone;
+    // resolved once, the repository drops this session when the stored one is removed
+    private volatile Queue<IMessagesStore.StoredMessage> queue;
 
     public DurableSession(String clientID, ISessionsStore sessions, ISubscriptionsStore subscriptionsStore) {
         super(clientID);
@@ -165,9 +168,18 @@ public class DurableSession extends ClientSession {
         this.sessionsStore.moveInFlightToSecondPhaseAckWaiting(this.clientID, messageID, msg);
     }
 
+    private Queue<IMessagesStore.StoredMessage> queue() {
+        Queue<IMessagesStore.StoredMessage> resolved = this.queue;
+        if (resolved == null) {
+            resolved = this.sessionsStore.queue(clientID);
+            this.queue = resolved;
+        }
+        return resolved;
+    }
+
     @Override
     public boolean isEmptyQueue() {
-        return this.sessionsStore.queue(clientID).isEmpty();
+        return queue().isEmpty();
     }
 
     @Override
@@ -179,7 +191,7 @@ public class DurableSession extends ClientSession {
 
     @Override
     public EnqueuedMessage poll() {
-        IMessagesStore.StoredMessage msg = this.sessionsStore.queue(clientID).poll();
+        IMessagesStore.StoredMessage msg = queue().poll();
         if (msg == null) {
             return null;
         }
@@ -189,7 +201,7 @@ public class DurableSession extends ClientSession {
 
     @Override
     public void enqueue(IMessagesStore.StoredMessage message) {
-        this.sessionsStore.queue(this.clientID).add(message);
+        queue().add(message);
     }
 
     @Override
@@ -199,7 +211,7 @@ public class DurableSession extends ClientSession {
 
     @Override
     public int getPendingPublishMessagesNo() {
-        return this.sessionsStore.queue(clientID).size();
+        return queue().size();
     }
 
     @Override
@@ -21,6 +21,7 @@ import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.Iterator;
 
 import com.kd.spi.impl.subscriptions.Topic;
 
@@ -102,6 +103,31 @@ public interface IMessagesStore {
      */
     Collection<StoredMessage> searchMatching(IMatchingCondition condition);
 
+    /**
+     * Return the retained messages whose topic matches the topic filter. Stores indexing the retained messages by
+     * topic should override it, by default it scans all of them.
+     *
+     * @param topicFilter
+     *            the filter of the subscription, could contain wildcards.
+     * @return the collection of matching messages.
+     */
+    default Collection<StoredMessage> searchMatching(Topic topicFilter) {
+        return searchMatching(key -> key.match(topicFilter));
+    }
+
+    /**
+     * Return the retained messages whose topic matches the topic filter as an iterator. Stores should read the
+     * messages lazily, so the delivery to a wide subscription doesn't hold all of them at once. By default it
+     * iterates the result of {@link #searchMatching(Topic)}.
+     *
+     * @param topicFilter
+     *            the filter of the subscription, could contain wildcards.
+     * @return the iterator over the matching messages.
+     */
+    default Iterator<StoredMessage> iterateMatching(Topic topicFilter) {
+        return searchMatching(topicFilter).iterator();
+    }
+
     void cleanRetained(Topic topic);
 
     void storeRetained(Topic topic, StoredMessage storedMessage);
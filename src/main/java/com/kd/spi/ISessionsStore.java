@@ -18,6 +18,8 @@ package com.kd.spi;
 
 import java.time.LocalDateTime;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 
@@ -108,6 +110,11 @@ public interface ISessionsStore {
      */
     int getInflightMessagesNo(String clientID);
 
+    /**
+     * Visits the inflight messages of the session, in no particular order. Nothing is visited without session.
+     */
+    void forEachInflight(String clientID, InflightTable.Visitor visitor);
+
     /**
      * Returns the number of second-phase ACK pending messages for the given client ID
      *
@@ -127,4 +134,27 @@ public interface ISessionsStore {
      * List the sessions ids closed before the pin date.
      * */
     Set<String> sessionOlderThan(LocalDateTime queryPin);
+
+    /**
+     * Forgets a closing time tracked by {@link #trackSessionClose}, once the client reconnects or its session expires.
+     * By default the closing times are kept.
+     */
+    default void untrackSessionClose(LocalDateTime when, String clientID) {
+    }
+
+    /**
+     * @return the last closing time of each session still tracked, to rebuild the expiry index at start. By default
+     * none.
+     */
+    default Map<String, LocalDateTime> closedSessions() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Runs the action once the changes done before this call are durable, to acknowledge a message only when it's
+     * safe on the disk, or the failure action if they can't be made durable. By default the action runs immediately.
+     */
+    default void onDurable(Runnable action, Runnable failure) {
+        action.run();
+    }
 }
@@ -15,18 +15,15 @@
  */
 package com.kd.spi;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 class InboundFlightZone {
 
-    private final Map<Integer, IMessagesStore.StoredMessage> inboundFlightMessages = new ConcurrentHashMap<>();
+    private final InflightTable inboundFlightMessages = new InflightTable();
 
     IMessagesStore.StoredMessage lookup(int messageID) {
         return inboundFlightMessages.get(messageID);
     }
 
     void waitingRel(int messageID, IMessagesStore.StoredMessage msg) {
-        inboundFlightMessages.put(messageID, msg);
+        inboundFlightMessages.put(messageID, InflightTable.WAITING_ACK, msg);
     }
 }
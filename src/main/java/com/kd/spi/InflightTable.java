@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.spi;
+
+import com.kd.spi.IMessagesStore.StoredMessage;
+
+/**
+ * Inflight messages of a session by packet id, in an open addressing table of primitive keys: no boxed id nor entry
+ * is allocated per message. The phase of a message is a state byte of its slot, a QoS 2 message waiting for its
+ * PUBCOMP changes state instead of moving to another map.
+ *
+ * The packet ids are spread by a multiplicative hash, so the ids of the messages never acknowledged don't pile up in
+ * a run of slots the next ids would probe. An empty table holds no arrays. Guarded by its own monitor.
+ */
+public final class InflightTable {
+
+    /**
+     * Visits the entries of a table.
+     */
+    public interface Visitor {
+
+        void visit(int packetID, byte state, StoredMessage message);
+    }
+
+    /**
+     * The packet id is taken and the message not yet sent.
+     */
+    public static final byte RESERVED = 0;
+    /**
+     * The message is sent, waiting for its PUBACK or PUBREC, or for its PUBREL when received.
+     */
+    public static final byte WAITING_ACK = 1;
+    /**
+     * The PUBREL of the QoS 2 message is sent, waiting for its PUBCOMP.
+     */
+    public static final byte WAITING_COMPLETE = 2;
+
+    public static final int MAX_PACKET_ID = 0xFFFF;
+    private static final int MIN_CAPACITY = 4;
+    private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+    // free slots have the packet id 0, a char is an unsigned 16 bit packet id
+    private char[] packetIDs;
+    private byte[] states;
+    private StoredMessage[] messages;
+    private final int[] counts = new int[3];
+    private int size;
+    // 32 - log2 of the capacity
+    private int shift;
+    private int lastPacketID;
+
+    /**
+     * Takes the next packet id not in flight, after the last one taken.
+     *
+     * @return the packet id, or -1 when all of them are in flight.
+     */
+    public synchronized int reserve() {
+        if (size == MAX_PACKET_ID) {
+            return -1;
+        }
+        int packetID = lastPacketID;
+        do {
+            packetID = packetID == MAX_PACKET_ID ? 1 : packetID + 1;
+        } while (size > 0 && indexOf(packetID) >= 0);
+        lastPacketID = packetID;
+        insert(packetID, RESERVED, null);
+        return packetID;
+    }
+
+    /**
+     * Puts the message in the state, replacing the entry of the packet id.
+     */
+    public synchronized void put(int packetID, byte state, StoredMessage message) {
+        if (packetID <= 0 || packetID > MAX_PACKET_ID) {
+            throw new IllegalArgumentException("Packet id out of range: " + packetID);
+        }
+        final int index = size == 0 ? -1 : indexOf(packetID);
+        if (index >= 0) {
+            counts[states[index]]--;
+            counts[state]++;
+            states[index] = state;
+            messages[index] = message;
+            return;
+        }
+        insert(packetID, state, message);
+    }
+
+    public synchronized StoredMessage get(int packetID) {
+        final int index = size == 0 ? -1 : indexOf(packetID);
+        return index < 0 ? null : messages[index];
+    }
+
+    /**
+     * @return the message removed, null if absent.
+     */
+    public synchronized StoredMessage remove(int packetID) {
+        final int index = size == 0 ? -1 : indexOf(packetID);
+        return index < 0 ? null : removeAt(index);
+    }
+
+    /**
+     * Removes the message only if in the state.
+     *
+     * @return the message removed, null if absent or in another state.
+     */
+    public synchronized StoredMessage remove(int packetID, byte state) {
+        final int index = size == 0 ? -1 : indexOf(packetID);
+        return index < 0 || states[index] != state ? null : removeAt(index);
+    }
+
+    /**
+     * Removes the messages in the state.
+     */
+    public synchronized void removeAll(byte state) {
+        if (counts[state] == 0) {
+            return;
+        }
+        final char[] oldPacketIDs = packetIDs;
+        final byte[] oldStates = states;
+        final StoredMessage[] oldMessages = messages;
+        clear();
+        for (int i = 0; i < oldPacketIDs.length; i++) {
+            if (oldPacketIDs[i] != 0 && oldStates[i] != state) {
+                insert(oldPacketIDs[i], oldStates[i], oldMessages[i]);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        packetIDs = null;
+        states = null;
+        messages = null;
+        size = 0;
+        counts[RESERVED] = counts[WAITING_ACK] = counts[WAITING_COMPLETE] = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int count(byte state) {
+        return counts[state];
+    }
+
+    /**
+     * Visits the entries, holding the monitor of the table.
+     */
+    public synchronized void forEach(Visitor visitor) {
+        if (size == 0) {
+            return;
+        }
+        for (int i = 0; i < packetIDs.length; i++) {
+            if (packetIDs[i] != 0) {
+                visitor.visit(packetIDs[i], states[i], messages[i]);
+            }
+        }
+    }
+
+    private int home(int packetID) {
+        return (packetID * GOLDEN_RATIO) >>> shift;
+    }
+
+    private int indexOf(int packetID) {
+        final int mask = packetIDs.length - 1;
+        for (int index = home(packetID); packetIDs[index] != 0; index = (index + 1) & mask) {
+            if (packetIDs[index] == packetID) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(int packetID, byte state, StoredMessage message) {
+        if (packetIDs == null) {
+            allocate(MIN_CAPACITY);
+        } else if ((size + 1) * 4 > packetIDs.length * 3) {
+            grow();
+        }
+        final int mask = packetIDs.length - 1;
+        int index = home(packetID);
+        while (packetIDs[index] != 0) {
+            index = (index + 1) & mask;
+        }
+        packetIDs[index] = (char) packetID;
+        states[index] = state;
+        messages[index] = message;
+        counts[state]++;
+        size++;
+    }
+
+    private void allocate(int capacity) {
+        packetIDs = new char[capacity];
+        states = new byte[capacity];
+        messages = new StoredMessage[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    private void grow() {
+        final char[] oldPacketIDs = packetIDs;
+        final byte[] oldStates = states;
+        final StoredMessage[] oldMessages = messages;
+        allocate(oldPacketIDs.length * 2);
+        size = 0;
+        counts[RESERVED] = counts[WAITING_ACK] = counts[WAITING_COMPLETE] = 0;
+        for (int i = 0; i < oldPacketIDs.length; i++) {
+            if (oldPacketIDs[i] != 0) {
+                insert(oldPacketIDs[i], oldStates[i], oldMessages[i]);
+            }
+        }
+    }
+
+    private StoredMessage removeAt(int index) {
+        final StoredMessage removed = messages[index];
+        counts[states[index]]--;
+        size--;
+        if (size == 0) {
+            // the arrays are released, most of the time nothing is in flight
+            clear();
+            return removed;
+        }
+        // shifts back the following entries of the run, no tombstone is left
+        final int mask = packetIDs.length - 1;
+        int hole = index;
+        int next = (index + 1) & mask;
+        while (packetIDs[next] != 0) {
+            final int home = home(packetIDs[next]);
+            // moves the entry unless its home slot lies cyclically in (hole, next]
+            if (hole <= next ? home <= hole || home > next : home <= hole && home > next) {
+                packetIDs[hole] = packetIDs[next];
+                states[hole] = states[next];
+                messages[hole] = messages[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        packetIDs[hole] = 0;
+        states[hole] = 0;
+        messages[hole] = null;
+        return removed;
+    }
+}
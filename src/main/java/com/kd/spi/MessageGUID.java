@@ -16,18 +16,114 @@
 
 package com.kd.spi;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 
 /**
- * Value object for GUIDs of messages.
+ * Value object for GUIDs of messages: 128 bits, assigned to a publish when it enters the cluster and carried with it,
+ * in the stores and between the nodes. The string form is the 32 hex digits of the bits.
  */
 public class MessageGUID implements Serializable {
 
-    private static final long serialVersionUID = 4315161987111542406L;
-    private final String guid;
+    private static final long serialVersionUID = -3497125482183962207L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final long high;
+    private final long low;
 
+    public MessageGUID(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * @param guid the 32 hex digits of a guid, as written by {@link #getGuid()}.
+     */
     public MessageGUID(String guid) {
-        this.guid = guid;
+        if (guid.length() != 32) {
+            throw new IllegalArgumentException("Not a message guid: " + guid);
+        }
+        this.high = Long.parseUnsignedLong(guid.substring(0, 16), 16);
+        this.low = Long.parseUnsignedLong(guid.substring(16), 16);
+    }
+
+    /**
+     * The guid of the publish of a client, the same for its retransmissions: the hash of the client id, the packet id,
+     * the topic and the payload. A retry isn't told from the first publish by the guid assigned when it enters the
+     * cluster. Two publishes of a client with the same packet id, topic and payload have the same guid: in the dedup
+     * window the retransmission of the second one is taken for a retransmission of the first, a copy of a message
+     * already delivered is dropped.
+     */
+    public static MessageGUID ofClientPublish(String clientID, int packetID, String topic, byte[] payload) {
+        return ofClientPublish(clientID, packetID, topic, Unpooled.wrappedBuffer(payload));
+    }
+
+    /**
+     * @param payload read without moving its reader index.
+     */
+    public static MessageGUID ofClientPublish(String clientID, int packetID, String topic, ByteBuf payload) {
+        long high = 0xCBF29CE484222325L;
+        long low = 0x84222325CBF29CE4L;
+        final byte[] client = clientID.getBytes(StandardCharsets.UTF_8);
+        for (byte b : client) {
+            high = (high ^ (b & 0xFF)) * FNV_PRIME;
+            low = (low ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        // the length separates the client id from the topic
+        high = (high ^ client.length) * FNV_PRIME;
+        low = (low ^ client.length) * FNV_PRIME;
+        final byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+        for (byte b : name) {
+            high = (high ^ (b & 0xFF)) * FNV_PRIME;
+            low = (low ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        high = (high ^ name.length) * FNV_PRIME;
+        low = (low ^ name.length) * FNV_PRIME;
+        high = (high ^ packetID) * FNV_PRIME;
+        low = (low ^ ~packetID) * FNV_PRIME;
+        for (int i = payload.readerIndex(); i < payload.writerIndex(); i++) {
+            final int b = payload.getByte(i) & 0xFF;
+            high = (high ^ b) * FNV_PRIME;
+            low = (low ^ b) * FNV_PRIME;
+        }
+        return new MessageGUID(mix(high), mix(low ^ payload.readableBytes()));
+    }
+
+    /**
+     * The finalizer of MurmurHash3, spreads every bit of the value over the 64 bits.
+     */
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public String getGuid() {
+        final StringBuilder guid = new StringBuilder(32);
+        appendHex(guid, high);
+        appendHex(guid, low);
+        return guid.toString();
+    }
+
+    private static void appendHex(StringBuilder out, long value) {
+        final String digits = Long.toHexString(value);
+        for (int i = digits.length(); i < 16; i++) {
+            out.append('0');
+        }
+        out.append(digits);
     }
 
     @Override
@@ -39,16 +135,16 @@ public class MessageGUID implements Serializable {
 
         MessageGUID that = (MessageGUID) o;
 
-        return guid != null ? guid.equals(that.guid) : that.guid == null;
+        return high == that.high && low == that.low;
     }
 
     @Override
     public int hashCode() {
-        return guid != null ? guid.hashCode() : 0;
+        return Long.hashCode(high * 31 + low);
     }
 
     @Override
     public String toString() {
-        return "MessageGUID{" + "guid='" + guid + '\'' + '}';
+        return "MessageGUID{" + "guid='" + getGuid() + '\'' + '}';
     }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.spi;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the guids of the messages entering the broker, without locks: the high 64 bits are random, drawn once per
+ * generator, the low ones a sequence started at the wall clock milliseconds shifted left by 20 bits. The guids of a
+ * generator never repeat, those of two generators only if they draw the same random bits.
+ */
+public final class MessageGUIDGenerator {
+
+    private final long instance;
+    private final AtomicLong sequence;
+
+    public MessageGUIDGenerator() {
+        this(new SecureRandom().nextLong());
+    }
+
+    MessageGUIDGenerator(long instance) {
+        this.instance = instance;
+        this.sequence = new AtomicLong(System.currentTimeMillis() << 20);
+    }
+
+    public MessageGUID next() {
+        return new MessageGUID(instance, sequence.incrementAndGet());
+    }
+}
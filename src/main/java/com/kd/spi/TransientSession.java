@@ -23,9 +23,6 @@ import com.kd.spi.impl.subscriptions.Subscription;
 import com.kd.spi.impl.subscriptions.Topic;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class TransientSession extends ClientSession {
 
@@ -33,11 +30,9 @@ public class TransientSession extends ClientSession {
 
     private Queue<StoredMessage> messagesQueue = new ArrayDeque<>();
 
-    private final AtomicInteger packetGenerator = new AtomicInteger(1);
-
-    private final ConcurrentMap<Integer, StoredMessage> inboundInflightMap = new ConcurrentHashMap<>();
-    private final ConcurrentMap<Integer, StoredMessage> outboundInflightMap = new ConcurrentHashMap<>();
-    private final Map<Integer, StoredMessage> secondPhaseStore = new ConcurrentHashMap<>();
+    private final InflightTable inboundInflight = new InflightTable();
+    // the QoS 2 messages waiting for the PUBCOMP included
+    private final InflightTable outboundInflight = new InflightTable();
 
     public TransientSession(String clientID) {
         super(clientID);
@@ -129,43 +124,42 @@ public class TransientSession extends ClientSession {
 
     @Override
     protected int nextPacketId() {
-        return this.packetGenerator.getAndIncrement();
+        return this.outboundInflight.reserve();
     }
 
     @Override
     public int inFlightAckWaiting(StoredMessage msg) {
         LOG.trace("Adding message to inflight zone. CId={}", clientID);
         int messageId = this.nextPacketId();
-        this.outboundInflightMap.put(messageId, msg);
+        this.outboundInflight.put(messageId, InflightTable.WAITING_ACK, msg);
         return messageId;
     }
 
     @Override
     public IMessagesStore.StoredMessage inFlightAcknowledged(int messageID) {
         LOG.trace("Removing message to inflight zone. CId={}, messageID={}", clientID, messageID);
-        return this.outboundInflightMap.remove(messageID);
+        return this.outboundInflight.remove(messageID, InflightTable.WAITING_ACK);
     }
 
     @Override
     public void markAsInboundInflight(int messageID, IMessagesStore.StoredMessage msg) {
-        this.inboundInflightMap.put(messageID, msg);
+        this.inboundInflight.put(messageID, InflightTable.WAITING_ACK, msg);
     }
 
     @Override
     public IMessagesStore.StoredMessage inboundInflight(int messageID) {
-        return this.inboundInflightMap.remove(messageID);
+        return this.inboundInflight.remove(messageID);
     }
 
     @Override
     public void moveInFlightToSecondPhaseAckWaiting(int messageID, IMessagesStore.StoredMessage msg) {
-        this.secondPhaseStore.put(messageID, msg);
-        this.outboundInflightMap.put(messageID, msg);
+        this.outboundInflight.put(messageID, InflightTable.WAITING_COMPLETE, msg);
     }
 
     @Override
     public IMessagesStore.StoredMessage completeReleasedPublish(int messageID) {
         LOG.trace("Acknowledged message in second phase, clientID <{}> messageID {}", clientID, messageID);
-        return this.secondPhaseStore.remove(messageID);
+        return this.outboundInflight.remove(messageID, InflightTable.WAITING_COMPLETE);
     }
 
     @Override
@@ -175,12 +169,12 @@ public class TransientSession extends ClientSession {
 
     @Override
     public int countPubReleaseWaitingPubComplete() {
-        return this.outboundInflightMap.size();
+        return this.outboundInflight.count(InflightTable.WAITING_COMPLETE);
     }
 
     @Override
     public int getInflightMessagesNo() {
-        return this.inboundInflightMap.size();
+        return this.outboundInflight.size();
     }
 
     @Override
@@ -18,152 +18,199 @@ package com.kd.spi.impl;
 
 import io.netty.handler.codec.mqtt.MqttConnectMessage;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
-import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.kd.BrokerConstants;
 import com.kd.interception.InterceptHandler;
 import com.kd.interception.Interceptor;
 import com.kd.interception.messages.*;
 import com.kd.server.config.IConfig;
+import com.kd.spi.MessageGUID;
+import com.kd.spi.impl.InterceptorLane.OverloadPolicy;
 import com.kd.spi.impl.subscriptions.Subscription;
 
+import static com.kd.BrokerConstants.*;
 import static com.kd.logging.LoggingUtils.getInterceptorIds;
 
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
- * An interceptor that execute the interception tasks asynchronously.
+ * An interceptor that execute the interception tasks asynchronously, each handler draining a bounded ring of its own
+ * so a slow handler delays neither the others nor, unless the overload policy blocks, the broker.
  */
-final class BrokerInterceptor implements Interceptor {
+public final class BrokerInterceptor implements Interceptor {
 
     private static final Logger LOG = LoggerFactory.getLogger(BrokerInterceptor.class);
-    private final Map<Class<?>, List<InterceptHandler>> handlers;
-    private final ExecutorService executor;
-
-    private BrokerInterceptor(int poolSize, List<InterceptHandler> handlers) {
+    private final Map<Class<?>, CopyOnWriteArrayList<InterceptorLane>> handlers;
+    private final Map<InterceptHandler, InterceptorLane> lanes = new ConcurrentHashMap<>();
+    private final int ringSize;
+    private final OverloadPolicy overloadPolicy;
+    private final int sampleRate;
+
+    private BrokerInterceptor(int ringSize, OverloadPolicy overloadPolicy, int sampleRate,
+                              List<InterceptHandler> handlers) {
         LOG.info("Initializing broker interceptor. InterceptorIds={}", getInterceptorIds(handlers));
+        this.ringSize = ringSize;
+        this.overloadPolicy = overloadPolicy;
+        this.sampleRate = sampleRate;
         this.handlers = new HashMap<>();
         for (Class<?> messageType : InterceptHandler.ALL_MESSAGE_TYPES) {
-            this.handlers.put(messageType, new CopyOnWriteArrayList<InterceptHandler>());
+            this.handlers.put(messageType, new CopyOnWriteArrayList<InterceptorLane>());
         }
         for (InterceptHandler handler : handlers) {
             this.addInterceptHandler(handler);
         }
-        executor = Executors.newFixedThreadPool(poolSize);
     }
 
     /**
-     * Configures a broker interceptor, with a thread pool of one thread.
+     * Configures a broker interceptor with the default ring size, blocking the broker when a ring is full.
      *
      * @param handlers
      */
-    BrokerInterceptor(List<InterceptHandler> handlers) {
-        this(1, handlers);
+    public BrokerInterceptor(List<InterceptHandler> handlers) {
+        this(DEFAULT_INTERCEPT_RING_SIZE, OverloadPolicy.BLOCK, DEFAULT_INTERCEPT_OVERLOAD_SAMPLE_RATE, handlers);
     }
 
     /**
-     * Configures a broker interceptor using the pool size specified in the IConfig argument.
+     * Configures a broker interceptor using the ring size and the overload policy specified in the IConfig argument.
      */
     BrokerInterceptor(IConfig props, List<InterceptHandler> handlers) {
-        this(Integer.parseInt(props.getProperty(BrokerConstants.BROKER_INTERCEPTOR_THREAD_POOL_SIZE, "1")), handlers);
+        this(Integer.parseInt(props.getProperty(INTERCEPT_RING_SIZE_PROPERTY_NAME,
+                String.valueOf(DEFAULT_INTERCEPT_RING_SIZE))),
+            OverloadPolicy.parse(props.getProperty(INTERCEPT_OVERLOAD_POLICY_PROPERTY_NAME,
+                DEFAULT_INTERCEPT_OVERLOAD_POLICY)),
+            Integer.parseInt(props.getProperty(INTERCEPT_OVERLOAD_SAMPLE_RATE_PROPERTY_NAME,
+                String.valueOf(DEFAULT_INTERCEPT_OVERLOAD_SAMPLE_RATE))),
+            handlers);
+        if (props.getProperty(BROKER_INTERCEPTOR_THREAD_POOL_SIZE) != null) {
+            LOG.warn("{} is ignored, each intercept handler has a thread of its own",
+                BROKER_INTERCEPTOR_THREAD_POOL_SIZE);
+        }
     }
 
     /**
-     * Shutdown graciously the executor service
+     * Shutdown graciously the lanes, dispatching the events already queued
      */
-    void stop() {
-        LOG.info("Shutting down interceptor thread pool...");
-        executor.shutdown();
+    public void stop() {
+        LOG.info("Shutting down interceptor lanes...");
+        for (InterceptorLane lane : lanes.values()) {
+            lane.stop();
+        }
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        boolean terminated = true;
         try {
-            LOG.info("Waiting for thread pool tasks to terminate...");
-            executor.awaitTermination(10L, TimeUnit.SECONDS);
+            LOG.info("Waiting for the queued events to be dispatched...");
+            for (InterceptorLane lane : lanes.values()) {
+                terminated &= lane.awaitTermination(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            }
         } catch (InterruptedException e) {
+            terminated = false;
         }
-        if (!executor.isTerminated()) {
-            LOG.warn("Forcing shutdown of interceptor thread pool...");
-            executor.shutdownNow();
+        if (!terminated) {
+            LOG.warn("Forcing shutdown of interceptor lanes...");
+            for (InterceptorLane lane : lanes.values()) {
+                lane.interrupt();
+            }
         }
         LOG.info("interceptors stopped");
     }
 
     @Override
     public void notifyClientConnected(final MqttConnectMessage msg) {
-        for (final InterceptHandler handler : this.handlers.get(InterceptConnectMessage.class)) {
-            LOG.debug("Sending MQTT CONNECT message to interceptor. CId={}, interceptorId={}",
-                    msg.payload().clientIdentifier(), handler.getID());
-            executor.execute(() -> handler.onConnect(new InterceptConnectMessage(msg)));
+        final List<InterceptorLane> targets = this.handlers.get(InterceptConnectMessage.class);
+        if (targets.isEmpty()) {
+            return;
+        }
+        LOG.debug("Sending MQTT CONNECT message to interceptors. CId={}", msg.payload().clientIdentifier());
+        final InterceptConnectMessage event = new InterceptConnectMessage(msg);
+        for (InterceptorLane lane : targets) {
+            lane.offer(event);
         }
     }
 
     @Override
     public void notifyClientDisconnected(final String clientID, final String username) {
-        for (final InterceptHandler handler : this.handlers.get(InterceptDisconnectMessage.class)) {
-            LOG.debug("Notifying MQTT client disconnection to interceptor. CId={}, username={}, interceptorId={}",
-                clientID, username, handler.getID());
-            executor.execute(() -> handler.onDisconnect(new InterceptDisconnectMessage(clientID, username)));
+        final List<InterceptorLane> targets = this.handlers.get(InterceptDisconnectMessage.class);
+        if (targets.isEmpty()) {
+            return;
+        }
+        LOG.debug("Notifying MQTT client disconnection to interceptors. CId={}, username={}", clientID, username);
+        final InterceptDisconnectMessage event = new InterceptDisconnectMessage(clientID, username);
+        for (InterceptorLane lane : targets) {
+            lane.offer(event);
         }
     }
 
     @Override
     public void notifyClientConnectionLost(final String clientID, final String username) {
-        for (final InterceptHandler handler : this.handlers.get(InterceptConnectionLostMessage.class)) {
-            LOG.debug("Notifying unexpected MQTT client disconnection to interceptor CId={}, username={}, " +
-                "interceptorId={}", clientID, username, handler.getID());
-            executor.execute(() -> handler.onConnectionLost(new InterceptConnectionLostMessage(clientID, username)));
+        final List<InterceptorLane> targets = this.handlers.get(InterceptConnectionLostMessage.class);
+        if (targets.isEmpty()) {
+            return;
+        }
+        LOG.debug("Notifying unexpected MQTT client disconnection to interceptors CId={}, username={}", clientID,
+            username);
+        final InterceptConnectionLostMessage event = new InterceptConnectionLostMessage(clientID, username);
+        for (InterceptorLane lane : targets) {
+            lane.offer(event);
         }
     }
 
     @Override
-    public void notifyTopicPublished(final MqttPublishMessage msg, final String clientID, final String username) {
-        msg.retain();
-
-        executor.execute(() -> {
-                try {
-                    int messageId = msg.variableHeader().messageId();
-                    String topic = msg.variableHeader().topicName();
-                    for (InterceptHandler handler : handlers.get(InterceptPublishMessage.class)) {
-                        LOG.debug("Notifying MQTT PUBLISH message to interceptor. CId={}, messageId={}, topic={}, "
-                                + "interceptorId={}", clientID, messageId, topic, handler.getID());
-                        handler.onPublish(new InterceptPublishMessage(msg, clientID, username));
-                    }
-                } finally {
-                    ReferenceCountUtil.release(msg);
-                }
-        });
+    public void notifyTopicPublished(final MqttPublishMessage msg, final String clientID, final String username,
+                                     final MessageGUID guid) {
+        final List<InterceptorLane> targets = this.handlers.get(InterceptPublishMessage.class);
+        if (targets.isEmpty()) {
+            return;
+        }
+        for (InterceptorLane lane : targets) {
+            // the lanes read the payload on threads of their own, each event has its own indexes over the buffer,
+            // released by the lane once dispatched or dropped
+            lane.offer(new InterceptPublishMessage(msg.retainedDuplicate(), clientID, username, guid));
+        }
     }
 
     @Override
     public void notifyTopicSubscribed(final Subscription sub, final String username) {
-        for (final InterceptHandler handler : this.handlers.get(InterceptSubscribeMessage.class)) {
-            LOG.debug("Notifying MQTT SUBSCRIBE message to interceptor. CId={}, topicFilter={}, interceptorId={}",
-                sub.getClientId(), sub.getTopicFilter(), handler.getID());
-            executor.execute(() -> handler.onSubscribe(new InterceptSubscribeMessage(sub, username)));
+        final List<InterceptorLane> targets = this.handlers.get(InterceptSubscribeMessage.class);
+        if (targets.isEmpty()) {
+            return;
+        }
+        LOG.debug("Notifying MQTT SUBSCRIBE message to interceptors. CId={}, topicFilter={}", sub.getClientId(),
+            sub.getTopicFilter());
+        final InterceptSubscribeMessage event = new InterceptSubscribeMessage(sub, username);
+        for (InterceptorLane lane : targets) {
+            lane.offer(event);
         }
     }
 
     @Override
     public void notifyTopicUnsubscribed(final String topic, final String clientID, final String username) {
-        for (final InterceptHandler handler : this.handlers.get(InterceptUnsubscribeMessage.class)) {
-            LOG.debug("Notifying MQTT UNSUBSCRIBE message to interceptor. CId={}, topic={}, interceptorId={}", clientID,
-                topic, handler.getID());
-            executor.execute(() -> handler.onUnsubscribe(new InterceptUnsubscribeMessage(topic, clientID, username)));
+        final List<InterceptorLane> targets = this.handlers.get(InterceptUnsubscribeMessage.class);
+        if (targets.isEmpty()) {
+            return;
+        }
+        LOG.debug("Notifying MQTT UNSUBSCRIBE message to interceptors. CId={}, topic={}", clientID, topic);
+        final InterceptUnsubscribeMessage event = new InterceptUnsubscribeMessage(topic, clientID, username);
+        for (InterceptorLane lane : targets) {
+            lane.offer(event);
         }
     }
 
     @Override
     public void notifyMessageAcknowledged(final InterceptAcknowledgedMessage msg) {
-        for (final InterceptHandler handler : this.handlers.get(InterceptAcknowledgedMessage.class)) {
-            LOG.debug("Notifying MQTT ACK message to interceptor. CId={}, messageId={}, topic={}, interceptorId={}",
-                msg.getMsg().getClientID(), msg.getPacketID(), msg.getTopic(), handler.getID());
-            executor.execute(() -> handler.onMessageAcknowledged(msg));
+        final List<InterceptorLane> targets = this.handlers.get(InterceptAcknowledgedMessage.class);
+        if (targets.isEmpty()) {
+            return;
+        }
+        LOG.debug("Notifying MQTT ACK message to interceptors. CId={}, messageId={}, topic={}",
+            msg.getMsg().getClientID(), msg.getPacketID(), msg.getTopic());
+        for (InterceptorLane lane : targets) {
+            lane.offer(msg);
         }
     }
 
@@ -172,8 +219,10 @@ final class BrokerInterceptor implements Interceptor {
         Class<?>[] interceptedMessageTypes = getInterceptedMessageTypes(interceptHandler);
         LOG.info("Adding MQTT message interceptor. InterceptorId={}, handledMessageTypes={}",
             interceptHandler.getID(), interceptedMessageTypes);
+        final InterceptorLane lane = lanes.computeIfAbsent(interceptHandler,
+            handler -> new InterceptorLane(handler, ringSize, overloadPolicy, sampleRate));
         for (Class<?> interceptMessageType : interceptedMessageTypes) {
-            this.handlers.get(interceptMessageType).add(interceptHandler);
+            this.handlers.get(interceptMessageType).addIfAbsent(lane);
         }
     }
 
@@ -182,9 +231,15 @@ final class BrokerInterceptor implements Interceptor {
         Class<?>[] interceptedMessageTypes = getInterceptedMessageTypes(interceptHandler);
         LOG.info("Removing MQTT message interceptor. InterceptorId={}, handledMessageTypes={}",
             interceptHandler.getID(), interceptedMessageTypes);
+        final InterceptorLane lane = lanes.remove(interceptHandler);
+        if (lane == null) {
+            return;
+        }
         for (Class<?> interceptMessageType : interceptedMessageTypes) {
-            this.handlers.get(interceptMessageType).remove(interceptHandler);
+            this.handlers.get(interceptMessageType).remove(lane);
         }
+        // the events already queued are still dispatched
+        lane.stop();
     }
 
     private static Class<?>[] getInterceptedMessageTypes(InterceptHandler interceptHandler) {
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.spi.impl;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.kd.interception.BatchInterceptHandler;
+import com.kd.interception.InterceptHandler;
+import com.kd.interception.messages.*;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.kd.BrokerConstants.METRICS_REGISTRY_NAME;
+import static com.kd.BrokerConstants.registerGauge;
+
+/**
+ * Bounded ring of the events of one intercept handler, filled by the broker threads and drained in batches by a
+ * thread of its own: a slow handler fills only its ring, and the payloads it keeps alive are bounded by the ring size.
+ *
+ * As in a disruptor, each slot holds the sequence expected next in it: a producer claims the slot of the tail
+ * sequence with a CAS and publishes the event advancing the slot sequence, the consumer takes the run of published
+ * slots and frees them when the batch is dispatched. When the ring is full the overload policy applies.
+ *
+ * Each lane gets publish events of its own, over a retained duplicate of the payload so the handlers reading it don't
+ * move the indexes another lane reads, and releases them once dispatched or dropped.
+ * For a {@link BatchInterceptHandler} the lane accumulates the publishes in a batch, flushed when full, when its
+ * oldest publish lingered enough or before any other event.
+ */
+final class InterceptorLane {
+
+    enum OverloadPolicy {
+        /**
+         * The producers wait for a free slot, the handler slows down the broker.
+         */
+        BLOCK,
+        /**
+         * The events are dropped when the ring is full, and counted.
+         */
+        DROP,
+        /**
+         * Beyond half of the ring one event every sample rate is kept, the others are counted. Dropped when full.
+         */
+        SAMPLE;
+
+        static OverloadPolicy parse(String policy) {
+            return valueOf(policy.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(InterceptorLane.class);
+    private static final int MAX_BATCH = 256;
+    private static final int IDLE_YIELDS = 64;
+    // bounds the waits, in case the consumer stops while a producer blocks
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final InterceptHandler handler;
+    private final OverloadPolicy policy;
+    private final int sampleRate;
+    private final int mask;
+    private final Object[] events;
+    private final long[] enqueuedNanos;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong overloaded = new AtomicLong();
+    // written only by the consumer
+    private volatile long head;
+    private volatile boolean waiting;
+    private volatile boolean running = true;
+    private final Thread consumer;
+    private final Meter dropped;
+    private final Meter sampled;
+    // null unless the handler takes the publishes in batches
+    private final BatchInterceptHandler batchHandler;
+    private final List<InterceptPublishMessage> pending;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final Histogram batchSizes;
+    // enqueue time of the oldest publish pending
+    private long pendingSince;
+
+    /**
+     * @param ringSize the slots of the ring, rounded up to a power of two.
+     */
+    InterceptorLane(InterceptHandler handler, int ringSize, OverloadPolicy policy, int sampleRate) {
+        this.handler = handler;
+        this.policy = policy;
+        this.sampleRate = Math.max(1, sampleRate);
+        final int capacity = Integer.highestOneBit(Math.max(2, ringSize) - 1) << 1;
+        this.mask = capacity - 1;
+        this.events = new Object[capacity];
+        this.enqueuedNanos = new long[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
+        final String prefix = "interceptor." + handler.getID();
+        this.dropped = metrics.meter(prefix + ".dropped");
+        this.sampled = metrics.meter(prefix + ".sampled");
+        registerGauge(prefix + ".depth", this::depth);
+        registerGauge(prefix + ".lag", this::lagMillis);
+        if (handler instanceof BatchInterceptHandler) {
+            this.batchHandler = (BatchInterceptHandler) handler;
+            this.maxBatchSize = Math.max(1, batchHandler.getMaxBatchSize());
+            this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, batchHandler.getMaxLingerMillis()));
+            this.pending = new ArrayList<>(Math.min(maxBatchSize, MAX_BATCH));
+            this.batchSizes = metrics.histogram(prefix + ".batch_size");
+        } else {
+            this.batchHandler = null;
+            this.maxBatchSize = 0;
+            this.maxLingerNanos = 0;
+            this.pending = null;
+            this.batchSizes = null;
+        }
+        this.consumer = new Thread(this::drain, "interceptor-" + handler.getID());
+        this.consumer.start();
+        LOG.info("Intercept handler {} has a ring of {} events, overload policy {}", handler.getID(), capacity,
+            policy);
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+
+    /**
+     * @return the events waiting for the handler.
+     */
+    long depth() {
+        return Math.max(0, tail.get() - head);
+    }
+
+    /**
+     * @return the milliseconds the oldest event waiting has spent in the ring, 0 if none.
+     */
+    long lagMillis() {
+        final long next = head;
+        if (sequences.get(index(next)) != next + 1) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - enqueuedNanos[index(next)]);
+    }
+
+    /**
+     * Adds the event to the ring, following the overload policy when it's full.
+     *
+     * @return false if the event was dropped.
+     */
+    boolean offer(Object event) {
+        if (!running) {
+            // stopped, or its thread failed
+            dropped.mark();
+            release(event);
+            return false;
+        }
+        if (policy == OverloadPolicy.SAMPLE && depth() > mask / 2
+                && overloaded.getAndIncrement() % sampleRate != 0) {
+            sampled.mark();
+            release(event);
+            return false;
+        }
+        while (true) {
+            final long sequence = tail.get();
+            final int index = index(sequence);
+            final long available = sequences.get(index) - sequence;
+            if (available == 0) {
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    events[index] = event;
+                    enqueuedNanos[index] = System.nanoTime();
+                    sequences.set(index, sequence + 1);
+                    if (waiting) {
+                        // a single wakeup, the next producers find the consumer not waiting
+                        waiting = false;
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (available < 0) {
+                // full, the slot still holds an event of the previous lap
+                if (policy != OverloadPolicy.BLOCK || !running) {
+                    dropped.mark();
+                    release(event);
+                    return false;
+                }
+                LockSupport.parkNanos(this, PARK_NANOS / 100);
+            }
+            // else claimed by another producer meanwhile
+        }
+    }
+
+    private void drain() {
+        try {
+            drainRing();
+            LOG.info("Intercept handler {} stopped", handler.getID());
+        } catch (Throwable t) {
+            LOG.error("The lane of intercept handler {} failed, its next events are dropped", handler.getID(), t);
+        } finally {
+            // the producers stop waiting for a free slot
+            running = false;
+        }
+    }
+
+    private void drainRing() {
+        long next = head;
+        int idle = 0;
+        while (true) {
+            int batch = 0;
+            while (batch < MAX_BATCH && sequences.get(index(next + batch)) == next + batch + 1) {
+                batch++;
+            }
+            if (batch == 0) {
+                if (hasPending() && (!running || lingerExpired())) {
+                    flushBatch();
+                }
+                if (!running) {
+                    break;
+                }
+                if (idle++ < IDLE_YIELDS) {
+                    // lets the producers fill a batch before parking, a wakeup per event costs more than the event
+                    Thread.yield();
+                    continue;
+                }
+                idle = 0;
+                waiting = true;
+                if (sequences.get(index(next)) != next + 1 && running) {
+                    LockSupport.parkNanos(this, hasPending()
+                        ? Math.min(PARK_NANOS, pendingSince + maxLingerNanos - System.nanoTime()) : PARK_NANOS);
+                }
+                waiting = false;
+                continue;
+            }
+            idle = 0;
+            for (int i = 0; i < batch; i++) {
+                final int index = index(next + i);
+                final Object event = events[index];
+                events[index] = null;
+                accept(event, enqueuedNanos[index]);
+            }
+            // frees the slots of the batch for the next lap
+            for (int i = 0; i < batch; i++) {
+                sequences.set(index(next + i), next + i + mask + 1);
+            }
+            next += batch;
+            head = next;
+            if (hasPending() && lingerExpired()) {
+                flushBatch();
+            }
+        }
+    }
+
+    private void accept(Object event, long enqueued) {
+        if (batchHandler == null) {
+            dispatch(event);
+            return;
+        }
+        if (event instanceof InterceptPublishMessage) {
+            if (pending.isEmpty()) {
+                pendingSince = enqueued;
+            }
+            pending.add((InterceptPublishMessage) event);
+            if (pending.size() >= maxBatchSize) {
+                flushBatch();
+            }
+            return;
+        }
+        // the publishes before the event are notified first
+        if (hasPending()) {
+            flushBatch();
+        }
+        dispatch(event);
+    }
+
+    private boolean hasPending() {
+        return pending != null && !pending.isEmpty();
+    }
+
+    private boolean lingerExpired() {
+        return System.nanoTime() - pendingSince >= maxLingerNanos;
+    }
+
+    private void flushBatch() {
+        batchSizes.update(pending.size());
+        try {
+            batchHandler.onPublishBatch(pending);
+        } catch (Throwable e) {
+            LOG.error("Intercept handler {} failed on a batch of {} publishes", handler.getID(), pending.size(), e);
+        } finally {
+            for (InterceptPublishMessage publish : pending) {
+                release(publish);
+            }
+            pending.clear();
+        }
+    }
+
+    private void dispatch(Object event) {
+        try {
+            if (event instanceof InterceptPublishMessage) {
+                final InterceptPublishMessage publish = (InterceptPublishMessage) event;
+                LOG.debug("Notifying MQTT PUBLISH message to interceptor. CId={}, topic={}, interceptorId={}",
+                    publish.getClientID(), publish.getTopicName(), handler.getID());
+                handler.onPublish(publish);
+            } else if (event instanceof InterceptConnectMessage) {
+                handler.onConnect((InterceptConnectMessage) event);
+            } else if (event instanceof InterceptDisconnectMessage) {
+                handler.onDisconnect((InterceptDisconnectMessage) event);
+            } else if (event instanceof InterceptConnectionLostMessage) {
+                handler.onConnectionLost((InterceptConnectionLostMessage) event);
+            } else if (event instanceof InterceptSubscribeMessage) {
+                handler.onSubscribe((InterceptSubscribeMessage) event);
+            } else if (event instanceof InterceptUnsubscribeMessage) {
+                handler.onUnsubscribe((InterceptUnsubscribeMessage) event);
+            } else if (event instanceof InterceptAcknowledgedMessage) {
+                handler.onMessageAcknowledged((InterceptAcknowledgedMessage) event);
+            }
+        } catch (Throwable e) {
+            // the next events still go to the handler, an error thrown by it included
+            LOG.error("Intercept handler {} failed on {}", handler.getID(), event.getClass().getSimpleName(), e);
+        } finally {
+            release(event);
+        }
+    }
+
+    private static void release(Object event) {
+        if (event instanceof InterceptPublishMessage) {
+            ReferenceCountUtil.release(((InterceptPublishMessage) event).getPayload());
+        }
+    }
+
+    /**
+     * Stops the lane once the events already in the ring are dispatched, the next ones are dropped.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(consumer);
+    }
+
+    /**
+     * @return true if the events left were dispatched in time.
+     */
+    boolean awaitTermination(long millis) throws InterruptedException {
+        consumer.join(Math.max(1, millis));
+        return !consumer.isAlive();
+    }
+
+    void interrupt() {
+        consumer.interrupt();
+    }
+}
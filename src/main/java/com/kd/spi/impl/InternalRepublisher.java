@@ -25,8 +25,6 @@ import com.kd.spi.ClientSession;
 import com.kd.spi.EnqueuedMessage;
 import com.kd.spi.IMessagesStore;
 
-import java.util.Collection;
-
 class InternalRepublisher {
 
     private static final Logger LOG = LoggerFactory.getLogger(InternalRepublisher.class);
@@ -37,23 +35,6 @@ class InternalRepublisher {
         this.messageSender = messageSender;
     }
 
-    void publishRetained(ClientSession targetSession, Collection<IMessagesStore.StoredMessage> messages) {
-        for (IMessagesStore.StoredMessage storedMsg : messages) {
-            // fire as retained the message
-            MqttPublishMessage publishMsg = retainedPublish(storedMsg);
-            if (storedMsg.getQos() != MqttQoS.AT_MOST_ONCE) {
-                LOG.debug("Adding message to inflight zone. ClientId={}, topic={}", targetSession.clientID,
-                    storedMsg.getTopic());
-                int packetID = targetSession.inFlightAckWaiting(storedMsg);
-
-                // set the PacketIdentifier only for QoS > 0
-                publishMsg = retainedPublish(storedMsg, packetID);
-            }
-
-            this.messageSender.sendPublish(targetSession, publishMsg);
-        }
-    }
-
     void publishStored(ClientSession clientSession) {
         if (clientSession.isEmptyQueue()) {
             LOG.info("There are no stored publish events to CId={}", clientSession.clientID);
@@ -85,16 +66,6 @@ class InternalRepublisher {
             0);
     }
 
-    private MqttPublishMessage retainedPublish(IMessagesStore.StoredMessage storedMessage) {
-        return createPublishForQos(storedMessage.getTopic(), storedMessage.getQos(), storedMessage.getPayload(), true,
-            0);
-    }
-
-    private MqttPublishMessage retainedPublish(IMessagesStore.StoredMessage storedMessage, Integer packetID) {
-        return createPublishForQos(storedMessage.getTopic(), storedMessage.getQos(), storedMessage.getPayload(), true,
-            packetID);
-    }
-
     public static MqttPublishMessage createPublishForQos(String topic, MqttQoS qos, ByteBuf message, boolean retained,
             int messageId) {
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, retained, 0);
@@ -22,6 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.kd.connections.IConnectionsManager;
+import com.kd.server.ConnectionDescriptor;
 import com.kd.spi.ClientSession;
 import com.kd.spi.IMessagesStore;
 import com.kd.spi.impl.subscriptions.ISubscriptionsDirectory;
@@ -81,12 +82,18 @@ class MessagesPublisher {
 
         for (final Subscription sub : topicMatchingSubscriptions) {
             MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
-            ClientSession targetSession = this.sessionsRepository.sessionForClient(sub.getClientId());
+            // the handle of the subscriber replaces the lookups of its session and connection by client id
+            final SessionHandle target = this.sessionsRepository.handleFor(sub);
+            final ClientSession targetSession = target == null ? null : target.session();
+            if (targetSession == null) {
+                //clean session disconnected
+                continue;
+            }
 
-            boolean targetIsActive = this.connectionDescriptors.isConnected(sub.getClientId());
+            final ConnectionDescriptor connection = target.connection();
             // TODO move all this logic into messageSender, which puts into the flightZone only the messages
             // that pull out of the queue.
-            if (targetIsActive) {
+            if (connection != null) {
                 LOG.debug("Sending PUBLISH message to active subscriber. CId={}, topicFilter={}, qos={}",
                     sub.getClientId(), sub.getTopicFilter(), qos);
                 // we need to retain because duplicate only copy r/w indexes and don't retain() causing
@@ -101,13 +108,13 @@ class MessagesPublisher {
                 } else {
                     publishMsg = notRetainedPublish(topic1, qos, payload);
                 }
-                this.messageSender.sendPublish(targetSession, publishMsg);
+                this.messageSender.sendPublish(targetSession, connection, publishMsg);
             } else {
                 if (!targetSession.isCleanSession()) {
                     LOG.debug("Storing pending PUBLISH inactive message. CId={}, topicFilter={}, qos={}",
                         sub.getClientId(), sub.getTopicFilter(), qos);
-                    // store the message in targetSession queue to deliver
-                    targetSession.enqueue(pubMsg);
+                    // store the message in targetSession queue to deliver, held while handed over to another node
+                    target.enqueue(targetSession, pubMsg);
                 }
             }
         }
@@ -27,8 +27,6 @@ import com.kd.server.ConnectionDescriptor;
 import com.kd.server.ConnectionDescriptorStore;
 import com.kd.spi.ClientSession;
 
-import java.util.Optional;
-
 import static com.kd.spi.impl.ProtocolProcessor.asStoredMessage;
 import static io.netty.handler.codec.mqtt.MqttQoS.AT_MOST_ONCE;
 
@@ -42,6 +40,14 @@ class PersistentQueueMessageSender {
     }
 
     void sendPublish(ClientSession clientsession, MqttPublishMessage pubMessage) {
+        sendPublish(clientsession, connectionDescriptorStore.lookupDescriptor(clientsession.clientID).orElse(null),
+            pubMessage);
+    }
+
+    /**
+     * Sends the message on the connection already resolved, or stores it if null.
+     */
+    void sendPublish(ClientSession clientsession, ConnectionDescriptor descriptor, MqttPublishMessage pubMessage) {
         String clientId = clientsession.clientID;
         final int messageId = pubMessage.variableHeader().messageId();
         final String topicName = pubMessage.variableHeader().topicName();
@@ -55,9 +61,7 @@ class PersistentQueueMessageSender {
 
         boolean messageDelivered = false;
 
-        final Optional<ConnectionDescriptor> optDescriptor = connectionDescriptorStore.lookupDescriptor(clientId);
-        if (optDescriptor.isPresent()) {
-            final ConnectionDescriptor descriptor = optDescriptor.get();
+        if (descriptor != null) {
             try {
                 descriptor.writeAndFlush(pubMessage);
                 messageDelivered = true;
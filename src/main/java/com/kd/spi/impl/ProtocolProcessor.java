@@ -42,29 +42,41 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import example.webSocket.client.WebSocketClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.kd.BrokerConstants;
 import com.kd.connections.IConnectionsManager;
 import com.kd.interception.InterceptHandler;
 import com.kd.interception.messages.InterceptAcknowledgedMessage;
+import com.kd.cluster.ClusterTransport;
+import com.kd.cluster.SubscriptionRouter;
 import com.kd.server.ConnectionDescriptor;
 import com.kd.server.ConnectionDescriptorStore;
 import com.kd.server.netty.AutoFlushHandler;
 import com.kd.server.netty.NettyUtils;
 import com.kd.spi.ClientSession;
+import com.kd.spi.DuplicateFilter;
 import com.kd.spi.EnqueuedMessage;
 import com.kd.spi.IMessagesStore;
 import com.kd.spi.IMessagesStore.StoredMessage;
 import com.kd.spi.ISessionsStore;
+import com.kd.spi.MessageGUID;
+import com.kd.spi.MessageGUIDGenerator;
 import com.kd.spi.impl.subscriptions.ISubscriptionsDirectory;
 import com.kd.spi.impl.subscriptions.Subscription;
 import com.kd.spi.impl.subscriptions.Topic;
@@ -138,6 +150,7 @@ public class ProtocolProcessor {
     }
 
     private static final Logger LOG = LoggerFactory.getLogger(ProtocolProcessor.class);
+    private static final MessageGUIDGenerator GUIDS = new MessageGUIDGenerator();
 
     private IConnectionsManager connectionDescriptors;
 
@@ -162,6 +175,9 @@ public class ProtocolProcessor {
     private MessagesPublisher messagesPublisher;
     private InternalRepublisher internalRepublisher;
     SessionsRepository sessionsRepository;
+    private int retainedMaxInflight = BrokerConstants.DEFAULT_RETAINED_DELIVERY_MAX_INFLIGHT;
+    // null unless part of a cluster taking over the sessions
+    private volatile SessionTakeover sessionTakeover;
 
     // maps clientID to Will testament, if specified on CONNECT
     private ConcurrentMap<String, WillMessage> m_willStore = new ConcurrentHashMap<>();
@@ -221,6 +237,7 @@ public class ProtocolProcessor {
         m_sessionsStore = sessionsStore;
 
         this.sessionsRepository = sessionsRepository;
+        this.sessionsRepository.onSessionExpired(this::removeExpiredSubscriptions);
 
         LOG.info("Initializing messages publisher...");
         final PersistentQueueMessageSender messageSender = new PersistentQueueMessageSender(this.connectionDescriptors);
@@ -230,15 +247,50 @@ public class ProtocolProcessor {
         LOG.debug("Initializing QoS publish handlers...");
         this.qos0PublishHandler = new Qos0PublishHandler(m_authorizator, m_messagesStore, m_interceptor,
                 this.messagesPublisher);
-        this.qos1PublishHandler = new Qos1PublishHandler(m_authorizator, m_messagesStore, m_interceptor,
-                this.connectionDescriptors, this.messagesPublisher);
-        this.qos2PublishHandler = new Qos2PublishHandler(m_authorizator, subscriptions, m_messagesStore, m_interceptor,
-                this.connectionDescriptors, this.messagesPublisher, this.sessionsRepository);
+        this.qos1PublishHandler = new Qos1PublishHandler(m_authorizator, m_messagesStore, m_sessionsStore,
+                m_interceptor, this.connectionDescriptors, this.messagesPublisher);
+        this.qos2PublishHandler = new Qos2PublishHandler(m_authorizator, subscriptions, m_messagesStore,
+                m_sessionsStore, m_interceptor, this.connectionDescriptors, this.messagesPublisher,
+                this.sessionsRepository);
 
         LOG.debug("Initializing internal republisher...");
         this.internalRepublisher = new InternalRepublisher(messageSender);
     }
 
+    /**
+     * Takes over from the other nodes of the cluster the persistent sessions of the clients connecting.
+     *
+     * @param router shares the subscriptions imported, null when the publishes are broadcast.
+     * @param scheduler times out the sessions handed over and not confirmed.
+     * @return the takeover, to notify of the session requests, transfers and confirmations of the peers.
+     */
+    public SessionTakeover enableSessionTakeover(ClusterTransport transport, long timeoutMillis,
+                                                 SubscriptionRouter router, ScheduledExecutorService scheduler) {
+        this.sessionTakeover = new SessionTakeover(transport, timeoutMillis, m_sessionsStore, subscriptions,
+            sessionsRepository, connectionDescriptors, m_interceptor, internalRepublisher, router, scheduler);
+        LOG.info("Taking over the sessions of the clients from the cluster, timeout {} ms", timeoutMillis);
+        return this.sessionTakeover;
+    }
+
+    /**
+     * Drops the retransmissions of the QoS 1 publishes already received by a node of the cluster, in the window.
+     *
+     * @return the filter, to drop the publishes the node receives twice from the cluster.
+     */
+    public DuplicateFilter enableDuplicateFilter(long windowMillis, int capacity) {
+        final DuplicateFilter filter = new DuplicateFilter(windowMillis, capacity);
+        qos1PublishHandler.setDuplicateFilter(filter);
+        LOG.info("Dropping the duplicate publishes seen in the last {} ms, capacity {}", windowMillis, capacity);
+        return filter;
+    }
+
+    /**
+     * @return the guid of a message entering the broker.
+     */
+    static MessageGUID nextGuid() {
+        return GUIDS.next();
+    }
+
     public void processConnect(Channel channel, MqttConnectMessage msg) {
         MqttConnectPayload payload = msg.payload();
         String clientId = payload.clientIdentifier();
@@ -271,11 +323,57 @@ public class ProtocolProcessor {
                 payload.userName());
         }
 
-        if (!login(channel, msg, clientId)) {
+        final CompletableFuture<Boolean> credentials = checkCredentials(channel, msg, clientId);
+        if (credentials.isDone()) {
+            // the authenticators not doing I/O answer at once
+            loggedIn(channel, msg, clientId, cleanSession, credentials);
+            return;
+        }
+        // nothing more is read from the client until it's authenticated, the CONNACK is sent after, what
+        // was already read is deferred until then
+        channel.config().setAutoRead(false);
+        NettyUtils.deferMessages(channel);
+        final String authenticatingId = clientId;
+        credentials.whenComplete((valid, error) -> channel.eventLoop().execute(() -> {
+            channel.config().setAutoRead(true);
+            loggedIn(channel, msg, authenticatingId, cleanSession, credentials);
+        }));
+    }
+
+    private void loggedIn(Channel channel, MqttConnectMessage msg, String clientId, boolean cleanSession,
+                          CompletableFuture<Boolean> credentials) {
+        if (!login(channel, msg, clientId, credentials)) {
             channel.close().addListener(CLOSE_ON_FAILURE);
             return;
         }
+        if (!channel.isActive()) {
+            LOG.info("Client closed the connection while being authenticated. CId={}", clientId);
+            return;
+        }
+
+        final SessionTakeover takeover = this.sessionTakeover;
+        if (!cleanSession && takeover != null && !m_sessionsStore.contains(clientId)) {
+            // nothing more is read from the client until its session is here
+            channel.config().setAutoRead(false);
+            NettyUtils.deferMessages(channel);
+            final String connectingId = clientId;
+            takeover.pull(clientId, channel.eventLoop()).whenComplete((transfers, error) ->
+                channel.eventLoop().execute(() -> {
+                    takeover.importSessions(connectingId, NettyUtils.userName(channel), transfers);
+                    if (!channel.isActive()) {
+                        // the session stays on the node, expiring as any other
+                        this.sessionsRepository.disconnect(connectingId);
+                        return;
+                    }
+                    channel.config().setAutoRead(true);
+                    connect(channel, msg, connectingId, cleanSession);
+                }));
+            return;
+        }
+        connect(channel, msg, clientId, cleanSession);
+    }
 
+    private void connect(Channel channel, MqttConnectMessage msg, String clientId, boolean cleanSession) {
         ConnectionDescriptor descriptor = new ConnectionDescriptor(clientId, channel, cleanSession);
         final ConnectionDescriptor existing = this.connectionDescriptors.addConnection(descriptor);
 //        SpingUtilSupport.getStringRedisTemplate().opsForValue().set("countActiveConnections", this.connectionDescriptors.countActiveConnections()+"");
@@ -302,7 +400,10 @@ public class ProtocolProcessor {
             channel.close().addListener(CLOSE_ON_FAILURE);
             return;
         }
-        final ClientSession clientSession = this.sessionsRepository.createOrLoadClientSession(clientId, cleanSession);
+        final SessionHandle handle = this.sessionsRepository.createOrLoadClientSession(clientId, cleanSession,
+            descriptor);
+        NettyUtils.sessionHandle(channel, handle);
+        final ClientSession clientSession = handle.session();
 
         if (!republish(descriptor, msg, clientSession)) {
             channel.close().addListener(CLOSE_ON_FAILURE);
@@ -315,9 +416,12 @@ public class ProtocolProcessor {
         final boolean success = descriptor.assignState(MESSAGES_REPUBLISHED, ESTABLISHED);
         if (!success) {
             channel.close().addListener(CLOSE_ON_FAILURE);
+        } else if (NettyUtils.deferredMessages(channel) != null) {
+            // the messages pipelined after the CONNECT are processed now that the CONNACK is sent
+            channel.pipeline().fireUserEventTriggered(NettyUtils.CONNECT_COMPLETED);
         }
 
-        LOG.info("Connected client <{}> with login <{}>", clientId, payload.userName());
+        LOG.info("Connected client <{}> with login <{}>", clientId, msg.payload().userName());
     }
 
     private void setupAutoFlusher(Channel channel, int flushIntervalMs) {
@@ -348,7 +452,11 @@ public class ProtocolProcessor {
         return new MqttConnAckMessage(mqttFixedHeader, mqttConnAckVariableHeader);
     }
 
-    private boolean login(Channel channel, MqttConnectMessage msg, final String clientId) {
+    /**
+     * @return completed with true if the credentials are valid or not required.
+     */
+    private CompletableFuture<Boolean> checkCredentials(Channel channel, MqttConnectMessage msg,
+                                                        final String clientId) {
         // handle user authentication
         if (msg.variableHeader().hasUserName()) {
             byte[] pwd = null;
@@ -356,21 +464,36 @@ public class ProtocolProcessor {
                 pwd = msg.payload().password().getBytes(StandardCharsets.UTF_8);
             } else if (!this.allowAnonymous) {
                 LOG.error("Client didn't supply any password and MQTT anonymous mode is disabled CId={}", clientId);
-                failedCredentials(channel);
-                return false;
+                return CompletableFuture.completedFuture(false);
             }
-            final String login = msg.payload().userName();
-            if (!m_authenticator.checkValid(clientId, login, pwd)) {
-                LOG.error("Authenticator has rejected the MQTT credentials CId={}, username={}", clientId, login);
-                failedCredentials(channel);
-                return false;
-            }
-            NettyUtils.userName(channel, login);
+            return m_authenticator.checkValidAsync(clientId, msg.payload().userName(), pwd).toCompletableFuture();
         } else if (!this.allowAnonymous) {
             LOG.error("Client didn't supply any credentials and MQTT anonymous mode is disabled. CId={}", clientId);
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.completedFuture(true);
+    }
+
+    private boolean login(Channel channel, MqttConnectMessage msg, final String clientId,
+                          CompletableFuture<Boolean> credentials) {
+        final String login = msg.variableHeader().hasUserName() ? msg.payload().userName() : null;
+        boolean valid;
+        try {
+            valid = credentials.join();
+        } catch (CompletionException | CancellationException ex) {
+            LOG.error("Authenticator failed checking the MQTT credentials CId={}, username={}", clientId, login, ex);
+            valid = false;
+        }
+        if (!valid) {
+            if (login != null) {
+                LOG.error("Authenticator has rejected the MQTT credentials CId={}, username={}", clientId, login);
+            }
             failedCredentials(channel);
             return false;
         }
+        if (login != null) {
+            NettyUtils.userName(channel, login);
+        }
         return true;
     }
 
@@ -396,7 +519,8 @@ public class ProtocolProcessor {
 
         if (isSessionAlreadyStored && msgCleanSessionFlag) {
             for (Subscription existingSub : clientSession.getSubscriptions()) {
-                this.subscriptions.removeSubscription(existingSub.getTopicFilter(), clientId);
+                logFailure(this.subscriptions.removeSubscriptionAsync(existingSub.getTopicFilter(), clientId),
+                    clientId, existingSub.getTopicFilter());
             }
         }
         return true;
@@ -457,14 +581,20 @@ public class ProtocolProcessor {
         pipeline.addFirst("idleStateHandler", new IdleStateHandler(idleTime, 0, 0));
     }
 
+    private ClientSession sessionOf(Channel channel) {
+        final SessionHandle handle = NettyUtils.sessionHandle(channel);
+        return handle != null ? this.sessionsRepository.sessionFor(handle)
+            : this.sessionsRepository.sessionForClient(NettyUtils.clientID(channel));
+    }
+
     public void processPubAck(Channel channel, MqttPubAckMessage msg) {
-        String clientID = NettyUtils.clientID(channel);
         int messageID = msg.variableHeader().messageId();
         String username = NettyUtils.userName(channel);
         LOG.trace("retrieving inflight for messageID <{}>", messageID);
 
-        ClientSession targetSession = this.sessionsRepository.sessionForClient(clientID);
+        ClientSession targetSession = sessionOf(channel);
         StoredMessage inflightMsg = targetSession.inFlightAcknowledged(messageID);
+        RetainedDelivery.acknowledged(channel, messageID);
 
         String topic = inflightMsg.getTopic();
         InterceptAcknowledgedMessage wrapped = new InterceptAcknowledgedMessage(inflightMsg, topic, username,
@@ -524,11 +654,22 @@ public class ProtocolProcessor {
      *            the clientID
      */
     public void internalPublish(MqttPublishMessage msg, final String clientId) {
+        internalPublish(msg, clientId, null);
+    }
+
+    /**
+     * Publishes the message keeping its guid, assigned by the node of the cluster it entered.
+     *
+     * @param guid
+     *            the guid of the message, a new one is assigned if null.
+     */
+    public void internalPublish(MqttPublishMessage msg, final String clientId, MessageGUID guid) {
         final MqttQoS qos = msg.fixedHeader().qosLevel();
         final Topic topic = new Topic(msg.variableHeader().topicName());
         LOG.info("Sending PUBLISH message. Topic={}, qos={}", topic, qos);
 
         IMessagesStore.StoredMessage toStoreMsg = asStoredMessage(msg);
+        toStoreMsg.setGuid(guid != null ? guid : nextGuid());
         if (clientId == null || clientId.isEmpty()) {
             toStoreMsg.setClientID("BROKER_SELF");
         } else {
@@ -555,6 +696,7 @@ public class ProtocolProcessor {
         // it has just to publish the message downstream to the subscribers
         // NB it's a will publish, it needs a PacketIdentifier for this conn, default to 1
         IMessagesStore.StoredMessage tobeStored = asStoredMessage(will);
+        tobeStored.setGuid(nextGuid());
         tobeStored.setClientID(clientID);
         Topic topic = new Topic(tobeStored.getTopic());
         this.messagesPublisher.publish2Subscribers(tobeStored, topic);
@@ -589,7 +731,7 @@ public class ProtocolProcessor {
         String clientID = NettyUtils.clientID(channel);
         int messageID = messageId(msg);
         LOG.debug("Processing PUBREC message. CId={}, messageId={}", clientID, messageID);
-        ClientSession targetSession = this.sessionsRepository.sessionForClient(clientID);
+        ClientSession targetSession = sessionOf(channel);
         // remove from the inflight and move to the QoS2 second phase queue
         StoredMessage ackedMsg = targetSession.inFlightAcknowledged(messageID);
         targetSession.moveInFlightToSecondPhaseAckWaiting(messageID, ackedMsg);
@@ -606,8 +748,9 @@ public class ProtocolProcessor {
         int messageID = messageId(msg);
         LOG.debug("Processing PUBCOMP message. CId={}, messageId={}", clientID, messageID);
         // once received the PUBCOMP then remove the message from the temp memory
-        ClientSession targetSession = this.sessionsRepository.sessionForClient(clientID);
+        ClientSession targetSession = sessionOf(channel);
         StoredMessage inflightMsg = targetSession.completeReleasedPublish(messageID);
+        RetainedDelivery.acknowledged(channel, messageID);
         String username = NettyUtils.userName(channel);
         String topic = inflightMsg.getTopic();
         final InterceptAcknowledgedMessage interceptAckMsg = new InterceptAcknowledgedMessage(inflightMsg, topic,
@@ -678,13 +821,61 @@ public class ProtocolProcessor {
 
         if (descriptor.cleanSession) {
             LOG.trace("Removing saved subscriptions. CId={}", descriptor.clientID);
-            final ClientSession session = this.sessionsRepository.sessionForClient(clientID);
-            session.wipeSubscriptions();
+            removeCleanSubscriptions(this.sessionsRepository.sessionForClient(clientID), descriptor.getUsername());
             LOG.trace("Saved subscriptions have been removed. CId={}", descriptor.clientID);
         }
         return true;
     }
 
+    /**
+     * Drops the subscriptions of a clean session ending, on DISCONNECT or when the connection is lost. The tree is the
+     * only source of the granted QoS on publish, and the interceptors are notified so the subscription digest of the
+     * node forgets them.
+     */
+    private void removeCleanSubscriptions(ClientSession session, String username) {
+        final String clientID = session.clientID;
+        for (Subscription existingSub : session.getSubscriptions()) {
+            logFailure(this.subscriptions.removeSubscriptionAsync(existingSub.getTopicFilter(), clientID), clientID,
+                existingSub.getTopicFilter());
+            m_interceptor.notifyTopicUnsubscribed(existingSub.getTopicFilter().toString(), clientID, username);
+        }
+        session.wipeSubscriptions();
+    }
+
+    /**
+     * Drops from the directory the subscriptions of a persistent session expired, as those of a clean session ending.
+     */
+    private void removeExpiredSubscriptions(String clientID, Collection<Subscription> expired) {
+        for (Subscription existingSub : expired) {
+            logFailure(this.subscriptions.removeSubscriptionAsync(existingSub.getTopicFilter(), clientID), clientID,
+                existingSub.getTopicFilter());
+            m_interceptor.notifyTopicUnsubscribed(existingSub.getTopicFilter().toString(), clientID, null);
+        }
+    }
+
+    /**
+     * Logs the failure of a subscriptions change nothing waits for.
+     */
+    private static void logFailure(CompletionStage<Void> change, String clientID, Topic topic) {
+        change.whenComplete((done, error) -> {
+            if (error != null) {
+                LOG.error("Unable to update the subscriptions directory CId={}, topic={}", clientID, topic, error);
+            }
+        });
+    }
+
+    /**
+     * Runs the action on the event loop of the channel once the changes of the subscriptions directory complete, at
+     * once if they already are.
+     */
+    private static void whenApplied(Channel channel, CompletableFuture<Void> changes, Runnable action) {
+        if (changes.isDone()) {
+            action.run();
+        } else {
+            changes.whenComplete((done, error) -> channel.eventLoop().execute(action));
+        }
+    }
+
     private boolean dropStoredMessages(ConnectionDescriptor descriptor, String clientID) {
         final boolean success = descriptor.assignState(SUBSCRIPTIONS_REMOVED, MESSAGES_DROPPED);
         if (!success) {
@@ -718,7 +909,15 @@ public class ProtocolProcessor {
     public void processConnectionLost(String clientID, Channel channel) {
         LOG.info("Lost connection with client <{}>", clientID);
         ConnectionDescriptor oldConnDescr = new ConnectionDescriptor(clientID, channel, true);
-        connectionDescriptors.removeConnection(oldConnDescr);
+        if (connectionDescriptors.removeConnection(oldConnDescr)) {
+            // not closed by a DISCONNECT, a clean session ends as well and its session expires
+            final ClientSession session = this.sessionsRepository.sessionForClient(clientID);
+            if (session != null && session.isCleanSession()) {
+                removeCleanSubscriptions(session, NettyUtils.userName(channel));
+                session.dropQueue();
+            }
+            this.sessionsRepository.disconnect(clientID);
+        }
         // publish the Will message (if any) for the clientID
         if (m_willStore.containsKey(clientID)) {
             WillMessage will = m_willStore.get(clientID);
@@ -746,6 +945,8 @@ public class ProtocolProcessor {
         LOG.debug("Processing UNSUBSCRIBE message. CId={}, topics={}", clientID, topics);
 
         ClientSession clientSession = this.sessionsRepository.sessionForClient(clientID);
+        final CompletableFuture<?>[] removed = new CompletableFuture<?>[topics.size()];
+        int i = 0;
         for (String t : topics) {
             Topic topic = new Topic(t);
             boolean validTopic = topic.isValid();
@@ -757,20 +958,30 @@ public class ProtocolProcessor {
             }
 
             LOG.trace("Removing subscription. CId={}, topic={}", clientID, topic);
-            subscriptions.removeSubscription(topic, clientID);
+            removed[i++] = subscriptions.removeSubscriptionAsync(topic, clientID).toCompletableFuture();
             clientSession.unsubscribeFrom(topic);
             String username = NettyUtils.userName(channel);
             m_interceptor.notifyTopicUnsubscribed(topic.toString(), clientID, username);
         }
 
-        // ack the client
+        // ack the client once the publishes don't match the subscriptions any more
         int messageID = msg.variableHeader().messageId();
-        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.UNSUBACK, false, AT_LEAST_ONCE, false, 0);
-        MqttUnsubAckMessage ackMessage = new MqttUnsubAckMessage(fixedHeader, from(messageID));
-
-        LOG.debug("Sending UNSUBACK message. CId={}, topics={}, messageId={}", clientID, topics, messageID);
-        channel.writeAndFlush(ackMessage).addListener(FIRE_EXCEPTION_ON_FAILURE);
-        LOG.info("Client <{}> unsubscribed from topics <{}>", clientID, topics);
+        final CompletableFuture<Void> applied = CompletableFuture.allOf(removed);
+        whenApplied(channel, applied, () -> {
+            if (applied.isCompletedExceptionally()) {
+                LOG.error("Unable to remove the subscriptions, closing the connection. CId={}, topics={}", clientID,
+                    topics);
+                channel.close().addListener(CLOSE_ON_FAILURE);
+                return;
+            }
+            MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.UNSUBACK, false, AT_LEAST_ONCE, false,
+                0);
+            MqttUnsubAckMessage ackMessage = new MqttUnsubAckMessage(fixedHeader, from(messageID));
+
+            LOG.debug("Sending UNSUBACK message. CId={}, topics={}, messageId={}", clientID, topics, messageID);
+            channel.writeAndFlush(ackMessage).addListener(FIRE_EXCEPTION_ON_FAILURE);
+            LOG.info("Client <{}> unsubscribed from topics <{}>", clientID, topics);
+        });
     }
 
     public void processSubscribe(Channel channel, MqttSubscribeMessage msg) {
@@ -796,31 +1007,47 @@ public class ProtocolProcessor {
 
         LOG.debug("Creating and storing subscriptions CId={}, messageId={}, topics={}", clientID, messageID, ackTopics);
 
-        List<Subscription> newSubscriptions = doStoreSubscription(ackTopics, clientID);
+        List<Subscription> newSubscriptions = doStoreSubscription(ackTopics, NettyUtils.sessionHandle(channel),
+            clientID);
 
         // save session, persist subscriptions from session
-        for (Subscription subscription : newSubscriptions) {
-            subscriptions.add(subscription);
+        final CompletableFuture<?>[] added = new CompletableFuture<?>[newSubscriptions.size()];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = subscriptions.addAsync(newSubscriptions.get(i)).toCompletableFuture();
         }
 
-        LOG.debug("Sending SUBACK response CId={}, messageId={}", clientID, messageID);
-        channel.writeAndFlush(ackMessage).addListener(FIRE_EXCEPTION_ON_FAILURE);
+        // acked once the publishes match the subscriptions
+        final CompletableFuture<Void> applied = CompletableFuture.allOf(added);
+        whenApplied(channel, applied, () -> {
+            if (applied.isCompletedExceptionally()) {
+                LOG.error("Unable to store the subscriptions, closing the connection. CId={}, messageId={}", clientID,
+                    messageID);
+                this.subscriptionInCourse.remove(executionKey, SubscriptionState.STORED);
+                channel.close().addListener(CLOSE_ON_FAILURE);
+                return;
+            }
+            LOG.debug("Sending SUBACK response CId={}, messageId={}", clientID, messageID);
+            channel.writeAndFlush(ackMessage).addListener(FIRE_EXCEPTION_ON_FAILURE);
 
-        // fire the persisted messages in session
-        for (Subscription subscription : newSubscriptions) {
-            publishRetainedMessagesInSession(subscription, username);
-        }
+            // fire the persisted messages in session
+            for (Subscription subscription : newSubscriptions) {
+                publishRetainedMessagesInSession(channel, subscription, username);
+            }
 
-        boolean success = this.subscriptionInCourse.remove(executionKey, SubscriptionState.STORED);
-        if (!success) {
-            LOG.warn("Unable to perform the final subscription state update CId={}, messageId={}", clientID, messageID);
-        } else {
-            LOG.info("Client <{}> subscribed to topics", clientID);
-        }
+            boolean success = this.subscriptionInCourse.remove(executionKey, SubscriptionState.STORED);
+            if (!success) {
+                LOG.warn("Unable to perform the final subscription state update CId={}, messageId={}", clientID,
+                    messageID);
+            } else {
+                LOG.info("Client <{}> subscribed to topics", clientID);
+            }
+        });
     }
 
-    private List<Subscription> doStoreSubscription(List<MqttTopicSubscription> ackTopics, String clientID) {
-        ClientSession clientSession = this.sessionsRepository.sessionForClient(clientID);
+    private List<Subscription> doStoreSubscription(List<MqttTopicSubscription> ackTopics, SessionHandle handle,
+                                                   String clientID) {
+        ClientSession clientSession = handle != null ? this.sessionsRepository.sessionFor(handle)
+            : this.sessionsRepository.sessionForClient(clientID);
 
         List<Subscription> newSubscriptions = new ArrayList<>();
         for (MqttTopicSubscription req : ackTopics) {
@@ -830,6 +1057,8 @@ public class ProtocolProcessor {
             }
             final Topic topic = new Topic(req.topicName());
             Subscription newSubscription = new Subscription(clientID, topic, req.qualityOfService());
+            // the publishes to the subscriber follow the handle of its channel
+            newSubscription.setHandle(handle);
 
             clientSession.subscribe(newSubscription);
             newSubscriptions.add(newSubscription);
@@ -889,21 +1118,20 @@ public class ProtocolProcessor {
         return new MqttSubAckMessage(fixedHeader, from(messageId), payload);
     }
 
-    private void publishRetainedMessagesInSession(Subscription newSubscription, String username) {
+    private void publishRetainedMessagesInSession(Channel channel, Subscription newSubscription, String username) {
         LOG.debug("Retrieving retained messages CId={}, topics={}", newSubscription.getClientId(),
                 newSubscription.getTopicFilter());
 
-        // scans retained messages to be published to the new subscription
-        // TODO this is ugly, it does a linear scan on potential big dataset
-        Collection<IMessagesStore.StoredMessage> messages = m_messagesStore
-                .searchMatching(key -> key.match(newSubscription.getTopicFilter()));
+        // retained messages to be published to the new subscription, streamed following the channel writability
+        Iterator<IMessagesStore.StoredMessage> messages = m_messagesStore
+                .iterateMatching(newSubscription.getTopicFilter());
 
-        if (!messages.isEmpty()) {
-            LOG.info("Publishing retained messages CId={}, topics={}, messagesNo={}",
-                newSubscription.getClientId(), newSubscription.getTopicFilter(), messages.size());
+        if (messages.hasNext()) {
+            LOG.info("Publishing retained messages CId={}, topics={}", newSubscription.getClientId(),
+                newSubscription.getTopicFilter());
         }
         ClientSession targetSession = this.sessionsRepository.sessionForClient(newSubscription.getClientId());
-        this.internalRepublisher.publishRetained(targetSession, messages);
+        RetainedDelivery.start(channel, targetSession, retainedMaxInflight, messages);
 
         // notify the Observables
         m_interceptor.notifyTopicSubscribed(newSubscription, username);
@@ -926,6 +1154,17 @@ public class ProtocolProcessor {
             }
         }
         channel.flush();
+        // then the retained messages of the new subscriptions, if their delivery was paused
+        RetainedDelivery.channelWritable(channel);
+    }
+
+    /**
+     * @param maxInflight
+     *            the QoS 1 and 2 retained messages delivered to a new subscription not yet acknowledged, before
+     *            pausing the delivery.
+     */
+    void setRetainedMaxInflight(int maxInflight) {
+        this.retainedMaxInflight = maxInflight;
     }
 
     public void addInterceptHandler(InterceptHandler interceptHandler) {
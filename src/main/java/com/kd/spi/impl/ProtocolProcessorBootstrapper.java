@@ -20,6 +20,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.kd.BrokerConstants;
+import com.kd.cluster.ReplicatedMessagesStore;
 import com.kd.interception.InterceptHandler;
 import com.kd.server.ConnectionDescriptorStore;
 import com.kd.server.Server;
@@ -55,10 +56,14 @@ public class ProtocolProcessorBootstrapper {
 
     private ISubscriptionsStore subscriptionsStore;
 
+    private ISubscriptionsDirectory subscriptionsDirectory;
+
     private Runnable storeShutdown;
 
     private final ProtocolProcessor m_processor = new ProtocolProcessor();
     private ConnectionDescriptorStore connectionDescriptors;
+    // null unless the server is part of a cluster
+    private ReplicatedMessagesStore replicatedMessagesStore;
 
     public ProtocolProcessorBootstrapper() {
     }
@@ -97,8 +102,14 @@ public class ProtocolProcessorBootstrapper {
         }
         store.initStore();
         messagesStore = store.messagesStore();
+        if (server.getClusterTransport() != null) {
+            // the retained messages are those of the whole cluster
+            replicatedMessagesStore = new ReplicatedMessagesStore(messagesStore, server.getClusterTransport());
+            messagesStore = replicatedMessagesStore;
+        }
         m_sessionsStore = store.sessionsStore();
-        SessionsRepository sessionsRepository = new SessionsRepository(this.m_sessionsStore, server.getScheduler());
+        SessionsRepository sessionsRepository = new SessionsRepository(this.m_sessionsStore, server.getScheduler(),
+            props);
         sessionsRepository.init();
         this.subscriptionsStore = m_sessionsStore.subscriptionStore();
         storeShutdown = new Runnable() {
@@ -122,8 +133,29 @@ public class ProtocolProcessorBootstrapper {
         BrokerInterceptor interceptor = new BrokerInterceptor(props, observers);
 
         LOG.info("Initializing subscriptions store...");
-        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        ISubscriptionsDirectory subscriptions;
+        String subscriptionsDirectoryClassName = props.getProperty(BrokerConstants.SUBSCRIPTIONS_DIRECTORY_CLASS_NAME);
+        if (subscriptionsDirectoryClassName != null && !subscriptionsDirectoryClassName.isEmpty()) {
+            subscriptions = loadClass(subscriptionsDirectoryClassName, ISubscriptionsDirectory.class, IConfig.class,
+                props);
+            if (subscriptions == null) {
+                throw new IllegalArgumentException("Can't load the subscriptions directory class "
+                    + subscriptionsDirectoryClassName);
+            }
+        } else {
+            subscriptions = new CTrieSubscriptionDirectory();
+        }
         subscriptions.init(sessionsRepository);
+        this.subscriptionsDirectory = subscriptions;
+        if (subscriptions instanceof CTrieSubscriptionDirectory) {
+            final long compactionInterval = Long.parseLong(props.getProperty(
+                BrokerConstants.SUBSCRIPTIONS_COMPACTION_INTERVAL_PROPERTY_NAME,
+                String.valueOf(BrokerConstants.DEFAULT_SUBSCRIPTIONS_COMPACTION_INTERVAL_SECONDS)));
+            if (compactionInterval > 0) {
+                ((CTrieSubscriptionDirectory) subscriptions).scheduleCompaction(server.getScheduler(),
+                    compactionInterval);
+            }
+        }
 
         LOG.info("Configuring MQTT authenticator...");
         String authenticatorClassName = props.getProperty(BrokerConstants.AUTHENTICATOR_CLASS_NAME, "");
@@ -176,6 +208,9 @@ public class ProtocolProcessorBootstrapper {
         m_processor.init(connectionDescriptors, subscriptions, messagesStore, m_sessionsStore, authenticator,
                 allowAnonymous, allowZeroByteClientId, authorizator, interceptor,
             sessionsRepository);
+        m_processor.setRetainedMaxInflight(Integer.parseInt(props.getProperty(
+            BrokerConstants.RETAINED_DELIVERY_MAX_INFLIGHT_PROPERTY_NAME,
+            String.valueOf(BrokerConstants.DEFAULT_RETAINED_DELIVERY_MAX_INFLIGHT))));
         return m_processor;
     }
 
@@ -246,12 +281,23 @@ public class ProtocolProcessorBootstrapper {
         return instance;
     }
 
+    /**
+     * @return the store replicating the retained messages to the cluster, null unless the server is part of one.
+     */
+    public ReplicatedMessagesStore getReplicatedMessagesStore() {
+        return replicatedMessagesStore;
+    }
+
     public ISessionsStore getSessionsStore() {
         return m_sessionsStore;
     }
 
+    /**
+     * @return the subscriptions of every session, the clean ones included, null before the initialization.
+     */
     public List<Subscription> getSubscriptions() {
-        return this.subscriptionsStore.listAllSubscriptions();
+        final ISubscriptionsDirectory directory = this.subscriptionsDirectory;
+        return directory == null ? null : directory.listAllSubscriptions();
     }
 
     public void shutdown() {
@@ -20,6 +20,7 @@ import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 
 import static com.kd.spi.impl.ProtocolProcessor.asStoredMessage;
+import static com.kd.spi.impl.ProtocolProcessor.nextGuid;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +59,7 @@ class Qos0PublishHandler extends QosPublishHandler {
         // route message to subscribers
         IMessagesStore.StoredMessage toStoreMsg = asStoredMessage(msg);
         toStoreMsg.setClientID(clientID);
+        toStoreMsg.setGuid(nextGuid());
 
         this.publisher.publish2Subscribers(toStoreMsg, topic);
 
@@ -66,6 +68,6 @@ class Qos0PublishHandler extends QosPublishHandler {
             m_messagesStore.cleanRetained(topic);
         }
 
-        m_interceptor.notifyTopicPublished(msg, clientID, username);
+        m_interceptor.notifyTopicPublished(msg, clientID, username, toStoreMsg.getGuid());
     }
 }
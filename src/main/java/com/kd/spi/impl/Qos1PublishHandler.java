@@ -17,11 +17,10 @@
 package com.kd.spi.impl;
 
 import static com.kd.spi.impl.ProtocolProcessor.asStoredMessage;
+import static com.kd.spi.impl.ProtocolProcessor.nextGuid;
 import static io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader.from;
 import static io.netty.handler.codec.mqtt.MqttQoS.AT_MOST_ONCE;
 
-import java.util.Optional;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,7 +28,13 @@ import com.kd.connections.IConnectionsManager;
 import com.kd.mq.MQProducer;
 import com.kd.server.ConnectionDescriptor;
 import com.kd.server.netty.NettyUtils;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.kd.BrokerConstants;
+import com.kd.spi.DuplicateFilter;
 import com.kd.spi.IMessagesStore;
+import com.kd.spi.ISessionsStore;
+import com.kd.spi.MessageGUID;
 import com.kd.spi.impl.subscriptions.Topic;
 import com.kd.spi.security.IAuthorizator;
 
@@ -44,14 +49,21 @@ class Qos1PublishHandler extends QosPublishHandler {
     private static final Logger LOG = LoggerFactory.getLogger(Qos1PublishHandler.class);
 
     private final IMessagesStore m_messagesStore;
+    private final ISessionsStore m_sessionsStore;
     private final BrokerInterceptor m_interceptor;
     private final IConnectionsManager connectionDescriptors;
     private final MessagesPublisher publisher;
-
-    Qos1PublishHandler(IAuthorizator authorizator, IMessagesStore messagesStore, BrokerInterceptor interceptor,
-                       IConnectionsManager connectionDescriptors, MessagesPublisher messagesPublisher) {
+    private final Meter retransmissions = SharedMetricRegistries.getOrCreate(BrokerConstants.METRICS_REGISTRY_NAME)
+        .meter("dedup.retransmissions");
+    // null unless the retransmissions are dropped
+    private volatile DuplicateFilter duplicates;
+
+    Qos1PublishHandler(IAuthorizator authorizator, IMessagesStore messagesStore, ISessionsStore sessionsStore,
+                       BrokerInterceptor interceptor, IConnectionsManager connectionDescriptors,
+                       MessagesPublisher messagesPublisher) {
         super(authorizator);
         this.m_messagesStore = messagesStore;
+        this.m_sessionsStore = sessionsStore;
         this.m_interceptor = interceptor;
         this.connectionDescriptors = connectionDescriptors;
         this.publisher = messagesPublisher;
@@ -60,7 +72,8 @@ class Qos1PublishHandler extends QosPublishHandler {
     void receivedPublishQos1(Channel channel, MqttPublishMessage msg) {
         // verify if topic can be write
         final Topic topic = new Topic(msg.variableHeader().topicName());
-        String clientID = NettyUtils.clientID(channel);
+        final SessionHandle handle = NettyUtils.sessionHandle(channel);
+        String clientID = handle != null ? handle.clientID : NettyUtils.clientID(channel);
         String username = NettyUtils.userName(channel);
         if (!m_authorizator.canWrite(topic, username, clientID)) {
             LOG.error("MQTT client is not authorized to publish on topic. CId={}, topic={}", clientID, topic);
@@ -69,9 +82,20 @@ class Qos1PublishHandler extends QosPublishHandler {
 
         final int messageID = msg.variableHeader().messageId();
 
+        final DuplicateFilter duplicates = this.duplicates;
+        if (duplicates != null && isRetransmission(duplicates, clientID, messageID, msg)) {
+            LOG.info("Dropping the retransmission of a publish already received. CId={}, messageId={}", clientID,
+                messageID);
+            retransmissions.mark();
+            m_sessionsStore.onDurable(() -> sendPubAck(handle, clientID, messageID),
+                () -> abortConnection(handle, clientID, connectionDescriptors));
+            return;
+        }
+
         // route message to subscribers
         IMessagesStore.StoredMessage toStoreMsg = asStoredMessage(msg);
         toStoreMsg.setClientID(clientID);
+        toStoreMsg.setGuid(nextGuid());
         /*发送数据到MQ start*/
         
         MQProducer.produce("producerGroupName", "producerName", topic.toString(), "tag", clientID, msg.payload().array());
@@ -79,8 +103,6 @@ class Qos1PublishHandler extends QosPublishHandler {
         /*发送数据到MQ end*/
         this.publisher.publish2Subscribers(toStoreMsg, topic, messageID);
 
-        sendPubAck(clientID, messageID);
-
         if (msg.fixedHeader().isRetain()) {
             if (!msg.payload().isReadable()) {
                 m_messagesStore.cleanRetained(topic);
@@ -90,26 +112,41 @@ class Qos1PublishHandler extends QosPublishHandler {
             }
         }
 
-        m_interceptor.notifyTopicPublished(msg, clientID, username);
+        // acknowledged once the messages queued for the subscribers and the retained one are durable
+        m_sessionsStore.onDurable(() -> sendPubAck(handle, clientID, messageID),
+            () -> abortConnection(handle, clientID, connectionDescriptors));
+
+        m_interceptor.notifyTopicPublished(msg, clientID, username, toStoreMsg.getGuid());
+    }
+
+    void setDuplicateFilter(DuplicateFilter duplicates) {
+        this.duplicates = duplicates;
     }
 
-    private void sendPubAck(String clientId, int messageID) {
+    /**
+     * A retransmission the client sends to another node after losing the PUBACK is dropped if the publish reached
+     * the node: received from the client or forwarded by the node of the first transmission.
+     */
+    private static boolean isRetransmission(DuplicateFilter duplicates, String clientID, int messageID,
+                                            MqttPublishMessage msg) {
+        final MessageGUID publish = MessageGUID.ofClientPublish(clientID, messageID,
+            msg.variableHeader().topicName(), msg.payload());
+        return !duplicates.add(publish) && msg.fixedHeader().isDup();
+    }
+
+    private void sendPubAck(SessionHandle handle, String clientId, int messageID) {
         LOG.trace("sendPubAck invoked");
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBACK, false, AT_MOST_ONCE, false, 0);
         MqttPubAckMessage pubAckMessage = new MqttPubAckMessage(fixedHeader, from(messageID));
 
         try {
-            LOG.trace("connected clientIDs are {}", connectionDescriptors.getConnectedClientIds());
-            if (!connectionDescriptors.isConnected(clientId)) {
+            final ConnectionDescriptor descriptor = connectionOf(handle, clientId, connectionDescriptors);
+            if (descriptor == null) {
                 throw new RuntimeException(String.format("Can't find a ConnectionDescriptor for client %s in cache %s",
                     clientId, connectionDescriptors));
             }
             LOG.info("Sending {} message CId=<{}>", MqttMessageType.PUBACK, clientId);
-            final Optional<ConnectionDescriptor> optDescriptor = connectionDescriptors.lookupDescriptor(clientId);
-            if (optDescriptor.isPresent()) {
-                final ConnectionDescriptor descriptor = optDescriptor.get();
-                descriptor.writeAndFlush(pubAckMessage);
-            }
+            descriptor.writeAndFlush(pubAckMessage);
         } catch (Throwable t) {
             LOG.error(null, t);
         }
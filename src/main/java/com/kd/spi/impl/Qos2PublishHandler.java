@@ -32,10 +32,9 @@ import com.kd.spi.impl.subscriptions.ISubscriptionsDirectory;
 import com.kd.spi.impl.subscriptions.Topic;
 import com.kd.spi.security.IAuthorizator;
 
-import java.util.Optional;
-
 import static com.kd.spi.impl.DebugUtils.payload2Str;
 import static com.kd.spi.impl.ProtocolProcessor.asStoredMessage;
+import static com.kd.spi.impl.ProtocolProcessor.nextGuid;
 import static com.kd.spi.impl.Utils.messageId;
 import static io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader.from;
 import static io.netty.handler.codec.mqtt.MqttQoS.AT_MOST_ONCE;
@@ -46,18 +45,20 @@ class Qos2PublishHandler extends QosPublishHandler {
 
     private final ISubscriptionsDirectory subscriptions;
     private final IMessagesStore m_messagesStore;
+    private final ISessionsStore m_sessionsStore;
     private final BrokerInterceptor m_interceptor;
     private final IConnectionsManager connectionDescriptors;
     private final MessagesPublisher publisher;
     private final SessionsRepository sessionsRepository;
 
     Qos2PublishHandler(IAuthorizator authorizator, ISubscriptionsDirectory subscriptions,
-                       IMessagesStore messagesStore, BrokerInterceptor interceptor,
+                       IMessagesStore messagesStore, ISessionsStore sessionsStore, BrokerInterceptor interceptor,
                        IConnectionsManager connectionDescriptors,
                        MessagesPublisher messagesPublisher, SessionsRepository sessionsRepository) {
         super(authorizator);
         this.subscriptions = subscriptions;
         this.m_messagesStore = messagesStore;
+        this.m_sessionsStore = sessionsStore;
         this.m_interceptor = interceptor;
         this.connectionDescriptors = connectionDescriptors;
         this.publisher = messagesPublisher;
@@ -67,7 +68,8 @@ class Qos2PublishHandler extends QosPublishHandler {
     void receivedPublishQos2(Channel channel, MqttPublishMessage msg) {
         final Topic topic = new Topic(msg.variableHeader().topicName());
         // check if the topic can be wrote
-        String clientID = NettyUtils.clientID(channel);
+        final SessionHandle handle = NettyUtils.sessionHandle(channel);
+        String clientID = handle != null ? handle.clientID : NettyUtils.clientID(channel);
         String username = NettyUtils.userName(channel);
         if (!m_authorizator.canWrite(topic, username, clientID)) {
             LOG.error("MQTT client is not authorized to publish on topic. CId={}, topic={}", clientID, topic);
@@ -77,15 +79,19 @@ class Qos2PublishHandler extends QosPublishHandler {
 
         IMessagesStore.StoredMessage toStoreMsg = asStoredMessage(msg);
         toStoreMsg.setClientID(clientID);
+        toStoreMsg.setGuid(nextGuid());
 
         LOG.info("Sending publish message to subscribers CId={}, topic={}, messageId={}", clientID, topic, messageID);
         if (LOG.isTraceEnabled()) {
             LOG.trace("payload={}, subs Tree={}", payload2Str(toStoreMsg.getPayload()), subscriptions.dumpTree());
         }
 
-        this.sessionsRepository.sessionForClient(clientID).markAsInboundInflight(messageID, toStoreMsg);
+        final ClientSession session = handle != null ? this.sessionsRepository.sessionFor(handle)
+            : this.sessionsRepository.sessionForClient(clientID);
+        session.markAsInboundInflight(messageID, toStoreMsg);
 
-        sendPubRec(clientID, messageID);
+        // the inbound inflight messages aren't journaled, nothing to wait for: only the PUBCOMP waits for the sync
+        sendPubRec(handle, clientID, messageID);
 
         // Next the client will send us a pub rel
         // NB publish to subscribers for QoS 2 happen upon PUBREL from publisher
@@ -98,7 +104,7 @@ class Qos2PublishHandler extends QosPublishHandler {
 //            }
 //        }
         //TODO this should happen on PUB_REL, else we notify false positive
-        m_interceptor.notifyTopicPublished(msg, clientID, username);
+        m_interceptor.notifyTopicPublished(msg, clientID, username, toStoreMsg.getGuid());
     }
 
     /**
@@ -106,10 +112,12 @@ class Qos2PublishHandler extends QosPublishHandler {
      * message and publish to all interested subscribers.
      */
     void processPubRel(Channel channel, MqttMessage msg) {
-        String clientID = NettyUtils.clientID(channel);
+        final SessionHandle handle = NettyUtils.sessionHandle(channel);
+        String clientID = handle != null ? handle.clientID : NettyUtils.clientID(channel);
         int messageID = messageId(msg);
         LOG.info("Processing PUBREL message. CId={}, messageId={}", clientID, messageID);
-        ClientSession targetSession = this.sessionsRepository.sessionForClient(clientID);
+        ClientSession targetSession = handle != null ? this.sessionsRepository.sessionFor(handle)
+            : this.sessionsRepository.sessionForClient(clientID);
         IMessagesStore.StoredMessage evt = targetSession.inboundInflight(messageID);
         if (evt == null) {
             LOG.warn("Can't find inbound inflight message for CId={}, messageId={}", clientID, messageID);
@@ -130,16 +138,17 @@ class Qos2PublishHandler extends QosPublishHandler {
         //TODO here we should notify to the listeners
         //m_interceptor.notifyTopicPublished(msg, clientID, username);
 
-        sendPubComp(clientID, messageID);
+        // completed once the messages queued for the subscribers and the retained one are durable
+        m_sessionsStore.onDurable(() -> sendPubComp(handle, clientID, messageID),
+            () -> abortConnection(handle, clientID, connectionDescriptors));
     }
 
-    private void sendPubRec(String clientID, int messageID) {
+    private void sendPubRec(SessionHandle handle, String clientID, int messageID) {
         LOG.trace("Sending PUBREC message. CId={}, messageId={}", clientID, messageID);
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBREC, false, AT_MOST_ONCE, false, 0);
         MqttMessage pubRecMessage = new MqttMessage(fixedHeader, from(messageID));
-        final Optional<ConnectionDescriptor> connectionDescriptor = connectionDescriptors.lookupDescriptor(clientID);
-        if (connectionDescriptor.isPresent()) {
-            final ConnectionDescriptor descriptor = connectionDescriptor.get();
+        final ConnectionDescriptor descriptor = connectionOf(handle, clientID, connectionDescriptors);
+        if (descriptor != null) {
             try {
                 descriptor.writeAndFlush(pubRecMessage);
             } catch (Throwable e) {
@@ -149,13 +158,12 @@ class Qos2PublishHandler extends QosPublishHandler {
         }
     }
 
-    private void sendPubComp(String clientID, int messageID) {
+    private void sendPubComp(SessionHandle handle, String clientID, int messageID) {
         LOG.trace("Sending PUBCOMP message. CId={}, messageId={}", clientID, messageID);
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBCOMP, false, AT_MOST_ONCE, false, 0);
         MqttMessage pubCompMessage = new MqttMessage(fixedHeader, from(messageID));
-        final Optional<ConnectionDescriptor> connectionDescriptor = connectionDescriptors.lookupDescriptor(clientID);
-        if (connectionDescriptor.isPresent()) {
-            final ConnectionDescriptor descriptor = connectionDescriptor.get();
+        final ConnectionDescriptor descriptor = connectionOf(handle, clientID, connectionDescriptors);
+        if (descriptor != null) {
             try {
                 descriptor.writeAndFlush(pubCompMessage);
             } catch (Throwable e) {
@@ -19,6 +19,8 @@ package com.kd.spi.impl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.kd.connections.IConnectionsManager;
+import com.kd.server.ConnectionDescriptor;
 import com.kd.server.netty.NettyUtils;
 import com.kd.spi.impl.subscriptions.Topic;
 import com.kd.spi.security.IAuthorizator;
@@ -44,4 +46,27 @@ abstract class QosPublishHandler {
         }
         return false;
     }
+
+    /**
+     * @return the connection of the handle bound to the channel, looked up by client id only without a live handle,
+     *         or null if the client is disconnected.
+     */
+    static ConnectionDescriptor connectionOf(SessionHandle handle, String clientID, IConnectionsManager connections) {
+        if (handle != null && !handle.isRetired()) {
+            return handle.connection();
+        }
+        return connections.lookupDescriptor(clientID).orElse(null);
+    }
+
+    /**
+     * Closes the connection of a publish whose changes couldn't be made durable: there's no negative acknowledge, the
+     * client sends the publish again once reconnected.
+     */
+    static void abortConnection(SessionHandle handle, String clientID, IConnectionsManager connections) {
+        final ConnectionDescriptor descriptor = connectionOf(handle, clientID, connections);
+        if (descriptor != null) {
+            LOG.error("Closing the connection, its publish couldn't be made durable. CId={}", clientID);
+            descriptor.abort();
+        }
+    }
 }
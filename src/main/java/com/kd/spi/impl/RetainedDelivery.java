@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.spi.impl;
+
+import com.kd.spi.ClientSession;
+import com.kd.spi.IMessagesStore.StoredMessage;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import static com.kd.spi.impl.InternalRepublisher.createPublishForQos;
+import static io.netty.channel.ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE;
+
+/**
+ * Streams the retained messages matching the new subscriptions of a channel, instead of writing all of them at once.
+ * The messages are pulled from the store iterators only while the channel is writable and while less than
+ * maxInflight QoS 1 and 2 retained messages wait for the acknowledge; the delivery resumes when the channel becomes
+ * writable again and when the client acknowledges them.
+ *
+ * One instance per channel, bound as a channel attribute, used only from the channel event loop.
+ */
+final class RetainedDelivery {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetainedDelivery.class);
+
+    private static final AttributeKey<RetainedDelivery> ATTR_KEY_RETAINED_DELIVERY =
+        AttributeKey.valueOf("retainedDelivery");
+
+    private final Channel channel;
+    private final ClientSession session;
+    private final int maxInflight;
+    // the iterators of the subscriptions, delivered in order
+    private final Deque<Iterator<StoredMessage>> pending = new ArrayDeque<>();
+    private final Set<Integer> inflight = new HashSet<>();
+    // pulled from an iterator but waiting for an inflight slot
+    private StoredMessage held;
+    private long delivered;
+
+    private RetainedDelivery(Channel channel, ClientSession session, int maxInflight) {
+        this.channel = channel;
+        this.session = session;
+        this.maxInflight = maxInflight;
+    }
+
+    /**
+     * Queues the retained messages of a new subscription and starts delivering them.
+     */
+    static void start(Channel channel, ClientSession session, int maxInflight, Iterator<StoredMessage> messages) {
+        if (!messages.hasNext()) {
+            return;
+        }
+        RetainedDelivery delivery = channel.attr(ATTR_KEY_RETAINED_DELIVERY).get();
+        if (delivery == null || delivery.session != session) {
+            delivery = new RetainedDelivery(channel, session, maxInflight);
+            channel.attr(ATTR_KEY_RETAINED_DELIVERY).set(delivery);
+        }
+        delivery.pending.add(messages);
+        delivery.resume();
+    }
+
+    /**
+     * Continues the delivery paused because the channel wasn't writable, if any.
+     */
+    static void channelWritable(Channel channel) {
+        final RetainedDelivery delivery = channel.attr(ATTR_KEY_RETAINED_DELIVERY).get();
+        if (delivery != null) {
+            delivery.resume();
+        }
+    }
+
+    /**
+     * Frees the inflight slot of the message, if it was a retained one, and continues the delivery.
+     */
+    static void acknowledged(Channel channel, int messageID) {
+        final RetainedDelivery delivery = channel.attr(ATTR_KEY_RETAINED_DELIVERY).get();
+        if (delivery != null && delivery.inflight.remove(messageID)) {
+            delivery.resume();
+        }
+    }
+
+    private void resume() {
+        boolean written = false;
+        while (channel.isActive() && channel.isWritable()) {
+            final StoredMessage message = held != null ? held : nextMessage();
+            if (message == null) {
+                break;
+            }
+            if (message.getQos() != MqttQoS.AT_MOST_ONCE && inflight.size() >= maxInflight) {
+                held = message;
+                break;
+            }
+            held = null;
+            int packetID = 0;
+            if (message.getQos() != MqttQoS.AT_MOST_ONCE) {
+                packetID = session.inFlightAckWaiting(message);
+                inflight.add(packetID);
+            }
+            final MqttPublishMessage publish = createPublishForQos(message.getTopic(), message.getQos(),
+                message.getPayload(), true, packetID);
+            channel.write(publish).addListener(FIRE_EXCEPTION_ON_FAILURE);
+            written = true;
+            delivered++;
+        }
+        if (written) {
+            channel.flush();
+        }
+        if (held == null && pending.isEmpty() && inflight.isEmpty()) {
+            LOG.debug("Retained messages delivered. CId={}, messagesNo={}", session.clientID, delivered);
+            channel.attr(ATTR_KEY_RETAINED_DELIVERY).compareAndSet(this, null);
+        }
+    }
+
+    private StoredMessage nextMessage() {
+        while (!pending.isEmpty()) {
+            final Iterator<StoredMessage> messages = pending.peek();
+            if (messages.hasNext()) {
+                return messages.next();
+            }
+            pending.poll();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.spi.impl;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Expiry deadlines of the closed persistent sessions, bucketed by time in a sorted map: the purge only looks at the
+ * buckets already due, and a reconnection cancels the deadline of its client.
+ *
+ * The TTL of a session is the one of the longest client id prefix configured matching it, or the default.
+ */
+final class SessionExpiryIndex {
+
+    private static final class Expiry {
+
+        final LocalDateTime closedAt;
+        final long deadline;
+
+        Expiry(LocalDateTime closedAt, long deadline) {
+            this.closedAt = closedAt;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long defaultTtlMillis;
+    // longest prefix first
+    private final List<Map.Entry<String, Long>> ttlByPrefix;
+    private final long bucketMillis;
+    private final ZoneId zone = ZoneId.systemDefault();
+    // guarded by this, the clients by deadline / bucketMillis
+    private final NavigableMap<Long, Set<String>> buckets = new TreeMap<>();
+    private final Map<String, Expiry> expiries = new HashMap<>();
+
+    /**
+     * @param ttlByPrefix the TTL in milliseconds by client id prefix.
+     * @param bucketMillis the time span of a bucket, no need to be finer than the purge interval.
+     */
+    SessionExpiryIndex(long defaultTtlMillis, Map<String, Long> ttlByPrefix, long bucketMillis) {
+        this.defaultTtlMillis = defaultTtlMillis;
+        this.ttlByPrefix = new ArrayList<>(ttlByPrefix.entrySet());
+        this.ttlByPrefix.sort(Comparator.comparingInt((Map.Entry<String, Long> entry) -> entry.getKey().length())
+            .reversed());
+        this.bucketMillis = Math.max(1, bucketMillis);
+    }
+
+    /**
+     * Parses the TTLs by prefix, as <code>prefix=seconds</code> separated by commas.
+     *
+     * @return the TTL in milliseconds by prefix.
+     */
+    static Map<String, Long> parseTtlByPrefix(String ttls) {
+        final Map<String, Long> ttlByPrefix = new LinkedHashMap<>();
+        if (ttls == null || ttls.trim().isEmpty()) {
+            return ttlByPrefix;
+        }
+        for (String ttl : ttls.split(",")) {
+            final int separator = ttl.lastIndexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Bad session TTL by prefix <" + ttl + ">, expected prefix=seconds");
+            }
+            ttlByPrefix.put(ttl.substring(0, separator).trim(),
+                Long.parseLong(ttl.substring(separator + 1).trim()) * 1000);
+        }
+        return ttlByPrefix;
+    }
+
+    long ttlMillis(String clientID) {
+        for (Map.Entry<String, Long> ttl : ttlByPrefix) {
+            if (clientID.startsWith(ttl.getKey())) {
+                return ttl.getValue();
+            }
+        }
+        return defaultTtlMillis;
+    }
+
+    /**
+     * Schedules the expiry of the session closed at the time, replacing the previous one of the client.
+     *
+     * @return the closing time replaced, or null.
+     */
+    synchronized LocalDateTime track(String clientID, LocalDateTime closedAt) {
+        final long deadline = closedAt.atZone(zone).toInstant().toEpochMilli() + ttlMillis(clientID);
+        final Expiry previous = expiries.put(clientID, new Expiry(closedAt, deadline));
+        if (previous != null) {
+            unbucket(clientID, previous);
+        }
+        buckets.computeIfAbsent(deadline / bucketMillis, bucket -> new HashSet<>()).add(clientID);
+        return previous == null ? null : previous.closedAt;
+    }
+
+    /**
+     * Cancels the expiry of the session, when its client reconnects.
+     *
+     * @return the closing time of the session, or null if its expiry wasn't tracked.
+     */
+    synchronized LocalDateTime cancel(String clientID) {
+        final Expiry expiry = expiries.remove(clientID);
+        if (expiry == null) {
+            return null;
+        }
+        unbucket(clientID, expiry);
+        return expiry.closedAt;
+    }
+
+    private void unbucket(String clientID, Expiry expiry) {
+        final Long bucket = expiry.deadline / bucketMillis;
+        final Set<String> clientIDs = buckets.get(bucket);
+        if (clientIDs != null && clientIDs.remove(clientID) && clientIDs.isEmpty()) {
+            buckets.remove(bucket);
+        }
+    }
+
+    /**
+     * Removes at most max expired sessions from the index.
+     *
+     * @return the closing times of the sessions expired, by client id.
+     */
+    synchronized Map<String, LocalDateTime> pollExpired(long nowMillis, int max) {
+        final Map<String, LocalDateTime> expired = new LinkedHashMap<>();
+        final Iterator<Map.Entry<Long, Set<String>>> due = buckets.headMap(nowMillis / bucketMillis, true)
+            .entrySet().iterator();
+        while (due.hasNext() && expired.size() < max) {
+            final Set<String> bucket = due.next().getValue();
+            final Iterator<String> clientIDs = bucket.iterator();
+            while (clientIDs.hasNext() && expired.size() < max) {
+                final String clientID = clientIDs.next();
+                final Expiry expiry = expiries.get(clientID);
+                // only the last bucket due holds deadlines still to come
+                if (expiry.deadline > nowMillis) {
+                    continue;
+                }
+                clientIDs.remove();
+                expiries.remove(clientID);
+                expired.put(clientID, expiry.closedAt);
+            }
+            if (bucket.isEmpty()) {
+                due.remove();
+            }
+        }
+        return expired;
+    }
+
+    synchronized int size() {
+        return expiries.size();
+    }
+}
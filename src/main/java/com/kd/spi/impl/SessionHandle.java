@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package com.kd.spi.impl;
+
+import com.kd.server.ConnectionDescriptor;
+import com.kd.spi.ClientSession;
+import com.kd.spi.IMessagesStore.StoredMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Session and connection of a client resolved once, so the publish and the acknowledge paths follow references
+ * instead of looking them up by client id. A client has a single handle, shared by its channels and by its
+ * subscriptions, rebound at each CONNECT by the {@link SessionsRepository}.
+ *
+ * A handle is retired when its session is removed, the holders then resolve the handle of the client again. While
+ * the session is handed over to another node of the cluster, the messages for the disconnected client are held by the
+ * handle instead of queued in the session, and forwarded to the node once it has the session.
+ */
+public final class SessionHandle {
+
+    public final String clientID;
+    private volatile ClientSession session;
+    // null while the client is disconnected
+    private volatile ConnectionDescriptor connection;
+    private volatile boolean retired;
+    // guarded by this, null unless the session is handed over
+    private List<StoredMessage> held;
+    // guarded by this, set once the session is on another node, for the publishes still holding the handle
+    private Consumer<StoredMessage> forward;
+
+    SessionHandle(String clientID) {
+        this.clientID = clientID;
+    }
+
+    /**
+     * @return the session of the client, null for a retired handle.
+     */
+    public ClientSession session() {
+        return session;
+    }
+
+    /**
+     * @return the connection of the client, null while it's disconnected.
+     */
+    public ConnectionDescriptor connection() {
+        return connection;
+    }
+
+    public boolean isRetired() {
+        return retired;
+    }
+
+    synchronized void bind(ClientSession session, ConnectionDescriptor connection) {
+        this.session = session;
+        this.connection = connection;
+    }
+
+    synchronized void connect(ConnectionDescriptor connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Attaches the session of a disconnected client, unless a CONNECT already bound one.
+     */
+    synchronized void attach(ClientSession session) {
+        if (this.session == null) {
+            this.session = session;
+        }
+    }
+
+    synchronized void unbind() {
+        this.connection = null;
+    }
+
+    /**
+     * Queues the message in the session of the disconnected client, or holds it while the session is handed over.
+     */
+    synchronized void enqueue(ClientSession session, StoredMessage message) {
+        if (forward != null) {
+            forward.accept(message);
+        } else if (held != null) {
+            held.add(message);
+        } else {
+            session.enqueue(message);
+        }
+    }
+
+    /**
+     * Holds the next messages, the queue of the session doesn't change from now on.
+     */
+    synchronized void hold() {
+        if (held == null) {
+            held = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Stops holding the messages.
+     *
+     * @return the messages held.
+     */
+    synchronized List<StoredMessage> release() {
+        final List<StoredMessage> released = held;
+        held = null;
+        return released == null ? Collections.emptyList() : released;
+    }
+
+    /**
+     * Stops holding the messages, those enqueued afterwards are forwarded.
+     *
+     * @return the messages held.
+     */
+    synchronized List<StoredMessage> forward(Consumer<StoredMessage> forward) {
+        this.forward = forward;
+        return release();
+    }
+
+    /**
+     * Stops holding the messages, queueing those held in the session, after the others.
+     */
+    synchronized void restore(ClientSession session) {
+        final List<StoredMessage> released = release();
+        for (StoredMessage message : released) {
+            session.enqueue(message);
+        }
+    }
+
+    synchronized void retire() {
+        this.retired = true;
+        this.session = null;
+        this.connection = null;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionHandle{clientID=" + clientID + ", connected=" + (connection != null) + ", retired=" + retired
+            + "}";
+    }
+}
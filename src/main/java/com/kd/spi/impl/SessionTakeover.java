@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.spi.impl;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.kd.cluster.ClusterTransport;
+import com.kd.cluster.SessionRequest;
+import com.kd.cluster.SessionTransfer;
+import com.kd.cluster.SubscriptionRouter;
+import com.kd.connections.IConnectionsManager;
+import com.kd.server.ConnectionDescriptor;
+import com.kd.spi.ClientSession;
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.ISessionsStore;
+import com.kd.spi.ISubscriptionsStore;
+import com.kd.spi.InflightTable;
+import com.kd.spi.impl.subscriptions.ISubscriptionsDirectory;
+import com.kd.spi.impl.subscriptions.Subscription;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.kd.BrokerConstants.METRICS_REGISTRY_NAME;
+
+/**
+ * Moves the persistent session of a client between the nodes of the cluster, so that it can reconnect to any of them.
+ * <p>
+ * A node without the session of a client connecting with cleanSession false asks the peers for it, and waits for
+ * all of them to answer, or for the timeout. The node with the session closes the connection the client may still
+ * have there, holds the messages published to the client from then on and sends the subscriptions and the messages
+ * to deliver in one transfer. The requester imports the session before the connect goes on, the messages are
+ * republished as those of a local session, and confirms it: only then the previous node drops its copy and sends
+ * the messages held in a follow-up transfer. The QoS 2 messages waiting for their PUBCOMP and those received from
+ * the client waiting for their PUBREL aren't moved.
+ * <p>
+ * A transfer arriving after the timeout isn't imported nor confirmed. Without a confirmation within twice the
+ * timeout, the previous node queues the messages held and keeps the session, as when the transfer can't be sent.
+ */
+public final class SessionTakeover {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionTakeover.class);
+
+    /**
+     * A request waiting for the answers of the peers.
+     */
+    private static final class Pending {
+
+        final String clientID;
+        final long startNanos = System.nanoTime();
+        final Set<String> answered = new HashSet<>();
+        // by peer
+        final Map<String, SessionTransfer> transfers = new LinkedHashMap<>();
+        final CompletableFuture<Map<String, SessionTransfer>> result = new CompletableFuture<>();
+        // null until the request is sent
+        Collection<String> asked;
+        ScheduledFuture<?> timeout;
+
+        Pending(String clientID) {
+            this.clientID = clientID;
+        }
+    }
+
+    /**
+     * A session transferred to a peer, waiting for its confirmation.
+     */
+    private static final class HandOver {
+
+        final String peer;
+        final long requestID;
+        final SessionHandle handle;
+        // set before the transfer
+        List<Subscription> subscriptions;
+        ScheduledFuture<?> timeout;
+
+        HandOver(String peer, long requestID, SessionHandle handle) {
+            this.peer = peer;
+            this.requestID = requestID;
+            this.handle = handle;
+        }
+    }
+
+    private final ClusterTransport transport;
+    private final long timeoutMillis;
+    private final ISessionsStore sessionsStore;
+    private final ISubscriptionsStore subscriptionsStore;
+    private final ISubscriptionsDirectory subscriptions;
+    private final SessionsRepository sessionsRepository;
+    private final IConnectionsManager connectionDescriptors;
+    private final BrokerInterceptor interceptor;
+    private final InternalRepublisher republisher;
+    // null when the publishes are broadcast
+    private final SubscriptionRouter router;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong lastRequestID = new AtomicLong();
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    // by client id
+    private final Map<String, HandOver> handOvers = new ConcurrentHashMap<>();
+    private final Meter imported;
+    private final Meter handedOver;
+    private final Meter timeouts;
+    private final Meter unconfirmed;
+    private final Timer waits;
+
+    SessionTakeover(ClusterTransport transport, long timeoutMillis,
+                    ISessionsStore sessionsStore, ISubscriptionsDirectory subscriptions,
+                    SessionsRepository sessionsRepository, IConnectionsManager connectionDescriptors,
+                    BrokerInterceptor interceptor, InternalRepublisher republisher, SubscriptionRouter router,
+                    ScheduledExecutorService scheduler) {
+        this.transport = transport;
+        this.timeoutMillis = timeoutMillis;
+        this.sessionsStore = sessionsStore;
+        this.subscriptionsStore = sessionsStore.subscriptionStore();
+        this.subscriptions = subscriptions;
+        this.sessionsRepository = sessionsRepository;
+        this.connectionDescriptors = connectionDescriptors;
+        this.interceptor = interceptor;
+        this.republisher = republisher;
+        this.router = router;
+        this.scheduler = scheduler;
+        final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
+        this.imported = metrics.meter("cluster.session_takeover.imported");
+        this.handedOver = metrics.meter("cluster.session_takeover.handed_over");
+        this.timeouts = metrics.meter("cluster.session_takeover.timeouts");
+        this.unconfirmed = metrics.meter("cluster.session_takeover.unconfirmed");
+        this.waits = metrics.timer("cluster.session_takeover.wait");
+    }
+
+    /**
+     * Asks the peers for the session of the client.
+     *
+     * @param timer schedules the timeout.
+     * @return the transfers of the peers which had the session, completed once all of them answered or on timeout.
+     */
+    CompletableFuture<Map<String, SessionTransfer>> pull(String clientID, ScheduledExecutorService timer) {
+        final long requestID = lastRequestID.incrementAndGet();
+        final Pending request = new Pending(clientID);
+        pending.put(requestID, request);
+        final Collection<String> asked = transport.requestSession(new SessionRequest(requestID, clientID));
+        synchronized (request) {
+            request.asked = asked;
+            completeIfAnswered(requestID, request);
+        }
+        if (!request.result.isDone()) {
+            final ScheduledFuture<?> timeout = timer.schedule(() -> expire(requestID, request), timeoutMillis,
+                TimeUnit.MILLISECONDS);
+            synchronized (request) {
+                request.timeout = timeout;
+            }
+        }
+        return request.result;
+    }
+
+    private void completeIfAnswered(long requestID, Pending request) {
+        if (request.asked != null && request.answered.containsAll(request.asked)
+                && pending.remove(requestID, request)) {
+            if (request.timeout != null) {
+                request.timeout.cancel(false);
+            }
+            complete(request);
+        }
+    }
+
+    private void expire(long requestID, Pending request) {
+        if (!pending.remove(requestID, request)) {
+            return;
+        }
+        synchronized (request) {
+            final Set<String> missing = new HashSet<>(request.asked);
+            missing.removeAll(request.answered);
+            LOG.warn("The nodes {} didn't answer in time for the session of client {}", missing, request.clientID);
+            timeouts.mark();
+            complete(request);
+        }
+    }
+
+    private void complete(Pending request) {
+        waits.update(System.nanoTime() - request.startNanos, TimeUnit.NANOSECONDS);
+        request.result.complete(new LinkedHashMap<>(request.transfers));
+    }
+
+    /**
+     * Imports the sessions transferred, by peer, before the client session is created or loaded, and confirms them to
+     * the peers.
+     */
+    void importSessions(String clientID, String username, Map<String, SessionTransfer> transfers) {
+        if (transfers.isEmpty()) {
+            return;
+        }
+        if (!sessionsStore.contains(clientID)) {
+            sessionsStore.createNewDurableSession(clientID);
+        }
+        final Queue<StoredMessage> queue = sessionsStore.queue(clientID);
+        final List<CompletableFuture<Void>> added = new ArrayList<>();
+        for (SessionTransfer transfer : transfers.values()) {
+            for (Subscription subscription : transfer.subscriptions()) {
+                subscriptionsStore.addNewSubscription(subscription);
+                added.add(subscriptions.addAsync(subscription).toCompletableFuture());
+                if (router != null) {
+                    // shared before the confirmation, the previous node forwards the publishes once it drops its copy
+                    router.subscribed(subscription.getTopicFilter().toString());
+                }
+                interceptor.notifyTopicSubscribed(subscription, username);
+            }
+            queue.addAll(transfer.messages());
+            LOG.info("Took over the session of client {}, subscriptions={}, messages={}", clientID,
+                transfer.subscriptions().size(), transfer.messages().size());
+            imported.mark();
+        }
+        // confirmed once the publishes match the subscriptions here, the peers drop theirs then
+        CompletableFuture.allOf(added.toArray(new CompletableFuture<?>[0])).whenComplete((done, error) -> {
+            if (error != null) {
+                LOG.error("Unable to add the subscriptions of client {} taken over, the peers keep theirs", clientID,
+                    error);
+                return;
+            }
+            for (Map.Entry<String, SessionTransfer> transfer : transfers.entrySet()) {
+                transport.confirmSession(transfer.getKey(),
+                    new SessionRequest(transfer.getValue().requestID(), clientID));
+            }
+        });
+    }
+
+    /**
+     * Transfers the session to the peer asking for it, if the node has it, and keeps it until the peer confirms.
+     */
+    public void onSessionRequest(String peer, SessionRequest request) {
+        final String clientID = request.clientID();
+        final SessionHandle handle = sessionsStore.contains(clientID)
+            ? sessionsRepository.handleForClient(clientID) : null;
+        if (handle == null) {
+            transport.transferSession(peer, SessionTransfer.notFound(request.requestID(), clientID));
+            return;
+        }
+        final HandOver handOver = new HandOver(peer, request.requestID(), handle);
+        final HandOver current = handOvers.putIfAbsent(clientID, handOver);
+        if (current != null) {
+            LOG.warn("The session of client {} asked by node {} is already handed over to node {}", clientID, peer,
+                current.peer);
+            transport.transferSession(peer, SessionTransfer.notFound(request.requestID(), clientID));
+            return;
+        }
+        final ConnectionDescriptor connection = connectionDescriptors.getConnection(clientID);
+        if (connection != null) {
+            // the client reconnected to the peer, its connection here is stale
+            LOG.info("Closing the connection of client {}, reconnected to node {}", clientID, peer);
+            connectionDescriptors.removeConnection(connection);
+            connection.abort();
+        }
+        // the queue doesn't change from now on, the snapshot misses none of the messages published to the client
+        handle.hold();
+        final List<Subscription> exported = new ArrayList<>(subscriptionsStore.listClientSubscriptions(clientID));
+        final TreeMap<Integer, StoredMessage> unacknowledged = new TreeMap<>();
+        sessionsStore.forEachInflight(clientID, (packetID, state, message) -> {
+            // the QoS 0 messages republished stay in the table, no ack ever removes them
+            if (state == InflightTable.WAITING_ACK && message != null && message.getQos() != MqttQoS.AT_MOST_ONCE) {
+                unacknowledged.put(packetID, message);
+            }
+        });
+        final List<StoredMessage> messages = new ArrayList<>(unacknowledged.values());
+        final Queue<StoredMessage> queue = sessionsStore.queue(clientID);
+        if (queue != null) {
+            messages.addAll(queue);
+        }
+        synchronized (handOver) {
+            handOver.subscriptions = exported;
+            handOver.timeout = scheduler.schedule(() -> expireHandOver(clientID, handOver), 2 * timeoutMillis,
+                TimeUnit.MILLISECONDS);
+        }
+        if (!transport.transferSession(peer, new SessionTransfer(request.requestID(), clientID, exported,
+                messages)) && handOvers.remove(clientID, handOver)) {
+            handOver.timeout.cancel(false);
+            keep(clientID, handOver);
+            return;
+        }
+        LOG.info("Transferred the session of client {} to node {}, subscriptions={}, messages={}", clientID, peer,
+            exported.size(), messages.size());
+    }
+
+    /**
+     * Drops the session transferred to the peer, which installed it, and sends the messages held meanwhile.
+     */
+    public void onSessionConfirmed(String peer, SessionRequest request) {
+        final String clientID = request.clientID();
+        final HandOver handOver = handOvers.get(clientID);
+        if (handOver == null || handOver.requestID != request.requestID() || !handOver.peer.equals(peer)
+                || !handOvers.remove(clientID, handOver)) {
+            LOG.warn("Node {} confirmed the session of client {} after the timeout, it's on both nodes", peer,
+                clientID);
+            return;
+        }
+        synchronized (handOver) {
+            handOver.timeout.cancel(false);
+        }
+        if (handOver.handle.isRetired() || connectionDescriptors.getConnection(clientID) != null) {
+            LOG.warn("Client {} came back to the node while its session was handed over to node {}, it's on both " +
+                "nodes", clientID, peer);
+            keep(clientID, handOver);
+            return;
+        }
+        for (Subscription subscription : handOver.subscriptions) {
+            if (router != null) {
+                // the digest of the peer may not have them yet, the publishes go there from now on
+                router.peerSubscribed(peer, subscription.getTopicFilter().toString());
+            }
+            final CompletionStage<Void> removed = subscriptions.removeSubscriptionAsync(
+                subscription.getTopicFilter(), clientID);
+            removed.whenComplete((done, error) -> {
+                if (error != null) {
+                    LOG.error("Unable to remove the subscription of client {} handed over, topic={}", clientID,
+                        subscription.getTopicFilter(), error);
+                }
+            });
+            interceptor.notifyTopicUnsubscribed(subscription.getTopicFilter().toString(), clientID, null);
+        }
+        sessionsRepository.handOver(clientID);
+        // the publishes which matched the subscriptions before they were removed may still enqueue
+        final List<StoredMessage> held = handOver.handle.forward(message -> transport.transferSession(peer,
+            SessionTransfer.followUp(handOver.requestID, clientID, Collections.singletonList(message))));
+        if (!held.isEmpty()) {
+            transport.transferSession(peer, SessionTransfer.followUp(handOver.requestID, clientID, held));
+        }
+        handedOver.mark();
+        LOG.info("Handed over the session of client {} to node {}, messages held={}", clientID, peer, held.size());
+    }
+
+    private void expireHandOver(String clientID, HandOver handOver) {
+        if (!handOvers.remove(clientID, handOver)) {
+            return;
+        }
+        LOG.warn("Node {} didn't confirm the session of client {} in time, the session is kept", handOver.peer,
+            clientID);
+        unconfirmed.mark();
+        keep(clientID, handOver);
+    }
+
+    /**
+     * Keeps the session on the node, the messages held queued after the others.
+     */
+    private void keep(String clientID, HandOver handOver) {
+        final ClientSession session = sessionsRepository.sessionForClient(clientID);
+        if (session != null) {
+            handOver.handle.restore(session);
+            if (handOver.handle.connection() != null) {
+                // the client came back meanwhile
+                republisher.publishStored(session);
+            }
+        } else {
+            handOver.handle.release();
+        }
+    }
+
+    public void onSessionTransfer(String peer, SessionTransfer transfer) {
+        if (transfer.isFollowUp()) {
+            deliverHeld(peer, transfer);
+            return;
+        }
+        final Pending request = pending.get(transfer.requestID());
+        if (request == null) {
+            if (transfer.isFound()) {
+                LOG.warn("The session of client {} transferred by node {} arrived too late, it stays there",
+                    transfer.clientID(), peer);
+            }
+            return;
+        }
+        synchronized (request) {
+            request.answered.add(peer);
+            if (transfer.isFound()) {
+                request.transfers.put(peer, transfer);
+            }
+            completeIfAnswered(transfer.requestID(), request);
+        }
+    }
+
+    /**
+     * Queues the messages published to the client while its session was handed over by the peer.
+     */
+    private void deliverHeld(String peer, SessionTransfer transfer) {
+        final String clientID = transfer.clientID();
+        final SessionHandle handle = sessionsRepository.handleForClient(clientID);
+        final ClientSession session = handle == null ? null : handle.session();
+        if (session == null || session.isCleanSession()) {
+            LOG.warn("The session of client {} is no longer on the node, dropping the {} messages held by node {}",
+                clientID, transfer.messages().size(), peer);
+            return;
+        }
+        for (StoredMessage message : transfer.messages()) {
+            handle.enqueue(session, message);
+        }
+        if (handle.connection() != null) {
+            republisher.publishStored(session);
+        }
+        LOG.info("Received the messages held for client {} by node {}, messages={}", clientID, peer,
+            transfer.messages().size());
+    }
+}
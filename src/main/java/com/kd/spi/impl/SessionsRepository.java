@@ -15,34 +15,54 @@
  */
 package com.kd.spi.impl;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.kd.persistence.PersistentSession;
+import com.kd.server.ConnectionDescriptor;
+import com.kd.server.config.IConfig;
 import com.kd.spi.*;
+import com.kd.spi.impl.subscriptions.Subscription;
 
 import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static com.kd.BrokerConstants.*;
 
 public class SessionsRepository {
 
     /**
-     * Task to be scheduled to execute the cleaning of persisted sessions (clean flag=false) older than a
-     * defined period.
+     * Task to be scheduled to execute the cleaning of persisted sessions (clean flag=false) closed for longer than
+     * their TTL. Purges at most a batch per run, the next batch is queued after the other tasks of the scheduler.
      */
     private class SessionCleanerTask implements Runnable {
 
         @Override
         public void run() {
-            wipeExpiredSessions();
+            try {
+                if (wipeExpiredSessions()) {
+                    scheduler.execute(this);
+                }
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Scheduler stopped, expired sessions purge interrupted");
+            } catch (RuntimeException e) {
+                // an exception would cancel the next runs
+                LOG.error("Can't purge the expired sessions", e);
+            }
         }
     }
 
@@ -51,17 +71,66 @@ public class SessionsRepository {
     private ISubscriptionsStore subscriptionsStore;
     private ScheduledExecutorService scheduler;
     private final ConcurrentMap<String, ClientSession> sessionsCache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SessionHandle> handles = new ConcurrentHashMap<>();
+    private final SessionExpiryIndex expiryIndex;
+    private final long purgeIntervalSeconds;
+    private final int purgeBatch;
+    private final Meter expiredSessions;
+    private final Counter cancelledExpiries;
+    private final Timer purgeTimes;
+    private volatile BiConsumer<String, Collection<Subscription>> expiryListener = (clientID, subscriptions) -> {
+    };
 
     public SessionsRepository(ISessionsStore sessionsStore, ScheduledExecutorService scheduler) {
+        this(sessionsStore, scheduler, null);
+    }
+
+    /**
+     * @param props the broker configuration, could be null to use the defaults.
+     */
+    public SessionsRepository(ISessionsStore sessionsStore, ScheduledExecutorService scheduler, IConfig props) {
         this.sessions = sessionsStore;
         this.subscriptionsStore = sessionsStore.subscriptionStore();
         this.scheduler = scheduler;
+        final long ttlSeconds = props == null ? DEFAULT_SESSION_EXPIRY_TTL_SECONDS
+            : Long.parseLong(props.getProperty(SESSION_EXPIRY_TTL_PROPERTY_NAME,
+                String.valueOf(DEFAULT_SESSION_EXPIRY_TTL_SECONDS)));
+        final Map<String, Long> ttlByPrefix = props == null ? Collections.emptyMap()
+            : SessionExpiryIndex.parseTtlByPrefix(props.getProperty(SESSION_EXPIRY_TTL_BY_PREFIX_PROPERTY_NAME));
+        this.purgeIntervalSeconds = props == null ? DEFAULT_SESSION_EXPIRY_PURGE_INTERVAL_SECONDS
+            : Long.parseLong(props.getProperty(SESSION_EXPIRY_PURGE_INTERVAL_PROPERTY_NAME,
+                String.valueOf(DEFAULT_SESSION_EXPIRY_PURGE_INTERVAL_SECONDS)));
+        this.purgeBatch = props == null ? DEFAULT_SESSION_EXPIRY_PURGE_BATCH
+            : Integer.parseInt(props.getProperty(SESSION_EXPIRY_PURGE_BATCH_PROPERTY_NAME,
+                String.valueOf(DEFAULT_SESSION_EXPIRY_PURGE_BATCH)));
+        this.expiryIndex = new SessionExpiryIndex(TimeUnit.SECONDS.toMillis(ttlSeconds), ttlByPrefix,
+            TimeUnit.SECONDS.toMillis(purgeIntervalSeconds));
+        final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
+        this.expiredSessions = metrics.meter("sessions.expiry.expired");
+        this.cancelledExpiries = metrics.counter("sessions.expiry.cancelled");
+        this.purgeTimes = metrics.timer("sessions.expiry.purge");
+        registerGauge("sessions.expiry.tracked", expiryIndex::size);
+        LOG.info("Sessions expire after {} s, by client id prefix {} ms, purged every {} s", ttlSeconds, ttlByPrefix,
+            purgeIntervalSeconds);
+    }
+
+    /**
+     * @param listener notified on the purge thread of each session expired with its subscriptions, before they are
+     *                 wiped from the store.
+     */
+    public void onSessionExpired(BiConsumer<String, Collection<Subscription>> listener) {
+        this.expiryListener = listener;
     }
 
     @SuppressWarnings("FutureReturnValueIgnored")
     public void init() {
+        for (Map.Entry<String, LocalDateTime> closed : this.sessions.closedSessions().entrySet()) {
+            this.expiryIndex.track(closed.getKey(), closed.getValue());
+        }
+        LOG.info("Tracking the expiry of {} closed sessions", this.expiryIndex.size());
         SessionCleanerTask cleanerTask = new SessionCleanerTask();
-        this.scheduler.schedule(cleanerTask, 1, TimeUnit.HOURS);
+        this.scheduler.scheduleWithFixedDelay(cleanerTask, purgeIntervalSeconds, purgeIntervalSeconds,
+            TimeUnit.SECONDS);
     }
 
     public ClientSession sessionForClient(String clientID) {
@@ -104,6 +173,50 @@ public class SessionsRepository {
         return newClientSessionAndCacheIt(clientID, cleanSession);
     }
 
+    /**
+     * @return the session of the handle, looked up by client id only once the handle retired.
+     */
+    ClientSession sessionFor(SessionHandle handle) {
+        final ClientSession session = handle.session();
+        return session != null ? session : sessionForClient(handle.clientID);
+    }
+
+    /**
+     * @return the handle of the subscriber, resolved by client id only the first time or after a retirement.
+     */
+    public SessionHandle handleFor(Subscription subscription) {
+        SessionHandle handle = subscription.getHandle();
+        if (handle == null || handle.isRetired()) {
+            handle = handleForClient(subscription.getClientId());
+            subscription.setHandle(handle);
+        }
+        return handle;
+    }
+
+    /**
+     * @return the handle of the client, created for a disconnected persistent session, or null without session.
+     */
+    SessionHandle handleForClient(String clientID) {
+        final SessionHandle handle = this.handles.get(clientID);
+        if (handle != null && handle.session() != null) {
+            return handle;
+        }
+        final ClientSession session = sessionForClient(clientID);
+        if (session == null) {
+            return null;
+        }
+        final SessionHandle created = this.handles.computeIfAbsent(clientID, SessionHandle::new);
+        created.attach(session);
+        return created;
+    }
+
+    private void retireHandle(String clientID) {
+        final SessionHandle handle = this.handles.remove(clientID);
+        if (handle != null) {
+            handle.retire();
+        }
+    }
+
     public Collection<ClientSession> getAllSessions() {
         Collection<ClientSession> result = new ArrayList<>();
         for (PersistentSession persistentSession : this.sessions.listAllSessions()) {
@@ -112,7 +225,22 @@ public class SessionsRepository {
         return result;
     }
 
-    ClientSession createOrLoadClientSession(String clientId, boolean cleanSession) {
+    /**
+     * Creates or loads the session of the client connecting, and binds it with the connection to the handle of the
+     * client.
+     *
+     * @return the handle of the client, to attach to its channel.
+     */
+    public SessionHandle createOrLoadClientSession(String clientId, boolean cleanSession,
+                                                   ConnectionDescriptor connection) {
+        final SessionHandle handle = this.handles.computeIfAbsent(clientId, SessionHandle::new);
+        // connected first, the purge of the expired sessions skips it from now on
+        handle.connect(connection);
+        final LocalDateTime closedAt = this.expiryIndex.cancel(clientId);
+        if (closedAt != null) {
+            this.sessions.untrackSessionClose(closedAt, clientId);
+            this.cancelledExpiries.inc();
+        }
         ClientSession clientSession = this.sessionForClient(clientId);
         if (clientSession == null) {
             clientSession = this.createNewSession(clientId, cleanSession);
@@ -132,7 +260,8 @@ public class SessionsRepository {
             LOG.info("Cleaning session. CId={}", clientId);
             clientSession.cleanSession();
         }
-        return clientSession;
+        handle.bind(clientSession, connection);
+        return handle;
     }
 
     public void disconnect(String clientId) {
@@ -143,15 +272,69 @@ public class SessionsRepository {
         }
 
         sessionsCache.remove(clientId);
-        this.sessions.trackSessionClose(LocalDateTime.now(), clientId);
+        if (clientSession.isCleanSession()) {
+            // nothing is kept to expire
+            retireHandle(clientId);
+            return;
+        }
+        final SessionHandle handle = this.handles.get(clientId);
+        if (handle != null) {
+            handle.unbind();
+        }
+        final LocalDateTime now = LocalDateTime.now();
+        this.sessions.trackSessionClose(now, clientId);
+        final LocalDateTime replaced = this.expiryIndex.track(clientId, now);
+        if (replaced != null && !replaced.equals(now)) {
+            this.sessions.untrackSessionClose(replaced, clientId);
+        }
     }
 
-    private void wipeExpiredSessions() {
-        final LocalDateTime pin = LocalDateTime.now().minus(6, ChronoUnit.DAYS);
-        final Set<String> expiredSessionsIds = this.sessions.sessionOlderThan(pin);
-        for (String expiredSession : expiredSessionsIds) {
-            this.sessions.removeDurableSession(expiredSession);
-            this.subscriptionsStore.wipeSubscriptions(expiredSession);
+    /**
+     * Removes the persistent session taken over by another node of the cluster, as the purge of an expired one.
+     */
+    void handOver(String clientID) {
+        final LocalDateTime closedAt = this.expiryIndex.cancel(clientID);
+        if (closedAt != null) {
+            this.sessions.untrackSessionClose(closedAt, clientID);
+        }
+        this.sessionsCache.remove(clientID);
+        retireHandle(clientID);
+        this.sessions.removeDurableSession(clientID);
+        this.subscriptionsStore.wipeSubscriptions(clientID);
+    }
+
+    /**
+     * Removes a batch of the sessions expired.
+     *
+     * @return true if the batch was full, more sessions may be expired.
+     */
+    private boolean wipeExpiredSessions() {
+        final Map<String, LocalDateTime> expired;
+        final Timer.Context timing = this.purgeTimes.time();
+        try {
+            expired = this.expiryIndex.pollExpired(System.currentTimeMillis(), this.purgeBatch);
+            for (Map.Entry<String, LocalDateTime> expiredSession : expired.entrySet()) {
+                final String clientID = expiredSession.getKey();
+                this.sessions.untrackSessionClose(expiredSession.getValue(), clientID);
+                final SessionHandle handle = this.handles.get(clientID);
+                if ((handle != null && handle.connection() != null) || !this.sessions.contains(clientID)) {
+                    // reconnected while expiring, or already removed
+                    continue;
+                }
+                // a publish to the disconnected session may have cached it
+                this.sessionsCache.remove(clientID);
+                retireHandle(clientID);
+                this.expiryListener.accept(clientID, this.subscriptionsStore.listClientSubscriptions(clientID));
+                this.sessions.removeDurableSession(clientID);
+                this.subscriptionsStore.wipeSubscriptions(clientID);
+                this.expiredSessions.mark();
+            }
+        } finally {
+            timing.stop();
+        }
+        if (!expired.isEmpty()) {
+            LOG.info("Purged {} expired sessions, still tracked={}", expired.size(), this.expiryIndex.size());
         }
+        return expired.size() == this.purgeBatch;
     }
 }
@@ -16,6 +16,10 @@
 
 package com.kd.spi.impl.security;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
 import com.kd.BrokerConstants;
 import com.kd.server.config.IConfig;
 import com.kd.spi.security.IAuthenticator;
@@ -25,29 +29,119 @@ import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.kd.BrokerConstants.METRICS_REGISTRY_NAME;
+import static com.kd.BrokerConstants.registerGauge;
 
 /**
  * Load user credentials from a SQL database. sql driver must be provided at runtime
+ * <p>
+ * The queries run on a bounded pool of threads, each with its own connection and statement prepared once, not on the
+ * threads of the connections: a login waiting for the database doesn't hold the others. The digest read for a
+ * username is cached for a TTL, an unknown username for a shorter one, and the logins of a username waiting for the
+ * database share its query. Beyond the queue of the pool the logins are refused. A password changed in the database
+ * applies to the next logins once the TTL elapsed.
  */
 public class DBAuthenticator implements IAuthenticator {
 
     private static final Logger LOG = LoggerFactory.getLogger(DBAuthenticator.class);
+    // given back to the pool once in a while, so the pool can retire it
+    private static final long CONNECTION_MAX_AGE_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final long PURGE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The hex digest of the password of a username, null if unknown, and when it expires.
+     */
+    private static final class Credentials {
+
+        final String digest;
+        final long expiresNanos;
+
+        Credentials(String digest, long expiresNanos) {
+            this.digest = digest;
+            this.expiresNanos = expiresNanos;
+        }
+
+        boolean isExpired(long nowNanos) {
+            return nowNanos - expiresNanos >= 0;
+        }
+    }
+
+    /**
+     * The connection of a query thread, with the query prepared on it.
+     */
+    private static final class QueryConnection {
 
-    private final MessageDigest messageDigest;
-    private HikariDataSource dataSource;
-    private String sqlQuery;
+        final Connection connection;
+        final PreparedStatement statement;
+        final long openedNanos = System.nanoTime();
+
+        QueryConnection(Connection connection, String sqlQuery) throws SQLException {
+            this.connection = connection;
+            try {
+                this.statement = connection.prepareStatement(sqlQuery);
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                statement.close();
+                connection.close();
+            } catch (SQLException e) {
+                LOG.error("Error releasing connection to the datasource", e);
+            }
+        }
+    }
+
+    private final HikariDataSource dataSource;
+    private final String sqlQuery;
+    private final ThreadLocal<MessageDigest> messageDigests;
+    private final ThreadLocal<QueryConnection> connections = new ThreadLocal<>();
+    private final ConcurrentMap<String, Credentials> cache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Credentials>> queried = new ConcurrentHashMap<>();
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final int maxEntries;
+    private volatile long lastPurgeNanos = System.nanoTime();
+    private final ThreadPoolExecutor executor;
+    private final Meter hits;
+    private final Meter rejected;
+    private final Timer queries;
 
     public DBAuthenticator(IConfig conf) {
         this(conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_DRIVER, ""),
              conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_URL, ""),
              conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_QUERY, ""),
-             conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_DIGEST, ""));
+             conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_DIGEST, ""),
+             Long.parseLong(conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_CACHE_TTL,
+                 String.valueOf(BrokerConstants.DEFAULT_DB_AUTHENTICATOR_CACHE_TTL_MILLIS))),
+             Long.parseLong(conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_NEGATIVE_CACHE_TTL,
+                 String.valueOf(BrokerConstants.DEFAULT_DB_AUTHENTICATOR_NEGATIVE_CACHE_TTL_MILLIS))),
+             Integer.parseInt(conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_CACHE_MAX_ENTRIES,
+                 String.valueOf(BrokerConstants.DEFAULT_DB_AUTHENTICATOR_CACHE_MAX_ENTRIES))),
+             Integer.parseInt(conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_THREADS,
+                 String.valueOf(BrokerConstants.DEFAULT_DB_AUTHENTICATOR_THREADS))),
+             Integer.parseInt(conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_QUEUE_SIZE,
+                 String.valueOf(BrokerConstants.DEFAULT_DB_AUTHENTICATOR_QUEUE_SIZE))));
     }
 
     /**
@@ -63,59 +157,164 @@ public class DBAuthenticator implements IAuthenticator {
      *            : password encoding algorithm : "MD5", "SHA-1", "SHA-256"
      */
     public DBAuthenticator(String driver, String jdbcUrl, String sqlQuery, String digestMethod) {
+        this(driver, jdbcUrl, sqlQuery, digestMethod, BrokerConstants.DEFAULT_DB_AUTHENTICATOR_CACHE_TTL_MILLIS,
+             BrokerConstants.DEFAULT_DB_AUTHENTICATOR_NEGATIVE_CACHE_TTL_MILLIS,
+             BrokerConstants.DEFAULT_DB_AUTHENTICATOR_CACHE_MAX_ENTRIES,
+             BrokerConstants.DEFAULT_DB_AUTHENTICATOR_THREADS, BrokerConstants.DEFAULT_DB_AUTHENTICATOR_QUEUE_SIZE);
+    }
+
+    /**
+     * @param ttlMillis
+     *            : how long the digest read for a username is used, 0 to query every login
+     * @param negativeTtlMillis
+     *            : how long a username not found is refused without querying
+     * @param maxEntries
+     *            : the usernames cached at most
+     * @param threads
+     *            : the queries running at once, each thread holding a connection
+     * @param queueSize
+     *            : the queries waiting for a thread before the logins are refused
+     */
+    public DBAuthenticator(String driver, String jdbcUrl, String sqlQuery, String digestMethod, long ttlMillis,
+                           long negativeTtlMillis, int maxEntries, int threads, int queueSize) {
         this.sqlQuery = sqlQuery;
         this.dataSource = new HikariDataSource();
+        if (!driver.isEmpty()) {
+            this.dataSource.setDriverClassName(driver);
+        }
         this.dataSource.setJdbcUrl(jdbcUrl);
+        this.dataSource.setMaximumPoolSize(threads);
 
         try {
-            this.messageDigest = MessageDigest.getInstance(digestMethod);
+            MessageDigest.getInstance(digestMethod);
         } catch (NoSuchAlgorithmException nsaex) {
             LOG.error(String.format("Can't find %s for password encoding", digestMethod), nsaex);
             throw new RuntimeException(nsaex);
         }
+        this.messageDigests = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance(digestMethod);
+            } catch (NoSuchAlgorithmException nsaex) {
+                throw new IllegalStateException(nsaex);
+            }
+        });
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.maxEntries = maxEntries;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize), runnable -> {
+                final Thread thread = new Thread(runnable, "db-authenticator-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
+        this.hits = metrics.meter("authenticator.db.cache_hits");
+        this.rejected = metrics.meter("authenticator.db.rejected");
+        this.queries = metrics.timer("authenticator.db.queries");
+        registerGauge("authenticator.db.cache_size", cache::size);
+    }
+
+    @Override
+    public boolean checkValid(String clientId, String username, byte[] password) {
+        return checkValidAsync(clientId, username, password).toCompletableFuture().join();
     }
 
     @Override
-    public synchronized boolean checkValid(String clientId, String username, byte[] password) {
+    public CompletionStage<Boolean> checkValidAsync(String clientId, String username, byte[] password) {
         // Check Username / Password in DB using sqlQuery
         if (username == null || password == null) {
             LOG.info("username or password was null");
+            return CompletableFuture.completedFuture(false);
+        }
+        final Credentials cached = cache.get(username);
+        if (cached != null && !cached.isExpired(System.nanoTime())) {
+            hits.mark();
+            return CompletableFuture.completedFuture(matches(cached, password));
+        }
+        CompletableFuture<Credentials> query = queried.get(username);
+        if (query == null) {
+            final CompletableFuture<Credentials> created = new CompletableFuture<>();
+            query = queried.putIfAbsent(username, created);
+            if (query == null) {
+                query = created;
+                try {
+                    executor.execute(() -> query(username, created));
+                } catch (RejectedExecutionException rex) {
+                    LOG.warn("Too many logins waiting for the DB, refusing username: {}", username);
+                    rejected.mark();
+                    queried.remove(username, created);
+                    created.completeExceptionally(rex);
+                }
+            }
+        }
+        return query.handle((credentials, error) -> error == null && matches(credentials, password));
+    }
+
+    private boolean matches(Credentials credentials, byte[] password) {
+        if (credentials.digest == null) {
             return false;
         }
+        final byte[] digest = messageDigests.get().digest(password);
+        final byte[] encodedPasswd = new String(Hex.encodeHex(digest)).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(credentials.digest.getBytes(StandardCharsets.UTF_8), encodedPasswd);
+    }
 
-        ResultSet resultSet = null;
-        PreparedStatement preparedStatement = null;
-        Connection conn = null;
+    private void query(String username, CompletableFuture<Credentials> query) {
+        final Timer.Context timing = queries.time();
         try {
-            conn = this.dataSource.getConnection();
-
-            preparedStatement = conn.prepareStatement(this.sqlQuery);
-            preparedStatement.setString(1, username);
-            resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
-                final String foundPwq = resultSet.getString(1);
-                messageDigest.update(password);
-                byte[] digest = messageDigest.digest();
-                String encodedPasswd = new String(Hex.encodeHex(digest));
-                return foundPwq.equals(encodedPasswd);
+            final String foundPwq = select(username);
+            final long now = System.nanoTime();
+            final Credentials credentials = new Credentials(foundPwq,
+                now + (foundPwq != null ? ttlNanos : negativeTtlNanos));
+            cache(username, credentials, now);
+            queried.remove(username, query);
+            query.complete(credentials);
+        } catch (SQLException | RuntimeException ex) {
+            LOG.error("Error quering DB for username: {}", username, ex);
+            queried.remove(username, query);
+            query.completeExceptionally(ex);
+        } finally {
+            timing.stop();
+        }
+    }
+
+    private String select(String username) throws SQLException {
+        QueryConnection queryConnection = connections.get();
+        if (queryConnection != null && System.nanoTime() - queryConnection.openedNanos > CONNECTION_MAX_AGE_NANOS) {
+            queryConnection.close();
+            queryConnection = null;
+        }
+        if (queryConnection == null) {
+            queryConnection = new QueryConnection(dataSource.getConnection(), sqlQuery);
+            connections.set(queryConnection);
+        }
+        try {
+            queryConnection.statement.setString(1, username);
+            try (ResultSet resultSet = queryConnection.statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
             }
         } catch (SQLException sqlex) {
-            LOG.error("Error quering DB for username: {}", username, sqlex);
-        } finally {
-            try {
-                if (resultSet != null) {
-                    resultSet.close();
-                }
-                if (preparedStatement != null) {
-                    preparedStatement.close();
-                }
-                if (conn != null) {
-                    conn.close();
-                }
-            } catch (SQLException e) {
-                LOG.error("Error releasing connection to the datasource", username, e);
+            // opened again by the next query
+            connections.remove();
+            queryConnection.close();
+            throw sqlex;
+        }
+    }
+
+    private void cache(String username, Credentials credentials, long now) {
+        if (cache.size() >= maxEntries) {
+            if (now - lastPurgeNanos < PURGE_INTERVAL_NANOS) {
+                return;
+            }
+            lastPurgeNanos = now;
+            cache.values().removeIf(cached -> cached.isExpired(now));
+            if (cache.size() >= maxEntries) {
+                return;
             }
         }
-        return false;
+        cache.put(username, credentials);
     }
 }
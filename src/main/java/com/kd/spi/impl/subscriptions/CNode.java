@@ -79,8 +79,14 @@ class CNode {
         this.children.remove(node);
     }
 
-    CNode addSubscription(String clientId, Topic topic) {
-        this.subscriptions.add(new Subscription(clientId, topic));
+    /**
+     * Adds the subscription to this node. A subscription of the same client with the same topic filter is replaced,
+     * so the node always carries the QoS granted by the last SUBSCRIBE.
+     * */
+    CNode addSubscription(Subscription newSubscription) {
+        // Subscription equality doesn't consider the QoS, so drop the old one before adding
+        this.subscriptions.remove(newSubscription);
+        this.subscriptions.add(newSubscription);
         return this;
     }
 
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.spi.impl.subscriptions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds a whole CTrie in one pass from a bulk of subscriptions, used to reload the stored subscriptions at startup.
+ *
+ * The subscriptions are sorted token by token, so that every node of the tree corresponds to a contiguous range of
+ * the sorted array; each node is then built bottom-up from its range, without any CAS or path copy. Ranges big enough
+ * are built in parallel on the fork/join pool.
+ */
+class CTrieBulkLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CTrieBulkLoader.class);
+
+    /**
+     * Ranges smaller than this are built on the current thread, forking them isn't worth the task overhead.
+     */
+    private static final int FORK_THRESHOLD = 4096;
+
+    /**
+     * The level separator is swapped with U+0000 (that MQTT forbids in topic names) so that the natural ordering of
+     * the keys is the token by token ordering, where a filter comes before all the filters it's a prefix of.
+     */
+    private static final Comparator<Entry> BY_TOKENS = Comparator.comparing(e -> e.sortKey);
+
+    private static final class Entry {
+
+        final String sortKey;
+        final Token[] tokens;
+        final Subscription subscription;
+
+        Entry(Token[] tokens, Subscription subscription) {
+            this.sortKey = subscription.topicFilter.toString().replace('/', '\u0000');
+            this.tokens = tokens;
+            this.subscription = subscription;
+        }
+    }
+
+    private final Entry[] entries;
+    private final ForkJoinPool pool;
+
+    CTrieBulkLoader(Collection<Subscription> subscriptions, ForkJoinPool pool) {
+        this.pool = pool;
+        List<Entry> valid = new ArrayList<>(subscriptions.size());
+        for (Subscription subscription : subscriptions) {
+            final List<Token> tokens = subscription.topicFilter.getTokens();
+            if (tokens == null || tokens.isEmpty()) {
+                LOG.warn("Skipping invalid stored subscription CId={}, topicFilter={}", subscription.clientId,
+                    subscription.topicFilter);
+                continue;
+            }
+            valid.add(new Entry(tokens.toArray(new Token[0]), subscription));
+        }
+        this.entries = valid.toArray(new Entry[0]);
+    }
+
+    int size() {
+        return entries.length;
+    }
+
+    /**
+     * @param rootToken the token to assign to the root node of the tree.
+     * @return the root of a new tree containing all the loaded subscriptions.
+     */
+    INode build(Token rootToken) {
+        Arrays.parallelSort(entries, BY_TOKENS);
+        final CNode rootNode = pool.invoke(new BuildTask(rootToken, 0, entries.length, 0));
+        return new INode(rootNode);
+    }
+
+    /**
+     * Builds the node at the given depth from the entries in range [from, to), all sharing the first depth tokens.
+     */
+    private final class BuildTask extends RecursiveTask<CNode> {
+
+        private static final long serialVersionUID = 6164930418250376952L;
+
+        private final Token token;
+        private final int from;
+        private final int to;
+        private final int depth;
+
+        BuildTask(Token token, int from, int to, int depth) {
+            this.token = token;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+        }
+
+        @Override
+        protected CNode compute() {
+            final CNode cnode = new CNode();
+            cnode.token = token;
+            int i = from;
+            // entries terminating at this depth are the subscriptions of this node
+            while (i < to && entries[i].tokens.length == depth) {
+                cnode.addSubscription(entries[i].subscription);
+                i++;
+            }
+
+            List<BuildTask> forked = new ArrayList<>();
+            while (i < to) {
+                final Token childToken = entries[i].tokens[depth];
+                int end = i + 1;
+                while (end < to && entries[end].tokens[depth].equals(childToken)) {
+                    end++;
+                }
+                BuildTask child = new BuildTask(childToken, i, end, depth + 1);
+                if (end - i >= FORK_THRESHOLD) {
+                    child.fork();
+                    forked.add(child);
+                } else {
+                    cnode.add(new INode(child.compute()));
+                }
+                i = end;
+            }
+            for (BuildTask child : forked) {
+                cnode.add(new INode(child.join()));
+            }
+            return cnode;
+        }
+    }
+}
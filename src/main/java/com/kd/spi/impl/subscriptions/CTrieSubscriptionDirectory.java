@@ -22,8 +22,9 @@ import com.kd.spi.ClientSession;
 import com.kd.spi.impl.SessionsRepository;
 
 import java.util.*;
-
-import static java.lang.String.format;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
@@ -32,7 +33,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
     private static final Token ROOT = new Token("root");
     private static final INode NO_PARENT = null;
 
-    INode root;
+    volatile INode root;
     private volatile SessionsRepository sessionsRepository;
 
     interface IVisitor<T> {
@@ -56,16 +57,16 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
         LOG.info("Initializing subscriptions store...");
         this.sessionsRepository = sessionsRepository;
         // reload any subscriptions persisted
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("Reloading all stored subscriptions. SubscriptionTree = {}", dumpTree());
-        }
+        List<Subscription> storedSubscriptions = new ArrayList<>();
         for (ClientSession session : this.sessionsRepository.getAllSessions()) {
-            for (Subscription subscription : session.getSubscriptions()) {
-                LOG.info("Re-subscribing client to topic CId={}, topicFilter={}", subscription.clientId,
-                    subscription.topicFilter);
-                add(subscription);
-            }
+            storedSubscriptions.addAll(session.getSubscriptions());
         }
+        final long start = System.currentTimeMillis();
+        CTrieBulkLoader loader = new CTrieBulkLoader(storedSubscriptions, ForkJoinPool.commonPool());
+        // the tree is built aside and published at once, nobody can observe it partially loaded
+        this.root = loader.build(ROOT);
+        LOG.info("Stored subscriptions have been reloaded. Subscriptions={}, elapsed={} ms", loader.size(),
+            System.currentTimeMillis() - start);
         if (LOG.isTraceEnabled()) {
             LOG.trace("Stored subscriptions have been reloaded. SubscriptionTree = {}", dumpTree());
         }
@@ -74,9 +75,11 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
     Optional<CNode> lookup(Topic topic) {
         INode inode = this.root;
         Token token = topic.headToken();
-        while (!topic.isEmpty() && (inode.mainNode().anyChildrenMatch(token))) {
+        CNode cnode = inode.mainNode();
+        while (!topic.isEmpty() && cnode.anyChildrenMatch(token)) {
             topic = topic.exceptHeadToken();
-            inode = inode.mainNode().childOf(token);
+            inode = cnode.childOf(token);
+            cnode = inode.mainNode();
             token = topic.headToken();
         }
         if (inode == null || !topic.isEmpty()) {
@@ -87,7 +90,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     @Override
     public List<Subscription> matches(Topic topic) {
-        return new ArrayList<>(match(topic));
+        return new ArrayList<>(matchPerClient(topic).values());
     }
 
     /**
@@ -100,54 +103,56 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
      * @return the list of matching subscriptions, or empty if not matching.
      */
      Set<Subscription> match(Topic topic) {
-        final Set<Subscription> matchingSubs = recursiveMatch(topic, this.root);
-        // remove the overlapping subscriptions, selecting ones with greatest qos
-        Map<String, Subscription> subsForClient = new HashMap<>();
-        for (Subscription matchingSub : matchingSubs) {
-            Subscription existingSub = subsForClient.get(matchingSub.clientId);
-            final ClientSession subscribedSession = this.sessionsRepository.sessionForClient(matchingSub.clientId);
-            if (subscribedSession == null) {
-                //clean session disconnected
-                continue;
-            }
-            Subscription sub = subscribedSession.findSubscriptionByTopicFilter(matchingSub);
-            if (sub == null) {
-                final String excpMesg = format("Target session %s is connected but doesn't anymore subscribed to %s",
-                    matchingSub.clientId, matchingSub);
-                throw new IllegalStateException(excpMesg);
-            }
-            // update the selected subscriptions if not present or if has a greater qos
-            if (existingSub == null || existingSub.qosLessThan(sub)) {
-                subsForClient.put(sub.clientId, sub);
-            }
+        return new HashSet<>(matchPerClient(topic).values());
+    }
+
+    /**
+     * The subscriptions stored in the tree carry the requested QoS, so the overlapping subscriptions of a
+     * client are resolved during the visit, keeping the one with the greatest QoS, without any session lookup.
+     */
+    private Map<String, Subscription> matchPerClient(Topic topic) {
+        final Map<String, Subscription> subsForClient = new HashMap<>();
+        final List<Token> tokens = topic.getTokens();
+        if (tokens != null) {
+            recursiveMatch(tokens, 0, this.root, subsForClient);
         }
-        return new HashSet<>(subsForClient.values());
+        return subsForClient;
     }
 
-    Set<Subscription> recursiveMatch(Topic topic, INode inode) {
+    private void recursiveMatch(List<Token> tokens, int position, INode inode, Map<String, Subscription> matching) {
         CNode cnode = inode.mainNode();
         if (Token.MULTI.equals(cnode.token)) {
-            return cnode.subscriptions;
+            collectGreatestQos(cnode, matching);
+            return;
         }
-        if (topic.isEmpty()) {
-            return Collections.emptySet();
+        if (position >= tokens.size()) {
+            return;
         }
         if (cnode instanceof TNode) {
-            return Collections.emptySet();
+            return;
         }
-        final Token token = topic.headToken();
-        if (!(Token.SINGLE.equals(cnode.token) || cnode.token.equals(token) || ROOT.equals(cnode.token))) {
-            return Collections.emptySet();
+        final Token token = tokens.get(position);
+        final boolean isRoot = ROOT.equals(cnode.token);
+        if (!(Token.SINGLE.equals(cnode.token) || cnode.token.equals(token) || isRoot)) {
+            return;
         }
-        Topic remainingTopic = (ROOT.equals(cnode.token)) ? topic : topic.exceptHeadToken();
-        Set<Subscription> subscriptions = new HashSet<>();
-        if (remainingTopic.isEmpty()) {
-            subscriptions.addAll(cnode.subscriptions);
+        final int remaining = isRoot ? position : position + 1;
+        if (remaining == tokens.size()) {
+            collectGreatestQos(cnode, matching);
         }
         for (INode subInode : cnode.allChildren()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode));
+            recursiveMatch(tokens, remaining, subInode, matching);
+        }
+    }
+
+    private static void collectGreatestQos(CNode cnode, Map<String, Subscription> matching) {
+        for (Subscription sub : cnode.subscriptions) {
+            final Subscription existingSub = matching.get(sub.clientId);
+            // update the selected subscriptions if not present or if has a greater qos
+            if (existingSub == null || existingSub.qosLessThan(sub)) {
+                matching.put(sub.clientId, sub);
+            }
         }
-        return subscriptions;
     }
 
     /**
@@ -155,7 +160,8 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
      * Cleans Disposes of TNode in separate Atomic CAS operation per
      * http://bravenewgeek.com/breaking-and-entering-lose-the-lock-while-embracing-concurrency/
      *
-     * We roughly follow this theory above, but we allow CNode with no Subscriptions to linger (for now).
+     * Only the tomb is removed here, the parents left without subscriptions and children are pruned later by
+     * {@link #compact()}.
      *
      *
      * @param inode
@@ -163,37 +169,114 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
      * @return
      */
     public Action cleanTomb(INode inode, INode iParent) {
-        CNode updatedCnode = iParent.mainNode().copy();
+        final CNode parentCnode = iParent.mainNode();
+        if (parentCnode instanceof TNode || !parentCnode.allChildren().contains(inode)) {
+            // someone else already removed it
+            return Action.OK;
+        }
+        CNode updatedCnode = parentCnode.copy();
         updatedCnode.remove(inode);
-        return iParent.compareAndSet(iParent.mainNode(), updatedCnode) ? Action.OK : Action.REPEAT;
+        return iParent.compareAndSet(parentCnode, updatedCnode) ? Action.OK : Action.REPEAT;
+    }
+
+    /**
+     * Prunes the nodes left with no subscriptions and no children, bottom-up, so that a path left by departed clients
+     * is removed entirely. Each node is first turned into a TNode with a CAS, so that a concurrent insert that raced on
+     * it fails the CAS or finds the tomb and retries from the root, then it's detached from the parent.
+     *
+     * @return the number of nodes removed from the tree.
+     */
+    public int compact() {
+        final INode currentRoot = this.root;
+        int pruned = 0;
+        for (INode child : currentRoot.mainNode().allChildren()) {
+            pruned += compact(child, currentRoot);
+        }
+        return pruned;
+    }
+
+    private int compact(INode inode, INode iParent) {
+        int pruned = 0;
+        CNode cnode = inode.mainNode();
+        if (!(cnode instanceof TNode)) {
+            for (INode child : cnode.allChildren()) {
+                pruned += compact(child, inode);
+            }
+            // the children could have been detached in the meantime
+            cnode = inode.mainNode();
+            if (!(cnode instanceof TNode)) {
+                if (!cnode.subscriptions.isEmpty() || !cnode.allChildren().isEmpty()) {
+                    return pruned;
+                }
+                if (!inode.compareAndSet(cnode, new TNode(cnode.token))) {
+                    // updated concurrently, it's not empty anymore or will be checked on next run
+                    return pruned;
+                }
+            }
+        }
+        while (cleanTomb(inode, iParent) == Action.REPEAT) {
+            // the parent changed concurrently, retry on the new version
+        }
+        return pruned + 1;
+    }
+
+    /**
+     * Schedules {@link #compact()} at fixed rate on the given scheduler.
+     *
+     * @param scheduler the scheduler running the compaction.
+     * @param intervalSeconds the interval between runs.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public void scheduleCompaction(ScheduledExecutorService scheduler, long intervalSeconds) {
+        LOG.info("Scheduling subscriptions tree compaction. Interval={} s", intervalSeconds);
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                final long start = System.currentTimeMillis();
+                final int pruned = compact();
+                LOG.info("Subscriptions tree compacted. PrunedNodes={}, elapsed={} ms, stats={}", pruned,
+                    System.currentTimeMillis() - start, stats());
+            } catch (Throwable th) {
+                // don't let an exception cancel the next executions
+                LOG.error("Subscriptions tree compaction failed", th);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
     }
 
     @Override
     public void add(Subscription newSubscription) {
         Action res;
         do {
-            res = insert(newSubscription.clientId, newSubscription.topicFilter, this.root, newSubscription.topicFilter);
+            res = insert(newSubscription, newSubscription.topicFilter, this.root, NO_PARENT);
         } while (res == Action.REPEAT);
     }
 
-    private Action insert(String clientId, Topic topic, final INode inode, Topic fullpath) {
+    private Action insert(Subscription newSubscription, Topic topic, final INode inode, INode iParent) {
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            // the node is being pruned, help to detach it and retry from the root
+            cleanTomb(inode, iParent);
+            return Action.REPEAT;
+        }
         Token token = topic.headToken();
-        if (!topic.isEmpty() && inode.mainNode().anyChildrenMatch(token)) {
+        if (!topic.isEmpty() && cnode.anyChildrenMatch(token)) {
             Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
-            return insert(clientId, remainingTopic, nextInode, fullpath);
+            INode nextInode = cnode.childOf(token);
+            return insert(newSubscription, remainingTopic, nextInode, inode);
         } else {
             if (topic.isEmpty()) {
-                return insertSubscription(clientId, fullpath, inode);
+                return insertSubscription(newSubscription, inode);
             } else {
-                return createNodeAndInsertSubscription(clientId, topic, inode, fullpath);
+                return createNodeAndInsertSubscription(newSubscription, topic, inode);
             }
         }
     }
 
-    private Action insertSubscription(String clientId, Topic topic, INode inode) {
+    private Action insertSubscription(Subscription newSubscription, INode inode) {
         CNode cnode = inode.mainNode();
-        CNode updatedCnode = cnode.copy().addSubscription(clientId, topic);
+        if (cnode instanceof TNode) {
+            return Action.REPEAT;
+        }
+        CNode updatedCnode = cnode.copy().addSubscription(newSubscription);
         if (inode.compareAndSet(cnode, updatedCnode)) {
             return Action.OK;
         } else {
@@ -201,33 +284,36 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
         }
     }
 
-    private Action createNodeAndInsertSubscription(String clientId, Topic topic, INode inode, Topic fullpath) {
-        INode newInode = createPathRec(clientId, topic, fullpath);
+    private Action createNodeAndInsertSubscription(Subscription newSubscription, Topic topic, INode inode) {
+        INode newInode = createPathRec(newSubscription, topic);
         CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            return Action.REPEAT;
+        }
         CNode updatedCnode = cnode.copy();
         updatedCnode.add(newInode);
 
         return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
     }
 
-    private INode createLeafNodes(String clientId, Topic fullpath, Token token) {
+    private INode createLeafNodes(Subscription newSubscription, Token token) {
         CNode newLeafCnode = new CNode();
         newLeafCnode.token = token;
-        newLeafCnode.addSubscription(clientId, fullpath);
+        newLeafCnode.addSubscription(newSubscription);
 
         return new INode(newLeafCnode);
     }
 
-    private INode createPathRec(String clientId, Topic topic, Topic fullpath) {
+    private INode createPathRec(Subscription newSubscription, Topic topic) {
         Topic remainingTopic = topic.exceptHeadToken();
         if (!remainingTopic.isEmpty()) {
-            INode inode = createPathRec(clientId, remainingTopic, fullpath);
+            INode inode = createPathRec(newSubscription, remainingTopic);
             CNode cnode = new CNode();
             cnode.token = topic.headToken();
             cnode.add(inode);
             return new INode(cnode);
         } else {
-            return createLeafNodes(clientId, fullpath, topic.headToken());
+            return createLeafNodes(newSubscription, topic.headToken());
         }
     }
 
@@ -248,12 +334,12 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private Action remove(String clientId, Topic topic, INode inode, INode iParent) {
         Token token = topic.headToken();
-        if (!topic.isEmpty() && (inode.mainNode().anyChildrenMatch(token))) {
+        final CNode cnode = inode.mainNode();
+        if (!topic.isEmpty() && cnode.anyChildrenMatch(token)) {
             Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
+            INode nextInode = cnode.childOf(token);
             return remove(clientId, remainingTopic, nextInode, inode);
         } else {
-            final CNode cnode = inode.mainNode();
             if (cnode instanceof TNode) {
                 // this inode is a tomb, has no clients and should be cleaned up
                 // Because we implemented cleanTomb below, this should be rare, but possible
@@ -263,9 +349,9 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             if (cnode.containsOnly(clientId) && topic.isEmpty() && cnode.allChildren().isEmpty()) {
                 // last client to leave this node, AND there are no downstream children, remove via TNode tomb
                 if (inode == this.root) {
-                    return inode.compareAndSet(cnode, inode.mainNode().copy()) ? Action.OK : Action.REPEAT;
+                    return inode.compareAndSet(cnode, cnode.copy()) ? Action.OK : Action.REPEAT;
                 }
-                TNode tnode = new TNode();
+                TNode tnode = new TNode(cnode.token);
                 return inode.compareAndSet(cnode, tnode) ? cleanTomb(inode, iParent) : Action.REPEAT;
             } else if (cnode.contains(clientId) && topic.isEmpty()) {
                 CNode updatedCnode = cnode.copy();
@@ -285,6 +371,33 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
         return visitor.getResult();
     }
 
+    @Override
+    public List<Subscription> listAllSubscriptions() {
+        final List<Subscription> all = new ArrayList<>();
+        dfsVisit(this.root, new IVisitor<List<Subscription>>() {
+
+            @Override
+            public void visit(CNode node, int deep) {
+                all.addAll(node.subscriptions);
+            }
+
+            @Override
+            public List<Subscription> getResult() {
+                return all;
+            }
+        }, 0);
+        return all;
+    }
+
+    /**
+     * @return the shape and memory footprint statistics of the tree.
+     */
+    public DirectoryStatsVisitor.Stats stats() {
+        DirectoryStatsVisitor visitor = new DirectoryStatsVisitor();
+        dfsVisit(this.root, visitor, 0);
+        return visitor.getResult();
+    }
+
     @Override
     public String dumpTree() {
         DumpTreeVisitor visitor = new DumpTreeVisitor();
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.spi.impl.subscriptions;
+
+import java.util.Arrays;
+
+/**
+ * Collects the shape of the tree: number of nodes, nodes per depth, the nodes without subscriptions and children
+ * (waiting for compaction) and an estimate of the heap retained by the tree structure.
+ */
+public class DirectoryStatsVisitor implements CTrieSubscriptionDirectory.IVisitor<DirectoryStatsVisitor.Stats> {
+
+    // shallow sizes, with compressed oops, of the objects making up a node: INode + AtomicReference + CNode,
+    // the children ArrayList and the subscriptions HashSet with its HashMap. Subscriptions are shared with the
+    // sessions so are not accounted, only the map entry referencing them.
+    private static final int NODE_BYTES = 16 + 16 + 24;
+    private static final int LIST_BYTES = 24 + 16;
+    private static final int SET_BYTES = 16 + 48 + 16;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int MAP_ENTRY_BYTES = 32;
+
+    public static final class Stats {
+
+        private final long nodes;
+        private final long emptyNodes;
+        private final long subscriptions;
+        private final long estimatedBytes;
+        private final long[] nodesPerDepth;
+
+        Stats(long nodes, long emptyNodes, long subscriptions, long estimatedBytes, long[] nodesPerDepth) {
+            this.nodes = nodes;
+            this.emptyNodes = emptyNodes;
+            this.subscriptions = subscriptions;
+            this.estimatedBytes = estimatedBytes;
+            this.nodesPerDepth = nodesPerDepth;
+        }
+
+        public long getNodes() {
+            return nodes;
+        }
+
+        public long getEmptyNodes() {
+            return emptyNodes;
+        }
+
+        public double getEmptyNodesRatio() {
+            return nodes == 0 ? 0 : (double) emptyNodes / nodes;
+        }
+
+        public long getSubscriptions() {
+            return subscriptions;
+        }
+
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        /**
+         * @return the number of nodes at each depth, the root is at depth 0.
+         */
+        public long[] getNodesPerDepth() {
+            return nodesPerDepth.clone();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[nodes: %d, emptyNodes: %d (%.2f%%), subscriptions: %d, estimatedBytes: %d, "
+                    + "nodesPerDepth: %s]", nodes, emptyNodes, getEmptyNodesRatio() * 100, subscriptions,
+                estimatedBytes, Arrays.toString(nodesPerDepth));
+        }
+    }
+
+    private long nodes;
+    private long emptyNodes;
+    private long subscriptions;
+    private long estimatedBytes;
+    private long[] nodesPerDepth = new long[8];
+
+    @Override
+    public void visit(CNode node, int deep) {
+        nodes++;
+        if (deep >= nodesPerDepth.length) {
+            nodesPerDepth = Arrays.copyOf(nodesPerDepth, Math.max(deep + 1, nodesPerDepth.length * 2));
+        }
+        nodesPerDepth[deep]++;
+
+        final int subscriptionsCount = node.subscriptions.size();
+        final int childrenCount = node.allChildren().size();
+        subscriptions += subscriptionsCount;
+        // the root is never pruned, so it's not accounted as empty
+        if (deep > 0 && subscriptionsCount == 0 && childrenCount == 0) {
+            emptyNodes++;
+        }
+        estimatedBytes += NODE_BYTES + LIST_BYTES + SET_BYTES
+            + (long) REFERENCE_BYTES * Math.max(10, childrenCount)
+            + (long) REFERENCE_BYTES * Math.max(16, Integer.highestOneBit(subscriptionsCount * 4 / 3) << 1)
+            + (long) MAP_ENTRY_BYTES * subscriptionsCount;
+    }
+
+    @Override
+    public Stats getResult() {
+        int maxDepth = nodesPerDepth.length;
+        while (maxDepth > 0 && nodesPerDepth[maxDepth - 1] == 0) {
+            maxDepth--;
+        }
+        return new Stats(nodes, emptyNodes, subscriptions, estimatedBytes, Arrays.copyOf(nodesPerDepth, maxDepth));
+    }
+}
@@ -39,7 +39,8 @@ class DumpTreeVisitor implements CTrieSubscriptionDirectory.IVisitor<String> {
         for (Subscription couple : node.subscriptions) {
             subScriptionsStr
                 .append("{filter=").append(couple.topicFilter).append(", ")
-                .append("client='").append(couple.clientId).append("'}");
+                .append("client='").append(couple.clientId).append("', ")
+                .append("qos=").append(couple.getRequestedQos()).append("}");
             counter++;
             if (counter < node.subscriptions.size()) {
                 subScriptionsStr.append(";");
@@ -16,6 +16,8 @@
 package com.kd.spi.impl.subscriptions;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import com.kd.spi.impl.SessionsRepository;
 
@@ -27,9 +29,36 @@ public interface ISubscriptionsDirectory {
 
     void removeSubscription(Topic topic, String clientID);
 
+    /**
+     * Adds the subscription without waiting for the directory to apply it, called on the threads of the connections.
+     * The directories applying the changes on threads of their own override it, by default it applies the change at
+     * once with {@link #add(Subscription)}.
+     *
+     * @return completed once the publishes match the subscription.
+     */
+    default CompletionStage<Void> addAsync(Subscription newSubscription) {
+        add(newSubscription);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Removes the subscription as {@link #addAsync(Subscription)} adds one.
+     *
+     * @return completed once the publishes don't match the subscription any more.
+     */
+    default CompletionStage<Void> removeSubscriptionAsync(Topic topic, String clientID) {
+        removeSubscription(topic, clientID);
+        return CompletableFuture.completedFuture(null);
+    }
+
     List<Subscription> matches(Topic topic);
 
     int size();
 
+    /**
+     * @return the subscriptions of every session, the clean ones included.
+     */
+    List<Subscription> listAllSubscriptions();
+
     String dumpTree();
 }
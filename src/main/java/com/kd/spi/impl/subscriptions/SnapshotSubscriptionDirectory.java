@@ -0,0 +1,571 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.spi.impl.subscriptions;
+
+import com.kd.server.config.IConfig;
+import com.kd.spi.ClientSession;
+import com.kd.spi.impl.SessionsRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Subscriptions directory optimized for a workload with many more matches than subscribe and unsubscribe.
+ *
+ * Readers match against an immutable snapshot without any lock or CAS. The subscriptions are partitioned in segments
+ * by the first two tokens of the filter, each segment is a trie laid out in flat arrays. A single writer thread
+ * drains the pending mutations in batches, rebuilds only the segments they touch and publishes the new snapshot with
+ * a volatile write (read-copy-update). The changes of {@link #addAsync(Subscription)} and
+ * {@link #removeSubscriptionAsync(Topic, String)} complete once the snapshot containing them is published, the callers
+ * of {@link #add(Subscription)} and {@link #removeSubscription(Topic, String)} wait for it.
+ *
+ * Select it with <code>subscriptions_directory_class com.kd.spi.impl.subscriptions.SnapshotSubscriptionDirectory</code>.
+ */
+public class SnapshotSubscriptionDirectory implements ISubscriptionsDirectory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotSubscriptionDirectory.class);
+
+    public static final String MAX_BATCH_PROPERTY_NAME = "subscriptions.snapshot.max_batch";
+    private static final int DEFAULT_MAX_BATCH = 1024;
+
+    private static final String SINGLE = Token.SINGLE.name;
+    private static final String MULTI = Token.MULTI.name;
+
+    /**
+     * Subscriptions sharing the first one or two tokens, in flat arrays. Node 0 is the node of the last token of the
+     * segment key; the children of every node are contiguous and sorted by token, so are found by binary search.
+     */
+    static final class Segment {
+
+        final String[] tokens;
+        final int[] childStart;
+        final int[] childEnd;
+        final int[] singleChild;
+        final int[] multiChild;
+        final int[] subscriptionsStart;
+        final int[] subscriptionsEnd;
+        final Subscription[] subscriptions;
+
+        private Segment(int nodes, int subscriptionsCount) {
+            tokens = new String[nodes];
+            childStart = new int[nodes];
+            childEnd = new int[nodes];
+            singleChild = new int[nodes];
+            multiChild = new int[nodes];
+            subscriptionsStart = new int[nodes];
+            subscriptionsEnd = new int[nodes];
+            subscriptions = new Subscription[subscriptionsCount];
+        }
+
+        /**
+         * @param sorted the entries in token order, all sharing the same segment key at depth keyLength.
+         */
+        static Segment build(Collection<Entry> sorted, int keyLength) {
+            final Entry[] entries = sorted.toArray(new Entry[0]);
+
+            // lay out the nodes breadth first, so the children of each node get contiguous indexes
+            List<int[]> ranges = new ArrayList<>();
+            ranges.add(new int[] {0, entries.length, keyLength});
+            List<int[]> childrenOfNode = new ArrayList<>();
+            for (int node = 0; node < ranges.size(); node++) {
+                final int[] range = ranges.get(node);
+                final int depth = range[2];
+                int j = range[0];
+                while (j < range[1] && entries[j].tokens.length == depth) {
+                    j++;
+                }
+                final int firstChild = ranges.size();
+                while (j < range[1]) {
+                    final String childToken = entries[j].tokens[depth];
+                    int end = j + 1;
+                    while (end < range[1] && entries[end].tokens[depth].equals(childToken)) {
+                        end++;
+                    }
+                    ranges.add(new int[] {j, end, depth + 1});
+                    j = end;
+                }
+                childrenOfNode.add(new int[] {firstChild, ranges.size()});
+            }
+
+            final Segment segment = new Segment(ranges.size(), entries.length);
+            int subscriptionIndex = 0;
+            for (int node = 0; node < ranges.size(); node++) {
+                final int[] range = ranges.get(node);
+                final int depth = range[2];
+                segment.tokens[node] = entries[range[0]].tokens[depth - 1];
+                segment.subscriptionsStart[node] = subscriptionIndex;
+                for (int j = range[0]; j < range[1] && entries[j].tokens.length == depth; j++) {
+                    segment.subscriptions[subscriptionIndex++] = entries[j].subscription;
+                }
+                segment.subscriptionsEnd[node] = subscriptionIndex;
+                final int[] children = childrenOfNode.get(node);
+                segment.childStart[node] = children[0];
+                segment.childEnd[node] = children[1];
+                segment.singleChild[node] = -1;
+                segment.multiChild[node] = -1;
+                for (int child = children[0]; child < children[1]; child++) {
+                    final String childToken = entries[ranges.get(child)[0]].tokens[depth];
+                    if (SINGLE.equals(childToken)) {
+                        segment.singleChild[node] = child;
+                    } else if (MULTI.equals(childToken)) {
+                        segment.multiChild[node] = child;
+                    }
+                }
+            }
+            return segment;
+        }
+
+        int size() {
+            return subscriptions.length;
+        }
+
+        /**
+         * @param node a node whose token matched the token at position - 1 of the topic.
+         */
+        void match(int node, String[] topic, int position, Map<String, Subscription> matching) {
+            if (MULTI.equals(tokens[node])) {
+                collectGreatestQos(node, matching);
+                return;
+            }
+            if (position == topic.length) {
+                collectGreatestQos(node, matching);
+                // a '#' child matches also the parent level
+                if (multiChild[node] >= 0) {
+                    collectGreatestQos(multiChild[node], matching);
+                }
+                return;
+            }
+            if (multiChild[node] >= 0) {
+                collectGreatestQos(multiChild[node], matching);
+            }
+            if (singleChild[node] >= 0) {
+                match(singleChild[node], topic, position + 1, matching);
+            }
+            final int child = findChild(node, topic[position]);
+            if (child >= 0) {
+                match(child, topic, position + 1, matching);
+            }
+        }
+
+        private int findChild(int node, String token) {
+            int low = childStart[node];
+            int high = childEnd[node] - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int cmp = tokens[mid].compareTo(token);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private void collectGreatestQos(int node, Map<String, Subscription> matching) {
+            for (int i = subscriptionsStart[node]; i < subscriptionsEnd[node]; i++) {
+                final Subscription sub = subscriptions[i];
+                final Subscription existingSub = matching.get(sub.clientId);
+                // update the selected subscriptions if not present or if has a greater qos
+                if (existingSub == null || existingSub.qosLessThan(sub)) {
+                    matching.put(sub.clientId, sub);
+                }
+            }
+        }
+
+        void dump(StringBuilder sb, String indent) {
+            dump(0, sb, indent);
+        }
+
+        private void dump(int node, StringBuilder sb, String indent) {
+            sb.append(indent).append(tokens[node]);
+            for (int i = subscriptionsStart[node]; i < subscriptionsEnd[node]; i++) {
+                final Subscription sub = subscriptions[i];
+                sb.append(" {client='").append(sub.clientId).append("', qos=").append(sub.getRequestedQos())
+                    .append("}");
+            }
+            sb.append("\n");
+            for (int child = childStart[node]; child < childEnd[node]; child++) {
+                dump(child, sb, indent + " ");
+            }
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+
+        final String[] tokens;
+        final Subscription subscription;
+
+        Entry(Subscription subscription) {
+            this.subscription = subscription;
+            final List<Token> topicTokens = subscription.topicFilter.getTokens();
+            this.tokens = new String[topicTokens.size()];
+            for (int i = 0; i < tokens.length; i++) {
+                this.tokens[i] = topicTokens.get(i).name;
+            }
+        }
+
+        /**
+         * Token by token, where a filter precedes the filters it's a prefix of, then by client.
+         */
+        @Override
+        public int compareTo(Entry other) {
+            final int commonLength = Math.min(tokens.length, other.tokens.length);
+            for (int i = 0; i < commonLength; i++) {
+                final int cmp = tokens[i].compareTo(other.tokens[i]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            final int cmp = Integer.compare(tokens.length, other.tokens.length);
+            return cmp != 0 ? cmp : subscription.clientId.compareTo(other.subscription.clientId);
+        }
+    }
+
+    /**
+     * The segments of a first token: the one with the single token filters and the ones keyed by the second token.
+     */
+    private static final class FirstLevel {
+
+        final Segment segment;
+        final Map<String, Segment> second;
+
+        FirstLevel(Segment segment, Map<String, Segment> second) {
+            this.segment = segment;
+            this.second = second;
+        }
+    }
+
+    /**
+     * The immutable state the readers work on.
+     */
+    private static final class Snapshot {
+
+        final Map<String, FirstLevel> first;
+        final int size;
+
+        Snapshot(Map<String, FirstLevel> first, int size) {
+            this.first = first;
+            this.size = size;
+        }
+    }
+
+    private static final class Mutation {
+
+        final Subscription subscription;
+        final boolean add;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Mutation(Subscription subscription, boolean add) {
+            this.subscription = subscription;
+            this.add = add;
+        }
+    }
+
+    private static final String NO_SECOND = "";
+
+    private final int maxBatch;
+    private final BlockingQueue<Mutation> pending = new LinkedBlockingQueue<>();
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap(), 0);
+
+    // the subscriptions of each segment kept sorted, first token -> second token (or NO_SECOND) -> entries,
+    // owned by the writer thread after init
+    private final Map<String, Map<String, NavigableMap<Entry, Entry>>> model = new HashMap<>();
+    private Thread writer;
+
+    public SnapshotSubscriptionDirectory() {
+        this(DEFAULT_MAX_BATCH);
+    }
+
+    public SnapshotSubscriptionDirectory(IConfig props) {
+        this(Integer.parseInt(props.getProperty(MAX_BATCH_PROPERTY_NAME, String.valueOf(DEFAULT_MAX_BATCH))));
+    }
+
+    SnapshotSubscriptionDirectory(int maxBatch) {
+        this.maxBatch = maxBatch;
+    }
+
+    @Override
+    public void init(SessionsRepository sessionsRepository) {
+        LOG.info("Initializing subscriptions snapshot");
+        int count = 0;
+        for (ClientSession session : sessionsRepository.getAllSessions()) {
+            for (Subscription subscription : session.getSubscriptions()) {
+                if (applyToModel(subscription, true) != null) {
+                    count++;
+                }
+            }
+        }
+        final Set<String> allSegments = new HashSet<>();
+        for (Map.Entry<String, Map<String, NavigableMap<Entry, Entry>>> first : model.entrySet()) {
+            for (String second : first.getValue().keySet()) {
+                allSegments.add(segmentKey(first.getKey(), second));
+            }
+        }
+        this.snapshot = rebuild(this.snapshot, allSegments);
+        LOG.info("Stored subscriptions have been reloaded. Subscriptions={}", count);
+
+        writer = new Thread(this::applyMutations, "subscriptions-snapshot-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void add(Subscription newSubscription) {
+        await(addAsync(newSubscription));
+    }
+
+    @Override
+    public void removeSubscription(Topic topic, String clientID) {
+        await(removeSubscriptionAsync(topic, clientID));
+    }
+
+    @Override
+    public CompletableFuture<Void> addAsync(Subscription newSubscription) {
+        return submit(new Mutation(newSubscription, true));
+    }
+
+    @Override
+    public CompletableFuture<Void> removeSubscriptionAsync(Topic topic, String clientID) {
+        return submit(new Mutation(new Subscription(clientID, topic), false));
+    }
+
+    private CompletableFuture<Void> submit(Mutation mutation) {
+        pending.add(mutation);
+        return mutation.done;
+    }
+
+    private static void await(CompletableFuture<Void> done) {
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the subscriptions snapshot", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to update the subscriptions snapshot", e.getCause());
+        }
+    }
+
+    private void applyMutations() {
+        List<Mutation> batch = new ArrayList<>(maxBatch);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            pending.drainTo(batch, maxBatch - 1);
+            try {
+                final Set<String> touched = new HashSet<>();
+                for (Mutation mutation : batch) {
+                    final String key = applyToModel(mutation.subscription, mutation.add);
+                    if (key != null) {
+                        touched.add(key);
+                    }
+                }
+                this.snapshot = rebuild(this.snapshot, touched);
+                for (Mutation mutation : batch) {
+                    mutation.done.complete(null);
+                }
+            } catch (Throwable ex) {
+                // the writer goes on with the next batches, the callers of this one are told it failed
+                LOG.error("Unable to apply a batch of subscriptions changes. Changes={}", batch.size(), ex);
+                for (Mutation mutation : batch) {
+                    mutation.done.completeExceptionally(ex);
+                }
+            }
+            batch.clear();
+        }
+        final IllegalStateException stopped = new IllegalStateException("The subscriptions snapshot writer stopped");
+        pending.drainTo(batch);
+        for (Mutation mutation : batch) {
+            mutation.done.completeExceptionally(stopped);
+        }
+    }
+
+    /**
+     * @return the key of the touched segment, or null if the filter is invalid.
+     */
+    private String applyToModel(Subscription subscription, boolean add) {
+        final List<Token> tokens = subscription.topicFilter.getTokens();
+        if (tokens == null || tokens.isEmpty()) {
+            LOG.warn("Skipping invalid topic filter CId={}, topicFilter={}", subscription.clientId,
+                subscription.topicFilter);
+            return null;
+        }
+        final String first = tokens.get(0).name;
+        final String second = tokens.size() == 1 ? NO_SECOND : tokens.get(1).name;
+        final Entry entry = new Entry(subscription);
+        if (add) {
+            // a subscription of the same client with the same filter replaces the existing one
+            model.computeIfAbsent(first, k -> new HashMap<>())
+                .computeIfAbsent(second, k -> new TreeMap<>())
+                .put(entry, entry);
+        } else {
+            final Map<String, NavigableMap<Entry, Entry>> seconds = model.get(first);
+            if (seconds != null) {
+                final NavigableMap<Entry, Entry> subscriptions = seconds.get(second);
+                if (subscriptions != null) {
+                    subscriptions.remove(entry);
+                    if (subscriptions.isEmpty()) {
+                        seconds.remove(second);
+                    }
+                }
+                if (seconds.isEmpty()) {
+                    model.remove(first);
+                }
+            }
+        }
+        return segmentKey(first, second);
+    }
+
+    private static String segmentKey(String first, String second) {
+        return first + '\u0000' + second;
+    }
+
+    /**
+     * Copies the snapshot replacing the given segments, the untouched ones are shared with the previous snapshot.
+     */
+    private Snapshot rebuild(Snapshot previous, Set<String> touched) {
+        final Map<String, FirstLevel> first = new HashMap<>(previous.first);
+        final Map<String, Set<String>> touchedByFirst = new HashMap<>();
+        for (String key : touched) {
+            final int separator = key.indexOf('\u0000');
+            touchedByFirst.computeIfAbsent(key.substring(0, separator), k -> new HashSet<>())
+                .add(key.substring(separator + 1));
+        }
+        for (Map.Entry<String, Set<String>> entry : touchedByFirst.entrySet()) {
+            final String firstToken = entry.getKey();
+            final Map<String, NavigableMap<Entry, Entry>> seconds =
+                model.getOrDefault(firstToken, Collections.emptyMap());
+            final FirstLevel previousLevel = first.get(firstToken);
+            Segment segment = previousLevel == null ? null : previousLevel.segment;
+            final Map<String, Segment> second = previousLevel == null
+                ? new HashMap<>() : new HashMap<>(previousLevel.second);
+            for (String secondToken : entry.getValue()) {
+                final NavigableMap<Entry, Entry> subscriptions = seconds.get(secondToken);
+                final Segment rebuilt = subscriptions == null
+                    ? null : Segment.build(subscriptions.values(), NO_SECOND.equals(secondToken) ? 1 : 2);
+                if (NO_SECOND.equals(secondToken)) {
+                    segment = rebuilt;
+                } else if (rebuilt == null) {
+                    second.remove(secondToken);
+                } else {
+                    second.put(secondToken, rebuilt);
+                }
+            }
+            if (segment == null && second.isEmpty()) {
+                first.remove(firstToken);
+            } else {
+                first.put(firstToken, new FirstLevel(segment, second));
+            }
+        }
+        int size = 0;
+        for (FirstLevel level : first.values()) {
+            size += level.segment == null ? 0 : level.segment.size();
+            for (Segment segment : level.second.values()) {
+                size += segment.size();
+            }
+        }
+        return new Snapshot(first, size);
+    }
+
+    @Override
+    public List<Subscription> matches(Topic topic) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null || tokens.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final String[] names = new String[tokens.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = tokens.get(i).name;
+        }
+        final Snapshot current = this.snapshot;
+        final Map<String, Subscription> subsForClient = new HashMap<>();
+        matchFirstLevel(current.first.get(names[0]), names, subsForClient);
+        matchFirstLevel(current.first.get(SINGLE), names, subsForClient);
+        final FirstLevel multi = current.first.get(MULTI);
+        if (multi != null && multi.segment != null) {
+            multi.segment.match(0, names, 1, subsForClient);
+        }
+        return new ArrayList<>(subsForClient.values());
+    }
+
+    private static void matchFirstLevel(FirstLevel level, String[] topic, Map<String, Subscription> matching) {
+        if (level == null) {
+            return;
+        }
+        if (level.segment != null && topic.length == 1) {
+            level.segment.match(0, topic, 1, matching);
+        }
+        final Segment multi = level.second.get(MULTI);
+        if (multi != null) {
+            multi.match(0, topic, 2, matching);
+        }
+        if (topic.length > 1) {
+            final Segment exact = level.second.get(topic[1]);
+            if (exact != null) {
+                exact.match(0, topic, 2, matching);
+            }
+            final Segment single = level.second.get(SINGLE);
+            if (single != null) {
+                single.match(0, topic, 2, matching);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.snapshot.size;
+    }
+
+    @Override
+    public List<Subscription> listAllSubscriptions() {
+        final Snapshot current = this.snapshot;
+        final List<Subscription> all = new ArrayList<>(current.size);
+        for (FirstLevel level : current.first.values()) {
+            if (level.segment != null) {
+                Collections.addAll(all, level.segment.subscriptions);
+            }
+            for (Segment segment : level.second.values()) {
+                Collections.addAll(all, segment.subscriptions);
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public String dumpTree() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, FirstLevel> level : this.snapshot.first.entrySet()) {
+            if (level.getValue().segment != null) {
+                level.getValue().segment.dump(sb, "");
+            }
+            for (Segment segment : level.getValue().second.values()) {
+                sb.append(level.getKey()).append("\n");
+                segment.dump(sb, " ");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.kd.spi.impl.subscriptions;
 
+import com.kd.spi.impl.SessionHandle;
 import io.netty.handler.codec.mqtt.MqttQoS;
 
 import java.io.Serializable;
@@ -30,6 +31,8 @@ public final class Subscription implements Serializable {
     final String clientId;
     final Topic topicFilter;
     private final boolean active;
+    // resolved on the first publish to the subscriber, not part of the identity nor of the stored state
+    private transient volatile SessionHandle handle;
 
     public Subscription(String clientId, Topic topicFilter, MqttQoS requestedQos) {
         this.requestedQos = requestedQos;
@@ -43,6 +46,7 @@ public final class Subscription implements Serializable {
         this.clientId = orig.clientId;
         this.topicFilter = orig.topicFilter;
         this.active = orig.active;
+        this.handle = orig.handle;
     }
 
     /**
@@ -67,6 +71,14 @@ public final class Subscription implements Serializable {
         return topicFilter;
     }
 
+    public SessionHandle getHandle() {
+        return handle;
+    }
+
+    public void setHandle(SessionHandle handle) {
+        this.handle = handle;
+    }
+
     public boolean isActive() {
         return active;
     }
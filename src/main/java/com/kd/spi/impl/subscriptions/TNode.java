@@ -17,6 +17,14 @@ package com.kd.spi.impl.subscriptions;
 
 class TNode extends CNode {
 
+    /**
+     * @param token the token of the node being replaced, kept so that a concurrent lookup on the parent still finds
+     *              the tomb.
+     */
+    TNode(Token token) {
+        this.token = token;
+    }
+
     @Override
     INode childOf(Token token) {
         throw new IllegalStateException("Can't be invoked on TNode");
@@ -33,7 +41,7 @@ class TNode extends CNode {
     }
 
     @Override
-    CNode addSubscription(String clientId, Topic topic) {
+    CNode addSubscription(Subscription newSubscription) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
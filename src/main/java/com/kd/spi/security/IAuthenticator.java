@@ -16,10 +16,22 @@
 
 package com.kd.spi.security;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * username and password checker
  */
 public interface IAuthenticator {
 
     boolean checkValid(String clientId, String username, byte[] password);
+
+    /**
+     * Checks the credentials of a client connecting, called on the thread of its connection. The authenticators
+     * doing I/O override it to answer on threads of their own, by default it answers at once with
+     * {@link #checkValid(String, String, byte[])}.
+     */
+    default CompletionStage<Boolean> checkValidAsync(String clientId, String username, byte[] password) {
+        return CompletableFuture.completedFuture(checkValid(clientId, username, password));
+    }
 }
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.cluster;
+
+import com.kd.interception.HazelcastMsg;
+import com.kd.server.config.MemoryConfig;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NettyClusterTransportTest {
+
+    private static final byte HELLO = 1;
+    private static final byte DIGEST = 3;
+
+    /**
+     * Keeps the peers whose digest came.
+     */
+    private static final class DigestsListener implements ClusterTransport.Listener {
+
+        final BlockingQueue<String> digests = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onPublishes(String peer, List<HazelcastMsg> messages) {
+        }
+
+        @Override
+        public void onDigest(String peer, SubscriptionDigest digest) {
+            digests.add(peer);
+        }
+
+        @Override
+        public void onSubscribed(String peer, SubscribedFilter subscribed) {
+        }
+
+        @Override
+        public void onPeerDown(String peer) {
+        }
+
+        @Override
+        public void onSessionRequest(String peer, SessionRequest request) {
+        }
+
+        @Override
+        public void onSessionTransfer(String peer, SessionTransfer transfer) {
+        }
+
+        @Override
+        public void onSessionConfirmed(String peer, SessionRequest request) {
+        }
+
+        @Override
+        public void onPeerUp(String peer) {
+        }
+
+        @Override
+        public void onRetained(String peer, RetainedBatch batch) {
+        }
+    }
+
+    private static MemoryConfig config(String host, String nodeID, String peers) {
+        final Properties properties = new Properties();
+        properties.setProperty("cluster.host", host);
+        properties.setProperty("cluster.port", "7883");
+        if (nodeID != null) {
+            properties.setProperty("cluster.node_id", nodeID);
+        }
+        properties.setProperty("cluster.peers", peers);
+        return new MemoryConfig(properties);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wildcardHostRequiresNodeID() throws IOException {
+        new NettyClusterTransport(config("0.0.0.0", null, "10.0.0.1:7883,10.0.0.2:7883"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodeIDMustBeAPeer() throws IOException {
+        new NettyClusterTransport(config("0.0.0.0", "10.0.0.9:7883", "10.0.0.1:7883,10.0.0.2:7883"));
+    }
+
+    @Test
+    public void nodeIDOfWildcardHost() throws IOException {
+        final NettyClusterTransport transport = new NettyClusterTransport(config("0.0.0.0", "10.0.0.1:7883",
+            "10.0.0.1:7883,10.0.0.2:7883"));
+        assertEquals("10.0.0.1:7883", transport.localId());
+    }
+
+    @Test
+    public void nodeIDOfBoundHost() throws IOException {
+        final NettyClusterTransport transport = new NettyClusterTransport(config("127.0.0.1", null,
+            "127.0.0.1:7883,127.0.0.2:7883"));
+        assertEquals("127.0.0.1:7883", transport.localId());
+    }
+
+    @Test
+    public void helloOfAnUnknownNodeIsDropped() throws Exception {
+        final int port = freePort();
+        final NettyClusterTransport transport = started(port, new DigestsListener());
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            send(socket, hello("127.0.0.1:1"));
+            assertTrue("the connection of a node not listed is closed", closed(socket));
+        } finally {
+            transport.stop();
+        }
+    }
+
+    @Test
+    public void helloFromAnotherHostIsDropped() throws Exception {
+        final int port = freePort();
+        final int peerPort = freePort();
+        final NettyClusterTransport transport = started(port, new DigestsListener(), peerPort);
+        // another loopback address than the host the peer is listed with
+        try (Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port,
+            InetAddress.getByName("127.0.0.2"), 0)) {
+            send(socket, hello("127.0.0.1:" + peerPort));
+            assertTrue("the connection of a peer from another host is closed", closed(socket));
+        } finally {
+            transport.stop();
+        }
+    }
+
+    @Test
+    public void helloOfAPeerIsKept() throws Exception {
+        final int port = freePort();
+        final int peerPort = freePort();
+        final DigestsListener listener = new DigestsListener();
+        final NettyClusterTransport transport = started(port, listener, peerPort);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            send(socket, hello("127.0.0.1:" + peerPort), digest());
+            assertEquals("127.0.0.1:" + peerPort, listener.digests.poll(5, TimeUnit.SECONDS));
+            assertFalse(closed(socket));
+        } finally {
+            transport.stop();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            return free.getLocalPort();
+        }
+    }
+
+    private static NettyClusterTransport started(int port, ClusterTransport.Listener listener, int... peerPorts)
+        throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("cluster.host", "127.0.0.1");
+        properties.setProperty("cluster.port", String.valueOf(port));
+        final StringBuilder peers = new StringBuilder("127.0.0.1:" + port);
+        for (int peerPort : peerPorts) {
+            peers.append(",127.0.0.1:").append(peerPort);
+        }
+        properties.setProperty("cluster.peers", peers.toString());
+        final NettyClusterTransport transport = new NettyClusterTransport(new MemoryConfig(properties));
+        transport.start(listener);
+        return transport;
+    }
+
+    private static byte[] hello(String id) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        new DataOutputStream(body).writeUTF(id);
+        return frame(HELLO, body.toByteArray());
+    }
+
+    private static byte[] digest() throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        SubscriptionDigest.of(Collections.singletonList("sensors/+/temperature")).writeTo(new DataOutputStream(body));
+        return frame(DIGEST, body.toByteArray());
+    }
+
+    private static byte[] frame(byte type, byte[] body) throws IOException {
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(frame);
+        out.writeInt(body.length + 1);
+        out.writeByte(type);
+        out.write(body);
+        return frame.toByteArray();
+    }
+
+    private static void send(Socket socket, byte[]... frames) throws IOException {
+        for (byte[] frame : frames) {
+            socket.getOutputStream().write(frame);
+        }
+        socket.getOutputStream().flush();
+    }
+
+    /**
+     * @return true if the transport closed the connection within a second, nothing is sent back on it.
+     */
+    private static boolean closed(Socket socket) throws IOException {
+        socket.setSoTimeout(1000);
+        try {
+            return socket.getInputStream().read() < 0;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            // reset
+            return true;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.cluster;
+
+import com.kd.interception.messages.InterceptPublishMessage;
+import com.kd.spi.IMatchingCondition;
+import com.kd.spi.IMessagesStore;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Two stores replicating over a loopback transport, which delivers the batches of a node on a thread of the other,
+ * as the transport threads do: they converge on the last write of each topic, the tombstones are purged after the
+ * window, and the writes of the peer are applied on the scheduler of the node.
+ */
+public class ReplicatedMessagesStoreTest {
+
+    private static final long TOMBSTONE_MILLIS = 1000;
+
+    private final Map<String, ReplicatedMessagesStore> nodes = new ConcurrentHashMap<>();
+    private final List<ExecutorService> executors = new ArrayList<>();
+
+    /**
+     * The retained messages by topic, and the threads which wrote them.
+     */
+    private static final class RecordingStore implements IMessagesStore {
+
+        final Map<String, StoredMessage> messages = new ConcurrentHashMap<>();
+        final Set<String> writers = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void initStore() {
+        }
+
+        @Override
+        public Collection<StoredMessage> searchMatching(IMatchingCondition condition) {
+            final List<StoredMessage> matching = new ArrayList<>();
+            for (StoredMessage message : messages.values()) {
+                if (condition.match(new Topic(message.getTopic()))) {
+                    matching.add(message);
+                }
+            }
+            return matching;
+        }
+
+        @Override
+        public void cleanRetained(Topic topic) {
+            writers.add(Thread.currentThread().getName());
+            messages.remove(topic.toString());
+        }
+
+        @Override
+        public void storeRetained(Topic topic, StoredMessage storedMessage) {
+            writers.add(Thread.currentThread().getName());
+            messages.put(topic.toString(), storedMessage);
+        }
+
+        String payload(String topic) {
+            final StoredMessage message = messages.get(topic);
+            return message == null ? null : message.getPayload().toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Hands the batches to the store of the other node, on the transport thread of that node.
+     */
+    private final class LoopbackTransport implements ClusterTransport {
+
+        private final String id;
+        private final String other;
+        private final ExecutorService otherThread;
+
+        LoopbackTransport(String id, String other, ExecutorService otherThread) {
+            this.id = id;
+            this.other = other;
+            this.otherThread = otherThread;
+        }
+
+        @Override
+        public String localId() {
+            return id;
+        }
+
+        @Override
+        public Collection<String> peers() {
+            return Collections.singleton(other);
+        }
+
+        @Override
+        public void forward(String peer, List<InterceptPublishMessage> publishes) {
+        }
+
+        @Override
+        public void broadcast(List<InterceptPublishMessage> publishes) {
+        }
+
+        @Override
+        public void shareDigest(SubscriptionDigest digest) {
+        }
+
+        @Override
+        public void shareSubscribed(SubscribedFilter subscribed) {
+        }
+
+        @Override
+        public Collection<String> requestSession(SessionRequest request) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean transferSession(String peer, SessionTransfer transfer) {
+            return false;
+        }
+
+        @Override
+        public void confirmSession(String peer, SessionRequest request) {
+        }
+
+        @Override
+        public void replicateRetained(RetainedBatch batch) {
+            sendRetained(other, batch);
+        }
+
+        @Override
+        public void sendRetained(String peer, RetainedBatch batch) {
+            otherThread.execute(() -> nodes.get(peer).onRetained(id, batch));
+        }
+
+        @Override
+        public void start(Listener listener) {
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+
+    @After
+    public void stopNodes() {
+        executors.forEach(ExecutorService::shutdownNow);
+    }
+
+    @Test
+    public void seededTopicsConvergeOnTheHighestNode() throws Exception {
+        final RecordingStore storeA = new RecordingStore();
+        final RecordingStore storeB = new RecordingStore();
+        storeA.storeRetained(new Topic("sensors/1"), message("sensors/1", "a"));
+        storeB.storeRetained(new Topic("sensors/1"), message("sensors/1", "b"));
+        final ReplicatedMessagesStore nodeA = startPair(storeA, storeB);
+        final ReplicatedMessagesStore nodeB = nodes.get("nodeB");
+
+        nodeA.onPeerUp("nodeB");
+        await(() -> "b".equals(storeA.payload("sensors/1")) && "b".equals(storeB.payload("sensors/1")));
+
+        nodeA.cleanRetained(new Topic("sensors/1"));
+        await(() -> storeA.messages.isEmpty() && storeB.messages.isEmpty());
+        assertEquals("the removal is kept as a tombstone", 1, nodeB.versions());
+        await(() -> nodeA.versions() == 0 && nodeB.versions() == 0);
+    }
+
+    @Test
+    public void writesOfThePeerApplyOnTheScheduler() throws Exception {
+        final RecordingStore storeA = new RecordingStore();
+        final RecordingStore storeB = new RecordingStore();
+        final ReplicatedMessagesStore nodeA = startPair(storeA, storeB);
+
+        for (int i = 0; i < 1000; i++) {
+            nodeA.storeRetained(new Topic("sensors/" + i), message("sensors/" + i, "v" + i));
+        }
+        nodeA.cleanRetained(new Topic("sensors/0"));
+        await(() -> storeB.messages.size() == 999);
+        assertEquals("v999", storeB.payload("sensors/999"));
+        assertEquals(Collections.singleton("nodeB-scheduler"), storeB.writers);
+    }
+
+    private ReplicatedMessagesStore startPair(RecordingStore storeA, RecordingStore storeB) {
+        final ExecutorService transportA = executor("nodeA-transport");
+        final ExecutorService transportB = executor("nodeB-transport");
+        final ReplicatedMessagesStore nodeA = new ReplicatedMessagesStore(storeA,
+            new LoopbackTransport("nodeA", "nodeB", transportB));
+        final ReplicatedMessagesStore nodeB = new ReplicatedMessagesStore(storeB,
+            new LoopbackTransport("nodeB", "nodeA", transportA));
+        nodes.put("nodeA", nodeA);
+        nodes.put("nodeB", nodeB);
+        nodeA.start(executor("nodeA-scheduler"), 10, TOMBSTONE_MILLIS);
+        nodeB.start(executor("nodeB-scheduler"), 10, TOMBSTONE_MILLIS);
+        return nodeA;
+    }
+
+    private ScheduledExecutorService executor(String name) {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            final Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executors.add(executor);
+        return executor;
+    }
+
+    private static IMessagesStore.StoredMessage message(String topic, String payload) {
+        final IMessagesStore.StoredMessage message = new IMessagesStore.StoredMessage(
+            payload.getBytes(StandardCharsets.UTF_8), MqttQoS.AT_LEAST_ONCE, topic);
+        message.setClientID("publisher");
+        return message;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("The stores didn't converge");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.persistence;
+
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The compactions running along the stores and cleans keep the last message of each topic, live and after a
+ * restart, from the index snapshot or scanning the log.
+ */
+public class MappedMessagesStoreTest {
+
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compactionAlongTheStoresKeepsTheLastMessages() throws Exception {
+        final File directory = folder.newFolder("retained");
+        final MappedMessagesStore store = new MappedMessagesStore(directory, SEGMENT_BYTES);
+        store.initStore();
+        final Map<String, String> expected = new TreeMap<>();
+        final Random random = new Random(1);
+        final AtomicBoolean storing = new AtomicBoolean(true);
+        final Thread compactor = new Thread(() -> {
+            while (storing.get()) {
+                store.compact();
+            }
+        });
+        compactor.start();
+        try {
+            for (int i = 0; i < 50000; i++) {
+                final String topic = "sensors/" + random.nextInt(300) + "/temperature";
+                if (random.nextInt(5) == 0) {
+                    store.cleanRetained(new Topic(topic));
+                    expected.remove(topic);
+                } else {
+                    store.storeRetained(new Topic(topic), message(topic, "t" + i));
+                    expected.put(topic, "t" + i);
+                }
+            }
+        } finally {
+            storing.set(false);
+            compactor.join();
+        }
+        store.compact();
+        assertTrue("the superseded records are reclaimed", directory.list().length < 10);
+        assertEquals(expected, messages(store));
+        store.close();
+
+        final MappedMessagesStore restarted = new MappedMessagesStore(directory, SEGMENT_BYTES);
+        restarted.initStore();
+        assertEquals(expected, messages(restarted));
+        restarted.close();
+
+        assertTrue(new File(directory, MappedMessagesStore.INDEX_FILE_NAME).delete());
+        final MappedMessagesStore scanned = new MappedMessagesStore(directory, SEGMENT_BYTES);
+        scanned.initStore();
+        assertEquals(expected, messages(scanned));
+        scanned.close();
+    }
+
+    private static StoredMessage message(String topic, String payload) {
+        final StoredMessage message = new StoredMessage(payload.getBytes(StandardCharsets.UTF_8),
+            MqttQoS.AT_LEAST_ONCE, topic);
+        message.setClientID("sensor");
+        message.setRetained(true);
+        return message;
+    }
+
+    private static Map<String, String> messages(MappedMessagesStore store) {
+        final Map<String, String> messages = new TreeMap<>();
+        for (StoredMessage message : store.searchMatching(new Topic("#"))) {
+            messages.put(message.getTopic(), message.getPayload().toString(StandardCharsets.UTF_8));
+        }
+        return messages;
+    }
+}
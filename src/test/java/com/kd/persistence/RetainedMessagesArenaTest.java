@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.persistence;
+
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The cap bounds the off heap bytes reserved by the arena, whatever the mix of payload sizes, and the slabs emptied by
+ * the removals and evictions are released while the searches read the others.
+ */
+public class RetainedMessagesArenaTest {
+
+    private static final long CAP = 4 * PayloadArena.SLAB_BYTES;
+
+    @Test
+    public void reservedBytesStayUnderTheCap() {
+        for (RetainedMessagesArena.EvictionPolicy policy : RetainedMessagesArena.EvictionPolicy.values()) {
+            final RetainedMessagesArena arena = new RetainedMessagesArena(CAP, policy);
+            final Random random = new Random(1);
+            try {
+                for (int i = 0; i < 20000; i++) {
+                    final String topic = "devices/" + random.nextInt(2000) + "/state";
+                    if (random.nextInt(5) == 0) {
+                        arena.remove(new Topic(topic));
+                    } else {
+                        // a size class per few hundred bytes, a slab each
+                        arena.put(new Topic(topic), message(topic, 10 + random.nextInt(3000)));
+                    }
+                    assertTrue(policy + ": reserved " + arena.reservedBytes() + " bytes over the cap",
+                        arena.reservedBytes() <= CAP);
+                }
+                assertTrue("the store keeps messages", arena.size() > 0);
+                assertTrue("the store evicts", arena.evictions() > 0);
+
+                final List<String> topics = new ArrayList<>();
+                arena.forEach(message -> topics.add(message.getTopic()));
+                topics.forEach(topic -> arena.remove(new Topic(topic)));
+                assertEquals(0, arena.bytes());
+                assertEquals("the emptied slabs are released", 0, arena.reservedBytes());
+            } finally {
+                arena.close();
+            }
+        }
+    }
+
+    @Test
+    public void searchesReadIntactPayloadsWhileSlabsAreReleased() throws Exception {
+        final RetainedMessagesArena arena = new RetainedMessagesArena(CAP, RetainedMessagesArena.EvictionPolicy.LRU);
+        final AtomicBoolean storing = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong corrupted = new AtomicLong();
+        final Thread searcher = new Thread(() -> {
+            while (storing.get()) {
+                arena.match(new Topic("devices/+/state"), message -> {
+                    reads.incrementAndGet();
+                    final byte[] payload = new byte[message.getPayload().readableBytes()];
+                    message.getPayload().readBytes(payload);
+                    for (byte b : payload) {
+                        if (b != (byte) message.getTopic().hashCode()) {
+                            corrupted.incrementAndGet();
+                            return;
+                        }
+                    }
+                });
+            }
+        });
+        searcher.start();
+        try {
+            final Random random = new Random(2);
+            for (int i = 0; i < 100000; i++) {
+                final String topic = "devices/" + random.nextInt(500) + "/state";
+                if (random.nextInt(3) == 0) {
+                    arena.remove(new Topic(topic));
+                } else {
+                    arena.put(new Topic(topic), message(topic, 10 + random.nextInt(3000)));
+                }
+            }
+        } finally {
+            storing.set(false);
+            searcher.join();
+            arena.close();
+        }
+        assertTrue(reads.get() > 0);
+        assertEquals(0, corrupted.get());
+    }
+
+    private static StoredMessage message(String topic, int size) {
+        final byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) topic.hashCode());
+        final StoredMessage message = new StoredMessage(payload, MqttQoS.AT_MOST_ONCE, topic);
+        message.setClientID("publisher");
+        return message;
+    }
+}
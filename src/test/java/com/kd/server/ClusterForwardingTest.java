@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * The publishes of a node reach the subscribers of the other nodes of a cluster over the Netty transport, again
+ * once a node restarted.
+ */
+public class ClusterForwardingTest {
+
+    private LocalCluster cluster;
+
+    @Before
+    public void startCluster() throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("cluster.digest.refresh_ms", "200");
+        cluster = new LocalCluster(3, properties).start();
+    }
+
+    @After
+    public void stopCluster() {
+        cluster.close();
+    }
+
+    @Test
+    public void publishesReachTheSubscribersOfEveryNode() throws Exception {
+        try (RawMqttClient publisher = connected(0, "publisher");
+             RawMqttClient first = subscribed(1, "first");
+             RawMqttClient second = subscribed(2, "second")) {
+            LocalCluster.awaitRoute(publisher, first, "control/first");
+            LocalCluster.awaitRoute(publisher, second, "control/second");
+
+            publisher.send(RawMqttClient.publish("sensors/1/temperature", "21"));
+            assertDelivered(first, "sensors/1/temperature");
+            assertDelivered(second, "sensors/1/temperature");
+        }
+    }
+
+    @Test
+    public void forwardingResumesAfterANodeRestarts() throws Exception {
+        try (RawMqttClient publisher = connected(0, "publisher")) {
+            try (RawMqttClient subscriber = subscribed(2, "subscriber")) {
+                LocalCluster.awaitRoute(publisher, subscriber, "control/subscriber");
+            }
+            cluster.stopNode(2);
+            cluster.startNode(2);
+
+            try (RawMqttClient subscriber = subscribed(2, "subscriber")) {
+                // the publisher's node connects again to the restarted one
+                LocalCluster.awaitRoute(publisher, subscriber, "control/subscriber");
+                publisher.send(RawMqttClient.publish("sensors/1/temperature", "21"));
+                assertDelivered(subscriber, "sensors/1/temperature");
+            }
+        }
+    }
+
+    private RawMqttClient connected(int node, String clientID) throws IOException {
+        final RawMqttClient client = new RawMqttClient(cluster.mqttPort(node));
+        client.send(RawMqttClient.connect(clientID, true, clientID, "secret"));
+        assertEquals(RawMqttClient.CONNACK, client.read(5000).type);
+        return client;
+    }
+
+    private RawMqttClient subscribed(int node, String clientID) throws IOException {
+        final RawMqttClient client = connected(node, clientID);
+        client.send(RawMqttClient.subscribe(1, "sensors/+/temperature", 0),
+            RawMqttClient.subscribe(2, "control/" + clientID, 0));
+        assertEquals(RawMqttClient.SUBACK, client.read(5000).type);
+        assertEquals(RawMqttClient.SUBACK, client.read(5000).type);
+        return client;
+    }
+
+    private static void assertDelivered(RawMqttClient subscriber, String topic) throws IOException {
+        final RawMqttClient.Packet delivered = subscriber.read(5000);
+        assertNotNull("a publish on " + topic + " is delivered", delivered);
+        assertEquals(topic, delivered.topic());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.server;
+
+import com.kd.cluster.SubscriptionDigest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The filters subscribed on a node reach its peers one by one, not in a copy of its whole digest each, and the
+ * publishes on them are routed at once. The bytes the subscriber's node sends are counted by a proxy in front of
+ * the cluster port of the publisher's node.
+ */
+public class ClusterRoutingTest {
+
+    private static final int FILTERS = 2000;
+
+    private CountingProxy proxy;
+    private LocalCluster cluster;
+
+    /**
+     * Forwards the connections to a port, counting the bytes sent to it.
+     */
+    private static final class CountingProxy implements AutoCloseable {
+
+        private final ServerSocket server;
+        private final AtomicLong bytes = new AtomicLong();
+        private final List<Socket> sockets = new ArrayList<>();
+
+        CountingProxy(int port) throws IOException {
+            server = new ServerSocket(0);
+            final Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        final Socket client = server.accept();
+                        final Socket target = new Socket("127.0.0.1", port);
+                        synchronized (sockets) {
+                            sockets.add(client);
+                            sockets.add(target);
+                        }
+                        pump(client, target, bytes);
+                        pump(target, client, new AtomicLong());
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }, "counting-proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private static void pump(Socket from, Socket to, AtomicLong counted) {
+            final Thread pump = new Thread(() -> {
+                final byte[] buffer = new byte[64 * 1024];
+                try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        counted.addAndGet(read);
+                        out.write(buffer, 0, read);
+                    }
+                } catch (IOException e) {
+                    // either side closed
+                }
+            }, "counting-proxy-pump");
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        long bytes() {
+            return bytes.get();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    @Before
+    public void startCluster() throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("cluster.digest.refresh_ms", "200");
+        cluster = new LocalCluster(2, properties);
+        proxy = new CountingProxy(cluster.clusterPort(0));
+        cluster.listAt(0, proxy.port());
+        cluster.start();
+    }
+
+    @After
+    public void stopCluster() throws IOException {
+        cluster.close();
+        proxy.close();
+    }
+
+    @Test
+    public void subscriptionsAreSharedAlone() throws Exception {
+        try (RawMqttClient publisher = new RawMqttClient(cluster.mqttPort(0));
+             RawMqttClient subscriber = new RawMqttClient(cluster.mqttPort(1))) {
+            publisher.send(RawMqttClient.connect("publisher", true, "publisher", "secret"));
+            assertEquals(RawMqttClient.CONNACK, publisher.read(5000).type);
+            subscriber.send(RawMqttClient.connect("subscriber", true, "subscriber", "secret"),
+                RawMqttClient.subscribe(1, "control", 0));
+            assertEquals(RawMqttClient.CONNACK, subscriber.read(5000).type);
+            assertEquals(RawMqttClient.SUBACK, subscriber.read(5000).type);
+            LocalCluster.awaitRoute(publisher, subscriber, "control");
+            // the publisher's node has the digest of the subscriber's one
+            Thread.sleep(1000);
+
+            final long before = proxy.bytes();
+            final List<String> filters = new ArrayList<>(FILTERS);
+            for (int i = 0; i < FILTERS; i++) {
+                filters.add("sensors/" + i + "/temperature");
+                subscriber.send(RawMqttClient.subscribe(i + 2, filters.get(i), 0));
+            }
+            for (int i = 0; i < FILTERS; i++) {
+                assertEquals(RawMqttClient.SUBACK, subscriber.read(5000).type);
+            }
+            publisher.send(RawMqttClient.publish("sensors/" + (FILTERS - 1) + "/temperature", "21"));
+            final RawMqttClient.Packet delivered = subscriber.read(5000);
+            assertNotNull("the publish on the last filter subscribed is routed", delivered);
+            assertEquals("sensors/" + (FILTERS - 1) + "/temperature", delivered.topic());
+
+            // the digests due are shared meanwhile
+            Thread.sleep(1000);
+            final long sent = proxy.bytes() - before;
+            final int digestBytes = SubscriptionDigest.of(filters).sizeInBytes();
+            // a copy of the digest for each filter would be a few MB
+            assertTrue("sent " + sent + " bytes for " + FILTERS + " filters, digest of " + digestBytes + " bytes",
+                sent < FILTERS * 64L + 20L * digestBytes);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.server;
+
+import com.kd.interception.ClusterInterceptHandler;
+import com.kd.server.config.MemoryConfig;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Brokers clustered over the Netty transport on the local host, for the tests. Each node listens on free MQTT and
+ * cluster ports, and is listed by the others at its cluster port unless told otherwise.
+ */
+final class LocalCluster implements AutoCloseable {
+
+    private final Properties common;
+    private final int[] mqttPorts;
+    private final int[] clusterPorts;
+    private final int[] listedPorts;
+    private final Server[] servers;
+
+    /**
+     * @param common the properties of every node, besides the ports and peers.
+     */
+    LocalCluster(int nodes, Properties common) throws IOException {
+        this.common = common;
+        this.mqttPorts = freePorts(nodes);
+        this.clusterPorts = freePorts(nodes);
+        this.listedPorts = clusterPorts.clone();
+        this.servers = new Server[nodes];
+    }
+
+    private static int[] freePorts(int count) throws IOException {
+        final ServerSocket[] sockets = new ServerSocket[count];
+        final int[] ports = new int[count];
+        try {
+            // all open at once, so that they differ
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new ServerSocket(0);
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * Lists the node at another port, that of a proxy in front of its cluster port. To call before the nodes start.
+     */
+    void listAt(int node, int port) {
+        listedPorts[node] = port;
+    }
+
+    LocalCluster start() throws IOException {
+        for (int node = 0; node < servers.length; node++) {
+            startNode(node);
+        }
+        return this;
+    }
+
+    void startNode(int node) throws IOException {
+        final Properties properties = new Properties();
+        properties.putAll(common);
+        properties.setProperty("host", "127.0.0.1");
+        properties.setProperty("port", String.valueOf(mqttPorts[node]));
+        properties.setProperty("intercept.handler", ClusterInterceptHandler.class.getName());
+        properties.setProperty("cluster.transport", "netty");
+        properties.setProperty("cluster.host", "127.0.0.1");
+        properties.setProperty("cluster.port", String.valueOf(clusterPorts[node]));
+        properties.setProperty("cluster.node_id", address(node));
+        final StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < servers.length; i++) {
+            peers.append(i == 0 ? "" : ",").append(address(i));
+        }
+        properties.setProperty("cluster.peers", peers.toString());
+        servers[node] = new Server();
+        servers[node].startServer(new MemoryConfig(properties));
+    }
+
+    void stopNode(int node) {
+        servers[node].stopServer();
+        servers[node] = null;
+    }
+
+    Server server(int node) {
+        return servers[node];
+    }
+
+    int mqttPort(int node) {
+        return mqttPorts[node];
+    }
+
+    int clusterPort(int node) {
+        return clusterPorts[node];
+    }
+
+    /**
+     * @return the id of the node, the address the others list it at.
+     */
+    String address(int node) {
+        return "127.0.0.1:" + listedPorts[node];
+    }
+
+    /**
+     * Publishes on the topic until the subscriber gets it, once the nodes of both clients are connected, then skips
+     * the copies still coming.
+     */
+    static void awaitRoute(RawMqttClient publisher, RawMqttClient subscriber, String topic) throws IOException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            publisher.send(RawMqttClient.publish(topic, "ping"));
+            final RawMqttClient.Packet packet = subscriber.read(200);
+            if (packet != null && packet.type == RawMqttClient.PUBLISH && topic.equals(packet.topic())) {
+                while (subscriber.read(300) != null) {
+                    // a copy of a previous ping
+                }
+                return;
+            }
+        }
+        fail("The publishes on " + topic + " don't reach the subscriber");
+    }
+
+    @Override
+    public void close() {
+        for (int node = 0; node < servers.length; node++) {
+            if (servers[node] != null) {
+                stopNode(node);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.server;
+
+import com.kd.server.config.MemoryConfig;
+import com.kd.spi.impl.subscriptions.Subscription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * The subscriptions of a persistent session end when it expires: the client reconnecting with the same id after the
+ * TTL gets no publish for the filters of the expired session.
+ */
+public class PersistentSessionExpiryTest {
+
+    private Server server;
+    private int port;
+
+    @Before
+    public void startServer() throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        final Properties properties = new Properties();
+        properties.setProperty("host", "127.0.0.1");
+        properties.setProperty("port", String.valueOf(port));
+        properties.setProperty("session.expiry.ttl_seconds", "1");
+        properties.setProperty("session.expiry.purge_interval_seconds", "1");
+        server = new Server();
+        server.startServer(new MemoryConfig(properties));
+    }
+
+    @After
+    public void stopServer() {
+        server.stopServer();
+    }
+
+    @Test
+    public void noDeliveryForTheFiltersOfAnExpiredSession() throws Exception {
+        try (RawMqttClient publisher = new RawMqttClient(port)) {
+            publisher.send(RawMqttClient.connect("publisher", true, null, null));
+            assertEquals(RawMqttClient.CONNACK, publisher.read(5000).type);
+
+            final RawMqttClient subscriber = new RawMqttClient(port);
+            subscriber.send(RawMqttClient.connect("subscriber", false, null, null),
+                RawMqttClient.subscribe(1, "sensors/+/temperature", 0));
+            assertEquals(RawMqttClient.CONNACK, subscriber.read(5000).type);
+            assertEquals(RawMqttClient.SUBACK, subscriber.read(5000).type);
+            subscriber.close();
+            awaitNoSubscriptionOf("subscriber");
+
+            try (RawMqttClient reconnected = new RawMqttClient(port)) {
+                reconnected.send(RawMqttClient.connect("subscriber", false, null, null),
+                    RawMqttClient.subscribe(1, "control", 0));
+                assertEquals(RawMqttClient.CONNACK, reconnected.read(5000).type);
+                assertEquals(RawMqttClient.SUBACK, reconnected.read(5000).type);
+                // delivered in order to the same client, the control publish comes after any stale one
+                publisher.send(RawMqttClient.publish("sensors/1/temperature", "22"),
+                    RawMqttClient.publish("control", "done"));
+                final RawMqttClient.Packet next = reconnected.read(5000);
+                assertNotNull(next);
+                assertEquals("control", next.topic());
+            }
+        }
+    }
+
+    private void awaitNoSubscriptionOf(String clientID) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            boolean subscribed = false;
+            for (Subscription subscription : server.getSubscriptions()) {
+                subscribed |= subscription.getClientId().equals(clientID);
+            }
+            if (!subscribed) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail("The subscriptions of the expired session are still in the directory");
+    }
+}
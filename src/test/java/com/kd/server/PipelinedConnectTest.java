@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.server;
+
+import com.kd.server.config.MemoryConfig;
+import com.kd.spi.security.IAuthenticator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The packets a client pipelines after its CONNECT wait for the authentication answered on another thread: they
+ * are dropped with a rejected login and processed after the CONNACK of an accepted one.
+ */
+public class PipelinedConnectTest {
+
+    private static final int CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD = 4;
+
+    private final ScheduledExecutorService authentications = Executors.newSingleThreadScheduledExecutor();
+    private Server server;
+    private int port;
+
+    /**
+     * Rejects the user "intruder", answering later as the authenticators doing I/O.
+     */
+    private final class SlowAuthenticator implements IAuthenticator {
+
+        @Override
+        public boolean checkValid(String clientId, String username, byte[] password) {
+            return !"intruder".equals(username);
+        }
+
+        @Override
+        public CompletionStage<Boolean> checkValidAsync(String clientId, String username, byte[] password) {
+            final CompletableFuture<Boolean> valid = new CompletableFuture<>();
+            authentications.schedule(() -> valid.complete(checkValid(clientId, username, password)), 300,
+                TimeUnit.MILLISECONDS);
+            return valid;
+        }
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        final Properties properties = new Properties();
+        properties.setProperty("host", "127.0.0.1");
+        properties.setProperty("port", String.valueOf(port));
+        server = new Server();
+        server.startServer(new MemoryConfig(properties), null, null, new SlowAuthenticator(), null);
+    }
+
+    @After
+    public void stopServer() {
+        server.stopServer();
+        authentications.shutdownNow();
+    }
+
+    @Test
+    public void rejectedLoginDropsPipelinedPublish() throws Exception {
+        try (RawMqttClient subscriber = subscribed()) {
+            try (RawMqttClient intruder = new RawMqttClient(port)) {
+                intruder.send(RawMqttClient.connect("intruder", true, "intruder", "secret"),
+                    RawMqttClient.publish("sensors/1/temperature", "99"));
+                final RawMqttClient.Packet connAck = intruder.read(5000);
+                assertNotNull(connAck);
+                assertEquals(RawMqttClient.CONNACK, connAck.type);
+                assertEquals(CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD, connAck.returnCode());
+                assertTrue("the broker closes the refused connection", intruder.closedByBroker(5000));
+            }
+
+            try (RawMqttClient publisher = new RawMqttClient(port)) {
+                publisher.send(RawMqttClient.connect("publisher", true, "publisher", "secret"));
+                assertEquals(RawMqttClient.CONNACK, publisher.read(5000).type);
+                // delivered in order to the same client, the control publish comes after the intruder's one
+                publisher.send(RawMqttClient.publish("control", "done"));
+                final RawMqttClient.Packet next = subscriber.read(5000);
+                assertNotNull(next);
+                assertEquals("control", next.topic());
+            }
+        }
+    }
+
+    @Test
+    public void acceptedLoginProcessesPipelinedPublishAfterConnAck() throws Exception {
+        try (RawMqttClient subscriber = subscribed()) {
+            try (RawMqttClient device = new RawMqttClient(port)) {
+                device.send(RawMqttClient.connect("device", true, "device", "secret"),
+                    RawMqttClient.publish("sensors/1/temperature", "21"));
+                final RawMqttClient.Packet connAck = device.read(5000);
+                assertNotNull(connAck);
+                assertEquals(RawMqttClient.CONNACK, connAck.type);
+                assertEquals(0, connAck.returnCode());
+
+                final RawMqttClient.Packet delivered = subscriber.read(5000);
+                assertNotNull("the publish pipelined with an accepted CONNECT is processed", delivered);
+                assertEquals("sensors/1/temperature", delivered.topic());
+            }
+        }
+    }
+
+    private RawMqttClient subscribed() throws IOException {
+        final RawMqttClient subscriber = new RawMqttClient(port);
+        subscriber.send(RawMqttClient.connect("subscriber", true, "subscriber", "secret"),
+            RawMqttClient.subscribe(1, "sensors/+/temperature", 0),
+            RawMqttClient.subscribe(2, "control", 0));
+        assertEquals(RawMqttClient.CONNACK, subscriber.read(5000).type);
+        assertEquals(RawMqttClient.SUBACK, subscriber.read(5000).type);
+        assertEquals(RawMqttClient.SUBACK, subscriber.read(5000).type);
+        return subscriber;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MQTT 3.1.1 client writing the packets as bytes, so a test can pipeline them in one write or drop the connection
+ * without a DISCONNECT, which the Paho client doesn't allow.
+ */
+final class RawMqttClient implements AutoCloseable {
+
+    static final int CONNACK = 2;
+    static final int PUBLISH = 3;
+    static final int SUBACK = 9;
+
+    /**
+     * A packet read: its type, the flags of its fixed header and the bytes after it.
+     */
+    static final class Packet {
+
+        final int type;
+        final int flags;
+        final byte[] body;
+
+        Packet(int type, int flags, byte[] body) {
+            this.type = type;
+            this.flags = flags;
+            this.body = body;
+        }
+
+        /**
+         * @return the topic of a PUBLISH.
+         */
+        String topic() {
+            final int length = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+            return new String(body, 2, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the payload of a PUBLISH.
+         */
+        String payload() {
+            final int length = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+            // the packet id follows the topic above QoS 0
+            final int offset = 2 + length + (qos() > 0 ? 2 : 0);
+            return new String(body, offset, body.length - offset, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the QoS of a PUBLISH.
+         */
+        int qos() {
+            return (flags & 0x06) >> 1;
+        }
+
+        /**
+         * @return the packet id of a PUBLISH above QoS 0.
+         */
+        int packetID() {
+            final int length = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+            return ((body[2 + length] & 0xFF) << 8) | (body[3 + length] & 0xFF);
+        }
+
+        /**
+         * @return the session present flag of a CONNACK.
+         */
+        boolean sessionPresent() {
+            return (body[0] & 0x01) != 0;
+        }
+
+        /**
+         * @return the return code of a CONNACK.
+         */
+        int returnCode() {
+            return body[1];
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    RawMqttClient(int port) throws IOException {
+        socket = new Socket("127.0.0.1", port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(5000);
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    static byte[] connect(String clientID, boolean cleanSession, String username, String password) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream body = new DataOutputStream(bytes);
+        body.writeUTF("MQTT");
+        body.writeByte(4);
+        int flags = cleanSession ? 0x02 : 0;
+        if (username != null) {
+            flags |= 0x80;
+        }
+        if (password != null) {
+            flags |= 0x40;
+        }
+        body.writeByte(flags);
+        body.writeShort(60);
+        body.writeUTF(clientID);
+        if (username != null) {
+            body.writeUTF(username);
+        }
+        if (password != null) {
+            body.writeUTF(password);
+        }
+        return packet(0x10, bytes.toByteArray());
+    }
+
+    static byte[] subscribe(int packetID, String topicFilter, int qos) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream body = new DataOutputStream(bytes);
+        body.writeShort(packetID);
+        body.writeUTF(topicFilter);
+        body.writeByte(qos);
+        return packet(0x82, bytes.toByteArray());
+    }
+
+    /**
+     * @return a QoS 0 PUBLISH.
+     */
+    static byte[] publish(String topic, String payload) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream body = new DataOutputStream(bytes);
+        body.writeUTF(topic);
+        body.write(payload.getBytes(StandardCharsets.UTF_8));
+        return packet(0x30, bytes.toByteArray());
+    }
+
+    static byte[] pubAck(int packetID) {
+        return packet(0x40, new byte[] {(byte) (packetID >> 8), (byte) packetID});
+    }
+
+    private static byte[] packet(int header, byte[] body) {
+        final ByteArrayOutputStream packet = new ByteArrayOutputStream(body.length + 5);
+        packet.write(header);
+        int remaining = body.length;
+        do {
+            final int digit = remaining % 128;
+            remaining /= 128;
+            packet.write(remaining > 0 ? digit | 0x80 : digit);
+        } while (remaining > 0);
+        packet.write(body, 0, body.length);
+        return packet.toByteArray();
+    }
+
+    /**
+     * Writes the packets in a single write, so the broker may decode them from the same read.
+     */
+    void send(byte[]... packets) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] packet : packets) {
+            bytes.write(packet);
+        }
+        out.write(bytes.toByteArray());
+        out.flush();
+    }
+
+    /**
+     * @return the next packet, null if none came in the time or the broker closed the connection.
+     */
+    Packet read(int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+        try {
+            final int header = in.readUnsignedByte();
+            int length = 0;
+            int multiplier = 1;
+            int digit;
+            do {
+                digit = in.readUnsignedByte();
+                length += (digit & 0x7F) * multiplier;
+                multiplier *= 128;
+            } while ((digit & 0x80) != 0);
+            final byte[] body = new byte[length];
+            in.readFully(body);
+            return new Packet(header >> 4, header & 0x0F, body);
+        } catch (SocketTimeoutException | EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the broker closed the connection in the time.
+     */
+    boolean closedByBroker(int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+        try {
+            return in.read() < 0;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            // reset by the broker
+            return true;
+        }
+    }
+
+    /**
+     * Closes the socket without a DISCONNECT, as a lost connection.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.server;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The retained messages set and cleared on the nodes converge on all of them, the concurrent writes of the same
+ * topics included, and a node joining later gets them all. The state of a node is read by a subscription to all
+ * the topics there.
+ */
+public class RetainedReplicationTest {
+
+    private static final int TOPICS = 200;
+
+    private LocalCluster cluster;
+
+    @Before
+    public void startCluster() throws IOException {
+        cluster = new LocalCluster(3, new Properties());
+        cluster.startNode(0);
+        cluster.startNode(1);
+    }
+
+    @After
+    public void stopCluster() {
+        cluster.close();
+    }
+
+    @Test
+    public void retainedMessagesConverge() throws Exception {
+        final Map<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < TOPICS; i++) {
+            retain(cluster.server(i % 2), "readings/" + i, "v" + i);
+            expected.put("readings/" + i, "v" + i);
+        }
+        // both nodes write the same topics at once
+        final ExecutorService writers = Executors.newFixedThreadPool(2);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            final Future<?>[] writes = new Future<?>[2];
+            for (int node = 0; node < 2; node++) {
+                final Server server = cluster.server(node);
+                final String prefix = "node" + node + "-";
+                writes[node] = writers.submit(() -> {
+                    start.await();
+                    for (int k = 0; k < 2000; k++) {
+                        retain(server, "hot/" + (k % 16), prefix + k);
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+            for (Future<?> write : writes) {
+                write.get();
+            }
+        } finally {
+            writers.shutdown();
+        }
+        for (int i = 0; i < TOPICS; i += 10) {
+            retain(cluster.server(1), "readings/" + i, "");
+            expected.remove("readings/" + i);
+        }
+
+        final Map<String, String> state = awaitConverged(2);
+        assertEquals(expected, readings(state));
+        for (int k = 0; k < 16; k++) {
+            // the last write of either node
+            final String hot = state.get("hot/" + k);
+            if (!("node0-" + (1984 + k)).equals(hot) && !("node1-" + (1984 + k)).equals(hot)) {
+                fail("hot/" + k + " converged on " + hot);
+            }
+        }
+
+        cluster.startNode(2);
+        assertEquals("the node joining gets all the retained messages", state, awaitConverged(3));
+    }
+
+    private static void retain(Server server, String topic, String payload) {
+        server.internalPublish(MqttMessageBuilders.publish()
+            .topicName(topic)
+            // a QoS 0 retained publish without payload clears the topic
+            .qos(payload.isEmpty() ? MqttQoS.AT_MOST_ONCE : MqttQoS.AT_LEAST_ONCE)
+            .retained(true)
+            .payload(Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8))
+            .build(), "publisher");
+    }
+
+    /**
+     * @return the retained messages of the first nodes, once the same on all of them.
+     */
+    private Map<String, String> awaitConverged(int nodes) throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + 20000;
+        while (true) {
+            final Map<String, String> first = retained(0);
+            boolean converged = true;
+            for (int node = 1; node < nodes && converged; node++) {
+                converged = first.equals(retained(node));
+            }
+            if (converged) {
+                return first;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("The retained messages of the nodes don't converge");
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    /**
+     * @return the payloads of the retained messages of the node, by topic.
+     */
+    private Map<String, String> retained(int node) throws IOException {
+        final Map<String, String> retained = new TreeMap<>();
+        try (RawMqttClient client = new RawMqttClient(cluster.mqttPort(node))) {
+            client.send(RawMqttClient.connect("reader" + node, true, "reader", "secret"),
+                RawMqttClient.subscribe(1, "#", 0));
+            RawMqttClient.Packet packet;
+            while ((packet = client.read(500)) != null) {
+                if (packet.type == RawMqttClient.PUBLISH) {
+                    retained.put(packet.topic(), packet.payload());
+                    if (packet.qos() == 1) {
+                        // the delivery of the retained messages waits for the acks
+                        client.send(RawMqttClient.pubAck(packet.packetID()));
+                    }
+                }
+            }
+        }
+        return retained;
+    }
+
+    private static Map<String, String> readings(Map<String, String> retained) {
+        final Map<String, String> readings = new TreeMap<>(retained);
+        readings.keySet().removeIf(topic -> !topic.startsWith("readings/"));
+        return readings;
+    }
+}
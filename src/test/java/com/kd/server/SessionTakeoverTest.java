@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A persistent client reconnecting to another node finds its session there, with the messages queued for it, and
+ * the publishes follow it. When the transfer of the session comes after the timeout of the new node, the session
+ * stays on the previous node with the messages held meanwhile. The bytes the first node sends to the second go
+ * through a proxy which can hold them.
+ */
+public class SessionTakeoverTest {
+
+    private static final int TIMEOUT_MILLIS = 1000;
+
+    private HoldingProxy proxy;
+    private LocalCluster cluster;
+
+    /**
+     * Forwards the connections to a port, holding the bytes sent to it while paused.
+     */
+    private static final class HoldingProxy implements AutoCloseable {
+
+        private final ServerSocket server;
+        private final List<Socket> sockets = new ArrayList<>();
+        private volatile boolean paused;
+
+        HoldingProxy(int port) throws IOException {
+            server = new ServerSocket(0);
+            final Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        final Socket client = server.accept();
+                        final Socket target;
+                        try {
+                            target = new Socket("127.0.0.1", port);
+                        } catch (IOException e) {
+                            // the node isn't started yet, the peer connects again
+                            client.close();
+                            continue;
+                        }
+                        synchronized (sockets) {
+                            sockets.add(client);
+                            sockets.add(target);
+                        }
+                        pump(client, target, true);
+                        pump(target, client, false);
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }, "holding-proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void pump(Socket from, Socket to, boolean holding) {
+            final Thread pump = new Thread(() -> {
+                final byte[] buffer = new byte[64 * 1024];
+                try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        while (holding && paused) {
+                            Thread.sleep(10);
+                        }
+                        out.write(buffer, 0, read);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // either side closed
+                }
+            }, "holding-proxy-pump");
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        void pause() {
+            paused = true;
+        }
+
+        void resume() {
+            paused = false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    @Before
+    public void startCluster() throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("cluster.session_takeover.timeout_ms", String.valueOf(TIMEOUT_MILLIS));
+        cluster = new LocalCluster(2, properties);
+        proxy = new HoldingProxy(cluster.clusterPort(1));
+        cluster.listAt(1, proxy.port());
+        cluster.start();
+        awaitRoute(0, 1);
+        awaitRoute(1, 0);
+    }
+
+    /**
+     * Waits for the node to reach the other, which gets the publishes then.
+     */
+    private void awaitRoute(int from, int to) throws IOException {
+        try (RawMqttClient publisher = new RawMqttClient(cluster.mqttPort(from));
+             RawMqttClient subscriber = new RawMqttClient(cluster.mqttPort(to))) {
+            publisher.send(RawMqttClient.connect("probe" + from, true, "probe", "secret"));
+            assertEquals(RawMqttClient.CONNACK, publisher.read(5000).type);
+            subscriber.send(RawMqttClient.connect("probe" + to, true, "probe", "secret"),
+                RawMqttClient.subscribe(1, "control", 0));
+            assertEquals(RawMqttClient.CONNACK, subscriber.read(5000).type);
+            assertEquals(RawMqttClient.SUBACK, subscriber.read(5000).type);
+            LocalCluster.awaitRoute(publisher, subscriber, "control");
+        }
+    }
+
+    @After
+    public void stopCluster() throws IOException {
+        cluster.close();
+        proxy.close();
+    }
+
+    @Test
+    public void sessionFollowsTheClientAcrossNodes() throws Exception {
+        try (RawMqttClient publisher = publisher()) {
+            leaveSession(publisher, "q0", "q1", "q2");
+
+            try (RawMqttClient device = new RawMqttClient(cluster.mqttPort(1))) {
+                final RawMqttClient.Packet connAck = connect(device);
+                assertTrue("the session is taken over", connAck.sessionPresent());
+                assertPublishes(device, "q0", "q1", "q2");
+
+                LocalCluster.awaitRoute(publisher, device, "devices/1/commands");
+                publisher.send(RawMqttClient.publish("devices/1/commands", "live"));
+                assertPublishes(device, "live");
+                assertNull("the previous node dropped its copy of the session", device.read(500));
+
+                try (RawMqttClient back = new RawMqttClient(cluster.mqttPort(0))) {
+                    assertTrue("the session is taken back", connect(back).sessionPresent());
+                    assertTrue("the stale connection is closed", device.closedByBroker(5000));
+                    publisher.send(RawMqttClient.publish("devices/1/commands", "back"));
+                    assertPublishes(back, "back");
+                    assertNull(back.read(500));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lateTransferLeavesTheSessionOnThePreviousNode() throws Exception {
+        try (RawMqttClient publisher = publisher()) {
+            leaveSession(publisher, "q0", "q1", "q2");
+
+            proxy.pause();
+            try (RawMqttClient device = new RawMqttClient(cluster.mqttPort(1))) {
+                assertFalse("the transfer came after the timeout", connect(device).sessionPresent());
+                // held by the previous node, waiting for the confirmation
+                publish(publisher, "h0", "h1");
+                proxy.resume();
+                assertNull("the late transfer isn't imported", device.read(TIMEOUT_MILLIS));
+            }
+            // past the wait of the confirmation
+            Thread.sleep(2 * TIMEOUT_MILLIS);
+
+            try (RawMqttClient device = new RawMqttClient(cluster.mqttPort(0))) {
+                assertTrue("the unconfirmed session is kept", connect(device).sessionPresent());
+                assertPublishes(device, "q0", "q1", "q2", "h0", "h1");
+                publisher.send(RawMqttClient.publish("devices/1/commands", "live"));
+                assertPublishes(device, "live");
+            }
+        }
+    }
+
+    private RawMqttClient publisher() throws IOException {
+        final RawMqttClient publisher = new RawMqttClient(cluster.mqttPort(0));
+        // gets its own publishes, once they are processed
+        publisher.send(RawMqttClient.connect("publisher", true, "publisher", "secret"),
+            RawMqttClient.subscribe(1, "devices/1/commands", 0));
+        assertEquals(RawMqttClient.CONNACK, publisher.read(5000).type);
+        assertEquals(RawMqttClient.SUBACK, publisher.read(5000).type);
+        return publisher;
+    }
+
+    /**
+     * Subscribes the device on the first node and drops its connection, then queues the messages to its session.
+     */
+    private void leaveSession(RawMqttClient publisher, String... queued) throws Exception {
+        try (RawMqttClient device = new RawMqttClient(cluster.mqttPort(0))) {
+            assertFalse(connect(device).sessionPresent());
+            device.send(RawMqttClient.subscribe(1, "devices/1/commands", 0));
+            assertEquals(RawMqttClient.SUBACK, device.read(5000).type);
+        }
+        // the connection lost is handled
+        Thread.sleep(500);
+        publish(publisher, queued);
+    }
+
+    private static void publish(RawMqttClient publisher, String... payloads) throws IOException {
+        for (String payload : payloads) {
+            publisher.send(RawMqttClient.publish("devices/1/commands", payload));
+        }
+        assertPublishes(publisher, payloads);
+    }
+
+    private static RawMqttClient.Packet connect(RawMqttClient device) throws IOException {
+        device.send(RawMqttClient.connect("device", false, "device", "secret"));
+        final RawMqttClient.Packet connAck = device.read(5000);
+        assertNotNull(connAck);
+        assertEquals(RawMqttClient.CONNACK, connAck.type);
+        assertEquals(0, connAck.returnCode());
+        return connAck;
+    }
+
+    private static void assertPublishes(RawMqttClient client, String... payloads) throws IOException {
+        for (String payload : payloads) {
+            final RawMqttClient.Packet publish = client.read(5000);
+            assertNotNull("expected " + payload, publish);
+            assertEquals(RawMqttClient.PUBLISH, publish.type);
+            assertEquals(payload, publish.payload());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.spi.impl;
+
+import com.kd.interception.AbstractInterceptHandler;
+import com.kd.interception.messages.InterceptDisconnectMessage;
+import com.kd.interception.messages.InterceptPublishMessage;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A handler throwing an error doesn't stop its lane, and the producers of a lane whose thread failed don't wait for
+ * it whatever the overload policy.
+ */
+public class InterceptorLaneTest {
+
+    /**
+     * Throws an error on the disconnection of "poison", keeps the clients of the others.
+     */
+    private static final class PoisonedHandler extends AbstractInterceptHandler {
+
+        final BlockingQueue<String> disconnected = new LinkedBlockingQueue<>();
+
+        @Override
+        public String getID() {
+            return "poisoned";
+        }
+
+        @Override
+        public void onDisconnect(InterceptDisconnectMessage msg) {
+            if ("poison".equals(msg.getClientID())) {
+                throw new AssertionError("poisoned");
+            }
+            disconnected.add(msg.getClientID());
+        }
+    }
+
+    @Test
+    public void handlerErrorDoesntStopTheLane() throws Exception {
+        final PoisonedHandler handler = new PoisonedHandler();
+        final InterceptorLane lane = new InterceptorLane(handler, 8, InterceptorLane.OverloadPolicy.BLOCK, 1);
+        try {
+            lane.offer(new InterceptDisconnectMessage("poison", null));
+            lane.offer(new InterceptDisconnectMessage("device", null));
+            assertEquals("device", handler.disconnected.poll(5, TimeUnit.SECONDS));
+        } finally {
+            lane.stop();
+        }
+    }
+
+    @Test
+    public void blockedProducersDontWaitForAFailedLane() throws Exception {
+        final PoisonedHandler handler = new PoisonedHandler();
+        final InterceptorLane lane = new InterceptorLane(handler, 2, InterceptorLane.OverloadPolicy.BLOCK, 1);
+        final MqttPublishMessage publish = MqttMessageBuilders.publish().topicName("sensors/1/temperature")
+            .qos(MqttQoS.AT_MOST_ONCE).payload(Unpooled.wrappedBuffer(new byte[] {1})).build();
+        // releasing it again once dispatched fails the thread of the lane
+        publish.payload().release();
+        lane.offer(new InterceptPublishMessage(publish, "sensor", null));
+        assertTrue("the thread of the lane ends", lane.awaitTermination(5000));
+
+        final CompletableFuture<Integer> offered = CompletableFuture.supplyAsync(() -> {
+            int accepted = 0;
+            for (int i = 0; i < 100; i++) {
+                if (lane.offer(new InterceptDisconnectMessage("device" + i, null))) {
+                    accepted++;
+                }
+            }
+            return accepted;
+        });
+        assertEquals("the events of a failed lane are dropped", 0, (int) offered.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.spi.impl;
+
+import com.kd.persistence.MemoryStorageService;
+import com.kd.spi.ClientSession;
+import com.kd.spi.IMessagesStore;
+import com.kd.spi.IMessagesStore.StoredMessage;
+import com.kd.spi.impl.subscriptions.Topic;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A subscription matching a million retained topics gets all of them, streamed at the pace of the socket: the
+ * publishes written but not sent stay under the writability watermark. The QoS 1 messages waiting for their ack
+ * never exceed the inflight window.
+ */
+public class RetainedDeliveryTest {
+
+    private static final int TOPICS = 1_000_000;
+    private static final int HIGH_WATER_MARK = 64 * 1024;
+    private static final int LOW_WATER_MARK = 32 * 1024;
+    // less than the bytes of any publish
+    private static final int MIN_PUBLISH_BYTES = 32;
+
+    private static ScheduledExecutorService scheduler;
+    private static MemoryStorageService storage;
+
+    /**
+     * Holds the writes as a slow socket: the channel is unwritable above the high water mark, writable again once
+     * the client read enough to go below the low one.
+     */
+    private static final class SlowSocket extends ChannelDuplexHandler {
+
+        final ArrayDeque<MqttPublishMessage> queued = new ArrayDeque<>();
+        long queuedBytes;
+        int peakQueued;
+        private ChannelHandlerContext ctx;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            final MqttPublishMessage publish = (MqttPublishMessage) msg;
+            queued.add(publish);
+            queuedBytes += size(publish);
+            peakQueued = Math.max(peakQueued, queued.size());
+            if (queuedBytes > HIGH_WATER_MARK) {
+                ctx.channel().unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+            }
+            promise.setSuccess();
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            // sent as the client reads
+        }
+
+        List<MqttPublishMessage> read(int count) {
+            final List<MqttPublishMessage> read = new ArrayList<>(count);
+            while (read.size() < count && !queued.isEmpty()) {
+                final MqttPublishMessage publish = queued.poll();
+                queuedBytes -= size(publish);
+                read.add(publish);
+            }
+            if (queuedBytes < LOW_WATER_MARK) {
+                ctx.channel().unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+            }
+            return read;
+        }
+
+        private static int size(MqttPublishMessage publish) {
+            return publish.payload().readableBytes() + publish.variableHeader().topicName().length() + 4;
+        }
+    }
+
+    /**
+     * A client reading the publishes, acking them all at once or after all those sent.
+     */
+    private static final class Client {
+
+        final SlowSocket socket = new SlowSocket();
+        final EmbeddedChannel channel = new EmbeddedChannel(socket, new ChannelInboundHandlerAdapter() {
+
+            @Override
+            public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+                if (ctx.channel().isWritable()) {
+                    RetainedDelivery.channelWritable(ctx.channel());
+                }
+            }
+        });
+        final ClientSession session;
+        final BitSet delivered = new BitSet(TOPICS);
+        int maxUnacknowledged;
+
+        Client() {
+            session = new SessionsRepository(storage.sessionsStore(), scheduler).createNewSession("dashboard", true);
+        }
+
+        void subscribe(String filter, int maxInflight) {
+            RetainedDelivery.start(channel, session, maxInflight,
+                storage.messagesStore().iterateMatching(new Topic(filter)));
+        }
+
+        /**
+         * @param lazyAcks to ack only once all the publishes sent are read.
+         */
+        void readAll(boolean lazyAcks) {
+            final List<Integer> unacknowledged = new ArrayList<>();
+            while (true) {
+                final List<MqttPublishMessage> read = socket.read(100);
+                for (MqttPublishMessage publish : read) {
+                    final int index = index(publish.variableHeader().topicName());
+                    assertFalse("delivered twice: " + topic(index), delivered.get(index));
+                    delivered.set(index);
+                    assertTrue(publish.fixedHeader().isRetain());
+                    if (publish.fixedHeader().qosLevel() != MqttQoS.AT_MOST_ONCE) {
+                        unacknowledged.add(publish.variableHeader().packetId());
+                    }
+                    publish.release();
+                }
+                maxUnacknowledged = Math.max(maxUnacknowledged, unacknowledged.size());
+                if (read.isEmpty() && unacknowledged.isEmpty()) {
+                    break;
+                }
+                if (!lazyAcks || read.isEmpty()) {
+                    for (int packetID : unacknowledged) {
+                        session.inFlightAcknowledged(packetID);
+                        RetainedDelivery.acknowledged(channel, packetID);
+                    }
+                    unacknowledged.clear();
+                }
+                channel.runPendingTasks();
+            }
+            assertEquals(0, session.getInflightMessagesNo());
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @BeforeClass
+    public static void storeRetained() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        storage = new MemoryStorageService(null, scheduler);
+        final IMessagesStore store = storage.messagesStore();
+        for (int i = 0; i < TOPICS; i++) {
+            final String topic = topic(i);
+            // the first sensor of each device publishes at QoS 1
+            final StoredMessage message = new StoredMessage(new byte[16],
+                i % 4 == 0 ? MqttQoS.AT_LEAST_ONCE : MqttQoS.AT_MOST_ONCE, topic);
+            message.setClientID("device");
+            store.storeRetained(new Topic(topic), message);
+        }
+    }
+
+    @AfterClass
+    public static void releaseStore() {
+        // the tests coming next don't run next to the million topics
+        storage.close();
+        storage = null;
+        scheduler.shutdownNow();
+    }
+
+    private static String topic(int index) {
+        return "devices/" + (index / 4) + "/sensor" + (index % 4);
+    }
+
+    private static int index(String topic) {
+        final int slash = topic.indexOf('/', "devices/".length());
+        return Integer.parseInt(topic.substring("devices/".length(), slash)) * 4
+            + topic.charAt(topic.length() - 1) - '0';
+    }
+
+    @Test
+    public void millionRetainedTopicsStreamAtThePaceOfTheSocket() {
+        final Client client = new Client();
+        // no inflight window, only the socket holds the delivery back
+        client.subscribe("#", TOPICS);
+        assertFalse("the delivery pauses once the socket is full", client.channel.isWritable());
+
+        client.readAll(false);
+        assertEquals(TOPICS, client.delivered.cardinality());
+        assertTrue("peak of " + client.socket.peakQueued + " publishes queued",
+            client.socket.peakQueued <= HIGH_WATER_MARK / MIN_PUBLISH_BYTES + 1);
+    }
+
+    @Test
+    public void qos1RetainedMessagesWaitForTheAcks() {
+        final Client client = new Client();
+        client.subscribe("devices/+/sensor0", 64);
+
+        client.readAll(true);
+        assertEquals(TOPICS / 4, client.delivered.cardinality());
+        assertEquals("the delivery waits for the acks once the window is full", 64, client.maxUnacknowledged);
+    }
+}
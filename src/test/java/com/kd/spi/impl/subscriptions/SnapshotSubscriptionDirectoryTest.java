@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package com.kd.spi.impl.subscriptions;
+
+import com.kd.persistence.MemoryStorageService;
+import com.kd.spi.impl.SessionsRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static io.netty.handler.codec.mqtt.MqttQoS.AT_MOST_ONCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The changes of the snapshot directory complete once published without blocking the caller, a failed batch doesn't
+ * stop the writer, and a caller interrupted while waiting is told the change isn't known to be applied.
+ */
+public class SnapshotSubscriptionDirectoryTest {
+
+    private static final Topic TEMPERATURES = new Topic("sensors/+/temperature");
+
+    private ScheduledExecutorService scheduler;
+    private SnapshotSubscriptionDirectory directory;
+
+    @Before
+    public void startDirectory() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        directory = new SnapshotSubscriptionDirectory();
+        directory.init(new SessionsRepository(new MemoryStorageService(null, scheduler).sessionsStore(), scheduler));
+    }
+
+    @After
+    public void stopScheduler() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void asyncChangesCompleteOncePublished() throws Exception {
+        directory.addAsync(new Subscription("sensor", TEMPERATURES, AT_MOST_ONCE)).get(5, TimeUnit.SECONDS);
+        assertEquals(1, directory.matches(new Topic("sensors/1/temperature")).size());
+
+        directory.removeSubscriptionAsync(TEMPERATURES, "sensor").get(5, TimeUnit.SECONDS);
+        assertTrue(directory.matches(new Topic("sensors/1/temperature")).isEmpty());
+    }
+
+    @Test
+    public void writerSurvivesAnError() throws Exception {
+        final Topic broken = new Topic("sensors/broken") {
+
+            @Override
+            public List<Token> getTokens() {
+                throw new AssertionError("broken filter");
+            }
+        };
+        final CompletableFuture<Void> failed = directory.addAsync(new Subscription("sensor", broken, AT_MOST_ONCE));
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("The change of a failed batch completes exceptionally");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+
+        directory.addAsync(new Subscription("sensor", TEMPERATURES, AT_MOST_ONCE)).get(5, TimeUnit.SECONDS);
+        assertEquals(1, directory.matches(new Topic("sensors/1/temperature")).size());
+    }
+
+    @Test
+    public void interruptedWaitIsReported() {
+        // not initialized, nothing applies the change
+        final SnapshotSubscriptionDirectory idle = new SnapshotSubscriptionDirectory();
+        Thread.currentThread().interrupt();
+        try {
+            idle.add(new Subscription("sensor", TEMPERATURES, AT_MOST_ONCE));
+            fail("An interrupted wait doesn't return as if the change was applied");
+        } catch (IllegalStateException e) {
+            assertTrue("the interrupt is kept", Thread.interrupted());
+        }
+    }
+}